@@ -0,0 +1,41 @@
+package org.jasig.cas.pm.ldap;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>ActiveDirectoryLdapServer.encodePassword, which looks the charset up by
+ * name, against encoding with a Charset looked up once.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodePasswordBenchmark {
+
+	private final ActiveDirectoryLdapServer server = new ActiveDirectoryLdapServer();
+	private final Charset utf16le = Charset.forName("UTF-16LE");
+	private final String password = "Tr0ub4dor-Staple-Horse";
+
+	@Benchmark
+	public byte[] encodePassword() {
+		return server.encodePassword(password);
+	}
+
+	@Benchmark
+	public byte[] cachedCharset() {
+		return ("\"" + password + "\"").getBytes(utf16le);
+	}
+}
@@ -0,0 +1,47 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Builds the filters AbstractLdapServer.searchForDn searches with: the
+ * usual username filter, one that needs escaping, and a filter using the
+ * domain placeholders.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchFilterTemplateBenchmark {
+
+	private final SearchFilterTemplate userFilter =
+			SearchFilterTemplate.compile("(&(objectClass=user)(sAMAccountName=%u))");
+	private final SearchFilterTemplate domainFilter =
+			SearchFilterTemplate.compile("(&(uid=%U)(|(dc=%2)(mail=%u)))");
+
+	@Benchmark
+	public String plainUsername() {
+		return userFilter.format("jdoe1234");
+	}
+
+	@Benchmark
+	public String escapedUsername() {
+		return userFilter.format("j*doe)(uid=*");
+	}
+
+	@Benchmark
+	public String domainUsername() {
+		return domainFilter.format("jdoe@example.edu");
+	}
+}
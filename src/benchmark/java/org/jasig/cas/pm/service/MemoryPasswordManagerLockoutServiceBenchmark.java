@@ -0,0 +1,70 @@
+package org.jasig.cas.pm.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.UserLockedOutException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>MemoryPasswordManagerLockoutService from 8 threads at once, with
+ * usernames picked at random from a pool of keys. With the default
+ * maxEntries of 100000, millions of keys is a credential-stuffing run that
+ * keeps the map full and evicting; with maxEntries raised to fit them,
+ * it is the map at that size.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms3g", "-Xmx3g" })
+@Threads(8)
+public class MemoryPasswordManagerLockoutServiceBenchmark {
+
+	@Param({ "1000", "4000000" })
+	private int keys;
+
+	@Param({ "100000", "5000000" })
+	private int maxEntries;
+
+	private String[] usernames;
+	private MemoryPasswordManagerLockoutService service;
+
+	@Setup
+	public void createService() {
+		usernames = new String[keys];
+		for(int i=0;i<keys;i++) {
+			usernames[i] = "nid" + (10000000 + i);
+		}
+		service = new MemoryPasswordManagerLockoutService();
+		service.setMaxEntries(maxEntries);
+		// never locked out, so every call does the full bookkeeping
+		service.setAllowedIncorrectAttempts(Integer.MAX_VALUE);
+	}
+
+	@Benchmark
+	public void registerIncorrectAttempt() throws UserLockedOutException {
+		service.registerIncorrectAttempt(randomUsername());
+	}
+
+	@Benchmark
+	public void allowAttempt() throws UserLockedOutException {
+		service.allowAttempt(randomUsername());
+	}
+
+	private String randomUsername() {
+		return usernames[ThreadLocalRandom.current().nextInt(keys)];
+	}
+}
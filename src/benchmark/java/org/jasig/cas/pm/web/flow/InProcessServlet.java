@@ -0,0 +1,142 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>Just enough of the servlet API for the load driver to run flows
+ * through ServletExternalContext, as the webapp does, without a servlet
+ * container: requests with parameters, attributes and a remote address,
+ * sessions holding the flow executions, and responses nothing is written
+ * to. Methods the flows don't use return null, false or 0.</p>
+ */
+class InProcessServlet implements InvocationHandler {
+
+	private static final AtomicInteger SESSION_IDS = new AtomicInteger();
+
+	private final Map<String,Object> attributes = new ConcurrentHashMap<String,Object>();
+	private final Map<String,String[]> parameters;
+	private final String remoteAddr;
+	private final HttpSession session;
+	private final String id;
+
+	private InProcessServlet(Map<String,String[]> parameters, String remoteAddr, HttpSession session, String id) {
+		this.parameters = parameters;
+		this.remoteAddr = remoteAddr;
+		this.session = session;
+		this.id = id;
+	}
+
+	static ServletContext servletContext() {
+		return proxy(ServletContext.class, new InProcessServlet(null, null, null, null));
+	}
+
+	static HttpSession session() {
+		return proxy(HttpSession.class, new InProcessServlet(null, null, null,
+				Integer.toString(SESSION_IDS.incrementAndGet())));
+	}
+
+	/**
+	 * @param parameters request parameters, each with one value
+	 */
+	static HttpServletRequest request(Map<String,String> parameters, String remoteAddr, HttpSession session) {
+		Map<String,String[]> values = new ConcurrentHashMap<String,String[]>();
+		for(Map.Entry<String,String> parameter : parameters.entrySet()) {
+			values.put(parameter.getKey(), new String[] { parameter.getValue() });
+		}
+		return proxy(HttpServletRequest.class, new InProcessServlet(values, remoteAddr, session, null));
+	}
+
+	static HttpServletResponse response() {
+		return proxy(HttpServletResponse.class, new InProcessServlet(null, null, null, null));
+	}
+
+	private static <T> T proxy(Class<T> type, InProcessServlet handler) {
+		return type.cast(Proxy.newProxyInstance(InProcessServlet.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if(name.equals("getAttribute")) {
+			return attributes.get(args[0]);
+		} else if(name.equals("setAttribute")) {
+			if(args[1] == null) {
+				attributes.remove(args[0]);
+			} else {
+				attributes.put((String) args[0], args[1]);
+			}
+			return null;
+		} else if(name.equals("removeAttribute")) {
+			attributes.remove(args[0]);
+			return null;
+		} else if(name.equals("getAttributeNames")) {
+			return Collections.enumeration(attributes.keySet());
+		} else if(name.equals("getParameter")) {
+			String[] values = parameters.get(args[0]);
+			return values != null ? values[0] : null;
+		} else if(name.equals("getParameterValues")) {
+			return parameters.get(args[0]);
+		} else if(name.equals("getParameterMap")) {
+			return Collections.unmodifiableMap(parameters);
+		} else if(name.equals("getParameterNames")) {
+			return Collections.enumeration(parameters.keySet());
+		} else if(name.equals("getSession")) {
+			return session;
+		} else if(name.equals("getId")) {
+			return id;
+		} else if(name.equals("getRemoteAddr") || name.equals("getRemoteHost")) {
+			return remoteAddr;
+		} else if(name.equals("getLocale")) {
+			return Locale.US;
+		} else if(name.equals("getLocales")) {
+			return Collections.enumeration(Collections.singletonList(Locale.US));
+		} else if(name.equals("getHeaders") || name.equals("getHeaderNames") || name.equals("getInitParameterNames")) {
+			return Collections.enumeration(Collections.emptyList());
+		} else if(name.equals("getCharacterEncoding")) {
+			return "UTF-8";
+		} else if(name.equals("getMethod")) {
+			return "POST";
+		} else if(name.equals("getScheme")) {
+			return "http";
+		} else if(name.equals("getServerName")) {
+			return "localhost";
+		} else if(name.equals("getContextPath")) {
+			return "/cas";
+		} else if(name.equals("getServletPath")) {
+			return "/login";
+		} else if(name.equals("getRequestURI")) {
+			return "/cas/login";
+		} else if(name.equals("encodeURL") || name.equals("encodeRedirectURL")) {
+			return args[0];
+		} else if(name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if(name.equals("equals")) {
+			return proxy == args[0];
+		} else if(name.equals("toString")) {
+			return "InProcessServlet" + (id != null ? " session " + id : "");
+		}
+
+		Class<?> type = method.getReturnType();
+		if(type == boolean.class) {
+			return false;
+		} else if(type == int.class) {
+			return 0;
+		} else if(type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,572 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.jasig.cas.pm.ldap.EmbeddedLdapDirectory;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.binding.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.core.collection.LocalAttributeMap;
+import org.springframework.webflow.executor.FlowExecutionResult;
+import org.springframework.webflow.executor.FlowExecutor;
+import org.springframework.webflow.expression.WebFlowOgnlExpressionParser;
+import org.springframework.webflow.expression.spel.WebFlowSpringELExpressionParser;
+
+/**
+ * <p>Load generator for the passwordManager flow. It runs the flow with the
+ * beans from passwordManagerContext.xml and the flow executor setup from
+ * cas-servlet.xml, in process, against an EmbeddedLdapDirectory standing in
+ * for the LDAP server. Views render nothing and the reCAPTCHA check is
+ * simulated (see loadDriverContext.xml), so what's measured is the flows,
+ * the actions and the directory round-trips.</p>
+ *
+ * <p>Each thread is a virtual user with its own session and client address,
+ * running the chosen flows one after another, without think time, for
+ * accounts only it uses:</p>
+ *
+ * <ul>
+ * <li>changePassword: the change password form, submitted with the old
+ * password, then the confirmation page (3 requests)</li>
+ * <li>forgotPassword: the username form, the security question, the new
+ * password and the confirmation page (5 requests)</li>
+ * </ul>
+ *
+ * <p>After the warm-up it reports, for each flow, throughput, client-side
+ * latency percentiles and failures by reason, and for all of them the
+ * searches, binds and modifies the directory saw per completed flow. The
+ * server-side figures FlowStatisticsListener publishes as MBeans are shown
+ * too.</p>
+ *
+ * <p>Run from the project directory, with the options as name=value
+ * arguments:</p>
+ *
+ * <pre>
+ *   mvn -Pbenchmark test-compile exec:exec@load-driver -Dload.args="threads=16 seconds=60"
+ * </pre>
+ *
+ * <ul>
+ * <li>threads: virtual users (8)</li>
+ * <li>seconds: measured run time (30)</li>
+ * <li>warmup-seconds: unmeasured run time before it (10)</li>
+ * <li>users: accounts in the directory, at least one per thread (1000)</li>
+ * <li>flows: comma separated flows to run in turn (changePassword,forgotPassword)</li>
+ * <li>directory: openldap or ad, the directory flavour and LdapServer class (openldap)</li>
+ * <li>directory-latency-millis: time the directory takes for every operation (0)</li>
+ * <li>captcha-millis: time the simulated reCAPTCHA check takes (0)</li>
+ * </ul>
+ *
+ * <p>Any argument with a dot in its name sets a property of
+ * passwordManagerContext.xml, e.g. ldap.pm.servers.bulkhead.max-concurrent=4.
+ * The rate limits are off unless set this way, since every virtual user
+ * changes its passwords far faster than a person would.</p>
+ */
+public class PasswordManagerLoadDriver {
+
+	private static final String FLOW_ID = "passwordManager";
+	private static final String PASSWORD_MANAGER_CONTEXT =
+			"file:src/main/webapp/WEB-INF/spring-configuration/passwordManagerContext.xml";
+	private static final String LOAD_DRIVER_CONTEXT = "classpath:org/jasig/cas/pm/web/flow/loadDriverContext.xml";
+	private static final String FLOW_DEFINITION = "src/main/webapp/WEB-INF/passwordManager-webflow.xml";
+	private static final String USERNAME_PREFIX = "loaduser";
+	private static final String QUESTION = "First pet?";
+	private static final List<String> FLOWS = Arrays.asList("changePassword", "forgotPassword");
+
+	private final int threads;
+	private final long seconds;
+	private final long warmupSeconds;
+	private final int users;
+	private final List<String> flows;
+	private final boolean activeDirectory;
+	private final long directoryLatencyMillis;
+	private final Properties properties = new Properties();
+
+	private EmbeddedLdapDirectory directory;
+	private GenericWebApplicationContext context;
+	private FlowExecutor flowExecutor;
+	private String expressionLanguage;
+	private final ServletContext servletContext = InProcessServlet.servletContext();
+	private String[] passwords;
+	private volatile long measureStartNanos;
+	private volatile long endNanos;
+
+	public PasswordManagerLoadDriver(Map<String,String> options) {
+		Map<String,String> remaining = new HashMap<String,String>(options);
+		threads = Integer.parseInt(option(remaining, "threads", "8"));
+		seconds = Long.parseLong(option(remaining, "seconds", "30"));
+		warmupSeconds = Long.parseLong(option(remaining, "warmup-seconds", "10"));
+		users = Integer.parseInt(option(remaining, "users", "1000"));
+		flows = Arrays.asList(option(remaining, "flows", "changePassword,forgotPassword").split(","));
+		String flavour = option(remaining, "directory", "openldap");
+		directoryLatencyMillis = Long.parseLong(option(remaining, "directory-latency-millis", "0"));
+		properties.setProperty("pm.load.captcha-millis", option(remaining, "captcha-millis", "0"));
+
+		if(threads < 1 || users < threads) {
+			throw new IllegalArgumentException("Need at least one thread and one user per thread");
+		}
+		if(!FLOWS.containsAll(flows)) {
+			throw new IllegalArgumentException("Unknown flow in " + flows + ", expected some of " + FLOWS);
+		}
+		if(!flavour.equals("openldap") && !flavour.equals("ad")) {
+			throw new IllegalArgumentException("Unknown directory " + flavour + ", expected openldap or ad");
+		}
+		activeDirectory = flavour.equals("ad");
+
+		for(Map.Entry<String,String> option : remaining.entrySet()) {
+			if(option.getKey().indexOf('.') < 0) {
+				throw new IllegalArgumentException("Unknown option " + option.getKey());
+			}
+			properties.setProperty(option.getKey(), option.getValue());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		for(String arg : args) {
+			int equals = arg.indexOf('=');
+			if(equals < 1) {
+				throw new IllegalArgumentException("Expected name=value, not " + arg);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		if(!new File(FLOW_DEFINITION).isFile()) {
+			throw new IllegalStateException("Run from the project directory: " + FLOW_DEFINITION + " not found");
+		}
+
+		PasswordManagerLoadDriver driver = new PasswordManagerLoadDriver(options);
+		driver.start();
+		try {
+			driver.run();
+		} finally {
+			driver.stop();
+		}
+	}
+
+	private static String option(Map<String,String> options, String name, String defaultValue) {
+		String value = options.remove(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * <p>Starts the directory with the users in it and the application
+	 * context using it.</p>
+	 */
+	public void start() throws Exception {
+		directory = activeDirectory ? EmbeddedLdapDirectory.activeDirectory() : EmbeddedLdapDirectory.openLdap();
+		directory.start();
+		Random random = new Random(1);
+		passwords = new String[users];
+		for(int i=0;i<users;i++) {
+			passwords[i] = newPassword(random);
+			if(activeDirectory) {
+				directory.addUser(username(i), passwords[i], "extensionAttribute1: " + QUESTION,
+						"extensionAttribute3: " + answer(i), "employeeID: " + i, "postalCode: 12345");
+			} else {
+				directory.addUser(username(i), passwords[i], "securityQuestion: " + QUESTION,
+						"securityAnswer: " + answer(i), "employeeNumber: " + i, "postalCode: 12345");
+			}
+		}
+
+		PropertyPlaceholderConfigurer placeholders = new PropertyPlaceholderConfigurer();
+		placeholders.setPropertiesArray(new Properties[] { defaultProperties(), properties });
+
+		context = new GenericWebApplicationContext(servletContext);
+		new XmlBeanDefinitionReader(context).loadBeanDefinitions(PASSWORD_MANAGER_CONTEXT, LOAD_DRIVER_CONTEXT);
+		context.addBeanFactoryPostProcessor(placeholders);
+		context.getBeanFactory().registerSingleton("contextSource", directory.createContextSource());
+		context.getBeanFactory().registerSingleton("expressionParser", createExpressionParser());
+		context.refresh();
+		flowExecutor = context.getBean("flowExecutor", FlowExecutor.class);
+		directory.setLatencyMillis(directoryLatencyMillis);
+	}
+
+	public void stop() {
+		if(context != null) {
+			context.close();
+		}
+		if(directory != null) {
+			directory.stop();
+		}
+	}
+
+	/**
+	 * <p>The passwordManagerContext.xml properties for this directory, as
+	 * cas.properties would set them.</p>
+	 */
+	private Properties defaultProperties() {
+		Properties defaults = new Properties();
+		if(activeDirectory) {
+			defaults.setProperty("ldap.pm.server.class", "org.jasig.cas.pm.ldap.ActiveDirectoryLdapServer");
+			defaults.setProperty("ldap.pm.username.attr", "sAMAccountName");
+			defaults.setProperty("ldap.pm.password.attr", "unicodePwd");
+			defaults.setProperty("ldap.authentication.filter", "(&(objectClass=user)(sAMAccountName=%u))");
+			defaults.setProperty("ldap.pm.question.attr", "extensionAttribute1");
+			defaults.setProperty("ldap.pm.answer.attr", "extensionAttribute3");
+			defaults.setProperty("ldap.pm.question.default.1", "Employee ID?");
+			defaults.setProperty("ldap.pm.answer.attr.default.1", "employeeID");
+		} else {
+			defaults.setProperty("ldap.pm.server.class", "org.jasig.cas.pm.ldap.OpenLdapLdapServer");
+			defaults.setProperty("ldap.pm.username.attr", "uid");
+			defaults.setProperty("ldap.pm.password.attr", "userPassword");
+			defaults.setProperty("ldap.authentication.filter", "(&(objectClass=inetOrgPerson)(uid=%u))");
+			defaults.setProperty("ldap.pm.question.attr", "securityQuestion");
+			defaults.setProperty("ldap.pm.answer.attr", "securityAnswer");
+			defaults.setProperty("ldap.pm.question.default.1", "Employee number?");
+			defaults.setProperty("ldap.pm.answer.attr.default.1", "employeeNumber");
+		}
+		defaults.setProperty("ldap.pm.question.default.2", "Postal code?");
+		defaults.setProperty("ldap.pm.answer.attr.default.2", "postalCode");
+		defaults.setProperty("ldap.authentication.basedn", directory.getUsersDn());
+		defaults.setProperty("ldap.authentication.ignorePartialResultException", "false");
+		defaults.setProperty("ldap.pm.custom-question.required", "false");
+		defaults.setProperty("ldap.pm.recaptcha.key.public", "load-driver");
+		defaults.setProperty("ldap.pm.recaptcha.key.private", "load-driver");
+		defaults.setProperty("ldap.pm.rate-limit.per-username", "0");
+		defaults.setProperty("ldap.pm.rate-limit.per-address", "0");
+		defaults.setProperty("ldap.pm.rate-limit.per-username-and-address", "0");
+		return defaults;
+	}
+
+	/**
+	 * <p>Uses OGNL like cas-servlet.xml when it's on the classpath, and
+	 * otherwise the Spring EL, which parses the flow's expressions the
+	 * same way.</p>
+	 */
+	private ExpressionParser createExpressionParser() {
+		try {
+			Class.forName("ognl.Ognl");
+			expressionLanguage = "OGNL";
+			return new WebFlowOgnlExpressionParser();
+		} catch(ClassNotFoundException ex) {
+			expressionLanguage = "Spring EL";
+			return new WebFlowSpringELExpressionParser(new SpelExpressionParser());
+		}
+	}
+
+	/**
+	 * <p>Runs the virtual users through the warm-up and the measured run,
+	 * then prints the report.</p>
+	 */
+	public void run() throws Exception {
+		long start = System.nanoTime();
+		measureStartNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(seconds);
+
+		List<VirtualUser> virtualUsers = new ArrayList<VirtualUser>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int t=0;t<threads;t++) {
+			VirtualUser virtualUser = new VirtualUser(t);
+			virtualUsers.add(virtualUser);
+			Thread worker = new Thread(virtualUser, "load-driver-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+
+		TimeUnit.NANOSECONDS.sleep(measureStartNanos - System.nanoTime());
+		DirectorySnapshot before = new DirectorySnapshot();
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		DirectorySnapshot after = new DirectorySnapshot();
+		double elapsedSeconds = (System.nanoTime() - measureStartNanos) / 1e9;
+
+		report(virtualUsers, before, after, elapsedSeconds);
+	}
+
+	private void report(List<VirtualUser> virtualUsers, DirectorySnapshot before, DirectorySnapshot after,
+			double elapsedSeconds) {
+
+		System.out.printf("passwordManager flows: %d threads for %ds after %ds warm-up, %d %s users,"
+				+ " directory latency %dms, captcha %sms, %s expressions%n", threads, seconds, warmupSeconds,
+				users, activeDirectory ? "Active Directory" : "OpenLDAP", directoryLatencyMillis,
+				properties.getProperty("pm.load.captcha-millis"), expressionLanguage);
+
+		long totalCompleted = 0;
+		for(String flow : flows) {
+			FlowResults results = new FlowResults();
+			for(VirtualUser virtualUser : virtualUsers) {
+				results.add(virtualUser.results.get(flow));
+			}
+			totalCompleted += results.completed;
+			System.out.printf("%n%s: %d completed, %d failed, %.1f flows/s, %d requests per flow%n", flow,
+					results.completed, results.failed(), results.completed / elapsedSeconds,
+					flow.equals("changePassword") ? 3 : 5);
+			if(results.completed > 0) {
+				long[] latencies = results.sortedLatencies();
+				System.out.printf("  latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+						millis(results.totalNanos / results.completed), millis(percentile(latencies, 50)),
+						millis(percentile(latencies, 90)), millis(percentile(latencies, 99)),
+						millis(latencies[latencies.length - 1]));
+			}
+			for(Map.Entry<String,Integer> failure : results.failures.entrySet()) {
+				System.out.printf("  failed: %s x %d%n", failure.getKey(), failure.getValue());
+			}
+		}
+
+		System.out.printf("%nall flows: %.1f flows/s%n", totalCompleted / elapsedSeconds);
+		if(totalCompleted > 0) {
+			System.out.printf("  directory per completed flow: %.2f searches, %.2f binds, %.2f modifies%n",
+					(after.searches - before.searches) / (double) totalCompleted,
+					(after.binds - before.binds) / (double) totalCompleted,
+					(after.modifies - before.modifies) / (double) totalCompleted);
+		}
+
+		System.out.printf("%nFlowStatistics MBeans (measured run only):%n");
+		for(Map.Entry<String,double[]> flow : after.flowStatistics.entrySet()) {
+			double[] start = before.flowStatistics.get(flow.getKey());
+			double completed = flow.getValue()[0] - (start != null ? start[0] : 0);
+			double directoryCalls = flow.getValue()[1] - (start != null ? start[1] : 0);
+			if(completed > 0) {
+				System.out.printf("  %s: %.0f completed, %.2f directory operations per flow%n",
+						flow.getKey(), completed, directoryCalls / completed);
+			}
+		}
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		int rank = (int) Math.ceil(sorted.length * percentile / 100);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	static String username(int i) {
+		return USERNAME_PREFIX + i;
+	}
+
+	private static String answer(int i) {
+		return "rex" + i;
+	}
+
+	/**
+	 * <p>A random password passing the shipped policy: lowercase letters
+	 * (so never containing a username), an uppercase letter and a digit.</p>
+	 */
+	private static String newPassword(Random random) {
+		StringBuilder password = new StringBuilder();
+		password.append((char) ('A' + random.nextInt(26)));
+		for(int i=0;i<9;i++) {
+			password.append((char) ('a' + random.nextInt(26)));
+		}
+		password.append(random.nextInt(10));
+		return password.toString();
+	}
+
+	private static Map<String,String> parameters(String... namesAndValues) {
+		Map<String,String> parameters = new LinkedHashMap<String,String>();
+		for(int i=0;i<namesAndValues.length;i+=2) {
+			parameters.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return parameters;
+	}
+
+	/**
+	 * <p>A flow request that didn't end where the scenario expected.</p>
+	 */
+	private static class UnexpectedResultException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		UnexpectedResultException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * <p>One thread running flows with its own session, client address and
+	 * accounts: those whose number modulo threads is its own.</p>
+	 */
+	private class VirtualUser implements Runnable {
+
+		private final int index;
+		private final HttpSession session = InProcessServlet.session();
+		private final String remoteAddr;
+		private final Random random;
+		private final Map<String,FlowResults> results = new HashMap<String,FlowResults>();
+
+		VirtualUser(int index) {
+			this.index = index;
+			this.remoteAddr = "10.0." + (index / 250) + "." + (index % 250 + 1);
+			this.random = new Random(index);
+			for(String flow : flows) {
+				results.put(flow, new FlowResults());
+			}
+		}
+
+		@Override
+		public void run() {
+			int accounts = (users - index + threads - 1) / threads;
+			for(long n=0;System.nanoTime() < endNanos;n++) {
+				String flow = flows.get((int) (n % flows.size()));
+				int user = index + threads * random.nextInt(accounts);
+				long start = System.nanoTime();
+				String failure = null;
+				try {
+					if(flow.equals("changePassword")) {
+						changePassword(user);
+					} else {
+						forgotPassword(user);
+					}
+				} catch(UnexpectedResultException ex) {
+					failure = ex.getMessage();
+				} catch(Exception ex) {
+					Throwable cause = ex;
+					while(cause.getCause() != null) {
+						cause = cause.getCause();
+					}
+					failure = cause.getClass().getSimpleName();
+				}
+				if(start >= measureStartNanos) {
+					results.get(flow).record(System.nanoTime() - start, failure);
+				}
+			}
+		}
+
+		private void changePassword(int user) {
+			String key = request(null, parameters("pmTask", "changePassword"), "casPmChangePassword");
+			String newPassword = newPassword(random);
+			key = request(key, parameters("_eventId", "submitChangePassword", "username", username(user),
+					"oldPassword", passwords[user], "newPassword", newPassword, "confirmNewPassword", newPassword),
+					"casPmChangedPassword");
+			passwords[user] = newPassword;
+			request(key, parameters("_eventId", "finish"), null);
+		}
+
+		private void forgotPassword(int user) {
+			String key = request(null, parameters("pmTask", "forgotPassword"), "casPmForgotPassword");
+			key = request(key, parameters("_eventId", "submitId", "netId", username(user)),
+					"casPmAnswerSecurityQuestion");
+			key = request(key, parameters("_eventId", "submitAnswer", "response0", answer(user)),
+					"casPmChangePassword");
+			String newPassword = newPassword(random);
+			key = request(key, parameters("_eventId", "submitChangePassword", "newPassword", newPassword,
+					"confirmNewPassword", newPassword), "casPmSetPassword");
+			passwords[user] = newPassword;
+			request(key, parameters("_eventId", "finish"), null);
+		}
+
+		/**
+		 * <p>Launches the flow, with the parameters as input like
+		 * FlowHandlerAdapter does, or resumes the paused execution.</p>
+		 * @param expectedView view the request should pause on, or null if
+		 * the flow should end at pmExit
+		 * @return key of the paused execution
+		 */
+		private String request(String key, Map<String,String> parameters, String expectedView) {
+			HttpServletRequest request = InProcessServlet.request(parameters, remoteAddr, session);
+			ServletExternalContext externalContext = new ServletExternalContext(servletContext, request,
+					InProcessServlet.response());
+
+			FlowExecutionResult result;
+			if(key == null) {
+				result = flowExecutor.launchExecution(FLOW_ID, new LocalAttributeMap(parameters), externalContext);
+			} else {
+				result = flowExecutor.resumeExecution(key, externalContext);
+			}
+
+			if(result.isPaused()) {
+				Object view = request.getAttribute(RenderedViewResolver.VIEW_NAME_ATTRIBUTE);
+				if(expectedView == null || !expectedView.equals(view)) {
+					throw new UnexpectedResultException("paused on " + view + " instead of "
+							+ (expectedView != null ? expectedView : "ending"));
+				}
+				return result.getPausedKey();
+			}
+			String outcome = result.getOutcome().getId();
+			if(expectedView != null || !outcome.equals("pmExit")) {
+				throw new UnexpectedResultException("ended at " + outcome + " instead of "
+						+ (expectedView != null ? expectedView : "pmExit"));
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Completed flows and their latencies, and failures by reason, for
+	 * one flow. Each VirtualUser has its own, merged for the report.</p>
+	 */
+	private static class FlowResults {
+
+		private long completed;
+		private long totalNanos;
+		private long[] latencies = new long[1024];
+		private final Map<String,Integer> failures = new TreeMap<String,Integer>();
+
+		void record(long nanos, String failure) {
+			if(failure != null) {
+				Integer count = failures.get(failure);
+				failures.put(failure, count != null ? count + 1 : 1);
+				return;
+			}
+			if(completed == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[(int) completed++] = nanos;
+			totalNanos += nanos;
+		}
+
+		void add(FlowResults other) {
+			for(int i=0;i<other.completed;i++) {
+				record(other.latencies[i], null);
+			}
+			for(Map.Entry<String,Integer> failure : other.failures.entrySet()) {
+				Integer count = failures.get(failure.getKey());
+				failures.put(failure.getKey(), (count != null ? count : 0) + failure.getValue());
+			}
+		}
+
+		long failed() {
+			long failed = 0;
+			for(int count : failures.values()) {
+				failed += count;
+			}
+			return failed;
+		}
+
+		long[] sortedLatencies() {
+			long[] sorted = Arrays.copyOf(latencies, (int) completed);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * <p>The stand-in's operation counts and the FlowStatistics totals
+	 * (completed flows and directory operations) at one moment.</p>
+	 */
+	private class DirectorySnapshot {
+
+		private final int searches = directory.getSearchCount();
+		private final int binds = directory.getBindCount();
+		private final int modifies = directory.getModifyCount();
+		private final Map<String,double[]> flowStatistics = new TreeMap<String,double[]>();
+
+		DirectorySnapshot() {
+			FlowStatisticsListener listener = context.getBean("flowStatisticsListener", FlowStatisticsListener.class);
+			for(Map.Entry<String,FlowStatistics> flow : listener.getStatistics().entrySet()) {
+				FlowStatistics statistics = flow.getValue();
+				long completed = statistics.getCompletedCount();
+				flowStatistics.put(flow.getKey(),
+						new double[] { completed, statistics.getMeanDirectoryCalls() * completed });
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.ViewResolver;
+
+/**
+ * <p>Resolves every view name to a view that renders nothing and leaves
+ * its name in the request, so the load driver can tell which view a flow
+ * request ended on without paying for JSP rendering.</p>
+ */
+public class RenderedViewResolver implements ViewResolver {
+
+	public static final String VIEW_NAME_ATTRIBUTE = "pmRenderedView";
+
+	@Override
+	public View resolveViewName(final String viewName, Locale locale) {
+		return new View() {
+			@Override
+			public String getContentType() {
+				return "text/html";
+			}
+
+			@Override
+			public void render(Map<String,?> model, HttpServletRequest request, HttpServletResponse response) {
+				request.setAttribute(VIEW_NAME_ATTRIBUTE, viewName);
+			}
+		};
+	}
+}
@@ -0,0 +1,39 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>SecurityQuestion.validateResponse, for a date answer (regex then date
+ * parse) and a free text one (regex only).</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityQuestionBenchmark {
+
+	private final SecurityQuestion dateQuestion = new SecurityQuestion("Date of birth?", "04/17/1985");
+	private final SecurityQuestion textQuestion = new SecurityQuestion("First pet?", "Rex the dog");
+
+	@Benchmark
+	public boolean dateResponse() {
+		return dateQuestion.validateResponse("4/17/1985");
+	}
+
+	@Benchmark
+	public boolean textResponse() {
+		return textQuestion.validateResponse("rex the dog");
+	}
+}
@@ -0,0 +1,35 @@
+package org.jasig.cas.pm.web.flow;
+
+import org.jasig.cas.pm.util.OperationEvents;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Stands in for the reCAPTCHA check in the load driver. Every answer is
+ * valid, after verifyMillis to stand for the round-trip to the reCAPTCHA
+ * service.</p>
+ */
+public class SimulatedRecaptchaValidationAction extends RecaptchaValidationAction {
+
+	private long verifyMillis = 0;
+
+	@Override
+	public boolean validateCaptcha(RequestContext context) {
+		long start = System.nanoTime();
+		if(verifyMillis > 0) {
+			try {
+				Thread.sleep(verifyMillis);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		OperationEvents.record("captcha.verify", "recaptcha", System.nanoTime() - start, "valid");
+		return true;
+	}
+
+	/**
+	 * @param verifyMillis time each check takes
+	 */
+	public void setVerifyMillis(long verifyMillis) {
+		this.verifyMillis = verifyMillis;
+	}
+}
@@ -0,0 +1,109 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.web.flow.model.ChangePasswordBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.binding.message.DefaultMessageContext;
+import org.springframework.binding.message.MessageContext;
+import org.springframework.binding.validation.ValidationContext;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * <p>ChangePasswordBeanValidator.validateChangePasswordView with the policy
+ * and strength estimator set up as in passwordManagerContext.xml, and the
+ * shipped common passwords list (read from the webapp, so run from the
+ * project directory). One password passes every check; the others are
+ * stopped by the policy and by the estimator.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangePasswordBeanValidatorBenchmark {
+
+	@Param({ "Tr0ub4dor-Staple-Horse", "short", "Password123" })
+	private String newPassword;
+
+	private ChangePasswordBeanValidator validator;
+	private ChangePasswordBean bean;
+
+	@Setup
+	public void createValidator() throws Exception {
+		PasswordPolicy passwordPolicy = new PasswordPolicy();
+		passwordPolicy.setMinLength(8);
+		passwordPolicy.setMaxLength(256);
+		passwordPolicy.setMinLowercase(1);
+		passwordPolicy.setMinUppercase(1);
+		passwordPolicy.setMinDigits(1);
+		passwordPolicy.setRejectUsername(true);
+		passwordPolicy.setRejectSimilarToOldPassword(true);
+
+		PasswordStrengthEstimator estimator = new PasswordStrengthEstimator();
+		estimator.setMinScore(3);
+		estimator.setDictionaries(Collections.<Resource>singletonList(new FileSystemResource(
+				"src/main/webapp/WEB-INF/classes/pm-dictionaries/common-passwords.txt")));
+		estimator.afterPropertiesSet();
+
+		validator = new ChangePasswordBeanValidator();
+		validator.setPasswordPolicy(passwordPolicy);
+		validator.setPasswordStrengthEstimator(estimator);
+
+		bean = new ChangePasswordBean();
+		bean.setUsername("jdoe");
+		bean.setOldPassword("Old-Passw0rd");
+		bean.setNewPassword(newPassword);
+		bean.setConfirmNewPassword(newPassword);
+	}
+
+	@Benchmark
+	public MessageContext validateChangePasswordView() {
+		ValidationContext context = new MessagesOnlyValidationContext();
+		validator.validateChangePasswordView(bean, context);
+		return context.getMessageContext();
+	}
+
+	/**
+	 * <p>Validation context outside a flow: just somewhere to put the
+	 * messages, fresh for each validation as in a request.</p>
+	 */
+	private static class MessagesOnlyValidationContext implements ValidationContext {
+
+		private final MessageContext messageContext = new DefaultMessageContext();
+
+		@Override
+		public MessageContext getMessageContext() {
+			return messageContext;
+		}
+
+		@Override
+		public Principal getUserPrincipal() {
+			return null;
+		}
+
+		@Override
+		public String getUserEvent() {
+			return "submitChangePassword";
+		}
+
+		@Override
+		public Object getUserValue(String property) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package org.jasig.cas.pm;
+
+/**
+ * <p>Thrown when a request has used up its time budget before all the
+ * directory work it needed was done.</p>
+ */
+public class DeadlineExceededException extends PasswordManagerException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException() {
+		super();
+	}
+
+	public DeadlineExceededException(String s) {
+		super(s);
+	}
+
+	public DeadlineExceededException(String s, Throwable t) {
+		super(s, t);
+	}
+}
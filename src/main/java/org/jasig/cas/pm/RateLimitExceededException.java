@@ -0,0 +1,23 @@
+package org.jasig.cas.pm;
+
+/**
+ * <p>Thrown when a user or client address has made too many requests. It is
+ * a UserLockedOutException so that flows already handling lockouts show
+ * the same page.</p>
+ */
+public class RateLimitExceededException extends UserLockedOutException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RateLimitExceededException() {
+		super();
+	}
+
+	public RateLimitExceededException(String s) {
+		super(s);
+	}
+
+	public RateLimitExceededException(String s, Throwable t) {
+		super(s, t);
+	}
+}
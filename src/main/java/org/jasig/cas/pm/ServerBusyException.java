@@ -0,0 +1,23 @@
+package org.jasig.cas.pm;
+
+/**
+ * <p>Thrown when a directory server already has as many operations running
+ * and waiting as it is allowed, so the request is turned away rather than
+ * left to block a servlet thread.</p>
+ */
+public class ServerBusyException extends PasswordManagerException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ServerBusyException() {
+		super();
+	}
+
+	public ServerBusyException(String s) {
+		super(s);
+	}
+
+	public ServerBusyException(String s, Throwable t) {
+		super(s, t);
+	}
+}
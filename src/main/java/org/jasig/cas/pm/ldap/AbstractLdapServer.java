@@ -2,6 +2,7 @@ package org.jasig.cas.pm.ldap;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.NameClassPair;
 import javax.naming.NamingEnumeration;
@@ -20,10 +21,17 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.cas.authentication.handler.NoOpPrincipalNameTransformer;
 import org.jasig.cas.authentication.handler.PrincipalNameTransformer;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
 import org.jasig.cas.pm.service.PasswordWarningInfo;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.util.ExpiringLruCache;
+import org.jasig.cas.pm.util.OperationEvents;
 import org.jasig.cas.pm.web.flow.SecurityChallenge;
 import org.jasig.cas.pm.web.flow.SecurityQuestion;
-import org.jasig.cas.util.LdapUtils;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.NameNotFoundException;
 import org.springframework.ldap.core.AttributesMapper;
@@ -35,8 +43,6 @@ import org.springframework.ldap.core.NameClassPairCallbackHandler;
 import org.springframework.ldap.core.ObjectRetrievalException;
 import org.springframework.ldap.core.SearchExecutor;
 import org.springframework.ldap.core.support.LdapContextSource;
-import org.springframework.ldap.filter.EqualsFilter;
-import org.springframework.ldap.filter.Filter;
 
 public abstract class AbstractLdapServer implements LdapServer, InitializingBean {
 
@@ -60,6 +66,15 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
     /** The default timeout. */
     private static final int DEFAULT_TIMEOUT = 1000;
 
+    /** The default maximum number of cached DNs. */
+    private static final int DEFAULT_DN_CACHE_MAX_SIZE = 10000;
+
+    /** The default number of seconds a DN stays cached. */
+    private static final int DEFAULT_DN_CACHE_TIME_TO_LIVE_SECONDS = 300;
+
+    /** The default time after which an operation is logged as slow. */
+    private static final int DEFAULT_SLOW_OPERATION_THRESHOLD_MILLIS = 1000;
+
     /** The scope. */
     @Min(0)
     @Max(2)
@@ -77,18 +92,68 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
     
     @NotNull
     private PrincipalNameTransformer principalNameTransformer = new NoOpPrincipalNameTransformer();
+
+    /** Maximum number of cached DNs. Set to 0 to disable DN caching. */
+    @Min(0)
+    private int dnCacheMaxSize = DEFAULT_DN_CACHE_MAX_SIZE;
+
+    /** Number of seconds a DN stays cached. */
+    @Min(0)
+    private int dnCacheTimeToLiveSeconds = DEFAULT_DN_CACHE_TIME_TO_LIVE_SECONDS;
+
+    /** Optional pool of connections for verifying passwords. */
+    private BindConnectionPool bindConnectionPool;
+
+    /** Cache of transformed usernames to DNs. Null if disabled. */
+    private ExpiringLruCache<String,String> dnCache;
+
+    /** The filter, compiled at startup. */
+    private SearchFilterTemplate userFilter;
+
+    /** usernameAttr=%u, compiled at startup. */
+    private SearchFilterTemplate lookupFilter;
+
+    /** Where operation timings are published. */
+    @NotNull
+    private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
+
+    /** Operations taking longer are logged by SlowOperationLog. 0 disables. */
+    @Min(0)
+    private int slowOperationThresholdMillis = DEFAULT_SLOW_OPERATION_THRESHOLD_MILLIS;
 	
 	@Override
 	public void ldapModify(String username, ModificationItem[] modificationItems) {
 		DistinguishedName dn = searchForDn(username);
-		logger.debug("ldapModify for dn " + dn + "," + ldapContextSource.getBaseLdapPathAsString());
-		ldapTemplate.modifyAttributes(dn, modificationItems);
+		if(logger.isDebugEnabled()) {
+			logger.debug("ldapModify for dn " + dn + "," + ldapContextSource.getBaseLdapPathAsString());
+		}
+		Deadline.checkCurrent("modifying " + username);
+		long start = System.nanoTime();
+		try {
+			ldapTemplate.modifyAttributes(dn, modificationItems);
+			recordOperation("modify", start, "success");
+		} catch(NameNotFoundException ex) {
+			recordOperation("modify", start, "not-found");
+			invalidateDn(username);
+			throw ex;
+		} catch(RuntimeException ex) {
+			recordOperation("modify", start, "error");
+			throw ex;
+		}
+	}
+	
+	@Override
+	public String findDn(String username) {
+		return searchForDn(username).encode();
 	}
 	
 	@Override
 	public SecurityChallenge getUserSecurityChallenge(String username) {
-		logger.debug("Getting user security challenge for user " + username);
-		return (SecurityChallenge) ldapLookup(username, new SecurityChallengeAttributesMapper(username));
+		if(logger.isDebugEnabled()) {
+			logger.debug("Getting user security challenge for user " + username);
+		}
+		return (SecurityChallenge) ldapLookup(username, new SecurityChallengeAttributesMapper(username),
+				getReturningAttributes(securityQuestionAttrs, securityResponseAttrs));
 	}
 	
 	@Override
@@ -119,17 +184,66 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 	
 	@Override
 	public SecurityChallenge getDefaultSecurityChallenge(String username) {
-		logger.debug("Getting default security challenge for " + username);
-		return (SecurityChallenge) ldapLookup(username, new DefaultSecurityChallengeAttributesMapper(username));
+		if(logger.isDebugEnabled()) {
+			logger.debug("Getting default security challenge for " + username);
+		}
+		return (SecurityChallenge) ldapLookup(username, new DefaultSecurityChallengeAttributesMapper(username),
+				getReturningAttributes(defaultResponseAttrs));
+	}
+	
+	@Override
+	public UserSecurityChallenges getSecurityChallenges(String username) {
+		if(logger.isDebugEnabled()) {
+			logger.debug("Getting user and default security challenges for " + username);
+		}
+		return (UserSecurityChallenges) ldapLookup(username, new UserSecurityChallengesAttributesMapper(username),
+				getReturningAttributes(securityQuestionAttrs, securityResponseAttrs, defaultResponseAttrs));
 	}
 	
 	@Override
 	public abstract void setPassword(String username, String password);
 	
-	protected Object ldapLookup(String username, AttributesMapper mapper) {
+	/**
+	 * <p>Verifies the old password with a bind, then sets the new one. An
+	 * expired password, or one that must be changed after a reset, still
+	 * counts as verified if the server says so with a password policy
+	 * control. Subclasses may override this with a cheaper server-specific
+	 * operation.</p>
+	 */
+	@Override
+	public void changePassword(String username, String oldPassword, String newPassword) {
+		if(!checkPassword(username, oldPassword).isPasswordCorrect()) {
+			throw new InvalidPasswordException("Old password incorrect for " + username);
+		}
+		setPassword(username, newPassword);
+	}
+	
+	/**
+	 * <p>Searches for the given user and maps the single result.</p>
+	 * @param username user to search for
+	 * @param mapper maps the user's attributes
+	 * @param returningAttributes attributes to retrieve; null retrieves all
+	 * @return the mapped result
+	 */
+	protected Object ldapLookup(String username, AttributesMapper mapper, String[] returningAttributes) {
 		
-		@SuppressWarnings("unchecked")
-		List<Object> results = ldapTemplate.search(searchBase, usernameAttr + "=" + username, mapper);
+		Deadline.checkCurrent("looking up " + username);
+		SearchControls searchControls = getSearchControls();
+		searchControls.setReturningAttributes(returningAttributes);
+		
+		long start = System.nanoTime();
+		List<Object> results;
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object> found = ldapTemplate.search(searchBase, lookupFilter.format(username),
+					searchControls, mapper);
+			results = found;
+		} catch(RuntimeException ex) {
+			recordOperation("challenge-lookup", start, "error", lookupFilter, 0);
+			throw ex;
+		}
+		recordOperation("challenge-lookup", start, getSearchOutcome(results.size()),
+				lookupFilter, results.size());
 		
 		if(results.size() == 0) {
 			throw new NameNotFoundException("Couldn't find " + username + " in " 
@@ -144,35 +258,59 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 					+ " with base " + searchBase);
 		}
 		
-		logger.debug("Found result for " + username + " under base " 
-				+ ldapContextSource.getBaseLdapPathAsString() + " with "
-				+ "searchBase " + searchBase);
+		if(logger.isDebugEnabled()) {
+			logger.debug("Found result for " + username + " under base " 
+					+ ldapContextSource.getBaseLdapPathAsString() + " with "
+					+ "searchBase " + searchBase);
+		}
 		return results.get(0);
 	}
 	
 	protected DistinguishedName searchForDn(String username) {
-		logger.debug("Searching for DN for " + usernameAttr + "=" + username);
+		
+        final String transformedUsername = getPrincipalNameTransformer().transform(username);
+        
+        if(dnCache != null) {
+        	String cachedDn = dnCache.get(transformedUsername);
+        	if(cachedDn != null) {
+        		if(logger.isDebugEnabled()) {
+        			logger.debug("Found cached name: " + cachedDn);
+        		}
+        		return new DistinguishedName(cachedDn);
+        	}
+        }
+        
+		if(logger.isDebugEnabled()) {
+			logger.debug("Searching for DN for " + usernameAttr + "=" + username);
+		}
+		Deadline.checkCurrent("searching for " + username);
 		
 		final List<String> cns = new ArrayList<String>();
         
         final SearchControls searchControls = getSearchControls();
         
         final String base = this.searchBase;
-        final String transformedUsername = getPrincipalNameTransformer().transform(username);
-        final String filter = LdapUtils.getFilterWithValues(getFilter(), transformedUsername);
+        final String filter = userFilter.format(transformedUsername);
         
-        this.getLdapTemplate().search(
-            new SearchExecutor() {
-                @SuppressWarnings("rawtypes")
-				public NamingEnumeration executeSearch(final DirContext context) throws NamingException {
-                    return context.search(base, filter, searchControls);
-                }
-            },
-            new NameClassPairCallbackHandler(){
-                public void handleNameClassPair(final NameClassPair nameClassPair) {
-                    cns.add(nameClassPair.getNameInNamespace());
-                }
-            });
+        long start = System.nanoTime();
+        try {
+            this.getLdapTemplate().search(
+                new SearchExecutor() {
+                    @SuppressWarnings("rawtypes")
+					public NamingEnumeration executeSearch(final DirContext context) throws NamingException {
+                        return context.search(base, filter, searchControls);
+                    }
+                },
+                new NameClassPairCallbackHandler(){
+                    public void handleNameClassPair(final NameClassPair nameClassPair) {
+                        cns.add(nameClassPair.getNameInNamespace());
+                    }
+                });
+        } catch(RuntimeException ex) {
+            recordOperation("search", start, "error", userFilter, cns.size());
+            throw ex;
+        }
+        recordOperation("search", start, getSearchOutcome(cns.size()), userFilter, cns.size());
         
         if (cns.isEmpty()) {
             logger.info("Search for " + filter + " returned 0 results.");
@@ -183,15 +321,113 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 			throw new ObjectRetrievalException("Multiple results found for " + username + " in " + ldapContextSource.getBaseLdapPathAsString());
         }
 		
-		logger.debug("Found name: " + cns.get(0));
+		if(logger.isDebugEnabled()) {
+			logger.debug("Found name: " + cns.get(0));
+		}
+		if(dnCache != null) {
+			dnCache.put(transformedUsername, cns.get(0));
+		}
 		return new DistinguishedName(cns.get(0));
 	}
+	
+	/**
+	 * <p>For an AsyncLdapServer running its own searches: the cached DN for
+	 * the given user, or null if it isn't cached.</p>
+	 * @param transformedUsername username after the principal name transformer
+	 */
+	String getCachedDn(String transformedUsername) {
+		return dnCache != null ? dnCache.get(transformedUsername) : null;
+	}
+
+	/**
+	 * <p>For an AsyncLdapServer running its own searches: caches a DN it
+	 * found, as searchForDn does.</p>
+	 */
+	void cacheDn(String transformedUsername, String dn) {
+		if(dnCache != null) {
+			dnCache.put(transformedUsername, dn);
+		}
+	}
 
-	protected Filter createUserFilter(String username) {
-		Filter filter = new EqualsFilter(usernameAttr,username);
-		return filter;
+	/**
+	 * @return the filter findDn searches with
+	 */
+	SearchFilterTemplate getUserFilter() {
+		return userFilter;
 	}
-	
+
+	/**
+	 * @return usernameAttr=%u, the filter the challenge lookups search with
+	 */
+	SearchFilterTemplate getLookupFilter() {
+		return lookupFilter;
+	}
+
+	/**
+	 * <p>Drops the cached DN for the given user, e.g. after an operation on
+	 * it failed because the entry no longer exists.</p>
+	 * @param username untransformed username
+	 */
+	protected void invalidateDn(String username) {
+		if(dnCache != null) {
+			dnCache.invalidate(getPrincipalNameTransformer().transform(username));
+		}
+	}
+
+	/**
+	 * <p>Publishes the time a directory operation took, tagged by server
+	 * description and outcome, and records it as an OperationEvents event.</p>
+	 * @param operation e.g. search, challenge-lookup, bind or modify
+	 * @param startNanos System.nanoTime() when the operation started
+	 * @param outcome e.g. found, not-found, multiple, success or error
+	 */
+	protected void recordOperation(String operation, long startNanos, String outcome) {
+		recordOperation(operation, startNanos, outcome, null, -1);
+	}
+
+	/**
+	 * <p>Records a search: as recordOperation(operation, startNanos,
+	 * outcome), but a slow search is logged with its filter and result
+	 * count.</p>
+	 * @param filter the filter searched with
+	 * @param resultCount number of entries found
+	 */
+	protected void recordOperation(String operation, long startNanos, String outcome,
+			SearchFilterTemplate filter, int resultCount) {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		metricsRegistry.recordTime("ldap." + operation, elapsedNanos,
+				"server=" + description, "outcome=" + outcome);
+		OperationEvents.record("ldap." + operation, description, elapsedNanos, outcome);
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		if(slowOperationThresholdMillis > 0 && elapsedMillis >= slowOperationThresholdMillis) {
+			SlowOperationLog.log(description, operation, elapsedMillis, outcome,
+					searchBase, scope, filter, resultCount);
+		}
+	}
+
+	static String getSearchOutcome(int resultCount) {
+		return resultCount == 0 ? "not-found" : resultCount == 1 ? "found" : "multiple";
+	}
+
+	/**
+	 * <p>Builds a returning attribute array from the given attribute name
+	 * lists, skipping blank names (e.g. unset custom question attributes).</p>
+	 */
+	protected String[] getReturningAttributes(List<?>... attrLists) {
+		List<String> names = new ArrayList<String>();
+		for(List<?> attrList : attrLists) {
+			if(attrList == null) {
+				continue;
+			}
+			for(Object attr : attrList) {
+				if(attr != null && !attr.toString().trim().isEmpty() && !names.contains(attr.toString())) {
+					names.add(attr.toString());
+				}
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
 	protected class DistinguishedNameContextMapper implements ContextMapper {
 
 		@Override
@@ -239,8 +475,10 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 				securityQuestions.add(securityQuestion);
 			}
 			
-			logger.debug("Found " + securityQuestions.size() 
-					+ " security questions for " + username);
+			if(logger.isDebugEnabled()) {
+				logger.debug("Found " + securityQuestions.size() 
+						+ " security questions for " + username);
+			}
 			return new SecurityChallenge(username, securityQuestions);
 		}
 	}
@@ -257,7 +495,9 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 		@Override
 		public Object mapFromAttributes(Attributes attrs) throws NamingException {
 			
-			logger.debug("Mapping attributes for " + username);
+			if(logger.isDebugEnabled()) {
+				logger.debug("Mapping attributes for " + username);
+			}
 			
 			List<SecurityQuestion> securityQuestions = new ArrayList<SecurityQuestion>();
 			
@@ -282,24 +522,82 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 				securityQuestions.add(securityQuestion);
 			}
 			
-			logger.debug("Found " + securityQuestions.size() 
-					+ " default security questions for " + username);
+			if(logger.isDebugEnabled()) {
+				logger.debug("Found " + securityQuestions.size() 
+						+ " default security questions for " + username);
+			}
 			return new SecurityChallenge(username, securityQuestions);
 		}
 	}
 
+	protected class UserSecurityChallengesAttributesMapper implements AttributesMapper {
+
+		private final SecurityChallengeAttributesMapper userMapper;
+		private final DefaultSecurityChallengeAttributesMapper defaultMapper;
+		
+		public UserSecurityChallengesAttributesMapper(String username) {
+			this.userMapper = new SecurityChallengeAttributesMapper(username);
+			this.defaultMapper = new DefaultSecurityChallengeAttributesMapper(username);
+		}
+		
+		@Override
+		public Object mapFromAttributes(Attributes attrs) throws NamingException {
+			SecurityChallenge userChallenge = (SecurityChallenge) userMapper.mapFromAttributes(attrs);
+			SecurityChallenge defaultChallenge = (SecurityChallenge) defaultMapper.mapFromAttributes(attrs);
+			return new UserSecurityChallenges(userChallenge, defaultChallenge);
+		}
+	}
+
 	@Override
 	public boolean verifyPassword(String username, String password) {
+		return checkPassword(username, password).isAuthenticated();
+	}
+
+	/**
+	 * <p>Password policy state is only available when a bindConnectionPool
+	 * with requestPasswordPolicy is configured.</p>
+	 */
+	@Override
+	public PasswordPolicyInfo checkPassword(String username, String password) {
 	
+		// an empty password would be an unauthenticated bind, which many
+		// servers report as a success
+		if(password == null || password.isEmpty()) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("Empty password for " + username);
+			}
+			return new PasswordPolicyInfo(false);
+		}
+		
 		DistinguishedName dn = searchForDn(username);
+		Deadline.checkCurrent("binding as " + username);
 		
+		DirContext ctx = null;
+		long start = System.nanoTime();
 		try {
-			logger.debug("Authenticating as " + dn.encode());
-			ldapContextSource.getContext(dn.encode(), password);
-			return true;
+			if(logger.isDebugEnabled()) {
+				logger.debug("Authenticating as " + dn.encode());
+			}
+			PasswordPolicyInfo info;
+			if(bindConnectionPool != null) {
+				info = bindConnectionPool.authenticate(dn.encode(), password);
+			} else {
+				ctx = ldapContextSource.getContext(dn.encode(), password);
+				info = new PasswordPolicyInfo(true);
+			}
+			recordOperation("bind", start, info.isAuthenticated() ? "success" : "failure");
+			return info;
+		} catch(NameNotFoundException ex) {
+			recordOperation("bind", start, "not-found");
+			logger.debug("NameNotFoundException verifying password",ex);
+			invalidateDn(username);
+			return new PasswordPolicyInfo(false);
 		} catch(org.springframework.ldap.NamingException ex) {
+			recordOperation("bind", start, "failure");
 			logger.debug("NamingException verifying password",ex);
-			return false;
+			return new PasswordPolicyInfo(false);
+		} finally {
+			org.springframework.ldap.support.LdapUtils.closeContext(ctx);
 		}
 	}
 
@@ -383,7 +681,8 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
         final SearchControls constraints = new SearchControls();
         constraints.setSearchScope(this.scope);
         constraints.setReturningAttributes(new String[0]);
-        constraints.setTimeLimit(this.timeout);
+        // never let the server search for longer than the request has left
+        constraints.setTimeLimit((int) Deadline.limitMillis(this.timeout));
         constraints.setCountLimit(this.maxNumberResults);
 
         return constraints;
@@ -452,9 +751,73 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 		this.principalNameTransformer = principalNameTransformer;
 	}
 
+	/**
+	 * @param dnCacheMaxSize maximum number of cached DNs, 0 to disable
+	 */
+	public void setDnCacheMaxSize(int dnCacheMaxSize) {
+		this.dnCacheMaxSize = dnCacheMaxSize;
+	}
+
+	/**
+	 * @param dnCacheTimeToLiveSeconds number of seconds a DN stays cached
+	 */
+	public void setDnCacheTimeToLiveSeconds(int dnCacheTimeToLiveSeconds) {
+		this.dnCacheTimeToLiveSeconds = dnCacheTimeToLiveSeconds;
+	}
+
+	/**
+	 * @param bindConnectionPool pool of connections reused for password
+	 * verification binds. If not set, each bind opens a new connection.
+	 */
+	public void setBindConnectionPool(BindConnectionPool bindConnectionPool) {
+		this.bindConnectionPool = bindConnectionPool;
+	}
+
+	/**
+	 * @param metricsRegistry where search, bind and modify timings are
+	 * published
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * @param slowOperationThresholdMillis operations taking at least this
+	 * long are logged with their search base, scope and filter template;
+	 * 0 disables the log
+	 */
+	public void setSlowOperationThresholdMillis(int slowOperationThresholdMillis) {
+		this.slowOperationThresholdMillis = slowOperationThresholdMillis;
+	}
+
+	public BindConnectionPool getBindConnectionPool() {
+		return bindConnectionPool;
+	}
+
+	public long getDnCacheHitCount() {
+		return dnCache != null ? dnCache.getHitCount() : 0;
+	}
+
+	public long getDnCacheMissCount() {
+		return dnCache != null ? dnCache.getMissCount() : 0;
+	}
+
+	public long getDnCacheEvictionCount() {
+		return dnCache != null ? dnCache.getEvictionCount() : 0;
+	}
+
+	public int getDnCacheSize() {
+		return dnCache != null ? dnCache.size() : 0;
+	}
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		ldapTemplate = new LdapTemplate(ldapContextSource);
 		ldapTemplate.setIgnorePartialResultException(ignorePartialResultException);
+		if(dnCacheMaxSize > 0 && dnCacheTimeToLiveSeconds > 0) {
+			dnCache = new ExpiringLruCache<String,String>(dnCacheMaxSize, dnCacheTimeToLiveSeconds * 1000L);
+		}
+		userFilter = SearchFilterTemplate.compile(filter);
+		lookupFilter = SearchFilterTemplate.compile(usernameAttr + "=%u");
 	}
 }
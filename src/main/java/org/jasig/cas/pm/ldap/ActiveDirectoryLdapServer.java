@@ -10,17 +10,23 @@ import javax.naming.directory.ModificationItem;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.InvalidPasswordException;
 import org.jasig.cas.pm.PasswordManagerException;
 import org.springframework.beans.factory.InitializingBean;
 
 public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
 	LdapServer, InitializingBean {
 
-	@SuppressWarnings("unused")
 	private final Log logger = LogFactory.getLog(this.getClass());
 	public static final long ONE_HUNDRED_NANOSECOND_DIVISOR = 10000000L;
 	public static final long JAVA_TO_WIN_TIME_CONVERSION = 11644473600000L;
 	
+	/** AD error (ERROR_INVALID_PASSWORD) returned when the old password
+	 * in a delete/add password change is wrong. */
+	public static final String INVALID_OLD_PASSWORD_ERROR = "00000056";
+	
+	private boolean changePasswordInSingleModify = false;
+	
 	@Override
 	public void setPassword(String username, String password) {
 
@@ -33,12 +39,52 @@ public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
 		ldapModify(username, modificationItems);
 	}
 	
+	/**
+	 * <p>If changePasswordInSingleModify is set, sends one modify deleting
+	 * the old password and adding the new one, and lets AD check the old
+	 * password itself. Otherwise binds with the old password and then
+	 * replaces it.</p>
+	 */
+	@Override
+	public void changePassword(String username, String oldPassword, String newPassword) {
+		
+		if(!changePasswordInSingleModify) {
+			super.changePassword(username, oldPassword, newPassword);
+			return;
+		}
+		
+		if(oldPassword == null || oldPassword.isEmpty()) {
+			throw new InvalidPasswordException("Empty old password for " + username);
+		}
+		
+		ModificationItem[] modificationItems = new ModificationItem[2];
+		modificationItems[0] = new ModificationItem(DirContext.REMOVE_ATTRIBUTE,
+				new BasicAttribute(passwordAttr, encodePassword(oldPassword)));
+		modificationItems[1] = new ModificationItem(DirContext.ADD_ATTRIBUTE,
+				new BasicAttribute(passwordAttr, encodePassword(newPassword)));
+		
+		try {
+			ldapModify(username, modificationItems);
+		} catch(org.springframework.ldap.NamingException ex) {
+			String message = ex.getMessage();
+			if(message != null && message.contains(INVALID_OLD_PASSWORD_ERROR)) {
+				logger.debug("AD rejected old password for " + username);
+				throw new InvalidPasswordException("Old password incorrect for " + username, ex);
+			}
+			throw ex;
+		}
+	}
+	
 	protected long getCurrentWin32Time() {
 		Date now = new Date();
 		long nowInWin32 = (now.getTime() + JAVA_TO_WIN_TIME_CONVERSION) * 10000L;
 		return nowInWin32;
 	}
 	
+	/**
+	 * <p>Encodes a password for unicodePwd: quoted, in UTF-16LE. An unpaired
+	 * surrogate is replaced with U+FFFD, as getBytes does.</p>
+	 */
 	protected byte[] encodePassword(String password) {
 		String quotedPassword = "\"" + password + "\"";
 		try {
@@ -48,6 +94,17 @@ public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
 		}
 	}
 	
+	/**
+	 * <p>Determines if password changes are sent to AD as a single modify
+	 * holding the old and new password, instead of a bind followed by an
+	 * administrative replace. Note that AD then treats it as a user
+	 * change, so the password history and minimum age policies apply.</p>
+	 * @param changePasswordInSingleModify
+	 */
+	public void setChangePasswordInSingleModify(boolean changePasswordInSingleModify) {
+		this.changePasswordInSingleModify = changePasswordInSingleModify;
+	}
+	
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		super.afterPropertiesSet();
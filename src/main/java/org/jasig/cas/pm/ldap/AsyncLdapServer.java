@@ -0,0 +1,41 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.concurrent.Future;
+
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+
+/**
+ * <p>Asynchronous sibling of LdapServer. Each method starts the operation
+ * and returns straight away; the future completes with the result, or
+ * fails with the exception the LdapServer method would have thrown (e.g.
+ * NameNotFoundException if the user isn't on this server).</p>
+ *
+ * <p>Implementations must pass the caller's Deadline on to the operation,
+ * since it won't run on the caller's thread.</p>
+ */
+public interface AsyncLdapServer {
+
+	/**
+	 * @return the server operations are run against, which identifies this
+	 * server for routing and bulkheads
+	 */
+	public LdapServer getLdapServer();
+
+	public Future<String> findDn(String username);
+
+	public Future<SecurityChallenge> getUserSecurityChallenge(String username);
+
+	public Future<SecurityChallenge> getDefaultSecurityChallenge(String username);
+
+	public Future<UserSecurityChallenges> getSecurityChallenges(String username);
+
+	public Future<Void> setUserSecurityChallenge(String username, SecurityChallenge securityChallenge);
+
+	public Future<PasswordPolicyInfo> checkPassword(String username, String password);
+
+	public Future<Void> setPassword(String username, String password);
+
+	public Future<Void> changePassword(String username, String oldPassword, String newPassword);
+}
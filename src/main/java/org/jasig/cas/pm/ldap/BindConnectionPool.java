@@ -0,0 +1,344 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.util.Deadline;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * <p>Pool of connections used only to verify user passwords. Rather than
+ * opening a new connection for every bind, an idle connection is taken
+ * from the pool and re-bound with the user's DN and password. A
+ * connection is discarded after a failed bind, when it has been idle for
+ * longer than maxIdleSeconds, or when it fails validation.</p>
+ *
+ * <p>At most maxActive binds run at once. Further callers wait up to
+ * maxWaitMillis for a slot before failing.</p>
+ *
+ * <p>If requestPasswordPolicy is set, each bind carries the password
+ * policy request control and the server's answer (expiry, grace logins,
+ * lockout, change after reset) is returned with the bind outcome.</p>
+ */
+public class BindConnectionPool implements InitializingBean, DisposableBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	@NotNull
+	private LdapContextSource contextSource;
+	@Min(1)
+	private int maxActive = 10;
+	@Min(0)
+	private int maxIdle = 5;
+	@Min(0)
+	private long maxWaitMillis = 5000;
+	@Min(0)
+	private int maxIdleSeconds = 300;
+	private boolean testOnBorrow = false;
+	private boolean requestPasswordPolicy = false;
+
+	private BlockingDeque<PooledConnection> idleConnections;
+	private Semaphore activeBinds;
+
+	private final AtomicLong bindCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong reusedCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong waitTimeoutCount = new AtomicLong();
+
+	/**
+	 * <p>Binds as the given DN with the given password.</p>
+	 * @param dn full DN of the user
+	 * @param password user's password
+	 * @return the outcome of the bind, including any password policy state
+	 * the server returned if requestPasswordPolicy is set
+	 * @throws org.springframework.ldap.NamingException if the bind failed
+	 * for reasons other than bad credentials
+	 * @throws PasswordManagerException if no bind slot became available
+	 * in time
+	 */
+	public PasswordPolicyInfo authenticate(String dn, String password) {
+
+		acquire();
+		try {
+			bindCount.incrementAndGet();
+			PooledConnection connection = borrowIdle();
+			if(connection != null) {
+				try {
+					PasswordPolicyInfo result = bind(connection.context, dn, password);
+					reusedCount.incrementAndGet();
+					return result;
+				} catch(CommunicationException ex) {
+					logger.debug("Pooled connection broken, opening a new one", ex);
+					destroy(connection.context);
+				} catch(ServiceUnavailableException ex) {
+					logger.debug("Pooled connection broken, opening a new one", ex);
+					destroy(connection.context);
+				} catch(NamingException ex) {
+					destroy(connection.context);
+					throw LdapUtils.convertLdapException(ex);
+				}
+			}
+
+			if(requestPasswordPolicy) {
+				// the control can only be sent on a re-bind, so open the
+				// connection as the manager and re-bind as the user
+				DirContext context = contextSource.getReadOnlyContext();
+				createdCount.incrementAndGet();
+				if(!(context instanceof LdapContext)) {
+					destroy(context);
+					throw new PasswordManagerException("Context doesn't support password policy controls.");
+				}
+				try {
+					return bind((LdapContext) context, dn, password);
+				} catch(NamingException ex) {
+					destroy(context);
+					throw LdapUtils.convertLdapException(ex);
+				}
+			}
+
+			DirContext context;
+			try {
+				context = contextSource.getContext(dn, password);
+			} catch(org.springframework.ldap.AuthenticationException ex) {
+				logger.debug("Bind failed for " + dn, ex);
+				return new PasswordPolicyInfo(false);
+			}
+			createdCount.incrementAndGet();
+			if(context instanceof LdapContext) {
+				clearCredentials(context);
+				release(context);
+			} else {
+				// can't re-bind it, so don't keep it
+				destroy(context);
+			}
+			return new PasswordPolicyInfo(true);
+		} finally {
+			activeBinds.release();
+		}
+	}
+
+	/**
+	 * <p>Re-binds the connection as the given user. The connection goes
+	 * back in the pool if the bind succeeded and is closed if it failed.</p>
+	 * @throws NamingException if the bind failed for reasons other than
+	 * bad credentials; the caller must close the connection
+	 */
+	private PasswordPolicyInfo bind(LdapContext context, String dn, String password) throws NamingException {
+		context.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+		context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+		try {
+			context.reconnect(requestPasswordPolicy ? new Control[] { new PasswordPolicyControl() } : null);
+		} catch(javax.naming.AuthenticationException ex) {
+			logger.debug("Bind failed for " + dn, ex);
+			PasswordPolicyInfo result = PasswordPolicyControl.toPasswordPolicyInfo(false, getResponseControls(context));
+			destroy(context);
+			return result;
+		}
+		clearCredentials(context);
+		PasswordPolicyInfo result = PasswordPolicyControl.toPasswordPolicyInfo(true, getResponseControls(context));
+		release(context);
+		return result;
+	}
+
+	private Control[] getResponseControls(LdapContext context) {
+		if(!requestPasswordPolicy) {
+			return null;
+		}
+		try {
+			return context.getResponseControls();
+		} catch(NamingException ex) {
+			logger.debug("Couldn't read bind response controls", ex);
+			return null;
+		}
+	}
+
+	private void acquire() {
+		try {
+			if(!activeBinds.tryAcquire(maxWaitMillis > 0 ? Deadline.limitMillis(maxWaitMillis) : 0, TimeUnit.MILLISECONDS)) {
+				waitTimeoutCount.incrementAndGet();
+				throw new PasswordManagerException("Timed out waiting for a bind connection.");
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PasswordManagerException("Interrupted waiting for a bind connection", ex);
+		}
+	}
+
+	/**
+	 * <p>Takes the most recently used idle connection that is still fit
+	 * for use, destroying any stale ones found on the way.</p>
+	 */
+	private PooledConnection borrowIdle() {
+		long oldestAllowed = System.currentTimeMillis() - maxIdleSeconds * 1000L;
+		PooledConnection connection;
+		while((connection = idleConnections.pollFirst()) != null) {
+			if(connection.lastUsed < oldestAllowed) {
+				destroy(connection.context);
+			} else if(testOnBorrow && !validate(connection.context)) {
+				destroy(connection.context);
+			} else {
+				return connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * <p>The connection is already authenticated, so the user's password
+	 * needn't stay in its environment while it sits in the pool.</p>
+	 */
+	private void clearCredentials(DirContext context) {
+		try {
+			context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+		} catch(NamingException ex) {
+			logger.debug("Couldn't clear credentials from pooled connection", ex);
+		}
+	}
+
+	private boolean validate(LdapContext context) {
+		try {
+			context.getAttributes("", new String[] { "objectClass" });
+			return true;
+		} catch(NamingException ex) {
+			logger.debug("Pooled connection failed validation", ex);
+			return false;
+		}
+	}
+
+	private void release(DirContext context) {
+		if(idleConnections.size() < maxIdle
+				&& idleConnections.offerFirst(new PooledConnection((LdapContext) context))) {
+			return;
+		}
+		destroy(context);
+	}
+
+	private void destroy(DirContext context) {
+		destroyedCount.incrementAndGet();
+		LdapUtils.closeContext(context);
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		idleConnections = new LinkedBlockingDeque<PooledConnection>();
+		activeBinds = new Semaphore(maxActive, true);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		PooledConnection connection;
+		while((connection = idleConnections.pollFirst()) != null) {
+			destroy(connection.context);
+		}
+	}
+
+	public void setContextSource(LdapContextSource contextSource) {
+		this.contextSource = contextSource;
+	}
+
+	/**
+	 * @param maxActive maximum number of concurrent binds
+	 */
+	public void setMaxActive(int maxActive) {
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * @param maxIdle maximum number of idle connections kept for reuse
+	 */
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @param maxWaitMillis how long to wait for a bind slot when maxActive
+	 * binds are already running
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * @param maxIdleSeconds idle connections older than this are closed
+	 * rather than reused
+	 */
+	public void setMaxIdleSeconds(int maxIdleSeconds) {
+		this.maxIdleSeconds = maxIdleSeconds;
+	}
+
+	/**
+	 * @param testOnBorrow if true, idle connections are checked with a root
+	 * DSE read before being reused
+	 */
+	public void setTestOnBorrow(boolean testOnBorrow) {
+		this.testOnBorrow = testOnBorrow;
+	}
+
+	/**
+	 * @param requestPasswordPolicy if true, binds send the password policy
+	 * request control and decode the response. The server must support it
+	 * (e.g. the OpenLDAP ppolicy overlay).
+	 */
+	public void setRequestPasswordPolicy(boolean requestPasswordPolicy) {
+		this.requestPasswordPolicy = requestPasswordPolicy;
+	}
+
+	public long getBindCount() {
+		return bindCount.get();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	public long getWaitTimeoutCount() {
+		return waitTimeoutCount.get();
+	}
+
+	public int getActiveCount() {
+		return maxActive - activeBinds.availablePermits();
+	}
+
+	public int getIdleCount() {
+		return idleConnections.size();
+	}
+
+	private static class PooledConnection {
+
+		private final LdapContext context;
+		private final long lastUsed = System.currentTimeMillis();
+
+		public PooledConnection(LdapContext context) {
+			this.context = context;
+		}
+	}
+}
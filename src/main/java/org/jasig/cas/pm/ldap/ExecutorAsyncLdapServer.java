@@ -0,0 +1,132 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+
+/**
+ * <p>AsyncLdapServer that runs a blocking LdapServer's operations on an
+ * ExecutorService. JNDI has no non-blocking API, so this is what async mode
+ * uses unless another implementation, such as UnboundIdAsyncLdapServer,
+ * is configured. The executor is
+ * normally shared by all servers, so its size bounds the number of
+ * operations in flight rather than the number of requests.</p>
+ */
+public class ExecutorAsyncLdapServer implements AsyncLdapServer {
+
+	private final LdapServer ldapServer;
+	private final ExecutorService executorService;
+
+	public ExecutorAsyncLdapServer(LdapServer ldapServer, ExecutorService executorService) {
+		this.ldapServer = ldapServer;
+		this.executorService = executorService;
+	}
+
+	@Override
+	public LdapServer getLdapServer() {
+		return ldapServer;
+	}
+
+	@Override
+	public Future<String> findDn(final String username) {
+		return submit(new Callable<String>() {
+			public String call() {
+				return ldapServer.findDn(username);
+			}
+		});
+	}
+
+	@Override
+	public Future<SecurityChallenge> getUserSecurityChallenge(final String username) {
+		return submit(new Callable<SecurityChallenge>() {
+			public SecurityChallenge call() {
+				return ldapServer.getUserSecurityChallenge(username);
+			}
+		});
+	}
+
+	@Override
+	public Future<SecurityChallenge> getDefaultSecurityChallenge(final String username) {
+		return submit(new Callable<SecurityChallenge>() {
+			public SecurityChallenge call() {
+				return ldapServer.getDefaultSecurityChallenge(username);
+			}
+		});
+	}
+
+	@Override
+	public Future<UserSecurityChallenges> getSecurityChallenges(final String username) {
+		return submit(new Callable<UserSecurityChallenges>() {
+			public UserSecurityChallenges call() {
+				return ldapServer.getSecurityChallenges(username);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> setUserSecurityChallenge(final String username,
+			final SecurityChallenge securityChallenge) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				ldapServer.setUserSecurityChallenge(username, securityChallenge);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<PasswordPolicyInfo> checkPassword(final String username, final String password) {
+		return submit(new Callable<PasswordPolicyInfo>() {
+			public PasswordPolicyInfo call() {
+				return ldapServer.checkPassword(username, password);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> setPassword(final String username, final String password) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				ldapServer.setPassword(username, password);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> changePassword(final String username, final String oldPassword,
+			final String newPassword) {
+		return submit(new Callable<Void>() {
+			public Void call() {
+				ldapServer.changePassword(username, oldPassword, newPassword);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * <p>Submits the operation, running it under the submitting thread's
+	 * deadline and, for SlowOperationLog, its flow state.</p>
+	 */
+	private <T> Future<T> submit(final Callable<T> operation) {
+		final Deadline deadline = Deadline.current();
+		final String flowState = SlowOperationLog.currentFlowState();
+		return executorService.submit(new Callable<T>() {
+			public T call() throws Exception {
+				Deadline previous = Deadline.set(deadline);
+				String previousFlowState = SlowOperationLog.setFlowState(flowState);
+				try {
+					return operation.call();
+				} finally {
+					SlowOperationLog.restoreFlowState(previousFlowState);
+					Deadline.restore(previous);
+				}
+			}
+		});
+	}
+}
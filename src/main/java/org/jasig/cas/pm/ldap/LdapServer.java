@@ -2,7 +2,9 @@ package org.jasig.cas.pm.ldap;
 
 import javax.naming.directory.ModificationItem;
 
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
 import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
 
 public interface LdapServer {
 	
@@ -12,12 +14,52 @@ public interface LdapServer {
 	
 	public boolean verifyPassword(String username, String password);
 	
+	/**
+	 * <p>Binds as the user and reports the outcome along with any password
+	 * policy state (expiry, grace logins, lockout, change after reset) the
+	 * server returned with the bind.</p>
+	 * @param username user to bind as
+	 * @param password user's password
+	 * @return bind outcome and password policy state
+	 */
+	public PasswordPolicyInfo checkPassword(String username, String password);
+	
+	/**
+	 * <p>Changes the user's password, verifying the old password first.</p>
+	 * @param username user whose password is changed
+	 * @param oldPassword user's current password
+	 * @param newPassword user's new password
+	 * @throws org.jasig.cas.pm.InvalidPasswordException if the old
+	 * password is wrong
+	 */
+	public void changePassword(String username, String oldPassword, String newPassword);
+	
+	/**
+	 * <p>Looks up the user's distinguished name. Useful for finding out
+	 * which server a user lives on without modifying anything.</p>
+	 * @param username user to look up
+	 * @return the user's DN
+	 * @throws org.springframework.ldap.NameNotFoundException if the user
+	 * doesn't exist on this server
+	 * @throws org.springframework.ldap.core.ObjectRetrievalException if
+	 * more than one entry matches
+	 */
+	public String findDn(String username);
+	
 	public SecurityChallenge getUserSecurityChallenge(String username);
 	
 	public void setUserSecurityChallenge(String username, SecurityChallenge securityChallenge);
 	
 	public SecurityChallenge getDefaultSecurityChallenge(String username);
 	
+	/**
+	 * <p>Gets the user's custom and default security challenges with a
+	 * single directory search.</p>
+	 * @param username user to look up
+	 * @return both challenges, either of which may be null
+	 */
+	public UserSecurityChallenges getSecurityChallenges(String username);
+	
 	/**
 	 * <p>Gets a user-specified description for logging purposes</p>
 	 * @return server description
@@ -4,27 +4,43 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.jasig.cas.pm.service.PasswordWarningInfo;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.util.Deadline;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.OperationNotSupportedException;
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.DistinguishedName;
 
 public class OpenLdapLdapServer extends AbstractLdapServer implements
 		LdapServer, InitializingBean {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private String encryptionAlgorithm;
+	private boolean usePasswordModifyExtendedOperation = false;
 	
 	@Override
 	public void setPassword(String username, String password) {
 		
-		logger.debug("Setting password for " + username);
+		if(logger.isDebugEnabled()) {
+			logger.debug("Setting password for " + username);
+		}
+		
+		if(usePasswordModifyExtendedOperation) {
+			passwordModify(username, null, password);
+			return;
+		}
 		
 		String passwordText = null;
 		
@@ -44,6 +60,70 @@ public class OpenLdapLdapServer extends AbstractLdapServer implements
 		ldapModify(username, modificationItems);
 	}
 	
+	/**
+	 * <p>If usePasswordModifyExtendedOperation is set, sends the old and new
+	 * passwords in a single Password Modify extended operation, and lets the
+	 * server verify the old one. Otherwise binds with the old password and
+	 * then replaces it.</p>
+	 */
+	@Override
+	public void changePassword(String username, String oldPassword, String newPassword) {
+		
+		if(!usePasswordModifyExtendedOperation) {
+			super.changePassword(username, oldPassword, newPassword);
+			return;
+		}
+		
+		if(oldPassword == null || oldPassword.isEmpty()) {
+			throw new InvalidPasswordException("Empty old password for " + username);
+		}
+		
+		try {
+			passwordModify(username, oldPassword, newPassword);
+		} catch(OperationNotSupportedException ex) {
+			// slapd answers unwillingToPerform: "unwilling to verify old password"
+			String message = ex.getMessage();
+			if(message != null && message.contains("old password")) {
+				logger.debug("OpenLDAP rejected old password for " + username);
+				throw new InvalidPasswordException("Old password incorrect for " + username, ex);
+			}
+			throw ex;
+		}
+	}
+	
+	/**
+	 * <p>Runs an RFC 3062 Password Modify extended operation on the user's
+	 * entry. The server hashes the new password with its own configured
+	 * scheme, so encryptionAlgorithm isn't used.</p>
+	 */
+	private void passwordModify(String username, String oldPassword, String newPassword) {
+		
+		DistinguishedName dn = searchForDn(username);
+		final PasswordModifyRequest request = new PasswordModifyRequest(dn.encode(), oldPassword, newPassword);
+		Deadline.checkCurrent("modifying the password of " + username);
+		
+		long start = System.nanoTime();
+		try {
+			ldapTemplate.executeReadWrite(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx) throws NamingException {
+					if(!(ctx instanceof LdapContext)) {
+						throw new PasswordManagerException("Context doesn't support extended operations.");
+					}
+					return ((LdapContext) ctx).extendedOperation(request);
+				}
+			});
+			recordOperation("password-modify", start, "success");
+		} catch(NameNotFoundException ex) {
+			recordOperation("password-modify", start, "not-found");
+			invalidateDn(username);
+			throw ex;
+		} catch(RuntimeException ex) {
+			recordOperation("password-modify", start, "error");
+			throw ex;
+		}
+	}
+	
 	private String encrypt(String plainText) {
 		
 		MessageDigest md = null;
@@ -65,6 +145,15 @@ public class OpenLdapLdapServer extends AbstractLdapServer implements
 		this.encryptionAlgorithm = encryptionAlgorithm;
 	}
 	
+	/**
+	 * <p>Determines if passwords are set with the RFC 3062 Password Modify
+	 * extended operation instead of a userPassword modify.</p>
+	 * @param usePasswordModifyExtendedOperation
+	 */
+	public void setUsePasswordModifyExtendedOperation(boolean usePasswordModifyExtendedOperation) {
+		this.usePasswordModifyExtendedOperation = usePasswordModifyExtendedOperation;
+	}
+	
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		super.afterPropertiesSet();
@@ -0,0 +1,116 @@
+package org.jasig.cas.pm.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+
+import org.jasig.cas.pm.PasswordManagerException;
+
+/**
+ * <p>RFC 3062 LDAP Password Modify extended request. Lets the server verify
+ * the old password and hash the new one with its own configured scheme in
+ * a single operation.</p>
+ *
+ * <pre>
+ * PasswdModifyRequestValue ::= SEQUENCE {
+ *     userIdentity    [0]  OCTET STRING OPTIONAL
+ *     oldPasswd       [1]  OCTET STRING OPTIONAL
+ *     newPasswd       [2]  OCTET STRING OPTIONAL }
+ * </pre>
+ */
+public class PasswordModifyRequest implements ExtendedRequest {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String OID = "1.3.6.1.4.1.4203.1.11.1";
+
+	private static final int SEQUENCE_TAG = 0x30;
+	private static final int USER_IDENTITY_TAG = 0x80;
+	private static final int OLD_PASSWORD_TAG = 0x81;
+	private static final int NEW_PASSWORD_TAG = 0x82;
+
+	private final byte[] encodedValue;
+
+	/**
+	 * @param userIdentity DN of the user whose password is changed
+	 * @param oldPassword current password, or null to skip verification
+	 * @param newPassword new password, or null to have the server
+	 * generate one
+	 */
+	public PasswordModifyRequest(String userIdentity, String oldPassword, String newPassword) {
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		writeOctetString(fields, USER_IDENTITY_TAG, userIdentity);
+		writeOctetString(fields, OLD_PASSWORD_TAG, oldPassword);
+		writeOctetString(fields, NEW_PASSWORD_TAG, newPassword);
+
+		ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+		writeElement(sequence, SEQUENCE_TAG, fields.toByteArray());
+		this.encodedValue = sequence.toByteArray();
+	}
+
+	@Override
+	public String getID() {
+		return OID;
+	}
+
+	@Override
+	public byte[] getEncodedValue() {
+		return encodedValue;
+	}
+
+	@Override
+	public ExtendedResponse createExtendedResponse(final String id, final byte[] berValue,
+			final int offset, final int length) throws NamingException {
+
+		// the optional genPasswd in the response is only sent when we
+		// don't supply a new password, which we always do
+		return new ExtendedResponse() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getID() {
+				return id;
+			}
+
+			@Override
+			public byte[] getEncodedValue() {
+				if(berValue == null) {
+					return null;
+				}
+				byte[] value = new byte[length];
+				System.arraycopy(berValue, offset, value, 0, length);
+				return value;
+			}
+		};
+	}
+
+	private static void writeOctetString(ByteArrayOutputStream out, int tag, String value) {
+		if(value == null) {
+			return;
+		}
+		try {
+			writeElement(out, tag, value.getBytes("UTF-8"));
+		} catch(UnsupportedEncodingException ex) {
+			throw new PasswordManagerException("Unsupported encoding: UTF-8", ex);
+		}
+	}
+
+	private static void writeElement(ByteArrayOutputStream out, int tag, byte[] value) {
+		out.write(tag);
+		int length = value.length;
+		if(length < 0x80) {
+			out.write(length);
+		} else {
+			int lengthBytes = length > 0xFFFFFF ? 4 : length > 0xFFFF ? 3 : length > 0xFF ? 2 : 1;
+			out.write(0x80 | lengthBytes);
+			for(int i=lengthBytes-1;i>=0;i--) {
+				out.write((length >> (8 * i)) & 0xFF);
+			}
+		}
+		out.write(value, 0, value.length);
+	}
+}
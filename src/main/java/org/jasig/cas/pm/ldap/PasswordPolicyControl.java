@@ -0,0 +1,122 @@
+package org.jasig.cas.pm.ldap;
+
+import javax.naming.ldap.Control;
+
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.service.PasswordPolicyInfo.PasswordPolicyError;
+
+/**
+ * <p>draft-behera-ldap-password-policy request control, sent with a bind
+ * to ask the server for the account's password policy state. Also decodes
+ * the matching response control:</p>
+ *
+ * <pre>
+ * PasswordPolicyResponseValue ::= SEQUENCE {
+ *     warning [0] CHOICE {
+ *         timeBeforeExpiration [0] INTEGER (0 .. maxInt),
+ *         graceAuthNsRemaining [1] INTEGER (0 .. maxInt) } OPTIONAL,
+ *     error   [1] ENUMERATED { ... } OPTIONAL }
+ * </pre>
+ */
+public class PasswordPolicyControl implements Control {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String OID = "1.3.6.1.4.1.42.2.27.8.5.1";
+
+	private static final int SEQUENCE_TAG = 0x30;
+	private static final int WARNING_TAG = 0xA0;
+	private static final int TIME_BEFORE_EXPIRATION_TAG = 0x80;
+	private static final int GRACE_LOGINS_TAG = 0x81;
+	private static final int ERROR_TAG = 0x81;
+
+	@Override
+	public String getID() {
+		return OID;
+	}
+
+	@Override
+	public boolean isCritical() {
+		return false;
+	}
+
+	@Override
+	public byte[] getEncodedValue() {
+		return null;
+	}
+
+	/**
+	 * <p>Builds a PasswordPolicyInfo from the response controls of a bind.</p>
+	 * @param authenticated whether the bind succeeded
+	 * @param responseControls controls returned with the bind, may be null
+	 * @return the bind outcome, with policy state if the server sent any
+	 */
+	public static PasswordPolicyInfo toPasswordPolicyInfo(boolean authenticated, Control[] responseControls) {
+		if(responseControls != null) {
+			for(Control control : responseControls) {
+				if(OID.equals(control.getID()) && control.getEncodedValue() != null) {
+					return decode(authenticated, control.getEncodedValue());
+				}
+			}
+		}
+		return new PasswordPolicyInfo(authenticated);
+	}
+
+	private static PasswordPolicyInfo decode(boolean authenticated, byte[] value) {
+
+		long secondsUntilExpiration = -1;
+		int graceLoginsRemaining = -1;
+		PasswordPolicyError error = null;
+
+		int[] pos = new int[] { 0 };
+		if(value.length == 0 || (value[pos[0]++] & 0xFF) != SEQUENCE_TAG) {
+			return new PasswordPolicyInfo(authenticated);
+		}
+		int end = readLength(value, pos) + pos[0];
+
+		while(pos[0] < end) {
+			int tag = value[pos[0]++] & 0xFF;
+			int length = readLength(value, pos);
+			int start = pos[0];
+			if(tag == WARNING_TAG) {
+				int[] warningPos = new int[] { start };
+				int warningTag = value[warningPos[0]++] & 0xFF;
+				int warningLength = readLength(value, warningPos);
+				long warning = readInteger(value, warningPos[0], warningLength);
+				if(warningTag == TIME_BEFORE_EXPIRATION_TAG) {
+					secondsUntilExpiration = warning;
+				} else if(warningTag == GRACE_LOGINS_TAG) {
+					graceLoginsRemaining = (int) warning;
+				}
+			} else if(tag == ERROR_TAG) {
+				int ordinal = (int) readInteger(value, start, length);
+				if(ordinal >= 0 && ordinal < PasswordPolicyError.values().length) {
+					error = PasswordPolicyError.values()[ordinal];
+				}
+			}
+			pos[0] = start + length;
+		}
+
+		return new PasswordPolicyInfo(authenticated, secondsUntilExpiration, graceLoginsRemaining, error);
+	}
+
+	private static int readLength(byte[] value, int[] pos) {
+		int first = value[pos[0]++] & 0xFF;
+		if(first < 0x80) {
+			return first;
+		}
+		int length = 0;
+		for(int i=0;i<(first & 0x7F);i++) {
+			length = (length << 8) | (value[pos[0]++] & 0xFF);
+		}
+		return length;
+	}
+
+	private static long readInteger(byte[] value, int offset, int length) {
+		long result = value[offset]; // sign-extended
+		for(int i=1;i<length;i++) {
+			result = (result << 8) | (value[offset + i] & 0xFF);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,190 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>LDAP search filter with username placeholders, parsed once and filled
+ * in per search. Supports the same placeholders as CAS's
+ * LdapUtils.getFilterWithValues():</p>
+ *
+ * <ul>
+ * <li>%u - the whole username</li>
+ * <li>%U - the username up to the first @</li>
+ * <li>%d - the domain after the first @</li>
+ * <li>%1 to %9 - the domain's components, last first (for user@example.edu,
+ * %1 is edu and %2 is example)</li>
+ * </ul>
+ *
+ * <p>Values are escaped as RFC 4515 requires, so a username can't add
+ * wildcards or filter terms of its own. Placeholders a username doesn't
+ * have a value for (e.g. %d without an @) are left empty.</p>
+ */
+public final class SearchFilterTemplate {
+
+	private static final int USERNAME = -1;
+	private static final int USER = -2;
+	private static final int DOMAIN = -3;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String filter;
+	/** Literal text before each placeholder, and after the last one. */
+	private final String[] literals;
+	/** Placeholder codes: USERNAME, USER, DOMAIN, or a domain component 1-9. */
+	private final int[] placeholders;
+	private final boolean needsDomain;
+	private final int literalLength;
+
+	private SearchFilterTemplate(String filter, String[] literals, int[] placeholders) {
+		this.filter = filter;
+		this.literals = literals;
+		this.placeholders = placeholders;
+		boolean domain = false;
+		for(int placeholder : placeholders) {
+			domain |= placeholder != USERNAME;
+		}
+		this.needsDomain = domain;
+		int length = 0;
+		for(String literal : literals) {
+			length += literal.length();
+		}
+		this.literalLength = length;
+	}
+
+	/**
+	 * <p>Parses a filter such as "(&amp;(objectClass=person)(uid=%u))".</p>
+	 * @param filter filter with placeholders
+	 * @return the compiled filter
+	 * @throws IllegalArgumentException if the filter is empty or its
+	 * parentheses don't balance
+	 */
+	public static SearchFilterTemplate compile(String filter) {
+		if(filter == null || filter.trim().length() == 0) {
+			throw new IllegalArgumentException("Search filter must not be empty");
+		}
+
+		List<String> literals = new ArrayList<String>();
+		List<Integer> placeholders = new ArrayList<Integer>();
+		StringBuilder literal = new StringBuilder();
+		int depth = 0;
+		for(int i=0;i<filter.length();i++) {
+			char c = filter.charAt(i);
+			if(c == '(') {
+				depth++;
+			} else if(c == ')' && --depth < 0) {
+				throw new IllegalArgumentException("Unbalanced parentheses in search filter " + filter);
+			}
+			int placeholder = c == '%' && i + 1 < filter.length() ? placeholderCode(filter.charAt(i + 1)) : 0;
+			if(placeholder == 0) {
+				literal.append(c);
+				continue;
+			}
+			literals.add(literal.toString());
+			literal.setLength(0);
+			placeholders.add(placeholder);
+			i++;
+		}
+		if(depth != 0) {
+			throw new IllegalArgumentException("Unbalanced parentheses in search filter " + filter);
+		}
+		literals.add(literal.toString());
+
+		int[] codes = new int[placeholders.size()];
+		for(int i=0;i<codes.length;i++) {
+			codes[i] = placeholders.get(i);
+		}
+		return new SearchFilterTemplate(filter, literals.toArray(new String[literals.size()]), codes);
+	}
+
+	private static int placeholderCode(char c) {
+		switch(c) {
+		case 'u':
+			return USERNAME;
+		case 'U':
+			return USER;
+		case 'd':
+			return DOMAIN;
+		default:
+			return c >= '1' && c <= '9' ? c - '0' : 0;
+		}
+	}
+
+	/**
+	 * <p>Fills in the placeholders for the given username.</p>
+	 * @param username username, which may contain any characters
+	 * @return filter ready to search with
+	 */
+	public String format(String username) {
+		String user = username;
+		String domain = "";
+		if(needsDomain) {
+			int at = username.indexOf('@');
+			if(at >= 0) {
+				user = username.substring(0, at);
+				domain = username.substring(at + 1);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(literalLength + placeholders.length * (username.length() + 8));
+		for(int i=0;i<placeholders.length;i++) {
+			sb.append(literals[i]);
+			switch(placeholders[i]) {
+			case USERNAME:
+				escape(username, sb);
+				break;
+			case USER:
+				escape(user, sb);
+				break;
+			case DOMAIN:
+				escape(domain, sb);
+				break;
+			default:
+				escape(domainComponent(domain, placeholders[i]), sb);
+			}
+		}
+		sb.append(literals[placeholders.length]);
+		return sb.toString();
+	}
+
+	/**
+	 * <p>Gets the nth component of a domain, counting from the end.</p>
+	 * @return the component, or "" if there aren't that many
+	 */
+	private static String domainComponent(String domain, int n) {
+		int end = domain.length();
+		for(int i=1;i<n;i++) {
+			end = domain.lastIndexOf('.', end - 1);
+			if(end < 0) {
+				return "";
+			}
+		}
+		return domain.substring(domain.lastIndexOf('.', end - 1) + 1, end);
+	}
+
+	/**
+	 * <p>Appends a value with the characters RFC 4515 reserves in filter
+	 * values replaced by \ and their hex code.</p>
+	 */
+	private static void escape(String value, StringBuilder sb) {
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			switch(c) {
+			case '*':
+			case '(':
+			case ')':
+			case '\\':
+			case '\0':
+				sb.append('\\').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return filter;
+	}
+}
@@ -0,0 +1,105 @@
+package org.jasig.cas.pm.ldap;
+
+import javax.naming.directory.SearchControls;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.RequestContextHolder;
+
+/**
+ * <p>Logs directory operations that took longer than their server's
+ * slowOperationThresholdMillis, at WARN, to its own category. log4j.xml
+ * sends the category through a non-blocking AsyncAppender, so a burst of
+ * slow operations drops entries rather than holding up requests.</p>
+ *
+ * <p>Each entry names the server, the search base, scope and filter
+ * template (with %u in place of the username, so no user input is logged),
+ * the result count, and the flow and state that made the call. A subtree
+ * search from the directory root shows up here as a slow search with a
+ * short base.</p>
+ */
+final class SlowOperationLog {
+
+	private static final Log LOG = LogFactory.getLog(SlowOperationLog.class);
+
+	/** Flow state of the request an async operation was submitted for. */
+	private static final ThreadLocal<String> SUBMITTED_FLOW_STATE = new ThreadLocal<String>();
+
+	private SlowOperationLog() {
+	}
+
+	/**
+	 * @param filter template of the filter searched with, or null if the
+	 * operation wasn't a search
+	 * @param resultCount number of entries found, or -1 if the operation
+	 * wasn't a search
+	 */
+	static void log(String server, String operation, long elapsedMillis, String outcome,
+			String searchBase, int scope, SearchFilterTemplate filter, int resultCount) {
+		StringBuilder message = new StringBuilder("Slow ldap ").append(operation)
+				.append(" on ").append(server).append(": ").append(elapsedMillis).append("ms")
+				.append(", outcome=").append(outcome)
+				.append(", base=").append(searchBase);
+		if(filter != null) {
+			message.append(", scope=").append(getScopeName(scope))
+					.append(", filter=").append(filter)
+					.append(", results=").append(resultCount);
+		}
+		message.append(", flow=").append(currentFlowState());
+		LOG.warn(message);
+	}
+
+	/**
+	 * @return e.g. "passwordManager:setPasswordSubflow", or null outside a
+	 * flow request
+	 */
+	static String currentFlowState() {
+		String submitted = SUBMITTED_FLOW_STATE.get();
+		if(submitted != null) {
+			return submitted;
+		}
+		RequestContext context = RequestContextHolder.getRequestContext();
+		if(context == null) {
+			return null;
+		}
+		try {
+			return context.getActiveFlow().getId() + ":" + context.getCurrentState().getId();
+		} catch(IllegalStateException ex) {
+			// the flow has ended or not yet started
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Makes the given flow state current for the calling thread, for an
+	 * operation run on behalf of another thread's request.</p>
+	 * @return the previous flow state, for restoreFlowState()
+	 */
+	static String setFlowState(String flowState) {
+		String previous = SUBMITTED_FLOW_STATE.get();
+		if(flowState != null) {
+			SUBMITTED_FLOW_STATE.set(flowState);
+		} else {
+			SUBMITTED_FLOW_STATE.remove();
+		}
+		return previous;
+	}
+
+	static void restoreFlowState(String previous) {
+		setFlowState(previous);
+	}
+
+	private static String getScopeName(int scope) {
+		switch(scope) {
+		case SearchControls.OBJECT_SCOPE:
+			return "base";
+		case SearchControls.ONELEVEL_SCOPE:
+			return "one";
+		case SearchControls.SUBTREE_SCOPE:
+			return "subtree";
+		default:
+			return String.valueOf(scope);
+		}
+	}
+}
@@ -0,0 +1,559 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.ObjectRetrievalException;
+import org.springframework.ldap.support.LdapUtils;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DereferencePolicy;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * <p>AsyncLdapServer that runs lookups as UnboundID asynchronous searches,
+ * multiplexed over a few shared connections. No thread waits on a lookup
+ * in flight: the connection's reader thread completes the future when the
+ * result arrives, so the number of lookups in flight is bounded by the
+ * bulkheads rather than by a thread pool.</p>
+ *
+ * <p>findDn and the challenge lookups search with the same base, scope,
+ * limits, filters and returned attributes as the wrapped server, share its
+ * DN cache and metrics, and fail the same way: NameNotFoundException for no
+ * entry, ObjectRetrievalException for several. The response timeout is the
+ * server's timeout capped by the caller's Deadline, and cancelling the
+ * future abandons the search. Continuation references are not followed.</p>
+ *
+ * <p>Binds and modifies (checkPassword, setPassword, changePassword and
+ * setUserSecurityChallenge) run on the calling thread through the wrapped
+ * server and return a completed future. They carry server-specific
+ * handling (unicodePwd, Password Modify, password policy controls), and
+ * LdapPasswordManagerService only runs lookups in parallel.</p>
+ */
+public class UnboundIdAsyncLdapServer implements AsyncLdapServer, InitializingBean, DisposableBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	/** The default number of shared connections. */
+	private static final int DEFAULT_CONNECTIONS = 2;
+
+	/** The default connect timeout. */
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	private AbstractLdapServer ldapServer;
+	private String url;
+	private String bindDn;
+	private String bindPassword;
+	private int connections = DEFAULT_CONNECTIONS;
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private LDAPURL ldapUrl;
+	private String baseDn;
+	private AtomicReferenceArray<LDAPConnection> connectionSlots;
+	private final AtomicInteger nextConnection = new AtomicInteger();
+
+	@Override
+	public LdapServer getLdapServer() {
+		return ldapServer;
+	}
+
+	@Override
+	public Future<String> findDn(final String username) {
+		final String transformedUsername = ldapServer.getPrincipalNameTransformer().transform(username);
+		final String cachedDn = ldapServer.getCachedDn(transformedUsername);
+		if(cachedDn != null) {
+			return completed(new Callable<String>() {
+				public String call() {
+					return new DistinguishedName(cachedDn).encode();
+				}
+			});
+		}
+		Deadline.checkCurrent("searching for " + username);
+		return search(new Lookup<String>("search", username, ldapServer.getUserFilter()) {
+			@Override
+			String map(SearchResultEntry entry) {
+				ldapServer.cacheDn(transformedUsername, entry.getDN());
+				return new DistinguishedName(entry.getDN()).encode();
+			}
+		}, ldapServer.getUserFilter().format(transformedUsername), SearchRequest.NO_ATTRIBUTES);
+	}
+
+	@Override
+	public Future<SecurityChallenge> getUserSecurityChallenge(String username) {
+		return lookup(username, ldapServer.new SecurityChallengeAttributesMapper(username),
+				SecurityChallenge.class, ldapServer.securityQuestionAttrs, ldapServer.securityResponseAttrs);
+	}
+
+	@Override
+	public Future<SecurityChallenge> getDefaultSecurityChallenge(String username) {
+		return lookup(username, ldapServer.new DefaultSecurityChallengeAttributesMapper(username),
+				SecurityChallenge.class, ldapServer.defaultResponseAttrs);
+	}
+
+	@Override
+	public Future<UserSecurityChallenges> getSecurityChallenges(String username) {
+		return lookup(username, ldapServer.new UserSecurityChallengesAttributesMapper(username),
+				UserSecurityChallenges.class, ldapServer.securityQuestionAttrs,
+				ldapServer.securityResponseAttrs, ldapServer.defaultResponseAttrs);
+	}
+
+	@Override
+	public Future<Void> setUserSecurityChallenge(final String username,
+			final SecurityChallenge securityChallenge) {
+		return completed(new Callable<Void>() {
+			public Void call() {
+				ldapServer.setUserSecurityChallenge(username, securityChallenge);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<PasswordPolicyInfo> checkPassword(final String username, final String password) {
+		return completed(new Callable<PasswordPolicyInfo>() {
+			public PasswordPolicyInfo call() {
+				return ldapServer.checkPassword(username, password);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> setPassword(final String username, final String password) {
+		return completed(new Callable<Void>() {
+			public Void call() {
+				ldapServer.setPassword(username, password);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> changePassword(final String username, final String oldPassword,
+			final String newPassword) {
+		return completed(new Callable<Void>() {
+			public Void call() {
+				ldapServer.changePassword(username, oldPassword, newPassword);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * <p>Starts a challenge lookup, as AbstractLdapServer.ldapLookup.</p>
+	 */
+	private <T> Future<T> lookup(String username, final AttributesMapper mapper, final Class<T> type,
+			List<?>... returningAttrs) {
+		Deadline.checkCurrent("looking up " + username);
+		String[] attributes = ldapServer.getReturningAttributes(returningAttrs);
+		return search(new Lookup<T>("challenge-lookup", username, ldapServer.getLookupFilter()) {
+			@Override
+			T map(SearchResultEntry entry) throws NamingException {
+				return type.cast(mapper.mapFromAttributes(toAttributes(entry)));
+			}
+		}, ldapServer.getLookupFilter().format(username),
+				attributes.length > 0 ? attributes : new String[] { SearchRequest.NO_ATTRIBUTES });
+	}
+
+	private <T> Future<T> search(Lookup<T> lookup, String filter, String... attributes) {
+		long timeLimitMillis = Deadline.limitMillis(ldapServer.getTimeout());
+		LDAPConnection connection = null;
+		try {
+			SearchRequest request = new SearchRequest(lookup, baseDn,
+					SearchScope.definedValueOf(ldapServer.getScope()), DereferencePolicy.ALWAYS,
+					ldapServer.getMaxNumberResults(), (int) TimeUnit.MILLISECONDS.toSeconds(timeLimitMillis + 999),
+					false, filter, attributes);
+			request.setResponseTimeoutMillis(timeLimitMillis);
+			connection = getConnection();
+			lookup.start(connection, connection.asyncSearch(request));
+		} catch(LDAPException ex) {
+			if(connection != null) {
+				discard(connection);
+			}
+			lookup.fail(ex.getResultCode(), ex.getMessage());
+		}
+		return lookup;
+	}
+
+	/**
+	 * <p>Runs a blocking operation on the calling thread.</p>
+	 */
+	private static <T> Future<T> completed(Callable<T> operation) {
+		FutureTask<T> future = new FutureTask<T>(operation);
+		future.run();
+		return future;
+	}
+
+	/**
+	 * <p>Picks the next shared connection, reconnecting it first if it's
+	 * been closed.</p>
+	 */
+	private LDAPConnection getConnection() throws LDAPException {
+		int slot = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connectionSlots.length();
+		LDAPConnection connection = connectionSlots.get(slot);
+		if(connection != null && connection.isConnected()) {
+			return connection;
+		}
+		synchronized(connectionSlots) {
+			connection = connectionSlots.get(slot);
+			if(connection != null && connection.isConnected()) {
+				return connection;
+			}
+			if(connection != null) {
+				connection.close();
+			}
+			connection = connect();
+			connectionSlots.set(slot, connection);
+			return connection;
+		}
+	}
+
+	private LDAPConnection connect() throws LDAPException {
+		LDAPConnectionOptions options = new LDAPConnectionOptions();
+		options.setConnectTimeoutMillis(connectTimeoutMillis);
+		options.setAbandonOnTimeout(true);
+		SocketFactory socketFactory = "ldaps".equalsIgnoreCase(ldapUrl.getScheme())
+				? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+		LDAPConnection connection = new LDAPConnection(socketFactory, options,
+				ldapUrl.getHost(), ldapUrl.getPort());
+		try {
+			if(bindDn != null) {
+				connection.bind(bindDn, bindPassword);
+			}
+		} catch(LDAPException ex) {
+			connection.close();
+			throw ex;
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("Opened connection to " + url + " for " + ldapServer.getDescription());
+		}
+		return connection;
+	}
+
+	private void discard(LDAPConnection connection) {
+		if(connection == null) {
+			return;
+		}
+		for(int i=0;i<connectionSlots.length();i++) {
+			if(connectionSlots.compareAndSet(i, connection, null)) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * <p>Converts an entry to case-insensitive JNDI attributes, as the
+	 * wrapped server's mappers expect.</p>
+	 */
+	private static Attributes toAttributes(SearchResultEntry entry) {
+		Attributes attributes = new BasicAttributes(true);
+		for(Attribute attribute : entry.getAttributes()) {
+			BasicAttribute jndiAttribute = new BasicAttribute(attribute.getName());
+			for(String value : attribute.getValues()) {
+				jndiAttribute.add(value);
+			}
+			attributes.put(jndiAttribute);
+		}
+		return attributes;
+	}
+
+	/**
+	 * <p>Turns a failed search into the exception JNDI and spring-ldap
+	 * would have thrown for it.</p>
+	 */
+	private static RuntimeException toException(ResultCode resultCode, String message) {
+		NamingException namingException;
+		if(resultCode == ResultCode.TIMEOUT || resultCode == ResultCode.TIME_LIMIT_EXCEEDED) {
+			namingException = new javax.naming.TimeLimitExceededException(message);
+		} else if(resultCode == ResultCode.UNAVAILABLE || resultCode == ResultCode.BUSY) {
+			namingException = new javax.naming.ServiceUnavailableException(message);
+		} else if(resultCode == ResultCode.SERVER_DOWN || resultCode == ResultCode.CONNECT_ERROR) {
+			namingException = new javax.naming.CommunicationException(message);
+		} else {
+			namingException = new NamingException(message);
+		}
+		return LdapUtils.convertLdapException(namingException);
+	}
+
+	/**
+	 * <p>A search in flight and the future of its result. Entries are
+	 * collected as they arrive and the single one is mapped when the result
+	 * does, on the connection's reader thread.</p>
+	 */
+	private abstract class Lookup<T> implements Future<T>, AsyncSearchResultListener {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String operation;
+		private final String username;
+		private final SearchFilterTemplate filter;
+		private final String flowState = SlowOperationLog.currentFlowState();
+		private final long start = System.nanoTime();
+		private final List<SearchResultEntry> entries = new ArrayList<SearchResultEntry>();
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile LDAPConnection connection;
+		private volatile AsyncRequestID requestId;
+		private volatile T value;
+		private volatile Exception failure;
+		private volatile boolean cancelled;
+
+		Lookup(String operation, String username, SearchFilterTemplate filter) {
+			this.operation = operation;
+			this.username = username;
+			this.filter = filter;
+		}
+
+		abstract T map(SearchResultEntry entry) throws NamingException;
+
+		void start(LDAPConnection connection, AsyncRequestID requestId) {
+			this.connection = connection;
+			this.requestId = requestId;
+		}
+
+		@Override
+		public void searchEntryReturned(SearchResultEntry entry) {
+			synchronized(entries) {
+				entries.add(entry);
+			}
+		}
+
+		@Override
+		public void searchReferenceReturned(SearchResultReference reference) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("Not following search reference for " + username + " in "
+						+ ldapServer.getDescription() + ": " + reference);
+			}
+		}
+
+		@Override
+		public void searchResultReceived(AsyncRequestID requestId, SearchResult result) {
+			List<SearchResultEntry> found;
+			synchronized(entries) {
+				found = new ArrayList<SearchResultEntry>(entries);
+			}
+			ResultCode resultCode = result.getResultCode();
+			if(resultCode == ResultCode.SERVER_DOWN) {
+				discard(connection);
+			}
+			if(resultCode != ResultCode.SUCCESS && resultCode != ResultCode.NO_SUCH_OBJECT
+					&& !(resultCode == ResultCode.SIZE_LIMIT_EXCEEDED && found.size() > 1)) {
+				fail(resultCode, "Search for " + username + " in " + ldapServer.getDescription()
+						+ " failed: " + resultCode + " " + result.getDiagnosticMessage());
+				return;
+			}
+			record(AbstractLdapServer.getSearchOutcome(found.size()), found.size());
+			if(found.isEmpty()) {
+				finish(null, new NameNotFoundException("Couldn't find " + username + " in " + baseDn));
+			} else if(found.size() > 1) {
+				logger.warn("Multiple results found for " + username + " in " + baseDn);
+				finish(null, new ObjectRetrievalException("Multiple results found for "
+						+ username + " in " + baseDn));
+			} else {
+				try {
+					finish(map(found.get(0)), null);
+				} catch(NamingException ex) {
+					finish(null, LdapUtils.convertLdapException(ex));
+				} catch(RuntimeException ex) {
+					finish(null, ex);
+				}
+			}
+		}
+
+		void fail(ResultCode resultCode, String message) {
+			int count;
+			synchronized(entries) {
+				count = entries.size();
+			}
+			record("error", count);
+			finish(null, toException(resultCode, message));
+		}
+
+		private void record(String outcome, int resultCount) {
+			String previousFlowState = SlowOperationLog.setFlowState(flowState);
+			try {
+				ldapServer.recordOperation(operation, start, outcome, filter, resultCount);
+			} finally {
+				SlowOperationLog.restoreFlowState(previousFlowState);
+			}
+		}
+
+		private void finish(T value, Exception failure) {
+			if(finished.compareAndSet(false, true)) {
+				this.value = value;
+				this.failure = failure;
+				done.countDown();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if(!finished.compareAndSet(false, true)) {
+				return false;
+			}
+			cancelled = true;
+			done.countDown();
+			if(requestId != null) {
+				try {
+					connection.abandon(requestId);
+				} catch(LDAPException ex) {
+					logger.debug("Couldn't abandon search for " + username, ex);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			done.await();
+			return getResult();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if(!done.await(timeout, unit)) {
+				throw new TimeoutException("Search for " + username + " in "
+						+ ldapServer.getDescription() + " still running");
+			}
+			return getResult();
+		}
+
+		private T getResult() throws ExecutionException {
+			if(cancelled) {
+				throw new CancellationException();
+			}
+			if(failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(ldapServer == null) {
+			throw new IllegalStateException("ldapServer is required");
+		}
+		if(connections < 1) {
+			throw new IllegalStateException("connections must be at least 1");
+		}
+		if(url == null) {
+			String[] urls = ldapServer.ldapContextSource.getUrls();
+			if(urls == null || urls.length == 0) {
+				throw new IllegalStateException("No url set and no URL in the context source of "
+						+ ldapServer.getDescription());
+			}
+			url = urls[0];
+		}
+		ldapUrl = new LDAPURL(url);
+		String contextBase = ldapServer.ldapContextSource.getBaseLdapPathAsString();
+		String searchBase = ldapServer.getSearchBase();
+		if(searchBase == null || searchBase.length() == 0) {
+			baseDn = contextBase;
+		} else if(contextBase == null || contextBase.length() == 0) {
+			baseDn = searchBase;
+		} else {
+			baseDn = searchBase + "," + contextBase;
+		}
+		connectionSlots = new AtomicReferenceArray<LDAPConnection>(connections);
+	}
+
+	@Override
+	public void destroy() {
+		for(int i=0;i<connectionSlots.length();i++) {
+			LDAPConnection connection = connectionSlots.getAndSet(i, null);
+			if(connection != null) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * @param ldapServer the server whose lookups this runs, and which runs
+	 * the binds and modifies
+	 */
+	public void setLdapServer(AbstractLdapServer ldapServer) {
+		this.ldapServer = ldapServer;
+	}
+
+	/**
+	 * @param url ldap:// or ldaps:// URL to connect to. Defaults to the first
+	 * URL of the server's context source.
+	 */
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * @param bindDn DN the connections bind as, normally the context
+	 * source's userDn; unset for anonymous connections
+	 */
+	public void setBindDn(String bindDn) {
+		this.bindDn = bindDn;
+	}
+
+	public void setBindPassword(String bindPassword) {
+		this.bindPassword = bindPassword;
+	}
+
+	/**
+	 * @param connections number of connections the lookups are spread over
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+}
@@ -0,0 +1,17 @@
+package org.jasig.cas.pm.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Counter implements CounterMBean {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+}
@@ -0,0 +1,10 @@
+package org.jasig.cas.pm.metrics;
+
+/**
+ * <p>JMX view of a Counter.</p>
+ */
+public interface CounterMBean {
+
+	public long getCount();
+
+}
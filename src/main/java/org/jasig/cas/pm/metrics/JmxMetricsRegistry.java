@@ -0,0 +1,120 @@
+package org.jasig.cas.pm.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * <p>MetricsRegistry that publishes each series as an MBean on the platform
+ * MBean server, e.g. a Timer named
+ * org.jasig.cas.pm:type=Timer,name="ldap.search",server="ldap1",outcome="found".
+ * Tags become key properties of the name, so tag keys must not be "type"
+ * or "name". The MBeans are unregistered when the context shuts down.</p>
+ */
+public class JmxMetricsRegistry implements MetricsRegistry, DisposableBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final ConcurrentMap<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+	private final ConcurrentMap<String,Timer> timers = new ConcurrentHashMap<String,Timer>();
+	private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+	private String domain = "org.jasig.cas.pm";
+
+	@Override
+	public void increment(String name, String... tags) {
+		String key = getKey(name, tags);
+		Counter counter = counters.get(key);
+		if(counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(key, created);
+			if(counter == null) {
+				counter = created;
+				register(created, "Counter", name, tags);
+			}
+		}
+		counter.increment();
+	}
+
+	@Override
+	public void recordTime(String name, long nanos, String... tags) {
+		String key = getKey(name, tags);
+		Timer timer = timers.get(key);
+		if(timer == null) {
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(key, created);
+			if(timer == null) {
+				timer = created;
+				register(created, "Timer", name, tags);
+			}
+		}
+		timer.record(nanos);
+	}
+
+	private String getKey(String name, String... tags) {
+		if(tags.length == 0) {
+			return name;
+		}
+		StringBuilder key = new StringBuilder(name);
+		for(String tag : tags) {
+			key.append(',').append(tag);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * <p>Registers a new series. A series that can't be registered is still
+	 * counted, it just isn't visible over JMX.</p>
+	 */
+	private void register(Object mbean, String type, String name, String... tags) {
+		StringBuilder objectName = new StringBuilder(domain).append(":type=").append(type)
+				.append(",name=").append(ObjectName.quote(name));
+		for(String tag : tags) {
+			int separator = tag.indexOf('=');
+			if(separator < 1) {
+				logger.warn("Ignoring tag " + tag + " of " + name + " without a key");
+				continue;
+			}
+			objectName.append(',').append(tag.substring(0, separator)).append('=')
+					.append(ObjectName.quote(tag.substring(separator + 1)));
+		}
+		try {
+			ObjectName registered = new ObjectName(objectName.toString());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, registered);
+			synchronized(registeredMBeans) {
+				registeredMBeans.add(registered);
+			}
+		} catch(Exception ex) {
+			logger.warn("Unable to register JMX bean " + objectName, ex);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		synchronized(registeredMBeans) {
+			for(ObjectName objectName : registeredMBeans) {
+				try {
+					mbeanServer.unregisterMBean(objectName);
+				} catch(Exception ex) {
+					logger.warn("Unable to unregister JMX bean " + objectName, ex);
+				}
+			}
+			registeredMBeans.clear();
+		}
+	}
+
+	/**
+	 * @param domain JMX domain the MBeans are registered under
+	 */
+	public void setDomain(String domain) {
+		this.domain = domain;
+	}
+}
@@ -0,0 +1,26 @@
+package org.jasig.cas.pm.metrics;
+
+/**
+ * <p>Where counters and timers are published. A series is identified by its
+ * name and tags, each tag a "key=value" string, e.g. name "ldap.search"
+ * with tags "server=ldap1" and "outcome=found". Series are created the
+ * first time they are used.</p>
+ *
+ * <p>Implementations must be safe and cheap to call from request threads.
+ * JmxMetricsRegistry is the default; another monitoring system can be
+ * plugged in by implementing this interface.</p>
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * <p>Adds one to a counter.</p>
+	 */
+	public void increment(String name, String... tags);
+
+	/**
+	 * <p>Records the duration of one operation.</p>
+	 * @param nanos how long it took, from System.nanoTime()
+	 */
+	public void recordTime(String name, long nanos, String... tags);
+
+}
@@ -0,0 +1,18 @@
+package org.jasig.cas.pm.metrics;
+
+/**
+ * <p>MetricsRegistry that discards everything. Used wherever no registry
+ * has been set.</p>
+ */
+public class NoOpMetricsRegistry implements MetricsRegistry {
+
+	@Override
+	public void increment(String name, String... tags) {
+		// nothing to do
+	}
+
+	@Override
+	public void recordTime(String name, long nanos, String... tags) {
+		// nothing to do
+	}
+}
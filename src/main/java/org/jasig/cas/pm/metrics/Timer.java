@@ -0,0 +1,48 @@
+package org.jasig.cas.pm.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.util.LatencyHistogram;
+
+/**
+ * <p>Counts operations and the distribution of their durations since
+ * startup. Percentiles are as precise as LatencyHistogram's buckets.</p>
+ */
+public class Timer implements TimerMBean {
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	public void record(long nanos) {
+		histogram.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	@Override
+	public long getCount() {
+		return histogram.getCount();
+	}
+
+	@Override
+	public long getMeanMillis() {
+		return histogram.getMeanMillis();
+	}
+
+	@Override
+	public long getMaxMillis() {
+		return histogram.getMaxMillis();
+	}
+
+	@Override
+	public long get50thPercentileMillis() {
+		return histogram.getPercentileMillis(50);
+	}
+
+	@Override
+	public long get95thPercentileMillis() {
+		return histogram.getPercentileMillis(95);
+	}
+
+	@Override
+	public long get99thPercentileMillis() {
+		return histogram.getPercentileMillis(99);
+	}
+}
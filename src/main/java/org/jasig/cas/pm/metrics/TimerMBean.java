@@ -0,0 +1,20 @@
+package org.jasig.cas.pm.metrics;
+
+/**
+ * <p>JMX view of a Timer.</p>
+ */
+public interface TimerMBean {
+
+	public long getCount();
+
+	public long getMeanMillis();
+
+	public long getMaxMillis();
+
+	public long get50thPercentileMillis();
+
+	public long get95thPercentileMillis();
+
+	public long get99thPercentileMillis();
+
+}
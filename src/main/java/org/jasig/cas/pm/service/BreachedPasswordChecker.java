@@ -0,0 +1,15 @@
+package org.jasig.cas.pm.service;
+
+/**
+ * <p>Service for checking new passwords against passwords known to have
+ * been exposed in data breaches.</p>
+ */
+public interface BreachedPasswordChecker {
+
+	/**
+	 * @param password a proposed new password
+	 * @return true if the password appears in the breach corpus
+	 */
+	public boolean isBreached(String password);
+
+}
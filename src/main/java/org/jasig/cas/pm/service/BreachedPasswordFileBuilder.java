@@ -0,0 +1,219 @@
+package org.jasig.cas.pm.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Builds the files read by MappedFileBreachedPasswordChecker from a text
+ * dump of SHA-1 hashes, such as the Pwned Passwords download ordered by
+ * hash. Each line holds a hash in hex, of which at least the first 16
+ * digits are needed, optionally followed by a colon and a count, which is
+ * ignored:</p>
+ *
+ * <pre>
+ * 000000005AD76BD555C1D6D771DE417A4B87E4B4:10
+ * </pre>
+ *
+ * <p>The dump must be sorted by hash. Hashes are streamed to the file, so
+ * a dump of any size is built in constant memory. Run it with the web
+ * application's classes on the classpath:</p>
+ *
+ * <pre>
+ * java -cp WEB-INF/classes org.jasig.cas.pm.service.BreachedPasswordFileBuilder \
+ *     [-bloom bloom.dat [-bits-per-hash 10]] pwned-passwords-sha1-ordered-by-hash.txt breached.dat
+ * </pre>
+ *
+ * <p>With -bloom, a Bloom filter is also built from the hash file, using
+ * bits-per-hash bits of filter per hash: 10 gives about 1% false
+ * positives.</p>
+ */
+public final class BreachedPasswordFileBuilder {
+
+	private static final int DEFAULT_BITS_PER_HASH = 10;
+	private static final int MAX_BLOOM_HASH_COUNT = 16;
+
+	private BreachedPasswordFileBuilder() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		File bloomFile = null;
+		int bitsPerHash = DEFAULT_BITS_PER_HASH;
+		int i = 0;
+		while(i < args.length - 2) {
+			if(args[i].equals("-bloom")) {
+				bloomFile = new File(args[i + 1]);
+			} else if(args[i].equals("-bits-per-hash")) {
+				bitsPerHash = Integer.parseInt(args[i + 1]);
+			} else {
+				break;
+			}
+			i += 2;
+		}
+		if(args.length - i != 2) {
+			System.err.println("Usage: BreachedPasswordFileBuilder [-bloom <bloom file> "
+					+ "[-bits-per-hash <n>]] <sorted SHA-1 dump> <hash file>");
+			System.exit(1);
+		}
+
+		File input = new File(args[i]);
+		File output = new File(args[i + 1]);
+		long start = System.currentTimeMillis();
+		long count = buildHashFile(input, output);
+		System.out.println("Wrote " + count + " hashes to " + output + " in "
+				+ (System.currentTimeMillis() - start) / 1000 + "s");
+
+		if(bloomFile != null) {
+			start = System.currentTimeMillis();
+			buildBloomFilter(output, bloomFile, bitsPerHash);
+			System.out.println("Wrote Bloom filter to " + bloomFile + " in "
+					+ (System.currentTimeMillis() - start) / 1000 + "s");
+		}
+	}
+
+	/**
+	 * <p>Writes the hash file: the header and fan-out are left empty while
+	 * the hashes are streamed out, then filled in.</p>
+	 * @return number of distinct hash prefixes written
+	 */
+	public static long buildHashFile(File input, File output) throws IOException {
+		long[] fanOut = new long[MappedFileBreachedPasswordChecker.FAN_OUT_SIZE];
+		long count = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), "US-ASCII"));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+		try {
+			out.write(new byte[MappedFileBreachedPasswordChecker.HASHES_OFFSET]);
+			long previous = 0;
+			long lineNumber = 0;
+			String line;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty()) {
+					continue;
+				}
+				long prefix = parsePrefix(line, lineNumber);
+				if(count > 0) {
+					if(prefix == previous) {
+						continue;
+					}
+					if((prefix ^ Long.MIN_VALUE) < (previous ^ Long.MIN_VALUE)) {
+						throw new IllegalArgumentException("Line " + lineNumber + " of " + input
+								+ " is out of order; the dump must be sorted by hash");
+					}
+				}
+				out.writeLong(prefix);
+				fanOut[(int) (prefix >>> 48)]++;
+				previous = prefix;
+				count++;
+			}
+		} finally {
+			reader.close();
+			out.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(output, "rw");
+		try {
+			MappedByteBuffer header = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, MappedFileBreachedPasswordChecker.HASHES_OFFSET);
+			header.putInt(0, MappedFileBreachedPasswordChecker.HASH_FILE_MAGIC);
+			header.putInt(4, MappedFileBreachedPasswordChecker.VERSION);
+			header.putLong(8, count);
+			long total = 0;
+			for(int i=0;i<fanOut.length;i++) {
+				total += fanOut[i];
+				header.putLong(MappedFileBreachedPasswordChecker.HEADER_SIZE + i * 8, total);
+			}
+			header.force();
+		} finally {
+			file.close();
+		}
+		return count;
+	}
+
+	/**
+	 * <p>Writes a Bloom filter holding every hash in the hash file.</p>
+	 * @param bitsPerHash bits of filter per hash; more means fewer false
+	 * positives and a larger file
+	 */
+	public static void buildBloomFilter(File hashFile, File output, int bitsPerHash) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hashFile), 1 << 16));
+		RandomAccessFile file = new RandomAccessFile(output, "rw");
+		try {
+			in.readInt();
+			in.readInt();
+			long count = in.readLong();
+			in.skipBytes(MappedFileBreachedPasswordChecker.HASHES_OFFSET - 16);
+
+			// a whole number of longs, so the filter maps like the hash file
+			long bitCount = Math.max(64, (count * bitsPerHash + 63) / 64 * 64);
+			int hashCount = (int) Math.max(1, Math.min(MAX_BLOOM_HASH_COUNT, Math.round(bitsPerHash * Math.log(2))));
+
+			file.setLength(0);
+			file.setLength(MappedFileBreachedPasswordChecker.HEADER_SIZE + bitCount / 8);
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE,
+					0, MappedFileBreachedPasswordChecker.HEADER_SIZE);
+			header.putInt(0, MappedFileBreachedPasswordChecker.BLOOM_FILE_MAGIC);
+			header.putInt(4, MappedFileBreachedPasswordChecker.VERSION);
+			header.putLong(8, bitCount);
+			header.putInt(16, hashCount);
+			header.force();
+
+			MappedByteBuffer[] bits = MappedFileBreachedPasswordChecker.map(channel,
+					FileChannel.MapMode.READ_WRITE, MappedFileBreachedPasswordChecker.HEADER_SIZE, bitCount / 8);
+			int chunkSize = MappedFileBreachedPasswordChecker.CHUNK_SIZE;
+			for(long n=0;n<count;n++) {
+				long prefix = in.readLong();
+				long increment = MappedFileBreachedPasswordChecker.bloomIncrement(prefix);
+				long hash = prefix;
+				for(int i=0;i<hashCount;i++) {
+					long bit = (hash & Long.MAX_VALUE) % bitCount;
+					MappedByteBuffer chunk = bits[(int) ((bit >>> 3) / chunkSize)];
+					int offset = (int) ((bit >>> 3) % chunkSize);
+					chunk.put(offset, (byte) (chunk.get(offset) | (1 << (bit & 7))));
+					hash += increment;
+				}
+			}
+			for(MappedByteBuffer chunk : bits) {
+				chunk.force();
+			}
+		} finally {
+			in.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the first 64 bits of the hash at the start of the line
+	 */
+	private static long parsePrefix(String line, long lineNumber) {
+		long prefix = 0;
+		int i = 0;
+		for(;i<line.length() && line.charAt(i) != ':';i++) {
+			int digit = Character.digit(line.charAt(i), 16);
+			if(digit < 0) {
+				throw new IllegalArgumentException("Line " + lineNumber + " is not a hex SHA-1 hash: " + line);
+			}
+			if(i < 16) {
+				prefix = (prefix << 4) | digit;
+			}
+		}
+		if(i < 16) {
+			throw new IllegalArgumentException("Line " + lineNumber
+					+ " has fewer than 16 hex digits: " + line);
+		}
+		return prefix;
+	}
+}
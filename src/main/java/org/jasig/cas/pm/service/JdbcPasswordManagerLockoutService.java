@@ -0,0 +1,844 @@
+package org.jasig.cas.pm.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.UserLockedOutException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Lockout service whose counters are shared by all CAS nodes through a
+ * database table, so the attempt limit applies to the cluster rather than
+ * to each node.</p>
+ *
+ * <p>No request waits on the database. Incorrect attempts and clears are
+ * recorded against the user on this node and written in one batch every
+ * flushIntervalMillis. After each write the node reloads the rows of the
+ * users it tracks, that is the users it has been asked about whose rows
+ * are still live, and lockout decisions are made from those rows plus this
+ * node's updates not yet seen in them. A user can therefore get a few more
+ * attempts than allowed, spread across nodes, within one flush interval.</p>
+ *
+ * <p>At most maxTrackedUsers users are tracked. Once that many are, each
+ * reload stops tracking the users who weren't asked about since the last
+ * one and have nothing left to write; their rows stay in the table. Users
+ * who still can't be tracked are checked against the table directly, and
+ * their incorrect attempts are written straight away, so they do wait on
+ * the database. If it can't be reached they are treated as locked out.</p>
+ *
+ * <p>Expected table (the name is configurable):</p>
+ *
+ * <pre>
+ * CREATE TABLE PM_LOCKOUT (
+ *     USERNAME VARCHAR(255) NOT NULL PRIMARY KEY,
+ *     INCORRECT_ATTEMPTS INTEGER NOT NULL,
+ *     LAST_ATTEMPT BIGINT NOT NULL,
+ *     NEXT_ATTEMPT_ALLOWED BIGINT NOT NULL
+ * )
+ * </pre>
+ *
+ * <p>Times are epoch millis, so node clocks should be kept in sync.</p>
+ */
+public class JdbcPasswordManagerLockoutService implements
+		PasswordManagerLockoutService, InitializingBean, DisposableBean {
+
+	/** Usernames looked up per query when reloading. */
+	private static final int LOAD_BATCH_SIZE = 100;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	@NotNull
+	private DataSource dataSource;
+	@NotNull
+	private String tableName = "PM_LOCKOUT";
+	@Min(1)
+	private long flushIntervalMillis = 1000;
+	@Min(1)
+	private int entryTimeToLiveSeconds = 3600;
+	@Min(1)
+	private int maxTrackedUsers = 100000;
+	@Min(1)
+	private int maxPendingUpdates = 100000;
+	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
+	private int secondsUntilNextAllowedAttempt = 0;
+
+	private final ConcurrentHashMap<String,UserStatus> statuses = new ConcurrentHashMap<String,UserStatus>();
+	private final ConcurrentLinkedQueue<UserStatus> dirtyStatuses = new ConcurrentLinkedQueue<UserStatus>();
+	private final AtomicInteger dirtyCount = new AtomicInteger();
+	private final ConcurrentLinkedQueue<PendingUpdate> untrackedUpdates = new ConcurrentLinkedQueue<PendingUpdate>();
+	private final AtomicInteger untrackedCount = new AtomicInteger();
+	private ScheduledExecutorService flushExecutor;
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "pm-lockout-flush");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flushExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(flushExecutor != null) {
+			flushExecutor.shutdown();
+			flushExecutor.awaitTermination(flushIntervalMillis * 5, TimeUnit.MILLISECONDS);
+		}
+		flush();
+	}
+
+	@Override
+	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		logger.debug("Registering incorrect attempt for " + username);
+
+		for(;;) {
+			UserStatus status = getStatus(username);
+			if(status == null) {
+				registerUntrackedAttempt(username);
+				return;
+			}
+			synchronized(status) {
+				if(status.removed) {
+					continue;
+				}
+				status.unflushed++;
+				markDirty(status);
+				if(status.getAttempts() < allowedIncorrectAttempts) {
+					return;
+				}
+
+				// lock out on this node right away; the other nodes see it once
+				// the attempts are flushed
+				status.localNextAttemptAllowed = System.currentTimeMillis() + secondsUntilNextAllowedAttempt * 1000L;
+			}
+			logger.debug("Locking out " + username + " from changes for "
+					+ secondsUntilNextAllowedAttempt + " seconds");
+
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+	}
+
+	@Override
+	public void allowAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		UserStatus status = statuses.get(username);
+		if(status == null) {
+			// track the user so the next reload brings in attempts made on
+			// other nodes
+			if(getStatus(username) == null) {
+				allowUntrackedAttempt(username);
+			}
+			logger.debug("No lockout status found for " + username);
+			return;
+		}
+		status.used = true;
+
+		int attempts;
+		long nextAttemptAllowed;
+		synchronized(status) {
+			attempts = status.getAttempts();
+			nextAttemptAllowed = status.getNextAttemptAllowed();
+		}
+		if(attempts < allowedIncorrectAttempts) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("User " + username + " tried " + attempts + "/"
+						+ allowedIncorrectAttempts + " allowed attempts.");
+			}
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if(nextAttemptAllowed != 0 && nextAttemptAllowed <= now) {
+			logger.debug("Timer expired, user " + username + " can attempt changes again.");
+			clearIncorrectAttempts(username);
+			return;
+		}
+
+		// over the limit but not flagged yet means a flush is about to lock
+		// the user out
+		logger.info("User " + username + " used all their attempts. Locked out.");
+		if(logger.isDebugEnabled() && nextAttemptAllowed != 0) {
+			logger.debug("--> next change allowed in " + (nextAttemptAllowed - now) / 1000 + " seconds.");
+		}
+
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	@Override
+	public void clearIncorrectAttempts(String username) {
+		if(username == null) {
+			return;
+		}
+		for(;;) {
+			UserStatus status = getStatus(username);
+			if(status == null) {
+				enqueueUntracked(new PendingUpdate(username, true));
+				return;
+			}
+			synchronized(status) {
+				if(status.removed) {
+					continue;
+				}
+				// attempts recorded before the clear no longer count, whether
+				// or not they have been written yet
+				status.generation++;
+				status.clearPending = true;
+				status.ignoreShared = true;
+				status.unflushed = 0;
+				status.inFlight = 0;
+				status.written = 0;
+				status.localNextAttemptAllowed = 0;
+				markDirty(status);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the user's status, created if needed, or null if the user
+	 * isn't tracked and there is no room to track them
+	 */
+	private UserStatus getStatus(String username) {
+		UserStatus status = statuses.get(username);
+		if(status == null) {
+			if(statuses.size() >= maxTrackedUsers) {
+				return null;
+			}
+			UserStatus created = new UserStatus(username);
+			status = statuses.putIfAbsent(username, created);
+			if(status == null) {
+				status = created;
+			}
+		}
+		status.used = true;
+		return status;
+	}
+
+	/**
+	 * <p>Writes an incorrect attempt by a user there's no room to track, and
+	 * locks them out if their row then shows they've used all their
+	 * attempts. If the database can't be reached the attempt is queued and
+	 * the user is treated as locked out.</p>
+	 */
+	private void registerUntrackedAttempt(String username) throws UserLockedOutException {
+		SharedStatus row;
+		try {
+			row = writeAndLoad(username);
+		} catch(SQLException ex) {
+			logger.warn("Unable to write lockout update for untracked user " + username + ", refusing attempt", ex);
+			enqueueUntracked(new PendingUpdate(username, false));
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+		if(row != null && row.attempts >= allowedIncorrectAttempts) {
+			logger.debug("Locking out " + username + " from changes for "
+					+ secondsUntilNextAllowedAttempt + " seconds");
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+	}
+
+	/**
+	 * <p>Checks a user there's no room to track against their row. If the
+	 * database can't be reached the user is treated as locked out.</p>
+	 */
+	private void allowUntrackedAttempt(String username) throws UserLockedOutException {
+		SharedStatus row;
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			row = load(connection, Collections.singletonList(username), true).get(username);
+		} catch(SQLException ex) {
+			logger.warn("Unable to read lockout status for untracked user " + username + ", refusing attempt", ex);
+			throw new UserLockedOutException("User " + username + " locked out.");
+		} finally {
+			close(connection);
+		}
+		if(row == null || row.attempts < allowedIncorrectAttempts) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if(row.nextAttemptAllowed != 0 && row.nextAttemptAllowed <= now) {
+			logger.debug("Timer expired, user " + username + " can attempt changes again.");
+			clearIncorrectAttempts(username);
+			return;
+		}
+		logger.info("User " + username + " used all their attempts. Locked out.");
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	/**
+	 * <p>Queues the status for the next flush. Called holding its lock.</p>
+	 */
+	private void markDirty(UserStatus status) {
+		if(!status.queued) {
+			status.queued = true;
+			dirtyCount.incrementAndGet();
+			dirtyStatuses.offer(status);
+		}
+	}
+
+	private void enqueueUntracked(PendingUpdate update) {
+		if(untrackedCount.incrementAndGet() > maxPendingUpdates) {
+			untrackedCount.decrementAndGet();
+			logger.warn("Too many unflushed lockout updates, dropping update for " + update.username);
+			return;
+		}
+		untrackedUpdates.offer(update);
+	}
+
+	/**
+	 * <p>Writes the queued updates in one transaction, then reloads the
+	 * tracked users' rows. If the write fails the updates are queued again
+	 * for the next flush. If only the reload fails the previous rows are
+	 * kept, along with the written updates they don't include yet.</p>
+	 */
+	synchronized void flush() {
+
+		List<DrainedStatus> drained = new ArrayList<DrainedStatus>();
+		UserStatus status;
+		while((status = dirtyStatuses.poll()) != null) {
+			dirtyCount.decrementAndGet();
+			synchronized(status) {
+				status.queued = false;
+				drained.add(new DrainedStatus(status, status.generation, status.clearPending, status.unflushed));
+				status.clearPending = false;
+				status.inFlight = status.unflushed;
+				status.unflushed = 0;
+			}
+		}
+		List<PendingUpdate> untracked = new ArrayList<PendingUpdate>();
+		PendingUpdate update;
+		while((update = untrackedUpdates.poll()) != null) {
+			untrackedCount.decrementAndGet();
+			untracked.add(update);
+		}
+
+		// collapse to one delete and/or one increment per user, keeping
+		// only the attempts made after the last clear
+		Set<String> clears = new LinkedHashSet<String>();
+		Map<String,Integer> increments = new LinkedHashMap<String,Integer>();
+		for(PendingUpdate pending : untracked) {
+			if(pending.clear) {
+				increments.remove(pending.username);
+				clears.add(pending.username);
+			} else {
+				Integer count = increments.get(pending.username);
+				increments.put(pending.username, count == null ? 1 : count + 1);
+			}
+		}
+		for(DrainedStatus pending : drained) {
+			String username = pending.status.username;
+			if(pending.clear) {
+				increments.remove(username);
+				clears.add(username);
+			}
+			if(pending.attempts > 0) {
+				Integer count = increments.get(username);
+				increments.put(username, count == null ? pending.attempts : count + pending.attempts);
+			}
+		}
+
+		boolean written = false;
+		try {
+			write(clears, increments, System.currentTimeMillis());
+			written = true;
+		} catch(SQLException ex) {
+			logger.warn("Unable to write " + (drained.size() + untracked.size())
+					+ " lockout updates, will retry", ex);
+		} catch(RuntimeException ex) {
+			logger.error("Unexpected error writing lockout updates, will retry", ex);
+		}
+
+		for(DrainedStatus pending : drained) {
+			pending.complete(written);
+		}
+		if(!written) {
+			for(PendingUpdate pending : untracked) {
+				enqueueUntracked(pending);
+			}
+			return;
+		}
+
+		try {
+			reload();
+		} catch(SQLException ex) {
+			logger.warn("Unable to reload lockout counters, keeping the previous ones", ex);
+		} catch(RuntimeException ex) {
+			logger.error("Unexpected error reloading lockout counters", ex);
+		}
+	}
+
+	private void write(Set<String> clears, Map<String,Integer> increments, long now) throws SQLException {
+
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			write(connection, clears, increments, now);
+
+			PreparedStatement purge = connection.prepareStatement(
+					"DELETE FROM " + tableName + " WHERE LAST_ATTEMPT < ? AND NEXT_ATTEMPT_ALLOWED < ?");
+			try {
+				purge.setLong(1, now - entryTimeToLiveSeconds * 1000L);
+				purge.setLong(2, now);
+				purge.executeUpdate();
+			} finally {
+				purge.close();
+			}
+
+			connection.commit();
+		} catch(SQLException ex) {
+			rollback(connection);
+			throw ex;
+		} catch(RuntimeException ex) {
+			rollback(connection);
+			throw ex;
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * <p>Adds one incorrect attempt to the user's row and reads it back, in
+	 * one transaction.</p>
+	 * @return the user's row, or null if it was purged in the meantime
+	 */
+	private SharedStatus writeAndLoad(String username) throws SQLException {
+
+		long now = System.currentTimeMillis();
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			write(connection, Collections.<String>emptySet(), Collections.singletonMap(username, 1), now);
+			SharedStatus row = load(connection, Collections.singletonList(username), true).get(username);
+			connection.commit();
+			return row;
+		} catch(SQLException ex) {
+			rollback(connection);
+			throw ex;
+		} catch(RuntimeException ex) {
+			rollback(connection);
+			throw ex;
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * <p>Deletes the cleared users' rows, adds the increments and locks out
+	 * the incremented users who have used all their attempts.</p>
+	 */
+	private void write(Connection connection, Set<String> clears, Map<String,Integer> increments, long now)
+			throws SQLException {
+
+		if(!clears.isEmpty()) {
+			PreparedStatement delete = connection.prepareStatement(
+					"DELETE FROM " + tableName + " WHERE USERNAME = ?");
+			try {
+				for(String username : clears) {
+					delete.setString(1, username);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+			} finally {
+				delete.close();
+			}
+		}
+
+		if(!increments.isEmpty()) {
+			List<String> missing = update(connection, increments, now);
+			if(!missing.isEmpty()) {
+				insert(connection, missing, increments, now);
+			}
+
+			PreparedStatement lockOut = connection.prepareStatement(
+					"UPDATE " + tableName + " SET NEXT_ATTEMPT_ALLOWED = ?"
+					+ " WHERE USERNAME = ? AND INCORRECT_ATTEMPTS >= ? AND NEXT_ATTEMPT_ALLOWED = 0");
+			try {
+				for(String username : increments.keySet()) {
+					lockOut.setLong(1, now + secondsUntilNextAllowedAttempt * 1000L);
+					lockOut.setString(2, username);
+					lockOut.setInt(3, allowedIncorrectAttempts);
+					lockOut.addBatch();
+				}
+				lockOut.executeBatch();
+			} finally {
+				lockOut.close();
+			}
+		}
+	}
+
+	private void close(Connection connection) {
+		if(connection != null) {
+			try {
+				connection.close();
+			} catch(SQLException ex) {
+				logger.warn("Unable to close lockout connection", ex);
+			}
+		}
+	}
+
+	/**
+	 * <p>Rolls back without hiding the exception that caused it.</p>
+	 */
+	private void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch(SQLException ex) {
+			logger.warn("Unable to roll back lockout updates", ex);
+		}
+	}
+
+	/**
+	 * @return users who don't have a row yet
+	 */
+	private List<String> update(Connection connection, Map<String,Integer> increments, long now) throws SQLException {
+		List<String> usernames = new ArrayList<String>(increments.keySet());
+		List<String> missing = new ArrayList<String>();
+		List<String> unknown = new ArrayList<String>();
+		PreparedStatement update = connection.prepareStatement(
+				"UPDATE " + tableName + " SET INCORRECT_ATTEMPTS = INCORRECT_ATTEMPTS + ?,"
+				+ " LAST_ATTEMPT = ? WHERE USERNAME = ?");
+		try {
+			for(String username : usernames) {
+				update.setInt(1, increments.get(username));
+				update.setLong(2, now);
+				update.setString(3, username);
+				update.addBatch();
+			}
+			int[] counts = update.executeBatch();
+			for(int i=0;i<counts.length;i++) {
+				if(counts[i] == 0) {
+					missing.add(usernames.get(i));
+				} else if(counts[i] == Statement.SUCCESS_NO_INFO) {
+					unknown.add(usernames.get(i));
+				}
+			}
+		} finally {
+			update.close();
+		}
+
+		// some drivers don't report counts for batched statements; look the
+		// rows up instead
+		if(!unknown.isEmpty()) {
+			Set<String> existing = load(connection, unknown, false).keySet();
+			for(String username : unknown) {
+				if(!existing.contains(username)) {
+					missing.add(username);
+				}
+			}
+		}
+		return missing;
+	}
+
+	private void insert(Connection connection, List<String> usernames, Map<String,Integer> increments, long now) throws SQLException {
+		PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO " + tableName + " (USERNAME, INCORRECT_ATTEMPTS, LAST_ATTEMPT,"
+				+ " NEXT_ATTEMPT_ALLOWED) VALUES (?, ?, ?, 0)");
+		try {
+			for(String username : usernames) {
+				insert.setString(1, username);
+				insert.setInt(2, increments.get(username));
+				insert.setLong(3, now);
+				insert.addBatch();
+			}
+			// if another node inserted one of the rows first this fails and
+			// the whole transaction is retried on the next flush
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * <p>Reloads the rows of the tracked users and stops tracking those who
+	 * have no row and nothing left to write. If maxTrackedUsers are tracked,
+	 * those who haven't been asked about since the last reload are also
+	 * dropped, as long as they have nothing left to write.</p>
+	 */
+	private void reload() throws SQLException {
+		List<UserStatus> tracked = new ArrayList<UserStatus>(statuses.values());
+		if(tracked.isEmpty()) {
+			return;
+		}
+		List<String> usernames = new ArrayList<String>(tracked.size());
+		for(UserStatus status : tracked) {
+			usernames.add(status.username);
+		}
+
+		Map<String,SharedStatus> rows;
+		Connection connection = dataSource.getConnection();
+		try {
+			rows = load(connection, usernames, true);
+		} finally {
+			connection.close();
+		}
+
+		long now = System.currentTimeMillis();
+		boolean full = tracked.size() >= maxTrackedUsers;
+		for(UserStatus status : tracked) {
+			SharedStatus row = rows.get(status.username);
+			boolean used = status.used;
+			status.used = false;
+			synchronized(status) {
+				if(status.removed) {
+					continue;
+				}
+				status.sharedAttempts = row == null ? 0 : row.attempts;
+				status.sharedNextAttemptAllowed = row == null ? 0 : row.nextAttemptAllowed;
+				// everything written so far was written before this reload
+				status.written = 0;
+				if(!status.clearPending) {
+					status.ignoreShared = false;
+				}
+				if((row == null || (full && !used)) && status.unflushed == 0 && status.inFlight == 0
+						&& !status.clearPending && status.localNextAttemptAllowed <= now) {
+					status.removed = true;
+					statuses.remove(status.username, status);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param liveOnly true to skip rows older than the time to live that
+	 * haven't been purged yet
+	 * @return rows of the given users that exist
+	 */
+	private Map<String,SharedStatus> load(Connection connection, List<String> usernames, boolean liveOnly) throws SQLException {
+		Map<String,SharedStatus> rows = new HashMap<String,SharedStatus>();
+		long now = System.currentTimeMillis();
+		for(int start=0;start<usernames.size();start+=LOAD_BATCH_SIZE) {
+			List<String> batch = usernames.subList(start, Math.min(usernames.size(), start + LOAD_BATCH_SIZE));
+			StringBuilder sql = new StringBuilder("SELECT USERNAME, INCORRECT_ATTEMPTS, NEXT_ATTEMPT_ALLOWED FROM ")
+					.append(tableName).append(" WHERE USERNAME IN (");
+			for(int i=0;i<batch.size();i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			sql.append(')');
+			if(liveOnly) {
+				sql.append(" AND (LAST_ATTEMPT >= ? OR NEXT_ATTEMPT_ALLOWED >= ?)");
+			}
+
+			PreparedStatement select = connection.prepareStatement(sql.toString());
+			try {
+				int parameter = 1;
+				for(String username : batch) {
+					select.setString(parameter++, username);
+				}
+				if(liveOnly) {
+					select.setLong(parameter++, now - entryTimeToLiveSeconds * 1000L);
+					select.setLong(parameter, now);
+				}
+				ResultSet rs = select.executeQuery();
+				while(rs.next()) {
+					rows.put(rs.getString(1), new SharedStatus(rs.getInt(2), rs.getLong(3)));
+				}
+				rs.close();
+			} finally {
+				select.close();
+			}
+		}
+		return rows;
+	}
+
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @param tableName name of the table holding the shared counters
+	 */
+	public void setTableName(String tableName) {
+		this.tableName = tableName;
+	}
+
+	/**
+	 * @param flushIntervalMillis how often queued updates are written and
+	 * the near-cache is reloaded
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * @param entryTimeToLiveSeconds number of seconds after a user's last
+	 * incorrect attempt (or the end of their lockout) that their attempts
+	 * are forgotten
+	 */
+	public void setEntryTimeToLiveSeconds(int entryTimeToLiveSeconds) {
+		this.entryTimeToLiveSeconds = entryTimeToLiveSeconds;
+	}
+
+	/**
+	 * @param maxTrackedUsers maximum number of users whose rows this node
+	 * keeps and reloads
+	 */
+	public void setMaxTrackedUsers(int maxTrackedUsers) {
+		this.maxTrackedUsers = maxTrackedUsers;
+	}
+
+	/**
+	 * @param maxPendingUpdates maximum number of updates queued for users
+	 * beyond maxTrackedUsers, e.g. while the database is unreachable
+	 */
+	public void setMaxPendingUpdates(int maxPendingUpdates) {
+		this.maxPendingUpdates = maxPendingUpdates;
+	}
+
+	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
+		this.allowedIncorrectAttempts = allowedIncorrectAttempts;
+	}
+
+	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
+		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
+	}
+
+	/**
+	 * @return number of users with updates waiting to be written
+	 */
+	public int getPendingUpdateCount() {
+		return dirtyCount.get() + untrackedCount.get();
+	}
+
+	public int getTrackedUserCount() {
+		return statuses.size();
+	}
+
+	private static class PendingUpdate {
+		private final String username;
+		private final boolean clear;
+
+		private PendingUpdate(String username, boolean clear) {
+			this.username = username;
+			this.clear = clear;
+		}
+	}
+
+	/** A user's row as loaded. */
+	private static class SharedStatus {
+		private final int attempts;
+		private final long nextAttemptAllowed;
+
+		private SharedStatus(int attempts, long nextAttemptAllowed) {
+			this.attempts = attempts;
+			this.nextAttemptAllowed = nextAttemptAllowed;
+		}
+	}
+
+	/**
+	 * <p>A tracked user's row as of the last reload, and this node's
+	 * updates not yet seen in it. Guarded by its own lock.</p>
+	 */
+	private static class UserStatus {
+		private final String username;
+		private int sharedAttempts;
+		private long sharedNextAttemptAllowed;
+		/** Attempts not yet drained for writing. */
+		private int unflushed;
+		/** Attempts being written by the current flush. */
+		private int inFlight;
+		/** Attempts written but not yet reloaded. */
+		private int written;
+		private boolean clearPending;
+		/** True from a clear until a reload shows it. */
+		private boolean ignoreShared;
+		private long localNextAttemptAllowed;
+		/** Incremented by each clear, so a flush can tell its updates were cleared. */
+		private int generation;
+		private boolean queued;
+		private boolean removed;
+		/** Set when the user is asked about, cleared by each reload. */
+		private volatile boolean used;
+
+		private UserStatus(String username) {
+			this.username = username;
+		}
+
+		private int getAttempts() {
+			return (ignoreShared ? 0 : sharedAttempts) + unflushed + inFlight + written;
+		}
+
+		private long getNextAttemptAllowed() {
+			return Math.max(ignoreShared ? 0 : sharedNextAttemptAllowed, localNextAttemptAllowed);
+		}
+	}
+
+	/** A user's updates taken by a flush. */
+	private class DrainedStatus {
+		private final UserStatus status;
+		private final int generation;
+		private final boolean clear;
+		private final int attempts;
+
+		private DrainedStatus(UserStatus status, int generation, boolean clear, int attempts) {
+			this.status = status;
+			this.generation = generation;
+			this.clear = clear;
+			this.attempts = attempts;
+		}
+
+		/**
+		 * <p>Counts the updates as written, or puts them back for the next
+		 * flush, unless the user was cleared in the meantime.</p>
+		 */
+		private void complete(boolean written) {
+			synchronized(status) {
+				if(status.generation != generation) {
+					return;
+				}
+				if(written) {
+					status.written += status.inFlight;
+				} else {
+					status.unflushed += status.inFlight;
+					status.clearPending |= clear;
+					markDirty(status);
+				}
+				status.inFlight = 0;
+			}
+		}
+	}
+}
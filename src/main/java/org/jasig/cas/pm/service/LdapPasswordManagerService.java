@@ -1,34 +1,129 @@
 package org.jasig.cas.pm.service;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.Size;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.DeadlineExceededException;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.PasswordManagerException;
 import org.jasig.cas.pm.UserLockedOutException;
+import org.jasig.cas.pm.ldap.AsyncLdapServer;
+import org.jasig.cas.pm.ldap.ExecutorAsyncLdapServer;
 import org.jasig.cas.pm.ldap.LdapServer;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.service.LdapServerBulkhead.Priority;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.util.DirectoryCalls;
+import org.jasig.cas.pm.util.ExpiringLruCache;
 import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.AuthenticationException;
 import org.springframework.ldap.NameNotFoundException;
 import org.springframework.ldap.core.ObjectRetrievalException;
 
 /**
  * <p>LDAP implementation of a PasswordManagerService.</p>
+ * 
+ * <p>By default the configured servers are tried one after another. If
+ * parallel is set, lookups are started on all servers at once through each
+ * server's AsyncLdapServer, and the results collected afterwards. The
+ * result is the same as the serial scan (the first server in list order
+ * that has the user wins), but a user in the third server only pays for
+ * the slowest of the first three lookups rather than their sum. Writes
+ * still go to the one server that holds the user. Servers without a
+ * configured AsyncLdapServer get an ExecutorAsyncLdapServer on a shared,
+ * bounded thread pool.</p>
+ * 
+ * <p>With more than one server, the server that last resolved each username
+ * is remembered for a while, and is tried first next time. Routing rules
+ * (by username suffix or pattern) take precedence over remembered routes.
+ * Either way, a user who isn't on the routed server is still looked up on
+ * the others.</p>
+ * 
+ * <p>If bulkheadMaxConcurrent is set, each server gets an LdapServerBulkhead
+ * limiting how many operations run against it at once. Password sets are
+ * admitted first, then password changes and checks, then anonymous
+ * security question lookups. The bulkheads are registered with the
+ * platform MBean server.</p>
+ * 
+ * <p>If the request has a Deadline, no server is tried once it has passed,
+ * and parallel lookups still outstanding at that point are cancelled.</p>
  * @author Drew Mazurek &lt;dmazurek@unicon.net&gt;
  *
  */
-public class LdapPasswordManagerService implements PasswordManagerService {
+public class LdapPasswordManagerService implements PasswordManagerService,
+	InitializingBean, DisposableBean {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 	@Size(min=1)
 	private List<LdapServer> ldapServers;
 	private PasswordManagerLockoutService lockoutService;
+	private boolean parallel = false;
+	@Min(1)
+	private int parallelThreads = 10;
+	@Min(1)
+	private int parallelQueueSize = 100;
+	@Min(0)
+	private long duplicateCheckWaitMillis = 50;
+	private ExecutorService executorService;
+	private List<AsyncLdapServer> asyncLdapServers = Collections.emptyList();
+	/** Async view of each server, used in parallel mode. */
+	private final Map<LdapServer,AsyncLdapServer> asyncServers = new IdentityHashMap<LdapServer,AsyncLdapServer>();
+	private List<LdapServerRoutingRule> routingRules = Collections.emptyList();
+	@Min(0)
+	private int routeCacheMaxSize = 10000;
+	@Min(0)
+	private int routeCacheTimeToLiveSeconds = 3600;
+	/** Learned username to server routes. Null if disabled. */
+	private ExpiringLruCache<String,LdapServer> routeCache;
+	@Min(0)
+	private int bulkheadMaxConcurrent = 0;
+	@Min(0)
+	private int bulkheadMaxQueued = 20;
+	@Min(0)
+	private long bulkheadMaxWaitMillis = 2000;
+	/** Bulkhead for each server. Empty if disabled. */
+	private final Map<LdapServer,LdapServerBulkhead> bulkheads = new IdentityHashMap<LdapServer,LdapServerBulkhead>();
+	private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+	private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
 
 	@Override
-	public SecurityChallenge getUserSecurityChallenge(String username) {
+	public SecurityChallenge getUserSecurityChallenge(final String username) {
 		
-		for(LdapServer server : ldapServers) {
+		if(parallel) {
+			return findInParallel(username, Priority.LOW, new AsyncLdapServerCallback<SecurityChallenge>() {
+				public Future<SecurityChallenge> submit(AsyncLdapServer server) {
+					return server.getUserSecurityChallenge(username);
+				}
+			}).getResult();
+		}
+		
+		for(LdapServer server : getServerOrder(username)) {
+			LdapServerBulkhead bulkhead = admit(server, Priority.LOW);
 			try {
 				SecurityChallenge challenge = server.getUserSecurityChallenge(username);
 				if(logger.isDebugEnabled()) {
@@ -38,13 +133,18 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 						logger.debug("Got null security challenge for " + username + " at " + server.getDescription());
 					}
 				}
+				rememberServer(username, server);
 				return challenge;
 			} catch(NameNotFoundException ex) {
 				logger.debug("Didn't find " + username + " in " + server.getDescription());
+				recordFallThrough(server, "not-found");
 				// ignore it... try the next server
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
+				recordFallThrough(server, "multiple");
 				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
 			}
 		}
 		
@@ -56,17 +156,23 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 	public void setUserSecurityChallenge(String username,
 			SecurityChallenge securityChallenge) {
 		
-		for(LdapServer server : ldapServers) {
+		for(LdapServer server : getServerOrder(username)) {
+			LdapServerBulkhead bulkhead = admit(server, Priority.NORMAL);
 			try {
 				server.setUserSecurityChallenge(username, securityChallenge);
 				logger.debug("Successfully set user security challenge for " + username + " at " + server.getDescription());
+				rememberServer(username, server);
 				return;
 			} catch(NameNotFoundException ex) {
 				logger.debug("Didn't find " + username + " in " + server.getDescription());
+				recordFallThrough(server, "not-found");
 				// ignore it... try the next server
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
+				recordFallThrough(server, "multiple");
 				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
 			}
 		}
 		
@@ -74,9 +180,18 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 				+ username + " in any of provided servers.");
 	}
 	
-	public SecurityChallenge getDefaultSecurityChallenge(String username) {
+	public SecurityChallenge getDefaultSecurityChallenge(final String username) {
+		
+		if(parallel) {
+			return findInParallel(username, Priority.LOW, new AsyncLdapServerCallback<SecurityChallenge>() {
+				public Future<SecurityChallenge> submit(AsyncLdapServer server) {
+					return server.getDefaultSecurityChallenge(username);
+				}
+			}).getResult();
+		}
 		
-		for(LdapServer ldapServer : ldapServers) {
+		for(LdapServer ldapServer : getServerOrder(username)) {
+			LdapServerBulkhead bulkhead = admit(ldapServer, Priority.LOW);
 			try {
 				SecurityChallenge challenge = ldapServer.getDefaultSecurityChallenge(username);
 				if(logger.isDebugEnabled()) {
@@ -86,13 +201,18 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 						logger.debug("Got null default security challenge for " + username + " at " + ldapServer.getDescription());
 					}
 				}
+				rememberServer(username, ldapServer);
 				return challenge;
 			} catch(NameNotFoundException ex) {
 				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "not-found");
 				// ignore... we'll try another server
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
+				recordFallThrough(ldapServer, "multiple");
 				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
 			}
 		}
 		
@@ -101,21 +221,63 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 				+ username + " in any of provided servers.");
 	}
 
+	@Override
+	public UserSecurityChallenges getSecurityChallenges(final String username) {
+		
+		if(parallel) {
+			return findInParallel(username, Priority.LOW, new AsyncLdapServerCallback<UserSecurityChallenges>() {
+				public Future<UserSecurityChallenges> submit(AsyncLdapServer server) {
+					return server.getSecurityChallenges(username);
+				}
+			}).getResult();
+		}
+		
+		for(LdapServer ldapServer : getServerOrder(username)) {
+			LdapServerBulkhead bulkhead = admit(ldapServer, Priority.LOW);
+			try {
+				UserSecurityChallenges challenges = ldapServer.getSecurityChallenges(username);
+				logger.debug("Successfully got security challenges for " + username + " at " + ldapServer.getDescription());
+				rememberServer(username, ldapServer);
+				return challenges;
+			} catch(NameNotFoundException ex) {
+				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "not-found");
+				// ignore... we'll try another server
+			} catch(ObjectRetrievalException ex) {
+				logger.debug("Multiple results found for " + username);
+				recordFallThrough(ldapServer, "multiple");
+				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
+			}
+		}
+		
+		logger.debug("Couldn't find security questions for " + username);
+		throw new NameNotFoundException("Couldn't find username " 
+				+ username + " in any of provided servers.");
+	}
+
 	@Override
 	public void setUserPassword(String username, String password) {
 		logger.debug("We have " + ldapServers.size() + " LDAP servers to look at.");
-		for(LdapServer ldapServer : ldapServers) {
+		for(LdapServer ldapServer : getCandidateServers(username, Priority.HIGH)) {
 			logger.debug("Checking server " + ldapServer.getDescription() + " for user " + username);
+			LdapServerBulkhead bulkhead = admit(ldapServer, Priority.HIGH);
 			try {
 				ldapServer.setPassword(username, password);
 				logger.debug("Successfully set password for " + username + " at " + ldapServer.getDescription());
+				rememberServer(username, ldapServer);
 				return;
 			} catch(NameNotFoundException ex) {
 				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "not-found");
 				// ignore... we'll try another server
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
+				recordFallThrough(ldapServer, "multiple");
 				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
 			}
 		}
 		
@@ -130,23 +292,32 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 		// throws UserLockedOutException if this isn't allowed
 		lockoutService.allowAttempt(username);
 		
-		for(LdapServer ldapServer : ldapServers) {
+		for(LdapServer ldapServer : getCandidateServers(username, Priority.NORMAL)) {
+			LdapServerBulkhead bulkhead = admit(ldapServer, Priority.NORMAL);
 			try {
-				if(ldapServer.verifyPassword(username, oldPassword)) {
-					ldapServer.setPassword(username, newPassword);
-					logger.debug("Successfully changed password for " + username + " at " + ldapServer.getDescription());
-					lockoutService.clearIncorrectAttempts(username);
-					return;
-				}
+				ldapServer.changePassword(username, oldPassword, newPassword);
+				logger.debug("Successfully changed password for " + username + " at " + ldapServer.getDescription());
+				rememberServer(username, ldapServer);
+				lockoutService.clearIncorrectAttempts(username);
+				return;
+			} catch(InvalidPasswordException ex) {
+				logger.debug("Old password incorrect for " + username + " at " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "bad-password");
+				// ignore... we'll try another server
 			} catch(AuthenticationException ex) {
 				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "bad-password");
 				// ignore... we'll try another server
 			} catch(NameNotFoundException ex) {
 				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "not-found");
 				// ignore... we'll try another server
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
+				recordFallThrough(ldapServer, "multiple");
 				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
 			}
 		}
 		
@@ -156,6 +327,401 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 				+ username + " in any of provided servers or bad password.");	
 	}
 
+	@Override
+	public PasswordPolicyInfo checkUserPassword(String username, String password) {
+		
+		for(LdapServer ldapServer : getCandidateServers(username, Priority.NORMAL)) {
+			LdapServerBulkhead bulkhead = admit(ldapServer, Priority.NORMAL);
+			try {
+				PasswordPolicyInfo info = ldapServer.checkPassword(username, password);
+				logger.debug("Checked password for " + username + " at " + ldapServer.getDescription());
+				rememberServer(username, ldapServer);
+				return info;
+			} catch(NameNotFoundException ex) {
+				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
+				recordFallThrough(ldapServer, "not-found");
+				// ignore... we'll try another server
+			} catch(ObjectRetrievalException ex) {
+				logger.debug("Multiple results found for " + username);
+				recordFallThrough(ldapServer, "multiple");
+				// ignore it... try the next server
+			} finally {
+				release(bulkhead);
+			}
+		}
+		
+		logger.debug("Couldn't find server for " + username);
+		throw new NameNotFoundException("Couldn't find username " 
+				+ username + " in any of provided servers.");
+	}
+
+	/**
+	 * <p>Gets the servers to try, in order, for a write on the given user.
+	 * In serial mode that's every server, routed server first. In parallel
+	 * mode the user is located first, and only the server holding the user
+	 * is returned (or none).</p>
+	 */
+	private List<LdapServer> getCandidateServers(final String username, Priority priority) {
+		
+		if(!parallel) {
+			return getServerOrder(username);
+		}
+		
+		try {
+			ServerMatch<String> match = findInParallel(username, priority, new AsyncLdapServerCallback<String>() {
+				public Future<String> submit(AsyncLdapServer server) {
+					return server.findDn(username);
+				}
+			});
+			return Collections.singletonList(match.getServer());
+		} catch(NameNotFoundException ex) {
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * <p>Starts the callback on all servers at once. The match is the first
+	 * server in list order whose result isn't a NameNotFoundException or
+	 * ObjectRetrievalException, which is what the serial scan would have
+	 * found. As soon as it and every server ahead of it have answered, the
+	 * other servers are given up to duplicateCheckWaitMillis to answer too,
+	 * so a user found on a later server can be logged, and the rest of the
+	 * lookups are then cancelled.</p>
+	 * 
+	 * <p>A routed user is looked up on their server first, and that server
+	 * isn't asked again if they're not there. The other servers are only
+	 * started straight away if their bulkhead has a free slot. A busy
+	 * server is waited for once every server ahead of it has missed, so it
+	 * never holds up a user found ahead of it. Each server's bulkhead is
+	 * released once its lookup has been collected or cancelled, so the
+	 * bulkhead counts operations in flight rather than threads.</p>
+	 */
+	private <T> ServerMatch<T> findInParallel(String username, Priority priority,
+			AsyncLdapServerCallback<T> callback) {
+		
+		Deadline deadline = Deadline.current();
+		
+		// a routed user is looked up on their server alone; we only fan
+		// out to the other servers if they're not there any more
+		LdapServer routedServer = getRoutedServer(username);
+		LdapServer triedServer = null;
+		if(routedServer != null) {
+			LdapServerBulkhead bulkhead = admit(routedServer, priority);
+			Future<T> future = null;
+			try {
+				future = callback.submit(asyncServers.get(routedServer));
+				T result = await(future, deadline, username, routedServer);
+				logger.debug("Found " + username + " at routed server " + routedServer.getDescription());
+				return new ServerMatch<T>(routedServer, result);
+			} catch(NameNotFoundException ex) {
+				logger.debug("Didn't find " + username + " in routed server " + routedServer.getDescription());
+				recordFallThrough(routedServer, "not-found");
+				forgetServer(username);
+			} catch(ObjectRetrievalException ex) {
+				logger.debug("Multiple results found for " + username);
+				recordFallThrough(routedServer, "multiple");
+				forgetServer(username);
+			} finally {
+				if(future != null) {
+					future.cancel(true);
+				}
+				release(bulkhead);
+			}
+			triedServer = routedServer;
+		}
+		
+		// futures and bulkheads by server index; a null future is a server
+		// that hasn't been started
+		List<Future<T>> futures = new ArrayList<Future<T>>(ldapServers.size());
+		List<LdapServerBulkhead> admitted = new ArrayList<LdapServerBulkhead>(ldapServers.size());
+		try {
+			for(LdapServer server : ldapServers) {
+				if(server != triedServer && tryAdmit(server, priority)) {
+					admitted.add(bulkheads.get(server));
+					futures.add(callback.submit(asyncServers.get(server)));
+				} else {
+					admitted.add(null);
+					futures.add(null);
+				}
+			}
+			
+			for(int i=0;i<futures.size();i++) {
+				LdapServer server = ldapServers.get(i);
+				if(server == triedServer) {
+					continue;
+				}
+				if(futures.get(i) == null) {
+					// every server ahead of this one has missed, so it's
+					// worth waiting for
+					admitted.set(i, admit(server, priority));
+					futures.set(i, callback.submit(asyncServers.get(server)));
+				}
+				try {
+					T result = await(futures.get(i), deadline, username, server);
+					logger.debug("Found " + username + " at " + server.getDescription());
+					warnIfFoundElsewhere(username, i, futures);
+					rememberServer(username, server);
+					return new ServerMatch<T>(server, result);
+				} catch(NameNotFoundException ex) {
+					logger.debug("Didn't find " + username + " in " + server.getDescription());
+					recordFallThrough(server, "not-found");
+					// ignore... we'll check the next server
+				} catch(ObjectRetrievalException ex) {
+					logger.debug("Multiple results found for " + username);
+					recordFallThrough(server, "multiple");
+					// ignore it... check the next server
+				}
+				release(admitted.set(i, null));
+			}
+		} finally {
+			for(Future<T> future : futures) {
+				if(future != null) {
+					future.cancel(true);
+				}
+			}
+			for(LdapServerBulkhead bulkhead : admitted) {
+				release(bulkhead);
+			}
+		}
+		
+		throw new NameNotFoundException("Couldn't find username " 
+				+ username + " in any of provided servers.");
+	}
+	
+	/**
+	 * <p>Waits for a lookup's result until the deadline, if any.</p>
+	 * @throws RuntimeException whatever the lookup threw
+	 * @throws DeadlineExceededException if the deadline passed first
+	 */
+	private <T> T await(Future<T> future, Deadline deadline, String username, LdapServer server) {
+		try {
+			return deadline != null
+					? future.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS)
+					: future.get();
+		} catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new PasswordManagerException("Exception looking up " + username
+					+ " in " + server.getDescription(), cause);
+		} catch(TimeoutException ex) {
+			throw new DeadlineExceededException("Deadline passed looking up " + username, ex);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PasswordManagerException("Interrupted looking up " + username, ex);
+		}
+	}
+	
+	/**
+	 * <p>Logs the later servers that also have the user, waiting up to
+	 * duplicateCheckWaitMillis in all for the ones still looking.</p>
+	 */
+	private <T> void warnIfFoundElsewhere(String username, int matchIndex, List<Future<T>> futures) {
+		
+		long waitMillis = duplicateCheckWaitMillis > 0 ? Deadline.limitMillis(duplicateCheckWaitMillis) : 0;
+		long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		for(int i=matchIndex+1;i<futures.size();i++) {
+			Future<T> future = futures.get(i);
+			if(future == null) {
+				// never started
+				continue;
+			}
+			try {
+				future.get(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS);
+				logger.warn("User " + username + " exists in both " 
+						+ ldapServers.get(matchIndex).getDescription() + " and " 
+						+ ldapServers.get(i).getDescription() + "; using the former.");
+				metricsRegistry.increment("pm.duplicate-user", "server=" + ldapServers.get(i).getDescription());
+			} catch(ExecutionException ex) {
+				// not found there, which is what we want
+			} catch(TimeoutException ex) {
+				// still looking
+			} catch(CancellationException ex) {
+				// never finished
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Waits for the server's bulkhead to admit an operation of the given
+	 * priority, and counts the operation towards the request's
+	 * DirectoryCalls. Called before every server operation.</p>
+	 * @return the bulkhead to release afterwards, or null if there is none
+	 * @throws org.jasig.cas.pm.ServerBusyException if the server is too busy
+	 * @throws DeadlineExceededException if the request's deadline has passed
+	 */
+	private LdapServerBulkhead admit(LdapServer server, Priority priority) {
+		Deadline.checkCurrent("trying " + server.getDescription());
+		DirectoryCalls.record();
+		LdapServerBulkhead bulkhead = bulkheads.get(server);
+		if(bulkhead != null) {
+			bulkhead.acquire(priority);
+		}
+		return bulkhead;
+	}
+	
+	/**
+	 * <p>Admits an operation to the server's bulkhead only if it can run
+	 * straight away, and if so counts it towards the request's
+	 * DirectoryCalls. The bulkhead, if any, must then be released.</p>
+	 * @return false if the server is busy
+	 * @throws DeadlineExceededException if the request's deadline has passed
+	 */
+	private boolean tryAdmit(LdapServer server, Priority priority) {
+		Deadline.checkCurrent("trying " + server.getDescription());
+		LdapServerBulkhead bulkhead = bulkheads.get(server);
+		if(bulkhead != null && !bulkhead.tryAcquire(priority)) {
+			return false;
+		}
+		DirectoryCalls.record();
+		return true;
+	}
+	
+	/**
+	 * <p>Counts a server that was tried for a user and didn't give an
+	 * answer, so the next server had to be tried.</p>
+	 * @param reason not-found, multiple or bad-password
+	 */
+	private void recordFallThrough(LdapServer server, String reason) {
+		metricsRegistry.increment("pm.fall-through", "server=" + server.getDescription(), "reason=" + reason);
+	}
+	
+	private void release(LdapServerBulkhead bulkhead) {
+		if(bulkhead != null) {
+			bulkhead.release();
+		}
+	}
+	
+	/**
+	 * <p>Gets the server the username should be tried on first: the server
+	 * of the first matching routing rule, or else the server that last
+	 * resolved the user. Null if neither applies.</p>
+	 */
+	private LdapServer getRoutedServer(String username) {
+		if(username == null) {
+			return null;
+		}
+		for(LdapServerRoutingRule rule : routingRules) {
+			if(rule.matches(username)) {
+				return rule.getLdapServer();
+			}
+		}
+		if(routeCache != null) {
+			return routeCache.get(username.toLowerCase());
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>Gets all servers in the order they should be tried for the given
+	 * user: the routed server (if any) followed by the rest in configured
+	 * order.</p>
+	 */
+	private List<LdapServer> getServerOrder(String username) {
+		LdapServer routedServer = getRoutedServer(username);
+		if(routedServer == null || routedServer == ldapServers.get(0)) {
+			return ldapServers;
+		}
+		
+		List<LdapServer> servers = new ArrayList<LdapServer>(ldapServers.size());
+		servers.add(routedServer);
+		for(LdapServer server : ldapServers) {
+			if(server != routedServer) {
+				servers.add(server);
+			}
+		}
+		return servers;
+	}
+	
+	private void rememberServer(String username, LdapServer server) {
+		if(routeCache != null && username != null) {
+			routeCache.put(username.toLowerCase(), server);
+		}
+	}
+	
+	private void forgetServer(String username) {
+		if(routeCache != null && username != null) {
+			routeCache.invalidate(username.toLowerCase());
+		}
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		// routing only pays off with more than one server
+		if(routeCacheMaxSize > 0 && routeCacheTimeToLiveSeconds > 0 && ldapServers.size() > 1) {
+			routeCache = new ExpiringLruCache<String,LdapServer>(routeCacheMaxSize,
+					routeCacheTimeToLiveSeconds * 1000L);
+		}
+		if(parallel) {
+			createAsyncServers();
+		}
+		if(bulkheadMaxConcurrent > 0) {
+			createBulkheads();
+		}
+	}
+	
+	private void createAsyncServers() {
+		for(AsyncLdapServer asyncServer : asyncLdapServers) {
+			if(!ldapServers.contains(asyncServer.getLdapServer())) {
+				throw new IllegalStateException("Async LDAP server for "
+						+ asyncServer.getLdapServer().getDescription() + " isn't in ldapServers");
+			}
+			asyncServers.put(asyncServer.getLdapServer(), asyncServer);
+		}
+		for(LdapServer server : ldapServers) {
+			if(asyncServers.containsKey(server)) {
+				continue;
+			}
+			if(executorService == null) {
+				ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelThreads, parallelThreads,
+						60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(parallelQueueSize),
+						new LdapLookupThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+				executor.allowCoreThreadTimeOut(true);
+				executorService = executor;
+			}
+			asyncServers.put(server, new ExecutorAsyncLdapServer(server, executorService));
+		}
+	}
+	
+	private void createBulkheads() {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		for(int i=0;i<ldapServers.size();i++) {
+			LdapServer server = ldapServers.get(i);
+			String name = server.getDescription() != null ? server.getDescription() : "ldapServer" + i;
+			LdapServerBulkhead bulkhead = new LdapServerBulkhead(name, bulkheadMaxConcurrent,
+					bulkheadMaxQueued, bulkheadMaxWaitMillis);
+			bulkheads.put(server, bulkhead);
+			try {
+				ObjectName objectName = new ObjectName("org.jasig.cas.pm:type=LdapServerBulkhead,name="
+						+ ObjectName.quote(name));
+				mbeanServer.registerMBean(bulkhead, objectName);
+				registeredMBeans.add(objectName);
+			} catch(Exception ex) {
+				logger.warn("Unable to register JMX bean for bulkhead " + name, ex);
+			}
+		}
+	}
+	
+	@Override
+	public void destroy() throws Exception {
+		if(executorService != null) {
+			executorService.shutdownNow();
+		}
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName objectName : registeredMBeans) {
+			try {
+				mbeanServer.unregisterMBean(objectName);
+			} catch(Exception ex) {
+				logger.warn("Unable to unregister JMX bean " + objectName, ex);
+			}
+		}
+		registeredMBeans.clear();
+	}
+
 	public void setLdapServers(List<LdapServer> ldapServers) {
 		this.ldapServers = ldapServers;
 	}
@@ -163,4 +729,146 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 	public void setLockoutService(PasswordManagerLockoutService lockoutService) {
 		this.lockoutService = lockoutService;
 	}
+
+	/**
+	 * <p>Determines if lookups are sent to all LDAP servers at once rather
+	 * than one after another.</p>
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * <p>Sets non-blocking implementations for some or all of the servers,
+	 * used in parallel mode. The rest run on the shared thread pool.</p>
+	 * @param asyncLdapServers
+	 */
+	public void setAsyncLdapServers(List<AsyncLdapServer> asyncLdapServers) {
+		this.asyncLdapServers = asyncLdapServers != null ? asyncLdapServers : Collections.<AsyncLdapServer>emptyList();
+	}
+
+	/**
+	 * @param parallelThreads maximum number of concurrent LDAP lookups
+	 * across all requests in parallel mode
+	 */
+	public void setParallelThreads(int parallelThreads) {
+		this.parallelThreads = parallelThreads;
+	}
+
+	/**
+	 * @param parallelQueueSize number of lookups that may wait for a
+	 * thread before the requesting thread runs them itself
+	 */
+	public void setParallelQueueSize(int parallelQueueSize) {
+		this.parallelQueueSize = parallelQueueSize;
+	}
+
+	/**
+	 * @param duplicateCheckWaitMillis longest a parallel lookup waits for
+	 * the servers after the one that found the user, to log users who are
+	 * in more than one server
+	 */
+	public void setDuplicateCheckWaitMillis(long duplicateCheckWaitMillis) {
+		this.duplicateCheckWaitMillis = duplicateCheckWaitMillis;
+	}
+	
+	/**
+	 * <p>Sets rules sending matching usernames straight to a given server.
+	 * Rules are checked in order, before any learned route.</p>
+	 * @param routingRules
+	 */
+	public void setRoutingRules(List<LdapServerRoutingRule> routingRules) {
+		this.routingRules = routingRules != null ? routingRules : Collections.<LdapServerRoutingRule>emptyList();
+	}
+
+	/**
+	 * @param routeCacheMaxSize maximum number of remembered username to
+	 * server routes, 0 to disable
+	 */
+	public void setRouteCacheMaxSize(int routeCacheMaxSize) {
+		this.routeCacheMaxSize = routeCacheMaxSize;
+	}
+
+	/**
+	 * @param routeCacheTimeToLiveSeconds number of seconds a username to
+	 * server route is remembered
+	 */
+	public void setRouteCacheTimeToLiveSeconds(int routeCacheTimeToLiveSeconds) {
+		this.routeCacheTimeToLiveSeconds = routeCacheTimeToLiveSeconds;
+	}
+
+	/**
+	 * @param bulkheadMaxConcurrent maximum number of operations running at
+	 * once against each server, 0 to disable the bulkheads
+	 */
+	public void setBulkheadMaxConcurrent(int bulkheadMaxConcurrent) {
+		this.bulkheadMaxConcurrent = bulkheadMaxConcurrent;
+	}
+
+	/**
+	 * @param bulkheadMaxQueued maximum number of operations waiting for each
+	 * server before further ones are rejected
+	 */
+	public void setBulkheadMaxQueued(int bulkheadMaxQueued) {
+		this.bulkheadMaxQueued = bulkheadMaxQueued;
+	}
+
+	/**
+	 * @param bulkheadMaxWaitMillis longest an operation waits for a server
+	 * before it's rejected
+	 */
+	public void setBulkheadMaxWaitMillis(long bulkheadMaxWaitMillis) {
+		this.bulkheadMaxWaitMillis = bulkheadMaxWaitMillis;
+	}
+
+	/**
+	 * @param metricsRegistry where fall-through counts are published
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	public long getRouteCacheHitCount() {
+		return routeCache != null ? routeCache.getHitCount() : 0;
+	}
+
+	public long getRouteCacheMissCount() {
+		return routeCache != null ? routeCache.getMissCount() : 0;
+	}
+	
+	private interface AsyncLdapServerCallback<T> {
+		Future<T> submit(AsyncLdapServer server);
+	}
+	
+	private static class ServerMatch<T> {
+		
+		private final LdapServer server;
+		private final T result;
+		
+		public ServerMatch(LdapServer server, T result) {
+			this.server = server;
+			this.result = result;
+		}
+		
+		public LdapServer getServer() {
+			return server;
+		}
+		
+		public T getResult() {
+			return result;
+		}
+	}
+	
+	private static class LdapLookupThreadFactory implements ThreadFactory {
+		
+		private final AtomicInteger threadCount = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "cas-pm-ldap-lookup-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
@@ -0,0 +1,272 @@
+package org.jasig.cas.pm.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.ServerBusyException;
+import org.jasig.cas.pm.util.Deadline;
+
+/**
+ * <p>Limits the number of operations running against one LDAP server, so a
+ * slow server ties up at most maxConcurrent request threads rather than all
+ * of them.</p>
+ *
+ * <p>Callers beyond the limit wait, up to maxQueued of them and for at most
+ * maxWaitMillis, and are otherwise rejected straight away with a
+ * ServerBusyException. Waiting callers are admitted by priority, then in
+ * arrival order. LOW priority callers are only queued while the queue is
+ * less than half full, so anonymous lookups are shed before password
+ * changes. Nobody waits past the request's Deadline.</p>
+ */
+public class LdapServerBulkhead implements LdapServerBulkheadMBean {
+
+	/**
+	 * <p>Priority classes, highest first.</p>
+	 */
+	public enum Priority {
+		/** Forced and expired password changes. */
+		HIGH,
+		/** Password changes and checks by a user who knows their password. */
+		NORMAL,
+		/** Anonymous lookups, e.g. security questions for a forgotten password. */
+		LOW
+	};
+
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long maxWaitMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition[] waiters = new Condition[Priority.values().length];
+	private final int[] waiterCounts = new int[Priority.values().length];
+	private int activeCount;
+	private int queueDepth;
+
+	// guarded by lock
+	private long admittedCount;
+	private long rejectedCount;
+	private long timedOutCount;
+	private long waitedCount;
+	private long totalWaitNanos;
+	private long longestWaitNanos;
+
+	/**
+	 * @param name name used in messages and for JMX
+	 * @param maxConcurrent maximum number of operations running at once
+	 * @param maxQueued maximum number of callers waiting to run
+	 * @param maxWaitMillis longest a caller waits before it's rejected
+	 */
+	public LdapServerBulkhead(String name, int maxConcurrent, int maxQueued, long maxWaitMillis) {
+		if(maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+		}
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.maxWaitMillis = maxWaitMillis;
+		for(int i=0;i<waiters.length;i++) {
+			waiters[i] = lock.newCondition();
+		}
+	}
+
+	/**
+	 * <p>Waits for a slot to run an operation. Every successful call must be
+	 * matched by a call to release().</p>
+	 * @throws ServerBusyException if the queue is full or no slot became
+	 * free in time
+	 */
+	public void acquire(Priority priority) {
+
+		int p = priority.ordinal();
+		lock.lock();
+		try {
+			if(activeCount < maxConcurrent && !hasWaiters(p)) {
+				activeCount++;
+				admittedCount++;
+				return;
+			}
+
+			if(queueDepth >= maxQueued || (priority == Priority.LOW && queueDepth >= maxQueued / 2)) {
+				rejectedCount++;
+				throw new ServerBusyException("Too many operations waiting for " + name);
+			}
+
+			long start = System.nanoTime();
+			long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis > 0 ? Deadline.limitMillis(maxWaitMillis) : 0);
+			queueDepth++;
+			waiterCounts[p]++;
+			try {
+				while(activeCount >= maxConcurrent || hasWaiters(p - 1)) {
+					if(remaining <= 0) {
+						timedOutCount++;
+						throw new ServerBusyException("Timed out waiting for " + name);
+					}
+					remaining = waiters[p].awaitNanos(remaining);
+				}
+				activeCount++;
+				admittedCount++;
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new PasswordManagerException("Interrupted waiting for " + name, ex);
+			} finally {
+				queueDepth--;
+				waiterCounts[p]--;
+				long waited = System.nanoTime() - start;
+				waitedCount++;
+				totalWaitNanos += waited;
+				longestWaitNanos = Math.max(longestWaitNanos, waited);
+				// pass on any wakeup we didn't use: if we gave up, or if
+				// several slots were freed before we ran, both signals may
+				// have come to us
+				signalNext();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <p>Takes a slot if one is free and nobody of the same or higher
+	 * priority is waiting for it, without waiting or queueing. A successful
+	 * call must be matched by a call to release().</p>
+	 * @return true if a slot was taken
+	 */
+	public boolean tryAcquire(Priority priority) {
+		lock.lock();
+		try {
+			if(activeCount < maxConcurrent && !hasWaiters(priority.ordinal())) {
+				activeCount++;
+				admittedCount++;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void release() {
+		lock.lock();
+		try {
+			activeCount--;
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <p>Checks for callers waiting at the given priority or higher.</p>
+	 */
+	private boolean hasWaiters(int priority) {
+		for(int i=0;i<=priority;i++) {
+			if(waiterCounts[i] > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void signalNext() {
+		if(activeCount >= maxConcurrent) {
+			return;
+		}
+		for(int i=0;i<waiters.length;i++) {
+			if(waiterCounts[i] > 0) {
+				waiters[i].signal();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	@Override
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	@Override
+	public int getActiveCount() {
+		lock.lock();
+		try {
+			return activeCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getAdmittedCount() {
+		lock.lock();
+		try {
+			return admittedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getTimedOutCount() {
+		lock.lock();
+		try {
+			return timedOutCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <p>Gets the average time spent waiting by callers that had to queue.</p>
+	 */
+	@Override
+	public long getAverageWaitMillis() {
+		lock.lock();
+		try {
+			return waitedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / waitedCount);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getLongestWaitMillis() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(longestWaitNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.jasig.cas.pm.service;
+
+/**
+ * <p>JMX view of an LdapServerBulkhead.</p>
+ */
+public interface LdapServerBulkheadMBean {
+
+	public String getName();
+
+	public int getMaxConcurrent();
+
+	public int getMaxQueued();
+
+	public int getActiveCount();
+
+	public int getQueueDepth();
+
+	public long getAdmittedCount();
+
+	public long getRejectedCount();
+
+	public long getTimedOutCount();
+
+	public long getAverageWaitMillis();
+
+	public long getLongestWaitMillis();
+
+}
@@ -0,0 +1,66 @@
+package org.jasig.cas.pm.service;
+
+import java.util.regex.Pattern;
+
+import org.jasig.cas.pm.ldap.LdapServer;
+
+/**
+ * <p>Operator-defined rule sending usernames that match a suffix (e.g. a
+ * UPN suffix such as "@students.example.edu") or a regular expression
+ * straight to a given LDAP server. If both suffix and pattern are set,
+ * both must match.</p>
+ */
+public class LdapServerRoutingRule {
+
+	private String suffix;
+	private Pattern pattern;
+	private LdapServer ldapServer;
+
+	/**
+	 * <p>Checks if the username should be routed by this rule.</p>
+	 * @param username username to test
+	 * @return true if the username matches
+	 */
+	public boolean matches(String username) {
+		if(username == null || (suffix == null && pattern == null)) {
+			return false;
+		}
+		if(suffix != null && !username.toLowerCase().endsWith(suffix)) {
+			return false;
+		}
+		if(pattern != null && !pattern.matcher(username).matches()) {
+			return false;
+		}
+		return true;
+	}
+
+	public String getSuffix() {
+		return suffix;
+	}
+
+	/**
+	 * @param suffix case-insensitive username suffix, e.g. "@example.edu"
+	 */
+	public void setSuffix(String suffix) {
+		this.suffix = suffix != null && !suffix.isEmpty() ? suffix.toLowerCase() : null;
+	}
+
+	public String getPattern() {
+		return pattern != null ? pattern.pattern() : null;
+	}
+
+	/**
+	 * @param pattern regular expression the whole username must match
+	 */
+	public void setPattern(String pattern) {
+		this.pattern = pattern != null && !pattern.isEmpty() ? Pattern.compile(pattern) : null;
+	}
+
+	public LdapServer getLdapServer() {
+		return ldapServer;
+	}
+
+	public void setLdapServer(LdapServer ldapServer) {
+		this.ldapServer = ldapServer;
+	}
+}
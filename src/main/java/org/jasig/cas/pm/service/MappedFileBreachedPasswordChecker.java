@@ -0,0 +1,267 @@
+package org.jasig.cas.pm.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.PasswordManagerException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>BreachedPasswordChecker that looks passwords up in a memory-mapped
+ * file of SHA-1 hash prefixes, built by BreachedPasswordFileBuilder. The
+ * file stays off the heap and out of the JVM's way; a lookup is a short
+ * binary search over the mapped pages, taking microseconds once they are
+ * in the page cache.</p>
+ *
+ * <p>Each password is hashed as SHA-1 of its UTF-8 bytes, as in the Pwned
+ * Passwords corpus, and the first 64 bits of the hash are looked up. With
+ * a billion hashes in the file, the chance of a false match is about one
+ * in 10^10.</p>
+ *
+ * <pre>
+ * header:  magic (int), version (int), hash count (long), unused (16 bytes)
+ * fan-out: 65536 longs, entry i the number of hashes whose first 16 bits
+ *          are at most i
+ * hashes:  64 bit hash prefixes in ascending unsigned order
+ * </pre>
+ *
+ * <p>A Bloom filter file can be put in front of it, so that most passwords
+ * that are not in the corpus are answered from a smaller file without
+ * touching the hash file at all. The filter is also memory-mapped.</p>
+ *
+ * <pre>
+ * header:  magic (int), version (int), bit count (long), hash functions
+ *          (int), unused (12 bytes)
+ * bits:    bit count / 8 bytes
+ * </pre>
+ *
+ * <p>Files over 1GB are mapped in 1GB chunks.</p>
+ */
+public class MappedFileBreachedPasswordChecker implements
+		BreachedPasswordChecker, InitializingBean, DisposableBean {
+
+	static final int HASH_FILE_MAGIC = 0x43415348; // "CASH"
+	static final int BLOOM_FILE_MAGIC = 0x43415342; // "CASB"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int FAN_OUT_SIZE = 65536;
+	static final int HASHES_OFFSET = HEADER_SIZE + FAN_OUT_SIZE * 8;
+
+	/** Bytes per mapped chunk; a power of two. */
+	static final int CHUNK_SIZE = 1 << 30;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch(NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	};
+
+	@NotNull
+	private File file;
+	private File bloomFilterFile;
+
+	private MappedByteBuffer fanOut;
+	private MappedByteBuffer[] hashes;
+	private long hashCount;
+	private MappedByteBuffer[] bloomBits;
+	private long bloomBitCount;
+	private int bloomHashCount;
+
+	@Override
+	public boolean isBreached(String password) {
+		long prefix = hashPrefix(password);
+		if(bloomBits != null && !bloomFilterMightContain(prefix)) {
+			return false;
+		}
+		return contains(prefix);
+	}
+
+	/**
+	 * <p>Binary search for the prefix among the hashes sharing its first 16
+	 * bits.</p>
+	 */
+	private boolean contains(long prefix) {
+		int top = (int) (prefix >>> 48);
+		long low = top == 0 ? 0 : fanOut.getLong(HEADER_SIZE + (top - 1) * 8);
+		long high = fanOut.getLong(HEADER_SIZE + top * 8) - 1;
+		long key = prefix ^ Long.MIN_VALUE;
+		while(low <= high) {
+			long middle = (low + high) >>> 1;
+			long value = getLong(hashes, middle * 8) ^ Long.MIN_VALUE;
+			if(value < key) {
+				low = middle + 1;
+			} else if(value > key) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean bloomFilterMightContain(long prefix) {
+		long increment = bloomIncrement(prefix);
+		long hash = prefix;
+		for(int i=0;i<bloomHashCount;i++) {
+			long bit = (hash & Long.MAX_VALUE) % bloomBitCount;
+			if((getByte(bloomBits, bit >>> 3) & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+			hash += increment;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the first 64 bits of the SHA-1 hash of the password's UTF-8
+	 * bytes
+	 */
+	long hashPrefix(String password) {
+		byte[] digest;
+		try {
+			digest = sha1.get().digest(password.getBytes("UTF-8"));
+		} catch(IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		long prefix = 0;
+		for(int i=0;i<8;i++) {
+			prefix = (prefix << 8) | (digest[i] & 0xff);
+		}
+		return prefix;
+	}
+
+	/**
+	 * <p>Second hash for the Bloom filter's double hashing, derived from
+	 * the prefix with the MurmurHash3 finalizer. Always odd, so the probes
+	 * don't collapse onto a few bits.</p>
+	 */
+	static long bloomIncrement(long prefix) {
+		long h = prefix;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h | 1;
+	}
+
+	private static long getLong(MappedByteBuffer[] chunks, long offset) {
+		return chunks[(int) (offset / CHUNK_SIZE)].getLong((int) (offset % CHUNK_SIZE));
+	}
+
+	private static byte getByte(MappedByteBuffer[] chunks, long offset) {
+		return chunks[(int) (offset / CHUNK_SIZE)].get((int) (offset % CHUNK_SIZE));
+	}
+
+	/**
+	 * <p>Maps length bytes of the file from offset, in chunks of CHUNK_SIZE.
+	 * Lengths are multiples of 8, so no long straddles two chunks.</p>
+	 */
+	static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode,
+			long offset, long length) throws IOException {
+		MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		for(int i=0;i<chunks.length;i++) {
+			long start = (long) i * CHUNK_SIZE;
+			chunks[i] = channel.map(mode, offset + start, Math.min(CHUNK_SIZE, length - start));
+		}
+		return chunks;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		RandomAccessFile hashFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = hashFile.getChannel();
+			fanOut = channel.map(FileChannel.MapMode.READ_ONLY, 0, HASHES_OFFSET);
+			if(fanOut.getInt(0) != HASH_FILE_MAGIC || fanOut.getInt(4) != VERSION) {
+				throw new PasswordManagerException(file + " is not a version " + VERSION
+						+ " breached password hash file");
+			}
+			hashCount = fanOut.getLong(8);
+			if(channel.size() != HASHES_OFFSET + hashCount * 8
+					|| fanOut.getLong(HEADER_SIZE + (FAN_OUT_SIZE - 1) * 8) != hashCount) {
+				throw new PasswordManagerException("Breached password hash file " + file
+						+ " is truncated or corrupt");
+			}
+			hashes = map(channel, FileChannel.MapMode.READ_ONLY, HASHES_OFFSET, hashCount * 8);
+		} finally {
+			// the mappings stay valid after the file is closed
+			hashFile.close();
+		}
+		logger.info("Mapped " + hashCount + " breached password hashes from " + file);
+
+		if(bloomFilterFile != null) {
+			RandomAccessFile bloomFile = new RandomAccessFile(bloomFilterFile, "r");
+			try {
+				FileChannel channel = bloomFile.getChannel();
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+				if(header.getInt(0) != BLOOM_FILE_MAGIC || header.getInt(4) != VERSION) {
+					throw new PasswordManagerException(bloomFilterFile + " is not a version "
+							+ VERSION + " Bloom filter file");
+				}
+				bloomBitCount = header.getLong(8);
+				bloomHashCount = header.getInt(16);
+				// the bits are mapped as whole bytes, and an empty filter
+				// would leave nothing to take the bit index modulo
+				if(bloomBitCount <= 0 || bloomBitCount % 8 != 0 || bloomHashCount < 1) {
+					throw new PasswordManagerException("Bloom filter file " + bloomFilterFile
+							+ " has " + bloomBitCount + " bits and " + bloomHashCount
+							+ " hash functions; it needs a positive multiple of 8 bits and at least one");
+				}
+				if(channel.size() != HEADER_SIZE + bloomBitCount / 8) {
+					throw new PasswordManagerException("Bloom filter file " + bloomFilterFile
+							+ " is truncated or corrupt");
+				}
+				bloomBits = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, bloomBitCount / 8);
+			} finally {
+				bloomFile.close();
+			}
+			logger.info("Mapped " + bloomBitCount + " bit Bloom filter with " + bloomHashCount
+					+ " hash functions from " + bloomFilterFile);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		// mapped buffers are unmapped when collected; drop the references
+		fanOut = null;
+		hashes = null;
+		bloomBits = null;
+	}
+
+	public long getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * @param file hash file written by BreachedPasswordFileBuilder
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param bloomFilterFile optional Bloom filter file written by
+	 * BreachedPasswordFileBuilder from the same hash file
+	 */
+	public void setBloomFilterFile(File bloomFilterFile) {
+		this.bloomFilterFile = bloomFilterFile;
+	}
+}
@@ -0,0 +1,418 @@
+package org.jasig.cas.pm.service;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.UserLockedOutException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Lockout service that keeps its state in a memory-mapped file, so
+ * counters survive restarts and crashes and large numbers of users stay
+ * off the heap. Startup just maps the file; there is nothing to replay.</p>
+ *
+ * <p>The file is a fixed-size hash table of 32 byte records, keyed by a
+ * 64 bit SipHash-2-4 of the username under a random key created with the
+ * file, so usernames that share a segment can't be worked out from
+ * outside:</p>
+ *
+ * <pre>
+ * header:  magic (int), version (int), slot count (int), unused (int),
+ *          hash key (2 longs)
+ * record:  username hash (long), incorrect attempts (int), unused (int),
+ *          last incorrect attempt (long, epoch millis),
+ *          next attempt allowed (long, epoch millis, 0 if not locked out)
+ * </pre>
+ *
+ * <p>Slots are grouped into segments of SEGMENT_SIZE. A username is only
+ * ever stored in its home segment, so each segment has its own lock and
+ * updates for different segments never contend. Records whose last
+ * attempt is older than entryTimeToLiveSeconds, and which aren't locked
+ * out, are reused for new users. If a segment is full of locked out users,
+ * new users hashing to it are treated as locked out until one of the
+ * lockouts ends, rather than being given unlimited attempts.</p>
+ *
+ * <p>The file is locked while it's open, so only one process maps it.</p>
+ *
+ * <p>Times are wall clock millis because System.nanoTime() values mean
+ * nothing after a restart.</p>
+ */
+public class MappedFilePasswordManagerLockoutService implements
+		PasswordManagerLockoutService, InitializingBean, DisposableBean {
+
+	private static final int MAGIC = 0x43415350; // "CASP"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+	private static final int KEY_OFFSET = 16;
+	private static final int RECORD_SIZE = 32;
+	private static final int SEGMENT_SIZE = 16;
+
+	private static final int HASH_OFFSET = 0;
+	private static final int ATTEMPTS_OFFSET = 8;
+	private static final int LAST_ATTEMPT_OFFSET = 16;
+	private static final int NEXT_ALLOWED_OFFSET = 24;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	@NotNull
+	private File file;
+	@Min(SEGMENT_SIZE)
+	private int maxEntries = 1048576;
+	@Min(1)
+	private int entryTimeToLiveSeconds = 3600;
+	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
+	private int secondsUntilNextAllowedAttempt = 0;
+
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private int slotCount;
+	private long key0;
+	private long key1;
+	private Object[] segmentLocks;
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+
+		// round up to a power of two so the slot can be taken from the hash bits
+		slotCount = Integer.highestOneBit(Math.max(maxEntries, SEGMENT_SIZE) - 1) << 1;
+		long fileSize = HEADER_SIZE + (long) slotCount * RECORD_SIZE;
+		if(fileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("maxEntries too large for a mapped file: " + maxEntries);
+		}
+
+		boolean exists = file.exists() && file.length() > 0;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		FileLock fileLock;
+		try {
+			fileLock = randomAccessFile.getChannel().tryLock();
+		} catch(OverlappingFileLockException ex) {
+			fileLock = null;
+		}
+		if(fileLock == null) {
+			randomAccessFile.close();
+			throw new PasswordManagerException("Lockout file " + file + " is in use by another process");
+		}
+		if(exists && randomAccessFile.length() != fileSize) {
+			randomAccessFile.close();
+			throw new PasswordManagerException("Lockout file " + file + " is "
+					+ file.length() + " bytes, expected " + fileSize
+					+ " for maxEntries " + maxEntries);
+		}
+		randomAccessFile.setLength(fileSize);
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+		if(exists) {
+			if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != slotCount) {
+				destroy();
+				throw new PasswordManagerException("Lockout file " + file + " is not a version "
+						+ VERSION + " lockout file with " + slotCount + " slots");
+			}
+			logger.info("Opened lockout file " + file + " with " + slotCount + " slots");
+		} else {
+			SecureRandom random = new SecureRandom();
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, slotCount);
+			buffer.putLong(KEY_OFFSET, random.nextLong());
+			buffer.putLong(KEY_OFFSET + 8, random.nextLong());
+			logger.info("Created lockout file " + file + " with " + slotCount + " slots");
+		}
+
+		key0 = buffer.getLong(KEY_OFFSET);
+		key1 = buffer.getLong(KEY_OFFSET + 8);
+
+		segmentLocks = new Object[slotCount / SEGMENT_SIZE];
+		for(int i=0;i<segmentLocks.length;i++) {
+			segmentLocks[i] = new Object();
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(buffer != null) {
+			buffer.force();
+		}
+		if(randomAccessFile != null) {
+			// also releases the file lock
+			randomAccessFile.close();
+		}
+	}
+
+	@Override
+	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		logger.debug("Registering incorrect attempt for " + username);
+
+		long hash = hash(username);
+		int segment = segment(hash);
+		long now = System.currentTimeMillis();
+		int attempts;
+
+		synchronized(segmentLocks[segment]) {
+			int offset = findOrAllocate(hash, segment, now);
+			if(offset < 0) {
+				logger.warn("Lockout segment full with locked out users, refusing attempt by " + username);
+				throw new UserLockedOutException("User " + username + " locked out.");
+			}
+			attempts = buffer.getInt(offset + ATTEMPTS_OFFSET) + 1;
+			buffer.putInt(offset + ATTEMPTS_OFFSET, attempts);
+			buffer.putLong(offset + LAST_ATTEMPT_OFFSET, now);
+			if(attempts >= allowedIncorrectAttempts) {
+				buffer.putLong(offset + NEXT_ALLOWED_OFFSET, now + secondsUntilNextAllowedAttempt * 1000L);
+			}
+		}
+
+		if(attempts < allowedIncorrectAttempts) {
+			return;
+		}
+
+		logger.debug("Locking out " + username + " from changes for "
+				+ secondsUntilNextAllowedAttempt + " seconds");
+
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	@Override
+	public void allowAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		long hash = hash(username);
+		int segment = segment(hash);
+		long now = System.currentTimeMillis();
+		long nextAttemptAllowed;
+
+		synchronized(segmentLocks[segment]) {
+			int offset = find(hash, segment, now);
+			if(offset < 0) {
+				logger.debug("No lockout status found for " + username);
+				return;
+			}
+
+			int attempts = buffer.getInt(offset + ATTEMPTS_OFFSET);
+			if(attempts < allowedIncorrectAttempts) {
+				if(logger.isDebugEnabled()) {
+					logger.debug("User " + username + " tried " + attempts + "/"
+							+ allowedIncorrectAttempts + " allowed attempts.");
+				}
+				return;
+			}
+
+			nextAttemptAllowed = buffer.getLong(offset + NEXT_ALLOWED_OFFSET);
+			if(nextAttemptAllowed <= now) {
+				logger.debug("Timer expired, user " + username + " can attempt changes again.");
+				clear(offset);
+				return;
+			}
+		}
+
+		logger.info("User " + username + " used all their attempts. Locked out.");
+		if(logger.isDebugEnabled()) {
+			logger.debug("--> next change allowed in " + (nextAttemptAllowed - now) / 1000 + " seconds.");
+		}
+
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	@Override
+	public void clearIncorrectAttempts(String username) {
+		if(username == null) {
+			return;
+		}
+		long hash = hash(username);
+		int segment = segment(hash);
+		synchronized(segmentLocks[segment]) {
+			int offset = find(hash, segment, System.currentTimeMillis());
+			if(offset >= 0) {
+				clear(offset);
+			}
+		}
+	}
+
+	/**
+	 * <p>Finds the live record for the hash in its segment.</p>
+	 * @return byte offset of the record, or -1 if there is none
+	 */
+	private int find(long hash, int segment, long now) {
+		int home = (int) hash & (slotCount - 1);
+		int first = segment * SEGMENT_SIZE;
+		for(int i=0;i<SEGMENT_SIZE;i++) {
+			int offset = offset(first + ((home + i) & (SEGMENT_SIZE - 1)));
+			if(buffer.getLong(offset + HASH_OFFSET) == hash) {
+				return isLive(offset, now) ? offset : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * <p>Finds the live record for the hash, or claims a free or expired
+	 * record in its segment for it. Failing that, the record closest to
+	 * expiry that isn't locked out is taken over.</p>
+	 * @return byte offset of the record, or -1 if every record in the
+	 * segment is locked out
+	 */
+	private int findOrAllocate(long hash, int segment, long now) {
+		int home = (int) hash & (slotCount - 1);
+		int first = segment * SEGMENT_SIZE;
+		int free = -1;
+		int oldest = -1;
+		long oldestAttempt = Long.MAX_VALUE;
+
+		for(int i=0;i<SEGMENT_SIZE;i++) {
+			int offset = offset(first + ((home + i) & (SEGMENT_SIZE - 1)));
+			long slotHash = buffer.getLong(offset + HASH_OFFSET);
+			if(slotHash == hash) {
+				if(!isLive(offset, now)) {
+					clear(offset);
+					buffer.putLong(offset + HASH_OFFSET, hash);
+				}
+				return offset;
+			}
+			if(free < 0 && (slotHash == 0 || !isLive(offset, now))) {
+				free = offset;
+			} else if(!isLockedOut(offset, now)) {
+				long lastAttempt = buffer.getLong(offset + LAST_ATTEMPT_OFFSET);
+				if(lastAttempt < oldestAttempt) {
+					oldestAttempt = lastAttempt;
+					oldest = offset;
+				}
+			}
+		}
+
+		int offset = free >= 0 ? free : oldest;
+		if(offset >= 0) {
+			clear(offset);
+			buffer.putLong(offset + HASH_OFFSET, hash);
+		}
+		return offset;
+	}
+
+	private boolean isLive(int offset, long now) {
+		long lastAttempt = buffer.getLong(offset + LAST_ATTEMPT_OFFSET);
+		return isLockedOut(offset, now) || lastAttempt + entryTimeToLiveSeconds * 1000L > now;
+	}
+
+	private boolean isLockedOut(int offset, long now) {
+		return buffer.getLong(offset + NEXT_ALLOWED_OFFSET) > now;
+	}
+
+	private void clear(int offset) {
+		buffer.putLong(offset + HASH_OFFSET, 0);
+		buffer.putInt(offset + ATTEMPTS_OFFSET, 0);
+		buffer.putLong(offset + LAST_ATTEMPT_OFFSET, 0);
+		buffer.putLong(offset + NEXT_ALLOWED_OFFSET, 0);
+	}
+
+	private int segment(long hash) {
+		return ((int) hash & (slotCount - 1)) / SEGMENT_SIZE;
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	/**
+	 * <p>SipHash-2-4 of the username's UTF-8 bytes under the file's key.
+	 * Never returns 0, which marks an empty record.</p>
+	 */
+	private long hash(String username) {
+		byte[] bytes = username.getBytes(UTF8);
+		long v0 = key0 ^ 0x736f6d6570736575L;
+		long v1 = key1 ^ 0x646f72616e646f6dL;
+		long v2 = key0 ^ 0x6c7967656e657261L;
+		long v3 = key1 ^ 0x7465646279746573L;
+
+		int end = bytes.length - bytes.length % 8;
+		for(int i=0;i<=end;i+=8) {
+			long m;
+			if(i < end) {
+				m = littleEndianLong(bytes, i, 8);
+			} else {
+				// last block: the remaining bytes, with the length in the top byte
+				m = littleEndianLong(bytes, i, bytes.length - end) | ((long) bytes.length << 56);
+			}
+			v3 ^= m;
+			for(int round=0;round<2;round++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+
+		v2 ^= 0xff;
+		for(int round=0;round<4;round++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		long hash = v0 ^ v1 ^ v2 ^ v3;
+		return hash == 0 ? 1 : hash;
+	}
+
+	private static long littleEndianLong(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for(int i=0;i<length;i++) {
+			value |= (bytes[offset + i] & 0xffL) << (8 * i);
+		}
+		return value;
+	}
+
+	/**
+	 * @param file path of the lockout file, created if it doesn't exist
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param maxEntries number of records in the file, rounded up to a power
+	 * of two. Changing it requires deleting the file.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param entryTimeToLiveSeconds number of seconds after a user's last
+	 * incorrect attempt (or the end of their lockout) that their attempts
+	 * are forgotten
+	 */
+	public void setEntryTimeToLiveSeconds(int entryTimeToLiveSeconds) {
+		this.entryTimeToLiveSeconds = entryTimeToLiveSeconds;
+	}
+
+	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
+		this.allowedIncorrectAttempts = allowedIncorrectAttempts;
+	}
+
+	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
+		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
+	}
+}
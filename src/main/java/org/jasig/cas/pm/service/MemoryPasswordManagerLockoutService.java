@@ -1,80 +1,148 @@
 package org.jasig.cas.pm.service;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.constraints.Min;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.cas.pm.UserLockedOutException;
 
+/**
+ * <p>In-memory lockout service. Counters are updated atomically, and all
+ * times come from System.nanoTime().</p>
+ *
+ * <p>The number of tracked users is capped at maxEntries so that attempts
+ * against millions of random usernames can't exhaust the heap. Entries
+ * expire entryTimeToLiveSeconds after the last incorrect attempt (or when
+ * their lockout ends, if later). Expiry is driven by a timer wheel that is
+ * advanced by incoming requests, so no background thread is needed and no
+ * request scans the whole map. When the cap is reached, the entries closest
+ * to expiry are evicted first, a batch of maxEntries / 64 at a time so the
+ * cost is shared by many new users. Users who are currently locked out are
+ * never evicted. If every tracked user is locked out, new users are refused
+ * as if locked out rather than let their attempts go uncounted.</p>
+ */
 public class MemoryPasswordManagerLockoutService implements
 		PasswordManagerLockoutService {
-	
+
+	private static final int WHEEL_SIZE = 256;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private final ConcurrentHashMap<String,UserLockoutStatus> lockoutMap = new ConcurrentHashMap<String,UserLockoutStatus>();
+	private final AtomicInteger entryCount = new AtomicInteger();
+	private final AtomicLong expirationCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final ConcurrentLinkedQueue<UserLockoutStatus>[] wheel;
+	private final long origin = System.nanoTime();
+	private final AtomicLong processedTick = new AtomicLong();
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	/** Tick at which an eviction pass last found only locked out users, or -1. */
+	private volatile long fullTick = -1;
 	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
 	private int secondsUntilNextAllowedAttempt = 0;
-	
+	@Min(1)
+	private int maxEntries = 100000;
+	@Min(1)
+	private int entryTimeToLiveSeconds = 3600;
+	private long tickNanos = tickNanos(entryTimeToLiveSeconds);
+
+	@SuppressWarnings("unchecked")
+	public MemoryPasswordManagerLockoutService() {
+		wheel = new ConcurrentLinkedQueue[WHEEL_SIZE];
+		for(int i=0;i<WHEEL_SIZE;i++) {
+			wheel[i] = new ConcurrentLinkedQueue<UserLockoutStatus>();
+		}
+	}
+
 	@Override
 	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
-		
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
 		logger.debug("Registering incorrect attempt for " + username);
-		
-		UserLockoutStatus status = lockoutMap.get(username);
-		if(status == null) {
-			status = new UserLockoutStatus(username);
-			lockoutMap.put(username, status);
+
+		long now = System.nanoTime();
+		expireStaleEntries(now);
+
+		UserLockoutStatus status = getOrCreateStatus(username, now);
+		int attempts = status.incrementIncorrectAttempts(now);
+		if(lockoutMap.get(username) != status) {
+			// the entry expired under us, count the attempt on a new one
+			status = getOrCreateStatus(username, now);
+			attempts = status.incrementIncorrectAttempts(now);
 		}
-		
-		int attempts = status.incrementIncorrectAttempts();
-		
+		if(lockoutMap.get(username) != status) {
+			logger.warn("Lockout map full with locked out users, refusing attempt by " + username);
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+
+		long expires = now + entryTimeToLiveSeconds * NANOS_PER_SECOND;
+
 		if(attempts < allowedIncorrectAttempts) {
+			schedule(status, expires);
 			return;
 		}
-		
+
 		// set the lockout time
-		Date d = new Date();
-		d.setTime(d.getTime() + secondsUntilNextAllowedAttempt * 1000);
-		logger.debug("Locking out " + username + " from changes until " + d);
-		status.setNextAttemptAllowed(d);
-		
+		long nextAttemptAllowed = now + secondsUntilNextAllowedAttempt * NANOS_PER_SECOND;
+		status.lockOut(nextAttemptAllowed);
+		schedule(status, nextAttemptAllowed - expires > 0 ? nextAttemptAllowed : expires);
+		logger.debug("Locking out " + username + " from changes for "
+				+ secondsUntilNextAllowedAttempt + " seconds");
+
 		throw new UserLockedOutException("User " + username + " locked out.");
 	}
 
 	@Override
 	public void allowAttempt(String username) throws UserLockedOutException {
-		
+
 		if(username == null) {
 			logger.debug("Null username.");
 			return;
 		}
-		
+
+		long now = System.nanoTime();
+		expireStaleEntries(now);
+
 		UserLockoutStatus status = lockoutMap.get(username);
-		
+
 		if(status == null) {
 			logger.debug("No lockout status found for " + username);
 			return;
 		}
-		
+
 		if(status.getIncorrectAttempts() < allowedIncorrectAttempts) {
-			logger.debug("User " + username + " tried " 
-					+ status.getIncorrectAttempts() + "/" 
-					+ allowedIncorrectAttempts + " allowed attempts.");
+			if(logger.isDebugEnabled()) {
+				logger.debug("User " + username + " tried "
+						+ status.getIncorrectAttempts() + "/"
+						+ allowedIncorrectAttempts + " allowed attempts.");
+			}
 			return;
 		}
-		
-		Date now = new Date();
-		
-		if(now.after(status.getNextAttemptAllowed())) {
+
+		// a user over the limit who isn't flagged yet is being locked out
+		// by another thread right now
+		if(status.isLockedOut() && !status.isLockedOut(now)) {
 			logger.debug("Timer expired, user " + username + " can attempt changes again.");
-			lockoutMap.remove(username);
+			removeStatus(username, status);
 			return;
 		}
 
 		logger.info("User " + username + " used all their attempts. Locked out.");
-		if(logger.isDebugEnabled()) {
-			Date next = status.getNextAttemptAllowed();
-			long diff = (next.getTime() - now.getTime()) / 1000;
+		if(logger.isDebugEnabled() && status.isLockedOut()) {
+			long diff = (status.getNextAttemptAllowed() - now) / NANOS_PER_SECOND;
 			logger.debug("--> next change allowed in " + diff + " seconds.");
 		}
 
@@ -83,7 +151,164 @@ public class MemoryPasswordManagerLockoutService implements
 
 	@Override
 	public void clearIncorrectAttempts(String username) {
-		lockoutMap.remove(username);		
+		if(username == null) {
+			return;
+		}
+		if(lockoutMap.remove(username) != null) {
+			entryCount.decrementAndGet();
+		}
+	}
+
+	private UserLockoutStatus getOrCreateStatus(String username, long now) {
+
+		UserLockoutStatus status = lockoutMap.get(username);
+		if(status != null) {
+			return status;
+		}
+
+		UserLockoutStatus created = new UserLockoutStatus(username);
+		status = lockoutMap.putIfAbsent(username, created);
+		if(status != null) {
+			return status;
+		}
+
+		if(entryCount.incrementAndGet() > maxEntries && !evict(now)) {
+			// everyone left is locked out; stay within the bound rather
+			// than grow without limit. The caller sees the entry isn't in
+			// the map.
+			removeStatus(username, created);
+		}
+		return created;
+	}
+
+	private boolean removeStatus(String username, UserLockoutStatus status) {
+		if(lockoutMap.remove(username, status)) {
+			entryCount.decrementAndGet();
+			fullTick = -1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Puts the entry in the timer wheel bucket for the tick at which it
+	 * expires, unless it's already there.</p>
+	 */
+	private void schedule(UserLockoutStatus status, long expires) {
+		long tick = toTick(expires) + 1;
+		if(status.getExpiryTick() != tick) {
+			status.setExpiryTick(tick);
+			wheel[(int) (tick & WHEEL_MASK)].offer(status);
+		}
+	}
+
+	/**
+	 * <p>Advances the timer wheel to the current tick, removing entries
+	 * that have expired. Only one thread sweeps at a time; others skip it.</p>
+	 */
+	private void expireStaleEntries(long now) {
+		long nowTick = toTick(now);
+		if(nowTick <= processedTick.get() || !sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long first = processedTick.get() + 1;
+			long last = Math.min(nowTick, first + WHEEL_SIZE - 1);
+			for(long tick = first; tick <= last; tick++) {
+				sweepBucket(tick, nowTick, now, Integer.MAX_VALUE);
+			}
+			processedTick.set(nowTick);
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	/**
+	 * <p>Evicts entries that aren't locked out, starting with those closest
+	 * to expiry, until the map is a batch below maxEntries. If another
+	 * thread is sweeping, waits for it and checks again. A pass that finds
+	 * only locked out users isn't repeated until the next tick or removal,
+	 * so a full map costs new users nothing.</p>
+	 * @return false if the map is still over maxEntries
+	 */
+	private boolean evict(long now) {
+		long nowTick = toTick(now);
+		while(entryCount.get() > maxEntries) {
+			if(fullTick == nowTick) {
+				return false;
+			}
+			if(!sweeping.compareAndSet(false, true)) {
+				Thread.yield();
+				continue;
+			}
+			try {
+				int target = maxEntries - Math.max(1, maxEntries / 64);
+				long first = processedTick.get() + 1;
+				int removed = 0;
+				for(int i=0;i<WHEEL_SIZE && entryCount.get() > target;i++) {
+					removed += sweepBucket(first + i, nowTick, now, target);
+				}
+				// other threads may have added users since; only a pass
+				// that found nothing to remove means the map is full
+				if(removed == 0 && entryCount.get() > maxEntries) {
+					fullTick = nowTick;
+				}
+			} finally {
+				sweeping.set(false);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param evictDownTo number of entries to evict down to, or
+	 * Integer.MAX_VALUE to only expire
+	 * @return number of entries expired or evicted
+	 */
+	private int sweepBucket(long tick, long nowTick, long now, int evictDownTo) {
+
+		int index = (int) (tick & WHEEL_MASK);
+		ConcurrentLinkedQueue<UserLockoutStatus> bucket = wheel[index];
+		List<UserLockoutStatus> keep = new ArrayList<UserLockoutStatus>();
+
+		int removed = 0;
+		UserLockoutStatus status;
+		while((status = bucket.poll()) != null) {
+			long expiryTick = status.getExpiryTick();
+			if((expiryTick & WHEEL_MASK) != index || lockoutMap.get(status.getUsername()) != status) {
+				// rescheduled into another bucket, or already removed
+				continue;
+			}
+			if(status.isLockedOut(now)) {
+				keep.add(status);
+			} else if(expiryTick <= nowTick) {
+				if(removeStatus(status.getUsername(), status)) {
+					expirationCount.incrementAndGet();
+					removed++;
+				}
+			} else if(entryCount.get() > evictDownTo) {
+				if(removeStatus(status.getUsername(), status)) {
+					evictionCount.incrementAndGet();
+					removed++;
+				}
+			} else {
+				// due on a later turn of the wheel
+				keep.add(status);
+			}
+		}
+
+		for(UserLockoutStatus kept : keep) {
+			bucket.offer(kept);
+		}
+		return removed;
+	}
+
+	private long toTick(long nanos) {
+		return (nanos - origin) / tickNanos;
+	}
+
+	private static long tickNanos(int entryTimeToLiveSeconds) {
+		return Math.max(NANOS_PER_SECOND, entryTimeToLiveSeconds * NANOS_PER_SECOND / WHEEL_SIZE);
 	}
 
 	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
@@ -93,4 +318,33 @@ public class MemoryPasswordManagerLockoutService implements
 	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
 		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
 	}
+
+	/**
+	 * @param maxEntries maximum number of users tracked at once
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param entryTimeToLiveSeconds number of seconds after a user's last
+	 * incorrect attempt (or the end of their lockout) that their attempts
+	 * are forgotten
+	 */
+	public void setEntryTimeToLiveSeconds(int entryTimeToLiveSeconds) {
+		this.entryTimeToLiveSeconds = entryTimeToLiveSeconds;
+		this.tickNanos = tickNanos(entryTimeToLiveSeconds);
+	}
+
+	public int getEntryCount() {
+		return entryCount.get();
+	}
+
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
 }
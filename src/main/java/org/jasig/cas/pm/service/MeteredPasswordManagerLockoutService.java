@@ -0,0 +1,68 @@
+package org.jasig.cas.pm.service;
+
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.pm.UserLockedOutException;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.util.OperationEvents;
+
+/**
+ * <p>Counts what another PasswordManagerLockoutService does: incorrect
+ * attempts registered, attempts rejected because the user is locked out,
+ * and lockouts cleared. The counters are published as pm.lockout.* in the
+ * MetricsRegistry. Each check of whether a user may attempt a password is
+ * also recorded as a lockout.check event in OperationEvents.</p>
+ */
+public class MeteredPasswordManagerLockoutService implements PasswordManagerLockoutService {
+
+	@NotNull
+	private PasswordManagerLockoutService lockoutService;
+	@NotNull
+	private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
+
+	@Override
+	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
+		metricsRegistry.increment("pm.lockout.incorrect-attempts");
+		try {
+			lockoutService.registerIncorrectAttempt(username);
+		} catch(UserLockedOutException ex) {
+			metricsRegistry.increment("pm.lockout.rejected");
+			throw ex;
+		}
+	}
+
+	@Override
+	public void allowAttempt(String username) throws UserLockedOutException {
+		long start = System.nanoTime();
+		try {
+			lockoutService.allowAttempt(username);
+			OperationEvents.record("lockout.check", getServiceName(), System.nanoTime() - start, "allowed");
+		} catch(UserLockedOutException ex) {
+			OperationEvents.record("lockout.check", getServiceName(), System.nanoTime() - start, "locked-out");
+			metricsRegistry.increment("pm.lockout.rejected");
+			throw ex;
+		}
+	}
+
+	@Override
+	public void clearIncorrectAttempts(String username) {
+		metricsRegistry.increment("pm.lockout.cleared");
+		lockoutService.clearIncorrectAttempts(username);
+	}
+
+	private String getServiceName() {
+		return lockoutService.getClass().getSimpleName();
+	}
+
+	/**
+	 * @param lockoutService the lockout service doing the work
+	 */
+	public void setLockoutService(PasswordManagerLockoutService lockoutService) {
+		this.lockoutService = lockoutService;
+	}
+
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+}
@@ -0,0 +1,23 @@
+package org.jasig.cas.pm.service;
+
+import org.jasig.cas.pm.RateLimitExceededException;
+
+/**
+ * <p>Service for limiting how often password manager requests can be made
+ * for a user and from a client address. Unlike the
+ * PasswordManagerLockoutService, every request counts, not just incorrect
+ * attempts, so it should be checked before any directory call is made.</p>
+ */
+public interface PasswordManagerRateLimitService {
+
+	/**
+	 * <p>Counts a request and checks it against the limits.</p>
+	 * @param username user the request is for, may be null
+	 * @param remoteAddress address of the client making the request, may
+	 * be null
+	 * @throws RateLimitExceededException if the user, the address or the
+	 * pair of them has made too many requests
+	 */
+	public void allowRequest(String username, String remoteAddress) throws RateLimitExceededException;
+
+}
@@ -2,6 +2,7 @@ package org.jasig.cas.pm.service;
 
 import org.jasig.cas.pm.UserLockedOutException;
 import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
 
 /**
  * <p>Password manager service interface.</p>
@@ -34,6 +35,15 @@ public interface PasswordManagerService {
 	 */
 	public SecurityChallenge getDefaultSecurityChallenge(String username);
 	
+	/**
+	 * <p>Gets both the user's custom security challenge and their default
+	 * security challenge in one lookup.</p>
+	 * @param username Username to retrieve security challenge questions for
+	 * @return UserSecurityChallenges object holding the custom and default
+	 * challenges, either of which may be null
+	 */
+	public UserSecurityChallenges getSecurityChallenges(String username);
+	
 	/**
 	 * <p>Sets the user's password.</p> 
 	 * @param username Username of the password to set
@@ -56,4 +66,15 @@ public interface PasswordManagerService {
 	 */
 	public void changeUserPassword(String username, String oldPassword, String newPassword)
 	 	throws UserLockedOutException;
+	
+	/**
+	 * <p>Checks the user's password and reports the password policy state
+	 * the directory returned with the check, e.g. for deciding whether to
+	 * warn about or force a password change.</p>
+	 * @param username Username to check
+	 * @param password The user's unencrypted password
+	 * @return PasswordPolicyInfo holding the outcome of the check and any
+	 * expiry, grace login, lockout or change-after-reset state
+	 */
+	public PasswordPolicyInfo checkUserPassword(String username, String password);
 }
@@ -0,0 +1,92 @@
+package org.jasig.cas.pm.service;
+
+import java.io.Serializable;
+
+/**
+ * <p>Bean for passing around the outcome of a password bind along with any
+ * password policy state the server reported with it (draft-behera
+ * password policy response control).</p>
+ */
+public class PasswordPolicyInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private final boolean authenticated;
+	private final long secondsUntilExpiration;
+	private final int graceLoginsRemaining;
+	private final PasswordPolicyError error;
+
+	/**
+	 * @param authenticated true if the bind succeeded
+	 * @param secondsUntilExpiration seconds until the password expires, or
+	 * -1 if the server didn't say
+	 * @param graceLoginsRemaining grace logins left after expiry, or -1 if
+	 * the server didn't say
+	 * @param error policy error reported by the server, or null
+	 */
+	public PasswordPolicyInfo(boolean authenticated, long secondsUntilExpiration,
+			int graceLoginsRemaining, PasswordPolicyError error) {
+		this.authenticated = authenticated;
+		this.secondsUntilExpiration = secondsUntilExpiration;
+		this.graceLoginsRemaining = graceLoginsRemaining;
+		this.error = error;
+	}
+
+	public PasswordPolicyInfo(boolean authenticated) {
+		this(authenticated, -1, -1, null);
+	}
+
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	public long getSecondsUntilExpiration() {
+		return secondsUntilExpiration;
+	}
+
+	public int getGraceLoginsRemaining() {
+		return graceLoginsRemaining;
+	}
+
+	public PasswordPolicyError getError() {
+		return error;
+	}
+
+	/**
+	 * <p>True if the password is about to expire or is being used on a
+	 * grace login, i.e. the user should be warned.</p>
+	 */
+	public boolean isWarn() {
+		return secondsUntilExpiration >= 0 || graceLoginsRemaining >= 0;
+	}
+
+	public boolean isPasswordExpired() {
+		return error == PasswordPolicyError.PASSWORD_EXPIRED;
+	}
+
+	public boolean isAccountLocked() {
+		return error == PasswordPolicyError.ACCOUNT_LOCKED;
+	}
+
+	public boolean isChangeAfterReset() {
+		return error == PasswordPolicyError.CHANGE_AFTER_RESET;
+	}
+
+	/**
+	 * <p>True if the password was correct, even if the bind was refused
+	 * because it has expired or must be changed after a reset. The server
+	 * only reports those errors after checking the password.</p>
+	 */
+	public boolean isPasswordCorrect() {
+		return authenticated || isPasswordExpired() || isChangeAfterReset();
+	}
+
+	/**
+	 * <p>Password policy errors, in the order of the ENUMERATED values of
+	 * the draft-behera response control.</p>
+	 */
+	public enum PasswordPolicyError {
+		PASSWORD_EXPIRED, ACCOUNT_LOCKED, CHANGE_AFTER_RESET, PASSWORD_MOD_NOT_ALLOWED,
+		MUST_SUPPLY_OLD_PASSWORD, INSUFFICIENT_PASSWORD_QUALITY, PASSWORD_TOO_SHORT,
+		PASSWORD_TOO_YOUNG, PASSWORD_IN_HISTORY
+	};
+}
@@ -0,0 +1,240 @@
+package org.jasig.cas.pm.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.constraints.Min;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.RateLimitExceededException;
+import org.jasig.cas.pm.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Rate limit service using sliding window counters. Requests are
+ * counted per username, per client address and per username/address pair,
+ * each with its own limit over the same window. A limit of 0 disables that
+ * counter. The per-address limit is what stops a single client spraying one
+ * password across many usernames.</p>
+ *
+ * <p>Each window is approximated from the count of the current fixed
+ * window plus a share of the previous one, so a counter is three numbers
+ * rather than a list of timestamps. Counters are spread over SHARD_COUNT
+ * bounded caches to keep lock contention down, and the least recently used
+ * are dropped once maxTrackedKeys is reached.</p>
+ *
+ * <p>A request rejected by one limit isn't counted against the others, so
+ * a client over its per-address limit doesn't use up the allowance of the
+ * usernames it tries.</p>
+ */
+public class SlidingWindowRateLimitService implements
+		PasswordManagerRateLimitService, InitializingBean {
+
+	private static final int SHARD_COUNT = 16;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	@Min(1)
+	private int windowSeconds = 60;
+	@Min(0)
+	private int maxRequestsPerUsername = 0;
+	@Min(0)
+	private int maxRequestsPerAddress = 0;
+	@Min(0)
+	private int maxRequestsPerUsernameAndAddress = 0;
+	@Min(SHARD_COUNT)
+	private int maxTrackedKeys = 100000;
+
+	private Limiter usernameLimiter;
+	private Limiter addressLimiter;
+	private Limiter usernameAndAddressLimiter;
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		usernameLimiter = createLimiter(maxRequestsPerUsername);
+		addressLimiter = createLimiter(maxRequestsPerAddress);
+		usernameAndAddressLimiter = createLimiter(maxRequestsPerUsernameAndAddress);
+	}
+
+	@Override
+	public void allowRequest(String username, String remoteAddress) throws RateLimitExceededException {
+
+		long now = System.nanoTime() / 1000000;
+		String user = username == null ? null : username.toLowerCase();
+
+		String pair = user != null && remoteAddress != null ? user + "@" + remoteAddress : null;
+
+		// check the pair first so a client hammering one user is stopped
+		// without using up that user's allowance from other addresses
+		if(pair != null && !tryAcquire(usernameAndAddressLimiter, pair, now)) {
+			reject("User " + username + " from " + remoteAddress);
+		}
+		if(remoteAddress != null && !tryAcquire(addressLimiter, remoteAddress, now)) {
+			release(usernameAndAddressLimiter, pair, now);
+			reject("Address " + remoteAddress);
+		}
+		if(user != null && !tryAcquire(usernameLimiter, user, now)) {
+			release(usernameAndAddressLimiter, pair, now);
+			release(addressLimiter, remoteAddress, now);
+			reject("User " + username);
+		}
+	}
+
+	private void reject(String who) throws RateLimitExceededException {
+		rejectedCount.incrementAndGet();
+		logger.info(who + " exceeded the request rate limit.");
+		throw new RateLimitExceededException(who + " exceeded the request rate limit.");
+	}
+
+	private boolean tryAcquire(Limiter limiter, String key, long now) {
+		return limiter == null || limiter.tryAcquire(key, now);
+	}
+
+	/**
+	 * <p>Gives back a request counted by tryAcquire at the given time.</p>
+	 */
+	private void release(Limiter limiter, String key, long acquiredAt) {
+		if(limiter != null && key != null) {
+			limiter.release(key, acquiredAt);
+		}
+	}
+
+	private Limiter createLimiter(int maxRequests) {
+		if(maxRequests <= 0) {
+			return null;
+		}
+		return new Limiter(maxRequests, windowSeconds * 1000L, maxTrackedKeys / SHARD_COUNT);
+	}
+
+	/**
+	 * @param windowSeconds length of the sliding window
+	 */
+	public void setWindowSeconds(int windowSeconds) {
+		this.windowSeconds = windowSeconds;
+	}
+
+	/**
+	 * @param maxRequestsPerUsername requests allowed per window for one
+	 * username from any address, or 0 for no limit
+	 */
+	public void setMaxRequestsPerUsername(int maxRequestsPerUsername) {
+		this.maxRequestsPerUsername = maxRequestsPerUsername;
+	}
+
+	/**
+	 * @param maxRequestsPerAddress requests allowed per window from one
+	 * client address for any username, or 0 for no limit
+	 */
+	public void setMaxRequestsPerAddress(int maxRequestsPerAddress) {
+		this.maxRequestsPerAddress = maxRequestsPerAddress;
+	}
+
+	/**
+	 * @param maxRequestsPerUsernameAndAddress requests allowed per window for
+	 * one username from one client address, or 0 for no limit
+	 */
+	public void setMaxRequestsPerUsernameAndAddress(int maxRequestsPerUsernameAndAddress) {
+		this.maxRequestsPerUsernameAndAddress = maxRequestsPerUsernameAndAddress;
+	}
+
+	/**
+	 * @param maxTrackedKeys maximum number of counters kept for each of the
+	 * three limits
+	 */
+	public void setMaxTrackedKeys(int maxTrackedKeys) {
+		this.maxTrackedKeys = maxTrackedKeys;
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * <p>Counters for one kind of key.</p>
+	 */
+	private static class Limiter {
+
+		private final int maxRequests;
+		private final long windowMillis;
+		private final ExpiringLruCache<String,SlidingWindow>[] shards;
+
+		@SuppressWarnings("unchecked")
+		private Limiter(int maxRequests, long windowMillis, int maxKeysPerShard) {
+			this.maxRequests = maxRequests;
+			this.windowMillis = windowMillis;
+			this.shards = new ExpiringLruCache[SHARD_COUNT];
+			for(int i=0;i<SHARD_COUNT;i++) {
+				// an idle counter is worthless after two windows, but one in
+				// use must be kept however long it has been counting
+				shards[i] = new ExpiringLruCache<String,SlidingWindow>(maxKeysPerShard, 2 * windowMillis, true);
+			}
+		}
+
+		private boolean tryAcquire(String key, long now) {
+			ExpiringLruCache<String,SlidingWindow> shard = shards[(key.hashCode() & 0x7FFFFFFF) % SHARD_COUNT];
+			SlidingWindow window = shard.get(key);
+			if(window == null) {
+				SlidingWindow created = new SlidingWindow(now);
+				window = shard.putIfAbsent(key, created);
+				if(window == null) {
+					window = created;
+				}
+			}
+			return window.tryAcquire(now, windowMillis, maxRequests);
+		}
+
+		private void release(String key, long acquiredAt) {
+			SlidingWindow window = shards[(key.hashCode() & 0x7FFFFFFF) % SHARD_COUNT].get(key);
+			if(window != null) {
+				window.release(acquiredAt, windowMillis);
+			}
+		}
+	}
+
+	/**
+	 * <p>Sliding window counter: the requests in the current fixed window
+	 * plus the previous window's count weighted by how much of it still
+	 * overlaps the sliding window.</p>
+	 */
+	private static class SlidingWindow {
+
+		private long windowStart;
+		private int currentCount;
+		private int previousCount;
+
+		private SlidingWindow(long now) {
+			this.windowStart = now;
+		}
+
+		private synchronized boolean tryAcquire(long now, long windowMillis, int maxRequests) {
+			long elapsed = now - windowStart;
+			if(elapsed >= windowMillis) {
+				previousCount = elapsed < 2 * windowMillis ? currentCount : 0;
+				currentCount = 0;
+				windowStart = now - elapsed % windowMillis;
+				elapsed = now - windowStart;
+			}
+			double previousWeight = (windowMillis - elapsed) / (double) windowMillis;
+			if(previousCount * previousWeight + currentCount >= maxRequests) {
+				return false;
+			}
+			currentCount++;
+			return true;
+		}
+
+		/**
+		 * <p>Takes back a request counted at acquiredAt, from whichever
+		 * window it was counted in, unless that has slid out already.</p>
+		 */
+		private synchronized void release(long acquiredAt, long windowMillis) {
+			if(acquiredAt >= windowStart) {
+				if(currentCount > 0) {
+					currentCount--;
+				}
+			} else if(acquiredAt >= windowStart - windowMillis && previousCount > 0) {
+				previousCount--;
+			}
+		}
+	}
+}
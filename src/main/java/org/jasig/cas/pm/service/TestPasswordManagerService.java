@@ -7,6 +7,7 @@ import java.util.Random;
 import org.jasig.cas.pm.service.ChangePasswordResult.Result;
 import org.jasig.cas.pm.web.flow.SecurityChallenge;
 import org.jasig.cas.pm.web.flow.SecurityQuestion;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
 
 public class TestPasswordManagerService implements PasswordManagerService {
 
@@ -44,6 +45,12 @@ public class TestPasswordManagerService implements PasswordManagerService {
 		return securityChallenge;	
 	}
 
+	@Override
+	public UserSecurityChallenges getSecurityChallenges(String username) {
+		return new UserSecurityChallenges(getUserSecurityChallenge(username),
+				getDefaultSecurityChallenge(username));
+	}
+
 	@Override
 	public void setUserPassword(String username, String password) {
 		
@@ -85,6 +92,11 @@ public class TestPasswordManagerService implements PasswordManagerService {
 		}
 	}
 
+	@Override
+	public PasswordPolicyInfo checkUserPassword(String username, String password) {
+		return new PasswordPolicyInfo(random.nextFloat() < 0.5);
+	}
+
 	@Override
 	public void setUserSecurityChallenge(String username,
 			SecurityChallenge securityChallenge) {
@@ -1,56 +1,94 @@
 package org.jasig.cas.pm.service;
 
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+/**
+ * <p>Per-user lockout state kept by MemoryPasswordManagerLockoutService.
+ * All times are System.nanoTime() values, so they aren't affected by wall
+ * clock changes. The counter is updated atomically without allocating an
+ * AtomicInteger per user.</p>
+ */
 public class UserLockoutStatus {
 
-	private String username;
-	private int incorrectAttempts = 0;
-	private Date nextAttemptAllowed;
-	
-	public UserLockoutStatus() { }
-	
+	private static final AtomicIntegerFieldUpdater<UserLockoutStatus> INCORRECT_ATTEMPTS =
+		AtomicIntegerFieldUpdater.newUpdater(UserLockoutStatus.class, "incorrectAttempts");
+
+	private final String username;
+	private volatile int incorrectAttempts = 0;
+	private volatile long lastIncorrectAttempt;
+	private volatile long nextAttemptAllowed;
+	private volatile boolean lockedOut = false;
+	/** Timer wheel tick this entry is due to expire at. */
+	private volatile long expiryTick;
+
 	public UserLockoutStatus(String username) {
 		this.username = username;
 	}
-	
+
 	public String getUsername() {
 		return username;
 	}
-	
-	public void setUsername(String username) {
-		this.username = username;
-	}
-	
+
 	/**
 	 * <p>Gets the number of bad security question/password change attempts.</p>
 	 */
 	public int getIncorrectAttempts() {
 		return incorrectAttempts;
 	}
-	
-	public void setIncorrectAttempts(int incorrectAttempts) {
-		this.incorrectAttempts = incorrectAttempts;
-	}
-	
+
 	/**
 	 * <p>Increments the number of bad security question/password change attempts.</p>
+	 * @param now current System.nanoTime()
 	 * @return The new value (after incrementing) of bad attempts.
 	 */
-	public int incrementIncorrectAttempts() {
-		return ++this.incorrectAttempts;
+	public int incrementIncorrectAttempts(long now) {
+		this.lastIncorrectAttempt = now;
+		return INCORRECT_ATTEMPTS.incrementAndGet(this);
 	}
-	
+
 	/**
-	 * <p>Gets the time that the user will be allowed to attempt to answer
-	 * their security questions or change their password again.
+	 * <p>Gets the System.nanoTime() of the most recent bad attempt.</p>
 	 */
-	public Date getNextAttemptAllowed() {
-		return nextAttemptAllowed;
+	public long getLastIncorrectAttempt() {
+		return lastIncorrectAttempt;
 	}
-	
-	public void setNextAttemptAllowed(
-			Date nextAttemptAllowed) {
+
+	/**
+	 * <p>Locks the user out until the given time.</p>
+	 * @param nextAttemptAllowed System.nanoTime() at which the user may try
+	 * again
+	 */
+	public void lockOut(long nextAttemptAllowed) {
 		this.nextAttemptAllowed = nextAttemptAllowed;
+		this.lockedOut = true;
+	}
+
+	/**
+	 * <p>Checks if the user is locked out at the given time.</p>
+	 * @param now current System.nanoTime()
+	 */
+	public boolean isLockedOut(long now) {
+		return lockedOut && now - nextAttemptAllowed < 0;
+	}
+
+	/**
+	 * <p>Gets the System.nanoTime() at which the user will be allowed to
+	 * attempt to answer their security questions or change their password
+	 * again. Only meaningful once the user has been locked out.</p>
+	 */
+	public long getNextAttemptAllowed() {
+		return nextAttemptAllowed;
+	}
+
+	public boolean isLockedOut() {
+		return lockedOut;
+	}
+
+	long getExpiryTick() {
+		return expiryTick;
+	}
+
+	void setExpiryTick(long expiryTick) {
+		this.expiryTick = expiryTick;
 	}
 }
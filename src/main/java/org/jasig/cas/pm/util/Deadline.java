@@ -0,0 +1,94 @@
+package org.jasig.cas.pm.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.DeadlineExceededException;
+
+/**
+ * <p>Point in time by which a request's work must be done. The deadline for
+ * the current request is kept in a thread local, set by
+ * DeadlineFlowExecutionListener when a flow request starts. Code that hands
+ * work to other threads passes it on with set() and restore().</p>
+ *
+ * <p>LDAP operations take their time limits from remainingMillis() and
+ * stop with a DeadlineExceededException once it has passed. Without a
+ * current deadline, nothing is limited beyond the usual timeouts.</p>
+ */
+public final class Deadline {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+	private final long deadlineNanos;
+
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * @param millis time budget from now
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * @return the current thread's deadline, or null if there is none
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * <p>Makes the given deadline the current thread's.</p>
+	 * @param deadline new deadline, or null for none
+	 * @return the previous deadline, to pass to restore()
+	 */
+	public static Deadline set(Deadline deadline) {
+		Deadline previous = CURRENT.get();
+		if(deadline != null) {
+			CURRENT.set(deadline);
+		} else {
+			CURRENT.remove();
+		}
+		return previous;
+	}
+
+	public static void restore(Deadline previous) {
+		set(previous);
+	}
+
+	/**
+	 * <p>Caps a time limit by the current deadline.</p>
+	 * @param maxMillis the limit to apply without a deadline
+	 * @return the lesser of maxMillis and the time left, but at least 1
+	 * so the result can't be mistaken for "no limit"
+	 */
+	public static long limitMillis(long maxMillis) {
+		Deadline deadline = CURRENT.get();
+		if(deadline == null) {
+			return maxMillis;
+		}
+		long remaining = deadline.remainingMillis();
+		return Math.max(1, maxMillis > 0 ? Math.min(maxMillis, remaining) : remaining);
+	}
+
+	/**
+	 * <p>Checks the current thread's deadline, if it has one.</p>
+	 * @param operation what was about to be done, for the message
+	 * @throws DeadlineExceededException if the deadline has passed
+	 */
+	public static void checkCurrent(String operation) {
+		Deadline deadline = CURRENT.get();
+		if(deadline != null && deadline.isExpired()) {
+			throw new DeadlineExceededException("Deadline passed before " + operation);
+		}
+	}
+
+	public long remainingMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+	}
+
+	public boolean isExpired() {
+		return deadlineNanos - System.nanoTime() <= 0;
+	}
+}
@@ -0,0 +1,48 @@
+package org.jasig.cas.pm.util;
+
+/**
+ * <p>Counts the directory operations made while handling the current
+ * request. Counting is started by FlowStatisticsListener when a flow
+ * request arrives, and LdapPasswordManagerService records each server
+ * operation, on the request thread, before starting it. Outside a counted
+ * request, record() does nothing.</p>
+ */
+public final class DirectoryCalls {
+
+	private static final ThreadLocal<int[]> CURRENT = new ThreadLocal<int[]>();
+
+	private DirectoryCalls() {
+	}
+
+	/**
+	 * <p>Starts counting for the current thread, from 0.</p>
+	 */
+	public static void start() {
+		CURRENT.set(new int[1]);
+	}
+
+	public static void record() {
+		int[] count = CURRENT.get();
+		if(count != null) {
+			count[0]++;
+		}
+	}
+
+	/**
+	 * @return operations recorded since start(), or 0 if not counting
+	 */
+	public static int count() {
+		int[] count = CURRENT.get();
+		return count != null ? count[0] : 0;
+	}
+
+	/**
+	 * <p>Stops counting for the current thread.</p>
+	 * @return operations recorded since start(), or 0 if not counting
+	 */
+	public static int stop() {
+		int count = count();
+		CURRENT.remove();
+		return count;
+	}
+}
@@ -0,0 +1,172 @@
+package org.jasig.cas.pm.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Bounded, expiring cache. Used e.g. by AbstractLdapServer to cache user
+ * DNs so a single request (verify then set a password) doesn't search the
+ * directory for the same DN more than once.</p>
+ *
+ * <p>Entries are evicted least-recently-used first once maxSize is reached,
+ * and are dropped on read once they are older than timeToLiveMillis. With
+ * expireAfterAccess, an entry's time to live starts again on every read
+ * instead, so only entries left unused that long are dropped.</p>
+ */
+public class ExpiringLruCache<K,V> {
+
+	private final int maxSize;
+	private final long timeToLiveMillis;
+	private final boolean expireAfterAccess;
+	private final Map<K,CacheEntry<V>> entries;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public ExpiringLruCache(int maxSize, long timeToLiveMillis) {
+		this(maxSize, timeToLiveMillis, false);
+	}
+
+	/**
+	 * @param maxSize maximum number of entries
+	 * @param timeToLiveMillis how long an entry is kept
+	 * @param expireAfterAccess if true, timeToLiveMillis counts from the
+	 * last read or write of an entry rather than from when it was added
+	 */
+	public ExpiringLruCache(int maxSize, long timeToLiveMillis, boolean expireAfterAccess) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.maxSize = maxSize;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.expireAfterAccess = expireAfterAccess;
+		this.entries = new LinkedHashMap<K,CacheEntry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,CacheEntry<V>> eldest) {
+				if(size() > ExpiringLruCache.this.maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * <p>Gets the cached value for the given key.</p>
+	 * @param key cache key
+	 * @return the value, or null if it isn't cached or has expired
+	 */
+	public V get(K key) {
+		long now = System.currentTimeMillis();
+		synchronized(entries) {
+			CacheEntry<V> entry = entries.get(key);
+			if(entry != null && entry.expires > now) {
+				hitCount.incrementAndGet();
+				if(expireAfterAccess) {
+					entry.expires = now + timeToLiveMillis;
+				}
+				return entry.value;
+			}
+			if(entry != null) {
+				entries.remove(key);
+				evictionCount.incrementAndGet();
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	public void put(K key, V value) {
+		CacheEntry<V> entry = new CacheEntry<V>(value, System.currentTimeMillis() + timeToLiveMillis);
+		synchronized(entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * <p>Caches the value unless a live value is already cached for the key.</p>
+	 * @return the value already cached, or null if the given value was added
+	 */
+	public V putIfAbsent(K key, V value) {
+		long now = System.currentTimeMillis();
+		synchronized(entries) {
+			CacheEntry<V> entry = entries.get(key);
+			if(entry != null && entry.expires > now) {
+				if(expireAfterAccess) {
+					entry.expires = now + timeToLiveMillis;
+				}
+				return entry.value;
+			}
+			entries.put(key, new CacheEntry<V>(value, now + timeToLiveMillis));
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Removes the given key from the cache, e.g. when the cached value
+	 * turns out to be stale.</p>
+	 * @param key cache key
+	 */
+	public void invalidate(K key) {
+		synchronized(entries) {
+			entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeToLiveMillis() {
+		return timeToLiveMillis;
+	}
+
+	public boolean isExpireAfterAccess() {
+		return expireAfterAccess;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * <p>Gets the number of entries removed because the cache was full or
+	 * because they expired. Explicit invalidations are not counted.</p>
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private static class CacheEntry<V> {
+
+		private final V value;
+		/** Only read or written while holding the entries lock. */
+		private long expires;
+
+		public CacheEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
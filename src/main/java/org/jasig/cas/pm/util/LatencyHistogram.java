@@ -0,0 +1,72 @@
+package org.jasig.cas.pm.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Lock-free histogram of durations in milliseconds, for percentiles
+ * that are cheap to record from many threads. Values are counted in
+ * 1-2-5 buckets from 1ms to 100s, so a percentile is the upper bound of
+ * its bucket: accurate to within the bucket's width, which is plenty for
+ * capacity planning.</p>
+ */
+public class LatencyHistogram {
+
+	private static final long[] BUCKET_BOUNDS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500,
+		1000, 2000, 5000, 10000, 20000, 50000, 100000 };
+
+	/** One more than there are bounds, for values past the last one. */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis) {
+		int bucket = 0;
+		while(bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		total.addAndGet(millis);
+		long previous;
+		while(millis > (previous = max.get()) && !max.compareAndSet(previous, millis)) {
+			// lost a race with another record(); try again
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	public long getMaxMillis() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99 for the 99th percentile
+	 * @return upper bound of the bucket holding the percentile, never more
+	 * than the largest value recorded; 0 if nothing has been recorded
+	 */
+	public long getPercentileMillis(double percentile) {
+		long n = count.get();
+		if(n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for(int i=0;i<BUCKET_BOUNDS.length;i++) {
+			seen += buckets.get(i);
+			if(seen >= rank) {
+				return Math.min(BUCKET_BOUNDS[i], max.get());
+			}
+		}
+		return max.get();
+	}
+}
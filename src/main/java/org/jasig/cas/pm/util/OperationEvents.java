@@ -0,0 +1,48 @@
+package org.jasig.cas.pm.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.perf4j.StopWatch;
+
+/**
+ * <p>Timed events for password manager operations, so that a slow request
+ * can be traced to the directory calls behind it without debug logging.
+ * Each event is a Perf4J StopWatch logged at INFO to the
+ * org.perf4j.TimingLogger category, which log4j.xml already sends to the
+ * AsyncCoalescingStatisticsAppender used for the CAS timings. Events are
+ * tagged pm.&lt;operation&gt;.&lt;result&gt; and carry the server in the
+ * message, e.g.
+ * <code>start[...] time[12] tag[pm.ldap.bind.success] message[server=ldap1]</code></p>
+ *
+ * <p>When the TimingLogger is off, record() costs a level check and nothing
+ * else, so callers may record every operation.</p>
+ */
+public final class OperationEvents {
+
+	private static final Log TIMING_LOG = LogFactory.getLog(StopWatch.DEFAULT_LOGGER_NAME);
+
+	private OperationEvents() {
+	}
+
+	public static boolean isEnabled() {
+		return TIMING_LOG.isInfoEnabled();
+	}
+
+	/**
+	 * @param operation e.g. ldap.search, ldap.bind or lockout.check
+	 * @param server the server or service that did the work
+	 * @param elapsedNanos how long the operation took
+	 * @param result e.g. success, failure or not-found
+	 */
+	public static void record(String operation, String server, long elapsedNanos, String result) {
+		if(!TIMING_LOG.isInfoEnabled()) {
+			return;
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		StopWatch stopWatch = new StopWatch(System.currentTimeMillis() - elapsedMillis, elapsedMillis,
+				"pm." + operation + "." + result, "server=" + server);
+		TIMING_LOG.info(stopWatch.toString());
+	}
+}
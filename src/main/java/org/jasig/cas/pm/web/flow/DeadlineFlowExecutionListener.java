@@ -0,0 +1,35 @@
+package org.jasig.cas.pm.web.flow;
+
+import org.jasig.cas.pm.util.Deadline;
+import org.springframework.webflow.execution.FlowExecutionListenerAdapter;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Gives each flow request a time budget. The deadline is set when the
+ * request arrives and cleared once it has been processed, and every LDAP
+ * operation made while handling it gets only what is left.</p>
+ */
+public class DeadlineFlowExecutionListener extends FlowExecutionListenerAdapter {
+
+	private long requestBudgetMillis = 10000;
+
+	@Override
+	public void requestSubmitted(RequestContext context) {
+		if(requestBudgetMillis > 0) {
+			Deadline.set(Deadline.after(requestBudgetMillis));
+		}
+	}
+
+	@Override
+	public void requestProcessed(RequestContext context) {
+		Deadline.set(null);
+	}
+
+	/**
+	 * @param requestBudgetMillis time allowed for the directory work of one
+	 * request, 0 for no limit
+	 */
+	public void setRequestBudgetMillis(long requestBudgetMillis) {
+		this.requestBudgetMillis = requestBudgetMillis;
+	}
+}
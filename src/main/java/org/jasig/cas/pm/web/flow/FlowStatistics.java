@@ -0,0 +1,89 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.cas.pm.util.LatencyHistogram;
+
+/**
+ * <p>What the completed flows with one id and end state cost the server,
+ * as recorded by FlowStatisticsListener.</p>
+ */
+public class FlowStatistics implements FlowStatisticsMBean {
+
+	private final String flowId;
+	private final String outcome;
+	private final LatencyHistogram serverTime = new LatencyHistogram();
+	private final AtomicLong directoryCalls = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	public FlowStatistics(String flowId, String outcome) {
+		this.flowId = flowId;
+		this.outcome = outcome;
+	}
+
+	public void record(long serverNanos, int directoryCalls, int requests) {
+		serverTime.record(TimeUnit.NANOSECONDS.toMillis(serverNanos));
+		this.directoryCalls.addAndGet(directoryCalls);
+		this.requests.addAndGet(requests);
+	}
+
+	@Override
+	public String getFlowId() {
+		return flowId;
+	}
+
+	@Override
+	public String getOutcome() {
+		return outcome;
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return serverTime.getCount();
+	}
+
+	/**
+	 * @return server time per flow, for percentiles and the mean
+	 */
+	public LatencyHistogram getServerTime() {
+		return serverTime;
+	}
+
+	@Override
+	public long getMeanServerMillis() {
+		return serverTime.getMeanMillis();
+	}
+
+	@Override
+	public long getMaxServerMillis() {
+		return serverTime.getMaxMillis();
+	}
+
+	@Override
+	public long get50thPercentileServerMillis() {
+		return serverTime.getPercentileMillis(50);
+	}
+
+	@Override
+	public long get95thPercentileServerMillis() {
+		return serverTime.getPercentileMillis(95);
+	}
+
+	@Override
+	public long get99thPercentileServerMillis() {
+		return serverTime.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getMeanDirectoryCalls() {
+		long count = getCompletedCount();
+		return count == 0 ? 0 : (double) directoryCalls.get() / count;
+	}
+
+	@Override
+	public double getMeanRequests() {
+		long count = getCompletedCount();
+		return count == 0 ? 0 : (double) requests.get() / count;
+	}
+}
@@ -0,0 +1,231 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.util.DirectoryCalls;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.webflow.core.collection.AttributeMap;
+import org.springframework.webflow.execution.FlowExecutionListenerAdapter;
+import org.springframework.webflow.execution.FlowSession;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Measures what whole flows cost the server, for capacity planning. For
+ * every completed flow, root or subflow, it records by flow id and end
+ * state:</p>
+ *
+ * <ul>
+ * <li>server time: the time spent handling the flow's requests, without
+ * the time the user spent between them</li>
+ * <li>directory operations made by LdapPasswordManagerService</li>
+ * <li>requests it took</li>
+ * </ul>
+ *
+ * <p>So the passwordManager subflow is recorded as e.g.
+ * "passwordManager:pmExit", and the login flow that called it as
+ * "login:..." including the subflow's cost.</p>
+ *
+ * <p>Running totals for the whole execution are kept in conversation scope,
+ * so they survive between requests. A subflow keeps the totals it started
+ * from in its flow scope, and its cost is the difference when it ends.</p>
+ *
+ * <p>Each id and end state is published as a FlowStatistics MBean on the
+ * platform MBean server, e.g.
+ * org.jasig.cas.pm:type=FlowStatistics,flow="passwordManager",outcome="pmExit".
+ * The MBeans are unregistered when the context shuts down.</p>
+ */
+public class FlowStatisticsListener extends FlowExecutionListenerAdapter implements DisposableBean {
+
+	private static final String TOTALS_ATTRIBUTE = "pmFlowTotals";
+	private static final String START_ATTRIBUTE = "pmFlowStart";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final ThreadLocal<Long> requestStart = new ThreadLocal<Long>();
+	private final ConcurrentMap<String,FlowStatistics> statistics = new ConcurrentHashMap<String,FlowStatistics>();
+	private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+	private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
+
+	@Override
+	public void requestSubmitted(RequestContext context) {
+		requestStart.set(System.nanoTime());
+		DirectoryCalls.start();
+	}
+
+	@Override
+	public void requestProcessed(RequestContext context) {
+		try {
+			// a flow that ended during this request has already been counted
+			if(context.getFlowExecutionContext().isActive()) {
+				addRequest(getTotals(context));
+			}
+		} finally {
+			requestStart.remove();
+			DirectoryCalls.stop();
+		}
+	}
+
+	@Override
+	public void sessionStarted(RequestContext context, FlowSession session) {
+		// a root flow costs everything from the start of the execution
+		if(!session.isRoot()) {
+			session.getScope().put(START_ATTRIBUTE, getCurrentTotals(context));
+		}
+	}
+
+	@Override
+	public void sessionEnded(RequestContext context, FlowSession session, String outcome, AttributeMap output) {
+		FlowTotals cost = getCurrentTotals(context);
+		// the request the flow ends in counts too
+		cost.requests++;
+		FlowTotals start = (FlowTotals) session.getScope().get(START_ATTRIBUTE);
+		if(start != null) {
+			cost.serverNanos -= start.serverNanos;
+			cost.directoryCalls -= start.directoryCalls;
+			cost.requests -= start.requests;
+		}
+
+		String flowId = session.getDefinition().getId();
+		getStatistics(flowId, outcome).record(cost.serverNanos, cost.directoryCalls, cost.requests);
+		metricsRegistry.recordTime("pm.flow", cost.serverNanos, "flow=" + flowId, "outcome=" + outcome);
+
+		if(logger.isDebugEnabled()) {
+			logger.debug("Flow " + flowId + ":" + outcome + " took "
+					+ TimeUnit.NANOSECONDS.toMillis(cost.serverNanos) + "ms over " + cost.requests
+					+ " requests with " + cost.directoryCalls + " directory operations");
+		}
+	}
+
+	/**
+	 * <p>Adds this request's time and directory operations so far to the
+	 * execution's totals.</p>
+	 */
+	private void addRequest(FlowTotals totals) {
+		Long start = requestStart.get();
+		if(start == null) {
+			return;
+		}
+		totals.serverNanos += System.nanoTime() - start;
+		totals.directoryCalls += DirectoryCalls.count();
+		totals.requests++;
+		requestStart.remove();
+	}
+
+	/**
+	 * @return a copy of the execution's totals including the time and
+	 * directory operations of this request so far, but not the request
+	 * itself
+	 */
+	private FlowTotals getCurrentTotals(RequestContext context) {
+		FlowTotals totals = getTotals(context);
+		FlowTotals current = new FlowTotals();
+		current.serverNanos = totals.serverNanos;
+		current.directoryCalls = totals.directoryCalls + DirectoryCalls.count();
+		current.requests = totals.requests;
+		Long start = requestStart.get();
+		if(start != null) {
+			current.serverNanos += System.nanoTime() - start;
+		}
+		return current;
+	}
+
+	private FlowTotals getTotals(RequestContext context) {
+		FlowTotals totals = (FlowTotals) context.getConversationScope().get(TOTALS_ATTRIBUTE);
+		if(totals == null) {
+			totals = new FlowTotals();
+			context.getConversationScope().put(TOTALS_ATTRIBUTE, totals);
+		}
+		return totals;
+	}
+
+	private FlowStatistics getStatistics(String flowId, String outcome) {
+		String key = flowId + ":" + outcome;
+		FlowStatistics flowStatistics = statistics.get(key);
+		if(flowStatistics == null) {
+			FlowStatistics created = new FlowStatistics(flowId, outcome);
+			flowStatistics = statistics.putIfAbsent(key, created);
+			if(flowStatistics == null) {
+				flowStatistics = created;
+				register(created);
+			}
+		}
+		return flowStatistics;
+	}
+
+	/**
+	 * <p>Publishes new statistics. Statistics that can't be registered are
+	 * still recorded, they just aren't visible over JMX.</p>
+	 */
+	private void register(FlowStatistics flowStatistics) {
+		try {
+			ObjectName objectName = new ObjectName("org.jasig.cas.pm:type=FlowStatistics,flow="
+					+ ObjectName.quote(flowStatistics.getFlowId()) + ",outcome="
+					+ ObjectName.quote(flowStatistics.getOutcome()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(flowStatistics, objectName);
+			synchronized(registeredMBeans) {
+				registeredMBeans.add(objectName);
+			}
+		} catch(Exception ex) {
+			logger.warn("Unable to register JMX bean for flow " + flowStatistics.getFlowId() + ":"
+					+ flowStatistics.getOutcome(), ex);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		synchronized(registeredMBeans) {
+			for(ObjectName objectName : registeredMBeans) {
+				try {
+					mbeanServer.unregisterMBean(objectName);
+				} catch(Exception ex) {
+					logger.warn("Unable to unregister JMX bean " + objectName, ex);
+				}
+			}
+			registeredMBeans.clear();
+		}
+	}
+
+	/**
+	 * @return statistics keyed by flow id and end state, e.g.
+	 * "passwordManager:pmExit"
+	 */
+	public Map<String,FlowStatistics> getStatistics() {
+		return Collections.unmodifiableMap(new TreeMap<String,FlowStatistics>(statistics));
+	}
+
+	/**
+	 * @param metricsRegistry where each completed flow's server time is
+	 * also published
+	 */
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * <p>Running totals for one flow execution.</p>
+	 */
+	private static class FlowTotals implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private long serverNanos;
+		private int directoryCalls;
+		private int requests;
+	}
+}
@@ -0,0 +1,28 @@
+package org.jasig.cas.pm.web.flow;
+
+/**
+ * <p>JMX view of FlowStatistics.</p>
+ */
+public interface FlowStatisticsMBean {
+
+	public String getFlowId();
+
+	public String getOutcome();
+
+	public long getCompletedCount();
+
+	public long getMeanServerMillis();
+
+	public long getMaxServerMillis();
+
+	public long get50thPercentileServerMillis();
+
+	public long get95thPercentileServerMillis();
+
+	public long get99thPercentileServerMillis();
+
+	public double getMeanDirectoryCalls();
+
+	public double getMeanRequests();
+
+}
@@ -0,0 +1,91 @@
+package org.jasig.cas.pm.web.flow;
+
+import org.jasig.cas.authentication.principal.Credentials;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.jasig.cas.pm.service.PasswordManagerService;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.webflow.action.AbstractAction;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Runs after a successful login and asks the directory for the user's
+ * password policy state (draft-behera password policy response control),
+ * so a ppolicy-enabled directory drives the warn and forced-change flows
+ * the way LPPE does for Active Directory. Returns:</p>
+ *
+ * <ul>
+ * <li>mustChangePassword if the password has expired or must be changed
+ * after an administrator reset</li>
+ * <li>showWarning, with expireDays in the flow scope, if the password is
+ * about to expire or the user is on a grace login</li>
+ * <li>success otherwise, including when the check is disabled or the user
+ * isn't in any of the password manager's directories</li>
+ * </ul>
+ *
+ * <p>This costs one extra bind per login, so it only runs when enabled,
+ * which should be when the bind pool sends the password policy control.
+ * Without the control the directory reports nothing to act on.</p>
+ */
+public class PasswordPolicyCheckAction extends AbstractAction {
+
+	public static final String MUST_CHANGE_PASSWORD_EVENT = "mustChangePassword";
+	public static final String SHOW_WARNING_EVENT = "showWarning";
+	public static final String EXPIRE_DAYS_ATTRIBUTE = "expireDays";
+
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	private PasswordManagerService passwordManagerService;
+	private boolean enabled = false;
+
+	@Override
+	protected Event doExecute(RequestContext requestContext) throws Exception {
+		if(!enabled) {
+			return success();
+		}
+
+		MutableAttributeMap flowScope = requestContext.getFlowScope();
+		Credentials credentials = (Credentials) flowScope.get("credentials");
+		if(!(credentials instanceof UsernamePasswordCredentials)) {
+			return success();
+		}
+		UsernamePasswordCredentials upCredentials = (UsernamePasswordCredentials) credentials;
+		String username = upCredentials.getUsername();
+
+		PasswordPolicyInfo info;
+		try {
+			info = passwordManagerService.checkUserPassword(username, upCredentials.getPassword());
+		} catch(NameNotFoundException ex) {
+			logger.debug("No password policy for " + username + ", not in any directory");
+			return success();
+		}
+
+		if(info.isPasswordExpired() || info.isChangeAfterReset()) {
+			logger.debug("Password for " + username + " must be changed: " + info.getError());
+			return result(MUST_CHANGE_PASSWORD_EVENT);
+		}
+		if(info.isAuthenticated() && info.isWarn()) {
+			// a grace login means the password has already expired
+			long seconds = Math.max(info.getSecondsUntilExpiration(), 0);
+			int expireDays = (int) ((seconds + SECONDS_PER_DAY - 1) / SECONDS_PER_DAY);
+			logger.debug("Password for " + username + " expires in " + expireDays + " days");
+			flowScope.put(EXPIRE_DAYS_ATTRIBUTE, expireDays);
+			return result(SHOW_WARNING_EVENT);
+		}
+		return success();
+	}
+
+	/**
+	 * @param enabled true to check the password policy state on login; set
+	 * it together with the bind pool's requestPasswordPolicy
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void setPasswordManagerService(PasswordManagerService passwordManagerService) {
+		this.passwordManagerService = passwordManagerService;
+	}
+}
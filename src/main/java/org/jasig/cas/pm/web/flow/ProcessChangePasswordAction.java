@@ -3,6 +3,7 @@ package org.jasig.cas.pm.web.flow;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.service.BreachedPasswordChecker;
 import org.jasig.cas.pm.service.PasswordManagerService;
 import org.springframework.binding.message.MessageBuilder;
 import org.springframework.binding.message.MessageContext;
@@ -15,6 +16,7 @@ public class ProcessChangePasswordAction {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private PasswordManagerService passwordManagerService;
+	private BreachedPasswordChecker breachedPasswordChecker;
 
 	public boolean changePassword(String flowScopeUsername, String beanUsername, String oldPassword, String password,
 			MessageContext messageContext) throws Exception {
@@ -31,6 +33,10 @@ public class ProcessChangePasswordAction {
 			return false;
 		}
 		
+		if(isBreached(password, messageContext)) {
+			return false;
+		}
+		
 		try {
 			passwordManagerService.changeUserPassword(username, oldPassword, password);
 		} catch(InvalidPasswordException ex) {
@@ -58,6 +64,10 @@ public class ProcessChangePasswordAction {
 	public boolean setPassword(String username, String password,
 			MessageContext messageContext) throws Exception {
 		
+		if(isBreached(password, messageContext)) {
+			return false;
+		}
+		
 		try {
 			passwordManagerService.setUserPassword(username, password);
 		} catch(Exception ex) {
@@ -80,9 +90,30 @@ public class ProcessChangePasswordAction {
 		return true;
 	}
 
+	/**
+	 * <p>Rejects a breached password here as well as in the validator, so
+	 * the check can't be skipped by posting to a flow state directly.</p>
+	 */
+	private boolean isBreached(String password, MessageContext messageContext) {
+		if(breachedPasswordChecker == null || password == null
+				|| !breachedPasswordChecker.isBreached(password)) {
+			return false;
+		}
+		messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+				.code("cas.pm.newpassword.breached")
+				.defaultText("This password has appeared in a data breach; please choose another")
+				.build());
+		logger.debug("Rejected a breached password.");
+		return true;
+	}
+
 	public void setPasswordManagerService(
 			PasswordManagerService passwordManagerService) {
 		this.passwordManagerService = passwordManagerService;
 	}
 
+	public void setBreachedPasswordChecker(BreachedPasswordChecker breachedPasswordChecker) {
+		this.breachedPasswordChecker = breachedPasswordChecker;
+	}
+
 }
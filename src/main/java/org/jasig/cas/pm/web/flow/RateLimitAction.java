@@ -0,0 +1,112 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.cas.pm.RateLimitExceededException;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.service.PasswordManagerRateLimitService;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Checks a request against the rate limits before any directory call is
+ * made for it.</p>
+ *
+ * <p>The client address is the request's remote address. Behind a load
+ * balancer or reverse proxy, that is the proxy's, so every client would
+ * share one per-address limit. Set clientAddressHeader to the header the
+ * proxies put the client's address in, and trustedProxies to their
+ * addresses: the header is then read from right to left, skipping trusted
+ * proxies, and the first other address is the client's. The header is
+ * ignored on requests that don't come from a trusted proxy, since anyone
+ * can send it.</p>
+ */
+public class RateLimitAction {
+
+	private PasswordManagerRateLimitService rateLimitService;
+	private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
+	private String clientAddressHeader;
+	private Set<String> trustedProxies = Collections.emptySet();
+
+	public void allowRequest(String flowScopeUsername, String beanUsername,
+			RequestContext context) throws RateLimitExceededException {
+
+		// prefer a username found in the flow scope to one found in the bean
+		String username = flowScopeUsername != null ? flowScopeUsername : beanUsername;
+
+		ServletExternalContext externalContext = (ServletExternalContext) context.getExternalContext();
+		HttpServletRequest request = (HttpServletRequest) externalContext.getNativeRequest();
+
+		try {
+			rateLimitService.allowRequest(username, getClientAddress(request));
+		} catch(RateLimitExceededException ex) {
+			metricsRegistry.increment("pm.rate-limit.rejected");
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return the address of the client the request came from, as far back
+	 * as trusted proxies vouch for
+	 */
+	String getClientAddress(HttpServletRequest request) {
+		String address = request.getRemoteAddr();
+		if(clientAddressHeader == null || !trustedProxies.contains(address)) {
+			return address;
+		}
+		String header = request.getHeader(clientAddressHeader);
+		if(header == null) {
+			return address;
+		}
+		// e.g. X-Forwarded-For: client, proxy1, proxy2
+		String[] forwarded = header.split(",");
+		for(int i=forwarded.length-1;i>=0;i--) {
+			String hop = forwarded[i].trim();
+			if(hop.isEmpty()) {
+				continue;
+			}
+			address = hop;
+			if(!trustedProxies.contains(hop)) {
+				break;
+			}
+		}
+		return address;
+	}
+
+	public void setRateLimitService(PasswordManagerRateLimitService rateLimitService) {
+		this.rateLimitService = rateLimitService;
+	}
+
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * @param clientAddressHeader header trusted proxies pass the client's
+	 * address in, e.g. X-Forwarded-For; empty to use the remote address
+	 */
+	public void setClientAddressHeader(String clientAddressHeader) {
+		this.clientAddressHeader = clientAddressHeader != null && !clientAddressHeader.trim().isEmpty()
+				? clientAddressHeader.trim() : null;
+	}
+
+	/**
+	 * @param trustedProxies addresses of the proxies whose
+	 * clientAddressHeader is believed, exactly as they appear as remote
+	 * addresses
+	 */
+	public void setTrustedProxies(String[] trustedProxies) {
+		Set<String> proxies = new HashSet<String>();
+		for(String proxy : trustedProxies) {
+			if(!proxy.trim().isEmpty()) {
+				proxies.add(proxy.trim());
+			}
+		}
+		this.trustedProxies = proxies;
+	}
+}
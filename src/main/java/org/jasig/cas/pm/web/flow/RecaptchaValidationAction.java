@@ -4,6 +4,9 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.metrics.MetricsRegistry;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.jasig.cas.pm.util.OperationEvents;
 import org.springframework.webflow.context.servlet.ServletExternalContext;
 import org.springframework.webflow.execution.RequestContext;
 
@@ -15,6 +18,7 @@ public class RecaptchaValidationAction {
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private String recaptchaPrivateKey;
 	private String recaptchaPublicKey;
+	private MetricsRegistry metricsRegistry = new NoOpMetricsRegistry();
 	
 	public boolean validateCaptcha(RequestContext context) {
 
@@ -26,11 +30,17 @@ public class RecaptchaValidationAction {
 
 	    String challenge = request.getParameter("recaptcha_challenge_field");
 	    String uresponse = request.getParameter("recaptcha_response_field");
+	    long start = System.nanoTime();
 	    ReCaptchaResponse reCaptchaResponse = reCaptcha.checkAnswer(remoteAddr, challenge, uresponse);
 
 	    boolean result = reCaptchaResponse.isValid();
+	    OperationEvents.record("captcha.verify", "recaptcha", System.nanoTime() - start,
+	    		result ? "valid" : "invalid");
 	    
-	    logger.debug("reCaptcha response validity: " + result);
+	    if(logger.isDebugEnabled()) {
+	    	logger.debug("reCaptcha response validity: " + result);
+	    }
+	    metricsRegistry.increment("pm.captcha", result ? "outcome=valid" : "outcome=invalid");
 	    
 	    return result;
 	}
@@ -50,4 +60,8 @@ public class RecaptchaValidationAction {
 	public String getRecaptchaPrivateKey() {
 		return recaptchaPrivateKey;
 	}
+
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
 }
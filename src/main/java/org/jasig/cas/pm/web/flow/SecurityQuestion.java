@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.regex.Pattern;
 
 /**
  * <p>Bean for holding a user security question and answer. Includes a
@@ -14,6 +15,7 @@ public class SecurityQuestion implements Serializable {
     private static final long serialVersionUID = 1L;
     public static final String DATE_REGEX = "^(0?[1-9]|1[012])/(0?[1-9]|[12][0-9]|3[01])/(19|20)\\d\\d$";
     public static final String DATE_FORMAT = "MM/dd/yyyy";
+    private static final Pattern DATE_PATTERN = Pattern.compile(DATE_REGEX);
 
     // Instance Members.
     private String questionText;
@@ -55,7 +57,7 @@ public class SecurityQuestion implements Serializable {
 	}
     
     public boolean validateResponse(String responseText) {
-    	if(responseText.matches(DATE_REGEX) && this.responseText.matches(DATE_REGEX)) {
+    	if(DATE_PATTERN.matcher(responseText).matches() && DATE_PATTERN.matcher(this.responseText).matches()) {
     		// validate them as dates
     		SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
     		try {
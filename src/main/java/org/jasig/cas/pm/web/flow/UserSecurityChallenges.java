@@ -0,0 +1,30 @@
+package org.jasig.cas.pm.web.flow;
+
+import java.io.Serializable;
+
+/**
+ * <p>Bean holding both the user's custom security challenge and their
+ * default security challenge, as fetched in a single lookup. Either may
+ * be null if the user hasn't set it up or the directory lacks the
+ * attributes.</p>
+ */
+public class UserSecurityChallenges implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SecurityChallenge userChallenge;
+    private final SecurityChallenge defaultChallenge;
+
+    public UserSecurityChallenges(SecurityChallenge userChallenge, SecurityChallenge defaultChallenge) {
+        this.userChallenge = userChallenge;
+        this.defaultChallenge = defaultChallenge;
+    }
+
+    public SecurityChallenge getUserChallenge() {
+        return userChallenge;
+    }
+
+    public SecurityChallenge getDefaultChallenge() {
+        return defaultChallenge;
+    }
+}
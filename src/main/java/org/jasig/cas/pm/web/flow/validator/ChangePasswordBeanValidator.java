@@ -1,14 +1,33 @@
 package org.jasig.cas.pm.web.flow.validator;
 
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.validation.constraints.NotNull;
+
+import org.jasig.cas.pm.service.BreachedPasswordChecker;
 import org.jasig.cas.pm.web.flow.model.ChangePasswordBean;
 import org.springframework.binding.message.MessageBuilder;
 import org.springframework.binding.message.MessageContext;
+import org.springframework.binding.message.MessageResolver;
 import org.springframework.binding.validation.ValidationContext;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.RequestContextHolder;
 
 public class ChangePasswordBeanValidator {
 
-	// default regex accepts any password
-	private String passwordRegex = ".*";
+	// default policy accepts any password up to its maxLength
+	@NotNull
+	private PasswordPolicy passwordPolicy = new PasswordPolicy();
+	
+	// optional extra check, applied after the policy
+	private Pattern passwordPattern;
+	
+	// optional, rejects passwords made of guessable patterns
+	private PasswordStrengthEstimator passwordStrengthEstimator;
+	
+	// optional, applied to passwords that pass the checks above
+	private BreachedPasswordChecker breachedPasswordChecker;
 	
 	public void validateChangePasswordView(ChangePasswordBean changePasswordBean,
 			ValidationContext context) {
@@ -39,12 +58,10 @@ public class ChangePasswordBeanValidator {
 						.defaultText("The new password must be different")
 						.build());
 			}
-			if(!newPassword.matches(passwordRegex)) {
-				messageContext.addMessage(new MessageBuilder().error().source("newPassword")
-						.code("cas.pm.newpassword.weak")
-						.defaultText("The password is too weak")
-						.build());
-			} else if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
+			if(!checkStrength(messageContext, newPassword, getUsername(changePasswordBean), oldPassword)) {
+				return;
+			}
+			if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
 				messageContext.addMessage(new MessageBuilder().error().source("confirmNewPassword")
 						.code("cas.pm.newpassword.mismatch")
 						.defaultText("The passwords do not match")
@@ -66,12 +83,10 @@ public class ChangePasswordBeanValidator {
 					.defaultText("Please enter a new password")
 					.build());
 		} else {
-			if(!newPassword.matches(passwordRegex)) {
-				messageContext.addMessage(new MessageBuilder().error().source("newPassword")
-						.code("cas.pm.newpassword.weak")
-						.defaultText("The password is too weak")
-						.build());
-			} else if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
+			if(!checkStrength(messageContext, newPassword, getUsername(changePasswordBean), null)) {
+				return;
+			}
+			if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
 				messageContext.addMessage(new MessageBuilder().error().source("confirmNewPassword")
 						.code("cas.pm.newpassword.mismatch")
 						.defaultText("The passwords do not match")
@@ -80,7 +95,77 @@ public class ChangePasswordBeanValidator {
 		}
 	}
 	
+	/**
+	 * <p>Checks the new password against the policy, then the regex, the
+	 * strength estimator and the breached passwords if set, adding a
+	 * message for each rule it breaks.</p>
+	 * @return true if the password is strong enough
+	 */
+	private boolean checkStrength(MessageContext messageContext, String newPassword,
+			String username, String oldPassword) {
+		List<MessageResolver> errors = passwordPolicy.check(newPassword, username, oldPassword);
+		for(MessageResolver error : errors) {
+			messageContext.addMessage(error);
+		}
+		if(!errors.isEmpty()) {
+			return false;
+		}
+		if(passwordPattern != null && !passwordPattern.matcher(newPassword).matches()) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.weak")
+					.defaultText("The password is too weak")
+					.build());
+			return false;
+		}
+		if(passwordStrengthEstimator != null && passwordStrengthEstimator.isGuessable(newPassword, username)) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.guessable")
+					.arg(passwordStrengthEstimator.getMinScore())
+					.defaultText("The password is too easy to guess; avoid common words, names, dates, keyboard patterns and repeats")
+					.build());
+			return false;
+		}
+		if(breachedPasswordChecker != null && breachedPasswordChecker.isBreached(newPassword)) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.breached")
+					.defaultText("This password has appeared in a data breach; please choose another")
+					.build());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the username entered on the form, or else the one the flow
+	 * already knows, e.g. from the login or forgotten password form
+	 */
+	private String getUsername(ChangePasswordBean changePasswordBean) {
+		String username = changePasswordBean.getUsername();
+		if(username != null && !username.isEmpty()) {
+			return username;
+		}
+		RequestContext requestContext = RequestContextHolder.getRequestContext();
+		return requestContext != null ? requestContext.getFlowScope().getString("username") : null;
+	}
+	
+	public void setPasswordPolicy(PasswordPolicy passwordPolicy) {
+		this.passwordPolicy = passwordPolicy;
+	}
+	
+	public void setPasswordStrengthEstimator(PasswordStrengthEstimator passwordStrengthEstimator) {
+		this.passwordStrengthEstimator = passwordStrengthEstimator;
+	}
+	
+	public void setBreachedPasswordChecker(BreachedPasswordChecker breachedPasswordChecker) {
+		this.breachedPasswordChecker = breachedPasswordChecker;
+	}
+	
+	/**
+	 * @param passwordRegex regex a password must also match, for rules the
+	 * PasswordPolicy doesn't cover. Only passwords within the policy's
+	 * maxLength reach it.
+	 */
 	public void setPasswordRegex(String passwordRegex) {
-		this.passwordRegex = passwordRegex;
+		this.passwordPattern = Pattern.compile(passwordRegex);
 	}
 }
@@ -0,0 +1,120 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * <p>Read-only trie of ranked dictionary words, packed into four primitive
+ * arrays (12 bytes a node) so that a large dictionary costs little heap
+ * and no per-node objects. Nodes are numbered breadth first, which puts
+ * each node's children next to each other, sorted by character; a child
+ * is found by binary search among them.</p>
+ *
+ * <p>A trie rather than a hash, because the strength estimator needs every
+ * word that starts at a given position of the password, and a trie yields
+ * them all in one walk.</p>
+ */
+final class DictionaryTrie {
+
+	private static final int ROOT = 0;
+
+	/** Character on the edge into each node. */
+	private final char[] labels;
+	private final int[] firstChild;
+	private final char[] childCount;
+	/** Rank of the word ending at each node, 1 the most common; 0 if none. */
+	private final int[] ranks;
+
+	/**
+	 * @param words lowercase words and their ranks
+	 */
+	DictionaryTrie(Map<String,Integer> words) {
+		String[] sorted = words.keySet().toArray(new String[words.size()]);
+		Arrays.sort(sorted);
+
+		// one node per distinct prefix, plus the root
+		int nodeCount = 1;
+		for(int i=0;i<sorted.length;i++) {
+			nodeCount += sorted[i].length() - (i == 0 ? 0 : commonPrefixLength(sorted[i - 1], sorted[i]));
+		}
+		labels = new char[nodeCount];
+		firstChild = new int[nodeCount];
+		childCount = new char[nodeCount];
+		ranks = new int[nodeCount];
+
+		// each node covers the words sorted[low[node]..high[node]) that
+		// share its prefix, of length depth[node]
+		int[] low = new int[nodeCount];
+		int[] high = new int[nodeCount];
+		int[] depth = new int[nodeCount];
+		high[ROOT] = sorted.length;
+		int next = ROOT + 1;
+		for(int node=ROOT;node<next;node++) {
+			int i = low[node];
+			int d = depth[node];
+			if(i < high[node] && sorted[i].length() == d) {
+				ranks[node] = words.get(sorted[i]);
+				i++;
+			}
+			firstChild[node] = next;
+			while(i < high[node]) {
+				char c = sorted[i].charAt(d);
+				int j = i + 1;
+				while(j < high[node] && sorted[j].charAt(d) == c) {
+					j++;
+				}
+				labels[next] = c;
+				low[next] = i;
+				high[next] = j;
+				depth[next] = d + 1;
+				childCount[node]++;
+				next++;
+				i = j;
+			}
+		}
+	}
+
+	int root() {
+		return ROOT;
+	}
+
+	/**
+	 * @return the child of node along character c, or -1 if there is none
+	 */
+	int child(int node, char c) {
+		int low = firstChild[node];
+		int high = low + childCount[node] - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			char label = labels[middle];
+			if(label < c) {
+				low = middle + 1;
+			} else if(label > c) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return rank of the word ending at node, or 0 if no word ends there
+	 */
+	int rank(int node) {
+		return ranks[node];
+	}
+
+	int size() {
+		return labels.length;
+	}
+
+	private static int commonPrefixLength(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < length && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+}
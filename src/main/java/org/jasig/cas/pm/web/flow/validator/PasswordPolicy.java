@@ -0,0 +1,265 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.validation.constraints.Min;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.binding.message.MessageBuilder;
+import org.springframework.binding.message.MessageResolver;
+
+/**
+ * <p>Password strength rules, checked in a single pass over the password
+ * with no regular expressions, so the time taken grows only linearly with
+ * the password's length. Passwords over maxLength are rejected before
+ * anything else is looked at, which also caps the work a huge submitted
+ * password can cause.</p>
+ *
+ * <p>Each rule a password breaks is reported as its own error message on
+ * newPassword, with a code of cas.pm.newpassword.&lt;rule&gt; and the
+ * rule's limit as argument {0}:</p>
+ *
+ * <ul>
+ * <li>too-short, too-long: minLength, maxLength</li>
+ * <li>lowercase, uppercase, digits, special: minLowercase, minUppercase,
+ * minDigits and minSpecial characters (special meaning neither a letter
+ * nor a digit)</li>
+ * <li>character-classes: minCharacterClasses of those four kinds, e.g. 3
+ * for Active Directory's complexity rule</li>
+ * <li>repeats: more than maxRepeats of the same character in a row</li>
+ * <li>username: contains the username, ignoring case</li>
+ * <li>old-password: the same as the old password once case and digits are
+ * ignored, e.g. Summer2023 followed by summer2024</li>
+ * </ul>
+ *
+ * <p>All rules are off by default, apart from maxLength.</p>
+ */
+public class PasswordPolicy implements InitializingBean {
+
+	/** The default maximum length, the most Active Directory accepts. */
+	private static final int DEFAULT_MAX_LENGTH = 256;
+
+	/** Usernames shorter than this are too common in passwords to reject. */
+	private static final int MIN_USERNAME_MATCH_LENGTH = 3;
+
+	private static final String CODE_PREFIX = "cas.pm.newpassword.";
+
+	@Min(0)
+	private int minLength = 0;
+	@Min(1)
+	private int maxLength = DEFAULT_MAX_LENGTH;
+	@Min(0)
+	private int minLowercase = 0;
+	@Min(0)
+	private int minUppercase = 0;
+	@Min(0)
+	private int minDigits = 0;
+	@Min(0)
+	private int minSpecial = 0;
+	@Min(0)
+	private int minCharacterClasses = 0;
+	@Min(0)
+	private int maxRepeats = 0;
+	private boolean rejectUsername = false;
+	private boolean rejectSimilarToOldPassword = false;
+
+	/**
+	 * @param password the new password, not empty
+	 * @param username the user's username, or null if unknown
+	 * @param oldPassword the user's current password, or null if unknown
+	 * @return an error for each rule the password breaks, empty if it
+	 * passes
+	 */
+	public List<MessageResolver> check(String password, String username, String oldPassword) {
+		int length = password.length();
+		if(length > maxLength) {
+			return Collections.singletonList(error("too-long", maxLength,
+					"The password must be at most " + maxLength + " characters"));
+		}
+
+		int lowercase = 0;
+		int uppercase = 0;
+		int digits = 0;
+		int special = 0;
+		int longestRun = 0;
+		int run = 0;
+		char previous = 0;
+		for(int i=0;i<length;i++) {
+			char c = password.charAt(i);
+			if(Character.isLowerCase(c)) {
+				lowercase++;
+			} else if(Character.isUpperCase(c)) {
+				uppercase++;
+			} else if(Character.isDigit(c)) {
+				digits++;
+			} else if(!Character.isLetter(c)) {
+				special++;
+			}
+			run = i > 0 && c == previous ? run + 1 : 1;
+			if(run > longestRun) {
+				longestRun = run;
+			}
+			previous = c;
+		}
+
+		List<MessageResolver> errors = new ArrayList<MessageResolver>();
+		if(length < minLength) {
+			errors.add(error("too-short", minLength,
+					"The password must be at least " + minLength + " characters"));
+		}
+		if(lowercase < minLowercase) {
+			errors.add(error("lowercase", minLowercase,
+					"The password must contain at least " + minLowercase + " lowercase letter(s)"));
+		}
+		if(uppercase < minUppercase) {
+			errors.add(error("uppercase", minUppercase,
+					"The password must contain at least " + minUppercase + " uppercase letter(s)"));
+		}
+		if(digits < minDigits) {
+			errors.add(error("digits", minDigits,
+					"The password must contain at least " + minDigits + " digit(s)"));
+		}
+		if(special < minSpecial) {
+			errors.add(error("special", minSpecial,
+					"The password must contain at least " + minSpecial + " symbol(s)"));
+		}
+		int characterClasses = (lowercase > 0 ? 1 : 0) + (uppercase > 0 ? 1 : 0)
+				+ (digits > 0 ? 1 : 0) + (special > 0 ? 1 : 0);
+		if(characterClasses < minCharacterClasses) {
+			errors.add(error("character-classes", minCharacterClasses,
+					"The password must contain at least " + minCharacterClasses
+					+ " of: lowercase letters, uppercase letters, digits and symbols"));
+		}
+		if(maxRepeats > 0 && longestRun > maxRepeats) {
+			errors.add(error("repeats", maxRepeats,
+					"The password must not repeat a character more than " + maxRepeats + " times in a row"));
+		}
+		if(rejectUsername && containsIgnoreCase(password, username)) {
+			errors.add(error("username", 0, "The password must not contain your username"));
+		}
+		if(rejectSimilarToOldPassword && equalIgnoringCaseAndDigits(password, oldPassword)) {
+			errors.add(error("old-password", 0, "The password is too similar to your current password"));
+		}
+		return errors;
+	}
+
+	private static MessageResolver error(String rule, int limit, String defaultText) {
+		return new MessageBuilder().error().source("newPassword")
+				.code(CODE_PREFIX + rule)
+				.arg(limit)
+				.defaultText(defaultText)
+				.build();
+	}
+
+	private static boolean containsIgnoreCase(String password, String username) {
+		if(username == null || username.length() < MIN_USERNAME_MATCH_LENGTH) {
+			return false;
+		}
+		int last = password.length() - username.length();
+		for(int i=0;i<=last;i++) {
+			if(password.regionMatches(true, i, username, 0, username.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if a and b are the same once digits are dropped and case
+	 * is ignored, and have more than digits in common
+	 */
+	private static boolean equalIgnoringCaseAndDigits(String a, String b) {
+		if(b == null) {
+			return false;
+		}
+		int i = 0;
+		int j = 0;
+		int compared = 0;
+		while(true) {
+			while(i < a.length() && Character.isDigit(a.charAt(i))) {
+				i++;
+			}
+			while(j < b.length() && Character.isDigit(b.charAt(j))) {
+				j++;
+			}
+			if(i == a.length() || j == b.length()) {
+				return i == a.length() && j == b.length() && compared > 0;
+			}
+			if(Character.toLowerCase(a.charAt(i)) != Character.toLowerCase(b.charAt(j))) {
+				return false;
+			}
+			i++;
+			j++;
+			compared++;
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(minLength > maxLength) {
+			throw new IllegalArgumentException("minLength " + minLength
+					+ " is greater than maxLength " + maxLength);
+		}
+		if(minCharacterClasses > 4) {
+			throw new IllegalArgumentException("minCharacterClasses must be at most 4");
+		}
+	}
+
+	public void setMinLength(int minLength) {
+		this.minLength = minLength;
+	}
+
+	/**
+	 * @param maxLength longer passwords are rejected without being checked
+	 * against any other rule
+	 */
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	public void setMinLowercase(int minLowercase) {
+		this.minLowercase = minLowercase;
+	}
+
+	public void setMinUppercase(int minUppercase) {
+		this.minUppercase = minUppercase;
+	}
+
+	public void setMinDigits(int minDigits) {
+		this.minDigits = minDigits;
+	}
+
+	/**
+	 * @param minSpecial minimum number of characters that are neither
+	 * letters nor digits
+	 */
+	public void setMinSpecial(int minSpecial) {
+		this.minSpecial = minSpecial;
+	}
+
+	/**
+	 * @param minCharacterClasses minimum number of kinds of character used
+	 * (lowercase, uppercase, digit and special), 0 to 4
+	 */
+	public void setMinCharacterClasses(int minCharacterClasses) {
+		this.minCharacterClasses = minCharacterClasses;
+	}
+
+	/**
+	 * @param maxRepeats maximum number of times the same character may
+	 * appear in a row, 0 for no limit
+	 */
+	public void setMaxRepeats(int maxRepeats) {
+		this.maxRepeats = maxRepeats;
+	}
+
+	public void setRejectUsername(boolean rejectUsername) {
+		this.rejectUsername = rejectUsername;
+	}
+
+	public void setRejectSimilarToOldPassword(boolean rejectSimilarToOldPassword) {
+		this.rejectSimilarToOldPassword = rejectSimilarToOldPassword;
+	}
+}
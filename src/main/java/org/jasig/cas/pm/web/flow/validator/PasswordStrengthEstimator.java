@@ -0,0 +1,575 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+/**
+ * <p>Estimates how many guesses an attacker would need for a password, in
+ * the manner of Dropbox's zxcvbn, to catch passwords like Password1 that
+ * pass character class rules. The password is split into the cheapest
+ * sequence of patterns, each costed by how few guesses it takes:</p>
+ *
+ * <ul>
+ * <li>dictionary words, by rank, with capitalization and l33t
+ * substitutions (p@ssw0rd), and the username</li>
+ * <li>keyboard walks on a QWERTY layout (qwerty, 1qaz2wsx)</li>
+ * <li>sequences (abcd, 9876) and repeats (aaaa, abcabc)</li>
+ * <li>dates and years (1987, 12/25/1990, 19900101)</li>
+ * <li>anything else at 10 guesses a character</li>
+ * </ul>
+ *
+ * <p>The estimate is reported as a score from 0 (too guessable) to 4 (very
+ * unguessable): under 10^3, 10^6, 10^8 and 10^10 guesses and above.</p>
+ *
+ * <p>Dictionaries are plain text files with one word per line, most common
+ * first; lines starting with # are skipped. They are loaded once into a
+ * DictionaryTrie. Only the first 64 characters of a password are
+ * analysed, so a typical password is scored in a few microseconds.</p>
+ */
+public class PasswordStrengthEstimator implements InitializingBean {
+
+	/** Characters past this count as random. */
+	private static final int MAX_ANALYZED_LENGTH = 64;
+
+	private static final double LOG10_2 = Math.log10(2);
+	private static final double MIN_SINGLE_CHAR_GUESSES_LOG10 = 1;
+	private static final double MIN_MULTI_CHAR_GUESSES_LOG10 = Math.log10(50);
+	private static final double BRUTEFORCE_GUESSES_LOG10 = 1;
+
+	private static final int MIN_YEAR = 1900;
+	private static final int MAX_YEAR = 2099;
+	private static final int MIN_YEAR_SPACE = 20;
+	private static final int REFERENCE_YEAR = Calendar.getInstance().get(Calendar.YEAR);
+
+	private static final String[] KEYBOARD_ROWS = {
+		"`1234567890-=", "qwertyuiop[]\\", "asdfghjkl;'", "zxcvbnm,./" };
+	private static final String[] SHIFTED_KEYBOARD_ROWS = {
+		"~!@#$%^&*()_+", "QWERTYUIOP{}|", "ASDFGHJKL:\"", "ZXCVBNM<>?" };
+	/** Key c of row r sits below keys c + offset and c + offset + 1 of row r - 1. */
+	private static final int[] KEYBOARD_ROW_OFFSETS = { 0, 1, 0, 0 };
+	private static final double KEYBOARD_STARTING_POSITIONS = 94;
+	private static final double KEYBOARD_AVERAGE_DEGREE = 4.595;
+
+	private static final int[] KEY_ROWS = new int[128];
+	private static final int[] KEY_COLUMNS = new int[128];
+	private static final boolean[] SHIFTED_KEYS = new boolean[128];
+	/** Letters each l33t character may stand for. */
+	private static final String[] L33T = new String[128];
+
+	static {
+		Arrays.fill(KEY_ROWS, -1);
+		for(int row=0;row<KEYBOARD_ROWS.length;row++) {
+			for(int column=0;column<KEYBOARD_ROWS[row].length();column++) {
+				char key = KEYBOARD_ROWS[row].charAt(column);
+				char shifted = SHIFTED_KEYBOARD_ROWS[row].charAt(column);
+				KEY_ROWS[key] = KEY_ROWS[shifted] = row;
+				KEY_COLUMNS[key] = KEY_COLUMNS[shifted] = column;
+				SHIFTED_KEYS[shifted] = true;
+			}
+		}
+		String[][] l33t = {
+			{ "4", "a" }, { "@", "a" }, { "8", "b" }, { "(", "c" }, { "{", "c" },
+			{ "[", "c" }, { "<", "c" }, { "3", "e" }, { "6", "g" }, { "9", "g" },
+			{ "1", "il" }, { "!", "i" }, { "|", "il" }, { "0", "o" }, { "$", "s" },
+			{ "5", "s" }, { "7", "lt" }, { "+", "t" }, { "%", "x" }, { "2", "z" } };
+		for(String[] substitution : l33t) {
+			L33T[substitution[0].charAt(0)] = substitution[1];
+		}
+	}
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	private List<Resource> dictionaries = Collections.emptyList();
+	@Min(0)
+	@Max(4)
+	private int minScore = 0;
+
+	private DictionaryTrie trie;
+
+	/**
+	 * @param userInputs words an attacker would try first for this user,
+	 * e.g. the username
+	 * @return true if minScore is set and the password scores below it
+	 */
+	public boolean isGuessable(String password, String... userInputs) {
+		return minScore > 0 && score(password, userInputs) < minScore;
+	}
+
+	/**
+	 * @return 0 to 4, from too guessable to very unguessable
+	 */
+	public int score(String password, String... userInputs) {
+		double guessesLog10 = guessesLog10(password, userInputs);
+		if(guessesLog10 < 3) {
+			return 0;
+		} else if(guessesLog10 < 6) {
+			return 1;
+		} else if(guessesLog10 < 8) {
+			return 2;
+		} else if(guessesLog10 < 10) {
+			return 3;
+		}
+		return 4;
+	}
+
+	/**
+	 * @return log10 of the estimated number of guesses needed
+	 */
+	public double guessesLog10(String password, String... userInputs) {
+		int length = Math.min(password.length(), MAX_ANALYZED_LENGTH);
+		double rest = (password.length() - length) * BRUTEFORCE_GUESSES_LOG10;
+		return minimumGuessesLog10(password, length, userInputs, true) + rest;
+	}
+
+	/**
+	 * <p>Finds the cheapest way to cover the first length characters with
+	 * matches and single random characters.</p>
+	 * @param repeats false when costing the base of a repeat, so repeats
+	 * don't nest
+	 */
+	private double minimumGuessesLog10(String password, int length, String[] userInputs, boolean repeats) {
+		Matches matches = new Matches();
+		matchDictionary(password, length, matches);
+		matchUserInputs(password, length, userInputs, matches);
+		matchKeyboardWalks(password, length, matches);
+		matchSequences(password, length, matches);
+		matchDates(password, length, matches);
+		if(repeats) {
+			matchRepeats(password, length, userInputs, matches);
+		}
+
+		double[] best = new double[length + 1];
+		for(int end=1;end<=length;end++) {
+			best[end] = best[end - 1] + BRUTEFORCE_GUESSES_LOG10;
+			for(int m=0;m<matches.size;m++) {
+				if(matches.ends[m] != end) {
+					continue;
+				}
+				int start = matches.starts[m];
+				double guesses = matches.guessesLog10[m];
+				if(start > 0 || end < length) {
+					// a pattern that is only part of the password costs at least this
+					guesses = Math.max(guesses, end - start == 1
+							? MIN_SINGLE_CHAR_GUESSES_LOG10 : MIN_MULTI_CHAR_GUESSES_LOG10);
+				}
+				best[end] = Math.min(best[end], best[start] + guesses);
+			}
+		}
+		return best[length];
+	}
+
+	private void matchDictionary(String password, int length, Matches matches) {
+		for(int start=0;start<length;start++) {
+			matchWords(password, length, start, start, trie.root(), 0, matches);
+		}
+	}
+
+	/**
+	 * <p>Walks the trie from the given node along the password, trying each
+	 * l33t character as the letters it may stand for as well as itself.</p>
+	 * @param substitutions number of l33t characters used so far
+	 */
+	private void matchWords(String password, int length, int start, int position, int node,
+			int substitutions, Matches matches) {
+		if(position > start) {
+			int rank = trie.rank(node);
+			if(rank > 0) {
+				matches.add(start, position, Math.log10(rank)
+						+ uppercaseVariationsLog10(password, start, position)
+						+ substitutions * LOG10_2);
+			}
+		}
+		if(position == length) {
+			return;
+		}
+		char c = Character.toLowerCase(password.charAt(position));
+		int child = trie.child(node, c);
+		if(child >= 0) {
+			matchWords(password, length, start, position + 1, child, substitutions, matches);
+		}
+		String letters = c < L33T.length ? L33T[c] : null;
+		if(letters != null) {
+			for(int i=0;i<letters.length();i++) {
+				child = trie.child(node, letters.charAt(i));
+				if(child >= 0) {
+					matchWords(password, length, start, position + 1, child, substitutions + 1, matches);
+				}
+			}
+		}
+	}
+
+	private void matchUserInputs(String password, int length, String[] userInputs, Matches matches) {
+		for(String input : userInputs) {
+			if(input == null || input.length() < 3) {
+				continue;
+			}
+			for(int start=0;start+input.length()<=length;start++) {
+				if(password.regionMatches(true, start, input, 0, input.length())) {
+					matches.add(start, start + input.length(),
+							uppercaseVariationsLog10(password, start, start + input.length()));
+				}
+			}
+		}
+	}
+
+	private void matchKeyboardWalks(String password, int length, Matches matches) {
+		int start = 0;
+		while(start < length - 2) {
+			int end = start + 1;
+			int turns = 0;
+			int direction = Integer.MIN_VALUE;
+			int shifted = isShiftedKey(password.charAt(start)) ? 1 : 0;
+			while(end < length) {
+				int next = keyDirection(password.charAt(end - 1), password.charAt(end));
+				if(next == Integer.MIN_VALUE) {
+					break;
+				}
+				if(next != direction) {
+					turns++;
+					direction = next;
+				}
+				if(isShiftedKey(password.charAt(end))) {
+					shifted++;
+				}
+				end++;
+			}
+			if(end - start >= 3) {
+				matches.add(start, end, keyboardWalkGuessesLog10(end - start, turns, shifted));
+				start = end - 1;
+			} else {
+				start++;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of walks up to this long with up to this many
+	 * turns, from any key, times the ways to shift some of the keys
+	 */
+	private static double keyboardWalkGuessesLog10(int length, int turns, int shifted) {
+		double guesses = 0;
+		for(int i=2;i<=length;i++) {
+			for(int j=1;j<=Math.min(turns, i - 1);j++) {
+				guesses += binomial(i - 1, j - 1) * KEYBOARD_STARTING_POSITIONS
+						* Math.pow(KEYBOARD_AVERAGE_DEGREE, j);
+			}
+		}
+		int unshifted = length - shifted;
+		if(shifted > 0 && unshifted > 0) {
+			double variations = 0;
+			for(int i=1;i<=Math.min(shifted, unshifted);i++) {
+				variations += binomial(length, i);
+			}
+			guesses *= variations;
+		} else if(shifted > 0) {
+			guesses *= 2;
+		}
+		return Math.log10(guesses);
+	}
+
+	/**
+	 * @return a code for the direction from key a to key b if they are
+	 * adjacent on the keyboard, otherwise Integer.MIN_VALUE
+	 */
+	private static int keyDirection(char a, char b) {
+		if(a >= KEY_ROWS.length || b >= KEY_ROWS.length || KEY_ROWS[a] < 0 || KEY_ROWS[b] < 0) {
+			return Integer.MIN_VALUE;
+		}
+		int rowA = KEY_ROWS[a];
+		int rowB = KEY_ROWS[b];
+		int columnA = KEY_COLUMNS[a];
+		int columnB = KEY_COLUMNS[b];
+		boolean adjacent;
+		if(rowA == rowB) {
+			adjacent = Math.abs(columnA - columnB) == 1;
+		} else if(rowB == rowA - 1) {
+			int above = columnA + KEYBOARD_ROW_OFFSETS[rowA];
+			adjacent = columnB == above || columnB == above + 1;
+		} else if(rowB == rowA + 1) {
+			int above = columnB + KEYBOARD_ROW_OFFSETS[rowB];
+			adjacent = columnA == above || columnA == above + 1;
+		} else {
+			adjacent = false;
+		}
+		return adjacent ? (rowB - rowA) * 16 + (columnB - columnA) : Integer.MIN_VALUE;
+	}
+
+	private static boolean isShiftedKey(char c) {
+		return c < SHIFTED_KEYS.length && SHIFTED_KEYS[c];
+	}
+
+	private void matchSequences(String password, int length, Matches matches) {
+		int start = 0;
+		while(start < length - 2) {
+			int delta = password.charAt(start + 1) - password.charAt(start);
+			if(delta != 1 && delta != -1) {
+				start++;
+				continue;
+			}
+			int end = start + 2;
+			while(end < length && password.charAt(end) - password.charAt(end - 1) == delta) {
+				end++;
+			}
+			if(end - start >= 3) {
+				char first = password.charAt(start);
+				int starts = "aAzZ019".indexOf(first) >= 0 ? 4 : Character.isDigit(first) ? 10 : 26;
+				matches.add(start, end, Math.log10(starts * (end - start) * (delta < 0 ? 2 : 1)));
+			}
+			start = end - 1;
+		}
+	}
+
+	/**
+	 * <p>Matches runs of a repeated character or block, e.g. aaaa or
+	 * abcabc, costed as the block's guesses times the number of
+	 * repeats.</p>
+	 */
+	private void matchRepeats(String password, int length, String[] userInputs, Matches matches) {
+		int start = 0;
+		while(start < length) {
+			int end = start + 1;
+			for(int period=1;start+2*period<=length;period++) {
+				int repeats = 1;
+				while(start + (repeats + 1) * period <= length
+						&& password.regionMatches(start, password, start + repeats * period, period)) {
+					repeats++;
+				}
+				if(repeats >= 2 && (period > 1 || repeats >= 3)) {
+					String block = password.substring(start, start + period);
+					double blockGuesses = period == 1 ? BRUTEFORCE_GUESSES_LOG10
+							: minimumGuessesLog10(block, period, userInputs, false);
+					matches.add(start, start + repeats * period, blockGuesses + Math.log10(repeats));
+					end = start + repeats * period;
+					break;
+				}
+			}
+			start = end;
+		}
+	}
+
+	private void matchDates(String password, int length, Matches matches) {
+		for(int start=0;start<length;start++) {
+			if(!Character.isDigit(password.charAt(start))) {
+				continue;
+			}
+			for(int end=start+4;end<=Math.min(length, start + 10);end++) {
+				int year = parseDate(password, start, end);
+				if(year > 0) {
+					double yearSpace = Math.max(Math.abs(year - REFERENCE_YEAR), MIN_YEAR_SPACE);
+					boolean yearOnly = end - start == 4;
+					boolean separated = !Character.isDigit(password.charAt(start + 2))
+							|| !Character.isDigit(password.charAt(start + 1))
+							|| (end - start > 4 && !Character.isDigit(password.charAt(start + 4)));
+					matches.add(start, end, Math.log10(yearSpace * (yearOnly ? 1 : 365) * (separated ? 4 : 1)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Reads password[start..end) as a year, as digits in day, month and
+	 * year order (ddmmyy, mmddyyyy, yyyymmdd...), or as three such numbers
+	 * split by the same separator (12/25/1990, 1990-12-25).</p>
+	 * @return the year, or 0 if it is not a plausible date
+	 */
+	private static int parseDate(String password, int start, int end) {
+		int[] parts = new int[3];
+		int[] digits = new int[3];
+		int part = 0;
+		char separator = 0;
+		for(int i=start;i<end;i++) {
+			char c = password.charAt(i);
+			if(Character.isDigit(c)) {
+				if(digits[part] == 4) {
+					return 0;
+				}
+				parts[part] = parts[part] * 10 + (c - '0');
+				digits[part]++;
+			} else if("/-._ \\".indexOf(c) >= 0 && (separator == 0 || separator == c)
+					&& part < 2 && digits[part] > 0) {
+				separator = c;
+				part++;
+			} else {
+				return 0;
+			}
+		}
+		if(separator != 0) {
+			if(part != 2 || digits[2] == 0) {
+				return 0;
+			}
+			if(digits[0] == 4 && digits[1] <= 2 && digits[2] <= 2) {
+				return validDate(parts[2], parts[1], parts[0]) ? parts[0] : 0;
+			}
+			if(digits[0] <= 2 && digits[1] <= 2 && (digits[2] == 2 || digits[2] == 4)) {
+				int year = toFullYear(parts[2], digits[2]);
+				return validDate(parts[0], parts[1], year) || validDate(parts[1], parts[0], year) ? year : 0;
+			}
+			return 0;
+		}
+
+		String number = password.substring(start, end);
+		switch(number.length()) {
+		case 4:
+			int year = Integer.parseInt(number);
+			return year >= MIN_YEAR && year <= MAX_YEAR ? year : 0;
+		case 6:
+			return firstValid(number, 2);
+		case 8:
+			return firstValid(number, 4);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the year of the first valid reading of the digits as
+	 * ddmmyy(yy), mmddyy(yy) or yy(yy)mmdd, or 0
+	 */
+	private static int firstValid(String number, int yearDigits) {
+		int length = number.length();
+		int a = Integer.parseInt(number.substring(0, 2));
+		int b = Integer.parseInt(number.substring(2, 4));
+		int trailingYear = toFullYear(Integer.parseInt(number.substring(4)), yearDigits);
+		if(validDate(a, b, trailingYear) || validDate(b, a, trailingYear)) {
+			return trailingYear;
+		}
+		int leadingYear = toFullYear(Integer.parseInt(number.substring(0, yearDigits)), yearDigits);
+		int month = Integer.parseInt(number.substring(yearDigits, yearDigits + 2));
+		int day = Integer.parseInt(number.substring(yearDigits + 2, length));
+		return validDate(day, month, leadingYear) ? leadingYear : 0;
+	}
+
+	private static int toFullYear(int year, int digits) {
+		if(digits == 4) {
+			return year;
+		}
+		return year > 50 ? 1900 + year : 2000 + year;
+	}
+
+	private static boolean validDate(int day, int month, int year) {
+		return day >= 1 && day <= 31 && month >= 1 && month <= 12
+				&& year >= MIN_YEAR && year <= MAX_YEAR;
+	}
+
+	/**
+	 * @return log10 of the ways to capitalize the word: none for all
+	 * lowercase, 2 for a capital first or last letter or all capitals,
+	 * otherwise the ways to choose its capitals
+	 */
+	private static double uppercaseVariationsLog10(String password, int start, int end) {
+		int upper = 0;
+		int lower = 0;
+		for(int i=start;i<end;i++) {
+			char c = password.charAt(i);
+			if(Character.isUpperCase(c)) {
+				upper++;
+			} else if(Character.isLowerCase(c)) {
+				lower++;
+			}
+		}
+		if(upper == 0) {
+			return 0;
+		}
+		if(lower == 0 || (upper == 1 && (Character.isUpperCase(password.charAt(start))
+				|| Character.isUpperCase(password.charAt(end - 1))))) {
+			return LOG10_2;
+		}
+		double variations = 0;
+		for(int i=1;i<=Math.min(upper, lower);i++) {
+			variations += binomial(upper + lower, i);
+		}
+		return Math.log10(variations);
+	}
+
+	private static double binomial(int n, int k) {
+		double result = 1;
+		for(int i=1;i<=k;i++) {
+			result = result * (n - k + i) / i;
+		}
+		return result;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		Map<String,Integer> words = new HashMap<String,Integer>();
+		for(Resource dictionary : dictionaries) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(dictionary.getInputStream(), "UTF-8"));
+			try {
+				int rank = 0;
+				String line;
+				while((line = reader.readLine()) != null) {
+					String word = line.trim().toLowerCase();
+					if(word.isEmpty() || word.startsWith("#")) {
+						continue;
+					}
+					rank++;
+					Integer existing = words.get(word);
+					if(existing == null || existing > rank) {
+						words.put(word, rank);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		trie = new DictionaryTrie(words);
+		logger.info("Loaded " + words.size() + " words from " + dictionaries.size()
+				+ " dictionaries into a trie of " + trie.size() + " nodes");
+	}
+
+	/**
+	 * @param dictionaries word lists, one word per line, most common first
+	 */
+	public void setDictionaries(List<Resource> dictionaries) {
+		this.dictionaries = dictionaries;
+	}
+
+	/**
+	 * @param minScore lowest acceptable score, 1 to 4, or 0 to accept any
+	 * password
+	 */
+	public void setMinScore(int minScore) {
+		this.minScore = minScore;
+	}
+
+	public int getMinScore() {
+		return minScore;
+	}
+
+	/**
+	 * <p>Matches found in one password, as parallel arrays.</p>
+	 */
+	private static class Matches {
+
+		private int[] starts = new int[32];
+		private int[] ends = new int[32];
+		private double[] guessesLog10 = new double[32];
+		private int size;
+
+		private void add(int start, int end, double guesses) {
+			if(size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				guessesLog10 = Arrays.copyOf(guessesLog10, size * 2);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			guessesLog10[size] = guesses;
+			size++;
+		}
+	}
+}
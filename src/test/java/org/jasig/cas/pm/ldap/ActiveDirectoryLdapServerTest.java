@@ -0,0 +1,219 @@
+package org.jasig.cas.pm.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.jasig.cas.pm.DeadlineExceededException;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.SecurityQuestion;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.PartialResultException;
+import org.springframework.ldap.ServiceUnavailableException;
+import org.springframework.ldap.core.DistinguishedName;
+
+/**
+ * <p>Runs ActiveDirectoryLdapServer against an EmbeddedLdapDirectory in its
+ * Active Directory flavour.</p>
+ */
+public class ActiveDirectoryLdapServerTest {
+
+	private EmbeddedLdapDirectory directory;
+	private String jdoeDn;
+
+	@Before
+	public void startDirectory() throws Exception {
+		directory = EmbeddedLdapDirectory.activeDirectory();
+		directory.start();
+		jdoeDn = directory.addUser("jdoe", "Old-Passw0rd",
+				"extensionAttribute1: First pet?", "extensionAttribute2: Home town?",
+				"extensionAttribute3: Rex", "extensionAttribute4: Springfield",
+				"employeeID: E1234", "postalCode: 12345");
+		directory.addUser("nochallenge", "Passw0rd");
+	}
+
+	@After
+	public void stopDirectory() {
+		directory.stop();
+	}
+
+	@Test
+	public void findsUserAndVerifiesPassword() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		assertEquals(new DistinguishedName(jdoeDn), new DistinguishedName(server.findDn("jdoe")));
+		assertTrue(server.verifyPassword("jdoe", "Old-Passw0rd"));
+		assertFalse(server.verifyPassword("jdoe", "wrong"));
+		assertFalse(server.verifyPassword("jdoe", ""));
+	}
+
+	@Test
+	public void dnIsCachedBetweenOperations() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		server.verifyPassword("jdoe", "Old-Passw0rd");
+		server.verifyPassword("jdoe", "Old-Passw0rd");
+		assertEquals(1, directory.getSearchCount());
+		assertEquals(1, server.getDnCacheHitCount());
+	}
+
+	@Test
+	public void missingUserIsNotFound() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		try {
+			server.findDn("nobody");
+			fail("nobody shouldn't be found");
+		} catch(NameNotFoundException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void setPasswordWritesUnicodePwd() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		server.setPassword("jdoe", "N\u00e9w-Passw0rd\u20ac");
+		assertEquals("N\u00e9w-Passw0rd\u20ac", directory.getPassword(jdoeDn));
+		assertTrue(server.verifyPassword("jdoe", "N\u00e9w-Passw0rd\u20ac"));
+	}
+
+	@Test
+	public void encodePasswordMatchesGetBytes() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		for(String password : new String[] { "", "Passw0rd", "N\u00e9w-\u20ac", "\ud83d\ude00",
+				"unpaired\ud83d", "\ude00unpaired" }) {
+			assertArrayEquals(password, ("\"" + password + "\"").getBytes("UTF-16LE"),
+					server.encodePassword(password));
+		}
+	}
+
+	@Test
+	public void changePasswordBindsWithOldPassword() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		try {
+			server.changePassword("jdoe", "wrong", "New-Passw0rd");
+			fail("wrong old password should be rejected");
+		} catch(InvalidPasswordException ex) {
+			// expected
+		}
+		assertEquals("Old-Passw0rd", directory.getPassword(jdoeDn));
+
+		server.changePassword("jdoe", "Old-Passw0rd", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+	}
+
+	@Test
+	public void changePasswordInSingleModifyLetsDirectoryCheckOldPassword() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(true);
+		try {
+			server.changePassword("jdoe", "wrong", "New-Passw0rd");
+			fail("wrong old password should be rejected");
+		} catch(InvalidPasswordException ex) {
+			// expected
+		}
+		assertEquals("Old-Passw0rd", directory.getPassword(jdoeDn));
+
+		int binds = directory.getBindCount();
+		server.changePassword("jdoe", "Old-Passw0rd", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+		// the DN is cached, so just the administrator bind for the modify
+		assertEquals(binds + 1, directory.getBindCount());
+	}
+
+	@Test
+	public void readsAndWritesSecurityChallenges() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		UserSecurityChallenges challenges = server.getSecurityChallenges("jdoe");
+		assertQuestions(challenges.getUserChallenge(), "First pet?", "Rex", "Home town?", "Springfield");
+		assertQuestions(challenges.getDefaultChallenge(), "Employee ID?", "E1234", "Postal code?", "12345");
+
+		server.setUserSecurityChallenge("jdoe", new SecurityChallenge("jdoe", Arrays.asList(
+				new SecurityQuestion("First car?", "Beetle"),
+				new SecurityQuestion("First school?", "Lincoln"))));
+		assertEquals("Beetle", directory.getAttribute(jdoeDn, "extensionAttribute3"));
+		assertQuestions(server.getUserSecurityChallenge("jdoe"), "First car?", "Beetle",
+				"First school?", "Lincoln");
+
+		assertNull(server.getUserSecurityChallenge("nochallenge"));
+	}
+
+	@Test
+	public void referralFailsSearchUnlessIgnored() throws Exception {
+		directory.addReferral("ldap://DomainDnsZones.example.com/DC=DomainDnsZones,DC=example,DC=com");
+		ActiveDirectoryLdapServer server = newServer(false, directory.getBaseDn(), false);
+		try {
+			server.findDn("jdoe");
+			fail("the referral should fail the search");
+		} catch(PartialResultException ex) {
+			// expected
+		}
+
+		server = newServer(false, directory.getBaseDn(), true);
+		assertEquals(new DistinguishedName(jdoeDn), new DistinguishedName(server.findDn("jdoe")));
+		assertTrue(server.verifyPassword("jdoe", "Old-Passw0rd"));
+	}
+
+	@Test
+	public void unavailableDirectoryIsNotMistakenForMissingUser() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		directory.failNextOperations(1);
+		try {
+			server.findDn("jdoe");
+			fail("the search should fail");
+		} catch(ServiceUnavailableException ex) {
+			// expected
+		}
+		assertEquals(new DistinguishedName(jdoeDn), new DistinguishedName(server.findDn("jdoe")));
+	}
+
+	@Test
+	public void bindIsSkippedOnceDeadlineHasPassed() throws Exception {
+		ActiveDirectoryLdapServer server = newServer(false);
+		directory.setLatencyMillis(100);
+		Deadline previous = Deadline.set(Deadline.after(50));
+		try {
+			server.verifyPassword("jdoe", "Old-Passw0rd");
+			fail("the deadline should pass during the search");
+		} catch(DeadlineExceededException ex) {
+			// expected
+		} finally {
+			Deadline.restore(previous);
+		}
+		assertEquals(1, directory.getSearchCount());
+		// just the administrator bind for the search
+		assertEquals(1, directory.getBindCount());
+	}
+
+	private ActiveDirectoryLdapServer newServer(boolean changePasswordInSingleModify) throws Exception {
+		return newServer(changePasswordInSingleModify, directory.getUsersDn(), false);
+	}
+
+	private ActiveDirectoryLdapServer newServer(boolean changePasswordInSingleModify, String searchBase,
+			boolean ignorePartialResultException) throws Exception {
+		ActiveDirectoryLdapServer server = new ActiveDirectoryLdapServer();
+		directory.configure(server);
+		server.setDescription("ad");
+		server.setSearchBase(searchBase);
+		server.setIgnorePartialResultException(ignorePartialResultException);
+		server.setChangePasswordInSingleModify(changePasswordInSingleModify);
+		server.afterPropertiesSet();
+		return server;
+	}
+
+	static void assertQuestions(SecurityChallenge challenge, String... questionsAndAnswers) {
+		assertEquals(questionsAndAnswers.length / 2, challenge.getQuestions().size());
+		for(int i=0;i<questionsAndAnswers.length;i+=2) {
+			SecurityQuestion question = challenge.getQuestions().get(i / 2);
+			assertEquals(questionsAndAnswers[i], question.getQuestionText());
+			assertEquals(questionsAndAnswers[i + 1], question.getResponseText());
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package org.jasig.cas.pm.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.ldap.core.support.LdapContextSource;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedExtendedRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedExtendedResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ReadOnlyModifyRequest;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.extensions.PasswordModifyExtendedRequest;
+import com.unboundid.ldap.sdk.schema.Schema;
+
+/**
+ * <p>In-process directory server (UnboundID's InMemoryDirectoryServer)
+ * standing in for Active Directory or OpenLDAP, so the LdapServer
+ * implementations can be tested with real LDAP round-trips.</p>
+ *
+ * <p>The Active Directory flavour has users under
+ * ou=Users,dc=example,dc=com, keyed by sAMAccountName, and takes password
+ * sets and changes through unicodePwd the way AD does: a replace of the
+ * quoted UTF-16LE password, or a delete of the old one and add of the new
+ * one, failing with AD's 00000056 error if the old one is wrong. The
+ * password is kept in userPassword so that binds work. The OpenLDAP flavour
+ * has inetOrgPerson users under ou=people,dc=example,dc=org, keyed by uid,
+ * and answers a Password Modify with the wrong old password the way slapd
+ * does. Both load the standard schema plus the attributes they need.</p>
+ *
+ * <p>Every search, bind, modify and extended operation waits latencyMillis
+ * first. failNextOperations makes searches, modifies and extended
+ * operations fail with unavailable, and addReferral adds a continuation
+ * reference to subtree searches from the base.</p>
+ */
+public class EmbeddedLdapDirectory extends InMemoryOperationInterceptor {
+
+	public static final String ADMIN_DN = "cn=Directory Manager";
+	public static final String ADMIN_PASSWORD = "admin-secret";
+
+	/** AD's answer to a delete/add of unicodePwd with the wrong old password. */
+	private static final String AD_INVALID_OLD_PASSWORD = "0000052D: AtrErr: DSID-03190F80, #1:\n"
+			+ "\t0: 00000056: DSID-03190F80, problem 1005 (CONSTRAINT_ATT_TYPE), data 0, Att 9005a (unicodePwd)";
+
+	private final String baseDn;
+	private final String usersDn;
+	private final String usernameAttr;
+	private final boolean activeDirectory;
+	private final InMemoryDirectoryServer server;
+	private volatile long latencyMillis = 0;
+	private final AtomicInteger failures = new AtomicInteger();
+	private final List<String> referrals = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger searchCount = new AtomicInteger();
+	private final AtomicInteger bindCount = new AtomicInteger();
+	private final AtomicInteger modifyCount = new AtomicInteger();
+
+	private EmbeddedLdapDirectory(String baseDn, String usersRdn, String usernameAttr,
+			boolean activeDirectory, Schema schema) throws LDAPException {
+		this.baseDn = baseDn;
+		this.usersDn = usersRdn + "," + baseDn;
+		this.usernameAttr = usernameAttr;
+		this.activeDirectory = activeDirectory;
+
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(baseDn);
+		config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+		config.setSchema(schema);
+		config.addInMemoryOperationInterceptor(this);
+		server = new InMemoryDirectoryServer(config);
+	}
+
+	public static EmbeddedLdapDirectory activeDirectory() throws LDAPException {
+		Schema schema = extendStandardSchema(new String[] {
+				"( 1.2.840.113556.1.4.221 NAME 'sAMAccountName' EQUALITY caseIgnoreMatch"
+						+ " SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )",
+				"( 1.2.840.113556.1.4.90 NAME 'unicodePwd' SYNTAX 1.3.6.1.4.1.1466.115.121.1.40 SINGLE-VALUE )",
+				"( 1.2.840.113556.1.4.35 NAME 'employeeID' EQUALITY caseIgnoreMatch"
+						+ " SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )",
+				extensionAttribute(1), extensionAttribute(2), extensionAttribute(3), extensionAttribute(4)
+			}, new String[] {
+				"( 1.2.840.113556.1.5.9 NAME 'user' SUP organizationalPerson STRUCTURAL"
+						+ " MAY ( sAMAccountName $ unicodePwd $ employeeID $ postalCode"
+						+ " $ extensionAttribute1 $ extensionAttribute2 $ extensionAttribute3"
+						+ " $ extensionAttribute4 ) )"
+			});
+		return new EmbeddedLdapDirectory("dc=example,dc=com", "ou=Users", "sAMAccountName", true, schema);
+	}
+
+	public static EmbeddedLdapDirectory openLdap() throws LDAPException {
+		Schema schema = extendStandardSchema(new String[] {
+				"( 1.3.6.1.4.1.99999.1.1 NAME 'securityQuestion' EQUALITY caseIgnoreMatch"
+						+ " SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )",
+				"( 1.3.6.1.4.1.99999.1.2 NAME 'securityAnswer' EQUALITY caseIgnoreMatch"
+						+ " SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )"
+			}, new String[] {
+				"( 1.3.6.1.4.1.99999.2.1 NAME 'passwordManagerUser' SUP top AUXILIARY"
+						+ " MAY ( securityQuestion $ securityAnswer ) )"
+			});
+		return new EmbeddedLdapDirectory("dc=example,dc=org", "ou=people", "uid", false, schema);
+	}
+
+	private static String extensionAttribute(int n) {
+		return "( 1.2.840.113556.1.2." + (422 + n) + " NAME 'extensionAttribute" + n + "'"
+				+ " EQUALITY caseIgnoreMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 SINGLE-VALUE )";
+	}
+
+	private static Schema extendStandardSchema(String[] attributeTypes, String[] objectClasses)
+			throws LDAPException {
+		Entry schemaEntry = Schema.getDefaultStandardSchema().getSchemaEntry().duplicate();
+		schemaEntry.addAttribute("attributeTypes", attributeTypes);
+		schemaEntry.addAttribute("objectClasses", objectClasses);
+		return new Schema(schemaEntry);
+	}
+
+	/**
+	 * <p>Starts listening on a free port, with the base and users entries in
+	 * place.</p>
+	 */
+	public void start() throws Exception {
+		server.startListening();
+		String rdnValue = baseDn.substring(baseDn.indexOf('=') + 1, baseDn.indexOf(','));
+		server.add("dn: " + baseDn, "objectClass: top", "objectClass: domain", "dc: " + rdnValue);
+		server.add("dn: " + usersDn, "objectClass: top", "objectClass: organizationalUnit",
+				"ou: " + usersDn.substring(usersDn.indexOf('=') + 1, usersDn.indexOf(',')));
+	}
+
+	public void stop() {
+		server.shutDown(true);
+	}
+
+	/**
+	 * <p>Gets a context source binding as the administrator, with the
+	 * search base left to the LdapServer as in passwordManagerContext.xml.</p>
+	 */
+	public LdapContextSource createContextSource() throws Exception {
+		LdapContextSource contextSource = new LdapContextSource();
+		contextSource.setUrl("ldap://localhost:" + server.getListenPort());
+		contextSource.setUserDn(ADMIN_DN);
+		contextSource.setPassword(ADMIN_PASSWORD);
+		contextSource.setPooled(false);
+		contextSource.afterPropertiesSet();
+		return contextSource;
+	}
+
+	/**
+	 * <p>Creates an ActiveDirectoryLdapServer or OpenLdapLdapServer,
+	 * depending on the flavour, set up for this directory.</p>
+	 */
+	public AbstractLdapServer createLdapServer(String description) throws Exception {
+		AbstractLdapServer ldapServer = activeDirectory ? new ActiveDirectoryLdapServer() : new OpenLdapLdapServer();
+		configure(ldapServer);
+		ldapServer.setDescription(description);
+		ldapServer.afterPropertiesSet();
+		return ldapServer;
+	}
+
+	/**
+	 * <p>Points the server at this directory, with the flavour's user
+	 * filter, password attribute and security question attributes. The
+	 * caller still has to call afterPropertiesSet.</p>
+	 */
+	public void configure(AbstractLdapServer ldapServer) throws Exception {
+		ldapServer.setLdapContextSource(createContextSource());
+		ldapServer.setSearchBase(usersDn);
+		ldapServer.setUsernameAttr(usernameAttr);
+		if(activeDirectory) {
+			ldapServer.setFilter("(&(objectClass=user)(sAMAccountName=%u))");
+			ldapServer.setPasswordAttr("unicodePwd");
+			ldapServer.setSecurityQuestionAttrs(Arrays.asList("extensionAttribute1", "extensionAttribute2"));
+			ldapServer.setSecurityResponseAttrs(Arrays.asList("extensionAttribute3", "extensionAttribute4"));
+			ldapServer.setDefaultQuestions(Arrays.asList("Employee ID?", "Postal code?"));
+			ldapServer.setDefaultResponseAttrs(Arrays.asList("employeeID", "postalCode"));
+		} else {
+			ldapServer.setFilter("(&(objectClass=inetOrgPerson)(uid=%u))");
+			ldapServer.setPasswordAttr("userPassword");
+			ldapServer.setSecurityQuestionAttrs(Arrays.asList("securityQuestion"));
+			ldapServer.setSecurityResponseAttrs(Arrays.asList("securityAnswer"));
+			ldapServer.setDefaultQuestions(Arrays.asList("Employee number?", "Postal code?"));
+			ldapServer.setDefaultResponseAttrs(Arrays.asList("employeeNumber", "postalCode"));
+		}
+	}
+
+	/**
+	 * <p>Adds a user.</p>
+	 * @param attributes further attributes as LDIF lines, e.g.
+	 * "postalCode: 12345"
+	 * @return the user's DN
+	 */
+	public String addUser(String username, String password, String... attributes) throws Exception {
+		String dn = (activeDirectory ? "cn=" : "uid=") + username + "," + usersDn;
+		List<String> ldif = new ArrayList<String>();
+		ldif.add("dn: " + dn);
+		ldif.add("objectClass: top");
+		ldif.add("objectClass: person");
+		ldif.add("objectClass: organizationalPerson");
+		if(activeDirectory) {
+			ldif.add("objectClass: user");
+		} else {
+			ldif.add("objectClass: inetOrgPerson");
+			ldif.add("objectClass: passwordManagerUser");
+		}
+		ldif.add("cn: " + username);
+		ldif.add("sn: " + username);
+		ldif.add(usernameAttr + ": " + username);
+		ldif.add("userPassword: " + password);
+		for(String attribute : attributes) {
+			ldif.add(attribute);
+		}
+		server.add(ldif.toArray(new String[ldif.size()]));
+		return dn;
+	}
+
+	public void deleteUser(String dn) throws LDAPException {
+		server.delete(dn);
+	}
+
+	/**
+	 * <p>Makes subtree searches from the base return a continuation
+	 * reference to the given URL, as AD does for its application partitions
+	 * (DomainDnsZones, ForestDnsZones) when searched from the domain root.</p>
+	 */
+	public void addReferral(String url) {
+		referrals.add(url);
+	}
+
+	public String getAttribute(String dn, String attribute) throws LDAPException {
+		Entry entry = server.getEntry(dn);
+		return entry != null ? entry.getAttributeValue(attribute) : null;
+	}
+
+	public String getPassword(String dn) throws LDAPException {
+		return getAttribute(dn, "userPassword");
+	}
+
+	public String getBaseDn() {
+		return baseDn;
+	}
+
+	public String getUsersDn() {
+		return usersDn;
+	}
+
+	public String getUsernameAttr() {
+		return usernameAttr;
+	}
+
+	/**
+	 * @param latencyMillis time every operation waits before it's processed
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * <p>Makes the next searches, modifies or extended operations fail with
+	 * unavailable (52), as a server shutting down or a DC being demoted
+	 * would.</p>
+	 */
+	public void failNextOperations(int count) {
+		failures.set(count);
+	}
+
+	public int getSearchCount() {
+		return searchCount.get();
+	}
+
+	/**
+	 * @return number of binds, including the administrator's
+	 */
+	public int getBindCount() {
+		return bindCount.get();
+	}
+
+	public int getModifyCount() {
+		return modifyCount.get();
+	}
+
+	@Override
+	public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+		searchCount.incrementAndGet();
+		delay();
+		injectFailure("search");
+		ReadOnlySearchRequest searchRequest = request.getRequest();
+		if(searchRequest.getScope() == SearchScope.SUB
+				&& new DN(searchRequest.getBaseDN()).equals(new DN(baseDn))) {
+			for(String url : referrals) {
+				request.sendSearchReference(new SearchResultReference(new String[] { url }, new Control[0]));
+			}
+		}
+	}
+
+	@Override
+	public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) throws LDAPException {
+		bindCount.incrementAndGet();
+		delay();
+	}
+
+	@Override
+	public void processModifyRequest(InMemoryInterceptedModifyRequest request) throws LDAPException {
+		modifyCount.incrementAndGet();
+		delay();
+		injectFailure("modify");
+		if(activeDirectory) {
+			rewriteUnicodePwd(request);
+		}
+	}
+
+	@Override
+	public void processExtendedRequest(InMemoryInterceptedExtendedRequest request) throws LDAPException {
+		delay();
+		injectFailure("extended operation");
+	}
+
+	@Override
+	public void processExtendedResult(InMemoryInterceptedExtendedResult result) {
+		ExtendedResult extendedResult = result.getResult();
+		if(!activeDirectory
+				&& PasswordModifyExtendedRequest.PASSWORD_MODIFY_REQUEST_OID.equals(result.getRequest().getOID())
+				&& extendedResult.getResultCode() == ResultCode.INVALID_CREDENTIALS) {
+			result.setResult(new ExtendedResult(extendedResult.getMessageID(), ResultCode.UNWILLING_TO_PERFORM,
+					"unwilling to verify old password", null, null, null, null, null));
+		}
+	}
+
+	/**
+	 * <p>Turns unicodePwd modifications into userPassword ones, checking
+	 * the old password of a delete/add change as AD does.</p>
+	 */
+	private void rewriteUnicodePwd(InMemoryInterceptedModifyRequest request) throws LDAPException {
+		ReadOnlyModifyRequest modifyRequest = request.getRequest();
+		List<Modification> modifications = new ArrayList<Modification>();
+		String oldPassword = null;
+		String newPassword = null;
+		for(Modification modification : modifyRequest.getModifications()) {
+			if(!modification.getAttributeName().equalsIgnoreCase("unicodePwd")) {
+				modifications.add(modification);
+				continue;
+			}
+			String password = decodeUnicodePwd(modification.getValueByteArrays()[0]);
+			if(modification.getModificationType() == ModificationType.REPLACE) {
+				modifications.add(new Modification(ModificationType.REPLACE, "userPassword", password));
+			} else if(modification.getModificationType() == ModificationType.DELETE) {
+				oldPassword = password;
+			} else {
+				newPassword = password;
+			}
+		}
+		if(oldPassword != null || newPassword != null) {
+			if(oldPassword == null || newPassword == null
+					|| !oldPassword.equals(getPassword(modifyRequest.getDN()))) {
+				throw new LDAPException(ResultCode.CONSTRAINT_VIOLATION, AD_INVALID_OLD_PASSWORD);
+			}
+			modifications.add(new Modification(ModificationType.REPLACE, "userPassword", newPassword));
+		}
+		List<Control> controls = modifyRequest.getControlList();
+		request.setRequest(new ModifyRequest(modifyRequest.getDN(), modifications,
+				controls.toArray(new Control[controls.size()])));
+	}
+
+	private static String decodeUnicodePwd(byte[] value) throws LDAPException {
+		try {
+			String quoted = new String(value, "UTF-16LE");
+			if(quoted.length() < 2 || quoted.charAt(0) != '"' || quoted.charAt(quoted.length() - 1) != '"') {
+				throw new LDAPException(ResultCode.CONSTRAINT_VIOLATION,
+						"0000052D: unicodePwd must be a quoted UTF-16LE string");
+			}
+			return quoted.substring(1, quoted.length() - 1);
+		} catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private void delay() {
+		long millis = latencyMillis;
+		if(millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void injectFailure(String operation) throws LDAPException {
+		if(failures.get() > 0 && failures.decrementAndGet() >= 0) {
+			throw new LDAPException(ResultCode.UNAVAILABLE, "Simulated failure of " + operation);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.jasig.cas.pm.ldap;
+
+import static org.jasig.cas.pm.ldap.ActiveDirectoryLdapServerTest.assertQuestions;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Base64;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.ServiceUnavailableException;
+
+/**
+ * <p>Runs OpenLdapLdapServer against an EmbeddedLdapDirectory in its
+ * OpenLDAP flavour.</p>
+ */
+public class OpenLdapLdapServerTest {
+
+	private EmbeddedLdapDirectory directory;
+	private String jdoeDn;
+
+	@Before
+	public void startDirectory() throws Exception {
+		directory = EmbeddedLdapDirectory.openLdap();
+		directory.start();
+		jdoeDn = directory.addUser("jdoe", "Old-Passw0rd",
+				"securityQuestion: First pet?", "securityAnswer: Rex",
+				"employeeNumber: 1234", "postalCode: 12345");
+	}
+
+	@After
+	public void stopDirectory() {
+		directory.stop();
+	}
+
+	@Test
+	public void setPasswordWritesUserPassword() throws Exception {
+		OpenLdapLdapServer server = newServer(false, null);
+		server.setPassword("jdoe", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+		assertTrue(server.verifyPassword("jdoe", "New-Passw0rd"));
+		assertFalse(server.verifyPassword("jdoe", "Old-Passw0rd"));
+	}
+
+	@Test
+	public void setPasswordHashesWithEncryptionAlgorithm() throws Exception {
+		OpenLdapLdapServer server = newServer(false, "SHA");
+		server.setPassword("jdoe", "New-Passw0rd");
+		byte[] digest = MessageDigest.getInstance("SHA").digest("New-Passw0rd".getBytes("UTF-8"));
+		assertEquals("{SHA}" + Base64.encodeBase64String(digest), directory.getPassword(jdoeDn));
+	}
+
+	@Test
+	public void changePasswordBindsWithOldPassword() throws Exception {
+		OpenLdapLdapServer server = newServer(false, null);
+		try {
+			server.changePassword("jdoe", "wrong", "New-Passw0rd");
+			fail("wrong old password should be rejected");
+		} catch(InvalidPasswordException ex) {
+			// expected
+		}
+		server.changePassword("jdoe", "Old-Passw0rd", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+	}
+
+	@Test
+	public void passwordModifyExtendedOperationSetsPassword() throws Exception {
+		OpenLdapLdapServer server = newServer(true, null);
+		int modifies = directory.getModifyCount();
+		server.setPassword("jdoe", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+		assertEquals(modifies, directory.getModifyCount());
+	}
+
+	@Test
+	public void passwordModifyExtendedOperationChecksOldPassword() throws Exception {
+		OpenLdapLdapServer server = newServer(true, null);
+		try {
+			server.changePassword("jdoe", "wrong", "New-Passw0rd");
+			fail("wrong old password should be rejected");
+		} catch(InvalidPasswordException ex) {
+			// expected
+		}
+		assertEquals("Old-Passw0rd", directory.getPassword(jdoeDn));
+
+		server.changePassword("jdoe", "Old-Passw0rd", "New-Passw0rd");
+		assertEquals("New-Passw0rd", directory.getPassword(jdoeDn));
+	}
+
+	@Test
+	public void unavailableDirectoryFailsPasswordModify() throws Exception {
+		OpenLdapLdapServer server = newServer(true, null);
+		server.findDn("jdoe");
+		directory.failNextOperations(1);
+		try {
+			server.setPassword("jdoe", "New-Passw0rd");
+			fail("the password modify should fail");
+		} catch(ServiceUnavailableException ex) {
+			// expected
+		}
+		assertEquals("Old-Passw0rd", directory.getPassword(jdoeDn));
+	}
+
+	@Test
+	public void readsSecurityChallenges() throws Exception {
+		OpenLdapLdapServer server = newServer(false, null);
+		assertQuestions(server.getUserSecurityChallenge("jdoe"), "First pet?", "Rex");
+		assertQuestions(server.getDefaultSecurityChallenge("jdoe"), "Employee number?", "1234",
+				"Postal code?", "12345");
+		try {
+			server.getSecurityChallenges("nobody");
+			fail("nobody shouldn't be found");
+		} catch(NameNotFoundException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void wildcardUsernamesMatchNothing() throws Exception {
+		OpenLdapLdapServer server = newServer(false, null);
+		for(String username : new String[] { "*", "j*", "*)(uid=*", "jdoe)(uid=*" }) {
+			try {
+				server.findDn(username);
+				fail(username + " shouldn't match jdoe");
+			} catch(NameNotFoundException ex) {
+				// expected
+			}
+			try {
+				server.getUserSecurityChallenge(username);
+				fail(username + " shouldn't match jdoe");
+			} catch(NameNotFoundException ex) {
+				// expected
+			}
+		}
+	}
+
+	private OpenLdapLdapServer newServer(boolean usePasswordModifyExtendedOperation,
+			String encryptionAlgorithm) throws Exception {
+		OpenLdapLdapServer server = new OpenLdapLdapServer();
+		directory.configure(server);
+		server.setDescription("openldap");
+		server.setUsePasswordModifyExtendedOperation(usePasswordModifyExtendedOperation);
+		server.setEncryptionAlgorithm(encryptionAlgorithm);
+		server.afterPropertiesSet();
+		return server;
+	}
+}
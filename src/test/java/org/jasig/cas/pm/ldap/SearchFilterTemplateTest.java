@@ -0,0 +1,56 @@
+package org.jasig.cas.pm.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * <p>Checks the RFC 4515 escaping of usernames and the CAS placeholders.</p>
+ */
+public class SearchFilterTemplateTest {
+
+	private final SearchFilterTemplate uidFilter = SearchFilterTemplate.compile("(&(objectClass=person)(uid=%u))");
+
+	@Test
+	public void escapesEachReservedCharacter() {
+		assertEquals("(&(objectClass=person)(uid=a\\2ab))", uidFilter.format("a*b"));
+		assertEquals("(&(objectClass=person)(uid=a\\28b))", uidFilter.format("a(b"));
+		assertEquals("(&(objectClass=person)(uid=a\\29b))", uidFilter.format("a)b"));
+		assertEquals("(&(objectClass=person)(uid=a\\5cb))", uidFilter.format("a\\b"));
+		assertEquals("(&(objectClass=person)(uid=a\\00b))", uidFilter.format("a\u0000b"));
+	}
+
+	@Test
+	public void usernameCantAddFilterTerms() {
+		assertEquals("(&(objectClass=person)(uid=\\2a\\29\\28uid=\\2a))", uidFilter.format("*)(uid=*"));
+		assertEquals("(&(objectClass=person)(uid=\\2a\\2a\\2a))", uidFilter.format("***"));
+		assertEquals("(&(objectClass=person)(uid=\\5c2a))", uidFilter.format("\\2a"));
+	}
+
+	@Test
+	public void leavesOtherCharactersAlone() {
+		assertEquals("(&(objectClass=person)(uid=j.doe-1_x@example.edu \u00e9))",
+				uidFilter.format("j.doe-1_x@example.edu \u00e9"));
+	}
+
+	@Test
+	public void fillsUserAndDomainPlaceholders() {
+		SearchFilterTemplate filter = SearchFilterTemplate.compile("(&(uid=%U)(ou=%2)(o=%1)(mail=%d))");
+		assertEquals("(&(uid=jdoe)(ou=example)(o=edu)(mail=example.edu))", filter.format("jdoe@example.edu"));
+		assertEquals("(&(uid=jdoe)(ou=)(o=)(mail=))", filter.format("jdoe"));
+		assertEquals("(&(uid=\\2a)(ou=\\29)(o=edu)(mail=\\29.edu))", filter.format("*@).edu"));
+	}
+
+	@Test
+	public void rejectsUnbalancedFilters() {
+		for(String filter : new String[] { "(uid=%u", "uid=%u)", ")(uid=%u(", " " }) {
+			try {
+				SearchFilterTemplate.compile(filter);
+				fail(filter + " should be rejected");
+			} catch(IllegalArgumentException ex) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.jasig.cas.pm.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.directory.ModificationItem;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.cas.pm.InvalidPasswordException;
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.web.flow.SecurityChallenge;
+import org.jasig.cas.pm.web.flow.SecurityQuestion;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * <p>In-memory stand-in for a directory server, for trying out
+ * LdapPasswordManagerService settings (parallel lookups, routing, bulkheads,
+ * deadlines) without any directory at all. It works at the LdapServer level,
+ * so nothing goes over the wire; EmbeddedLdapDirectory is used to test the
+ * LdapServer implementations themselves.</p>
+ *
+ * <p>Every operation takes latencyMillis, plus up to latencyJitterMillis at
+ * random. A fraction of operations fail the way a real server does:
+ * errorRate with a ServiceUnavailableException, and partialResultRate of
+ * lookups with the PartialResultException that JNDI throws for an
+ * unfollowed referral (unless ignorePartialResultException is set, as with
+ * AbstractLdapServer). An operation that would outlast the timeout, or the
+ * request's Deadline, fails with a TimeLimitExceededException after
+ * waiting that long.</p>
+ */
+public class SimulatedLdapServer implements LdapServer {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final Random random = new Random();
+	private final Map<String,SimulatedUser> users = new ConcurrentHashMap<String,SimulatedUser>();
+	private String description = "simulated";
+	private List<String> defaultQuestions = Collections.emptyList();
+	private List<String> defaultAnswers = Collections.emptyList();
+	@Min(0)
+	private long latencyMillis = 0;
+	@Min(0)
+	private long latencyJitterMillis = 0;
+	private double errorRate = 0;
+	private double partialResultRate = 0;
+	private boolean ignorePartialResultException = false;
+	@Min(0)
+	private int timeout = 1000;
+
+	private final AtomicLong operationCount = new AtomicLong();
+	private final AtomicLong faultCount = new AtomicLong();
+
+	@Override
+	public void ldapModify(String username, ModificationItem[] modificationItems) {
+		simulate("modifying " + username, false);
+		getUser(username);
+	}
+
+	@Override
+	public void setPassword(String username, String password) {
+		simulate("setting password for " + username, false);
+		getUser(username).password = password;
+	}
+
+	@Override
+	public boolean verifyPassword(String username, String password) {
+		return checkPassword(username, password).isAuthenticated();
+	}
+
+	@Override
+	public PasswordPolicyInfo checkPassword(String username, String password) {
+		if(password == null || password.isEmpty()) {
+			return new PasswordPolicyInfo(false);
+		}
+		simulate("binding as " + username, true);
+		return new PasswordPolicyInfo(password.equals(getUser(username).password));
+	}
+
+	@Override
+	public void changePassword(String username, String oldPassword, String newPassword) {
+		simulate("changing password for " + username, true);
+		SimulatedUser user = getUser(username);
+		synchronized(user) {
+			if(oldPassword == null || !oldPassword.equals(user.password)) {
+				throw new InvalidPasswordException("Old password incorrect for " + username);
+			}
+			user.password = newPassword;
+		}
+	}
+
+	@Override
+	public String findDn(String username) {
+		simulate("looking up " + username, true);
+		return getUser(username).dn;
+	}
+
+	@Override
+	public SecurityChallenge getUserSecurityChallenge(String username) {
+		simulate("looking up " + username, true);
+		return getUser(username).challenge;
+	}
+
+	@Override
+	public void setUserSecurityChallenge(String username, SecurityChallenge securityChallenge) {
+		simulate("modifying " + username, false);
+		getUser(username).challenge = securityChallenge;
+	}
+
+	@Override
+	public SecurityChallenge getDefaultSecurityChallenge(String username) {
+		simulate("looking up " + username, true);
+		getUser(username);
+		return createDefaultChallenge(username);
+	}
+
+	@Override
+	public UserSecurityChallenges getSecurityChallenges(String username) {
+		simulate("looking up " + username, true);
+		return new UserSecurityChallenges(getUser(username).challenge, createDefaultChallenge(username));
+	}
+
+	private SecurityChallenge createDefaultChallenge(String username) {
+		if(defaultQuestions.isEmpty()) {
+			return null;
+		}
+		List<SecurityQuestion> questions = new ArrayList<SecurityQuestion>(defaultQuestions.size());
+		for(int i=0;i<defaultQuestions.size();i++) {
+			String answer = i < defaultAnswers.size() ? defaultAnswers.get(i) : null;
+			questions.add(new SecurityQuestion(defaultQuestions.get(i), answer));
+		}
+		return new SecurityChallenge(username, questions);
+	}
+
+	private SimulatedUser getUser(String username) {
+		SimulatedUser user = username != null ? users.get(username.toLowerCase()) : null;
+		if(user == null) {
+			throw new NameNotFoundException("Couldn't find " + username + " in " + description);
+		}
+		return user;
+	}
+
+	/**
+	 * <p>Waits out the operation's latency and injects any fault.</p>
+	 * @param operation what is being done, for messages
+	 * @param search true if the operation starts with a search, which is
+	 * where referrals show up
+	 */
+	private void simulate(String operation, boolean search) {
+		Deadline.checkCurrent(operation);
+		operationCount.incrementAndGet();
+
+		long latency = latencyMillis;
+		double errorDraw;
+		double partialResultDraw;
+		synchronized(random) {
+			if(latencyJitterMillis > 0) {
+				latency += (long) (random.nextDouble() * latencyJitterMillis);
+			}
+			errorDraw = random.nextDouble();
+			partialResultDraw = random.nextDouble();
+		}
+
+		long limit = Deadline.limitMillis(timeout);
+		boolean timedOut = limit > 0 && latency > limit;
+		sleep(timedOut ? limit : latency);
+
+		if(timedOut) {
+			faultCount.incrementAndGet();
+			throw LdapUtils.convertLdapException(new javax.naming.TimeLimitExceededException(
+					"Simulated time limit exceeded " + operation));
+		}
+		if(errorDraw < errorRate) {
+			faultCount.incrementAndGet();
+			throw LdapUtils.convertLdapException(new javax.naming.ServiceUnavailableException(
+					"Simulated failure " + operation));
+		}
+		if(search && !ignorePartialResultException && partialResultDraw < partialResultRate) {
+			faultCount.incrementAndGet();
+			throw LdapUtils.convertLdapException(new javax.naming.PartialResultException(
+					"Simulated unprocessed continuation reference " + operation));
+		}
+	}
+
+	private void sleep(long millis) {
+		if(millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PasswordManagerException("Interrupted in simulated LDAP operation", ex);
+		}
+	}
+
+	/**
+	 * @param users usernames and their passwords. Usernames are
+	 * case-insensitive.
+	 */
+	public void setUsers(Map<String,String> users) {
+		this.users.clear();
+		for(Map.Entry<String,String> entry : users.entrySet()) {
+			this.users.put(entry.getKey().toLowerCase(), new SimulatedUser(
+					"uid=" + entry.getKey() + ",ou=people", entry.getValue()));
+		}
+		logger.debug("Loaded " + users.size() + " users into " + description);
+	}
+
+	@Override
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * @param defaultQuestions questions asked of every user
+	 */
+	public void setDefaultQuestions(List<String> defaultQuestions) {
+		this.defaultQuestions = defaultQuestions;
+	}
+
+	/**
+	 * @param defaultAnswers every user's answers to the default questions,
+	 * in the same order
+	 */
+	public void setDefaultAnswers(List<String> defaultAnswers) {
+		this.defaultAnswers = defaultAnswers;
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void setLatencyJitterMillis(long latencyJitterMillis) {
+		this.latencyJitterMillis = latencyJitterMillis;
+	}
+
+	/**
+	 * @param errorRate fraction of operations that fail, 0 to 1
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param partialResultRate fraction of searches that hit a referral,
+	 * 0 to 1
+	 */
+	public void setPartialResultRate(double partialResultRate) {
+		this.partialResultRate = partialResultRate;
+	}
+
+	public void setIgnorePartialResultException(boolean ignorePartialResultException) {
+		this.ignorePartialResultException = ignorePartialResultException;
+	}
+
+	/**
+	 * @param timeout search time limit in milliseconds, 0 for none
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getOperationCount() {
+		return operationCount.get();
+	}
+
+	public long getFaultCount() {
+		return faultCount.get();
+	}
+
+	private static class SimulatedUser {
+
+		private final String dn;
+		private volatile String password;
+		private volatile SecurityChallenge challenge;
+
+		public SimulatedUser(String dn, String password) {
+			this.dn = dn;
+			this.password = password;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.jasig.cas.pm.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.util.Deadline;
+import org.jasig.cas.pm.web.flow.UserSecurityChallenges;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.TimeLimitExceededException;
+
+/**
+ * <p>Runs UnboundIdAsyncLdapServer against an EmbeddedLdapDirectory in its
+ * OpenLDAP flavour.</p>
+ */
+public class UnboundIdAsyncLdapServerTest {
+
+	private EmbeddedLdapDirectory directory;
+	private OpenLdapLdapServer ldapServer;
+	private UnboundIdAsyncLdapServer asyncServer;
+	private String jdoeDn;
+
+	@Before
+	public void startDirectory() throws Exception {
+		directory = EmbeddedLdapDirectory.openLdap();
+		directory.start();
+		jdoeDn = directory.addUser("jdoe", "Old-Passw0rd",
+				"securityQuestion: First pet?", "securityAnswer: Rex",
+				"employeeNumber: 1234", "postalCode: 12345");
+		ldapServer = (OpenLdapLdapServer) directory.createLdapServer("embedded");
+		asyncServer = new UnboundIdAsyncLdapServer();
+		asyncServer.setLdapServer(ldapServer);
+		asyncServer.setBindDn(EmbeddedLdapDirectory.ADMIN_DN);
+		asyncServer.setBindPassword(EmbeddedLdapDirectory.ADMIN_PASSWORD);
+		asyncServer.afterPropertiesSet();
+	}
+
+	@After
+	public void stopDirectory() {
+		asyncServer.destroy();
+		directory.stop();
+	}
+
+	@Test
+	public void lookupsMatchBlockingServer() throws Exception {
+		assertEquals(ldapServer.findDn("jdoe"), asyncServer.findDn("jdoe").get());
+		UserSecurityChallenges challenges = asyncServer.getSecurityChallenges("jdoe").get();
+		assertEquals("First pet?", challenges.getUserChallenge().getQuestions().get(0).getQuestionText());
+		assertEquals("Rex", challenges.getUserChallenge().getQuestions().get(0).getResponseText());
+		assertEquals("1234", challenges.getDefaultChallenge().getQuestions().get(0).getResponseText());
+		assertEquals("12345", asyncServer.getDefaultSecurityChallenge("jdoe").get()
+				.getQuestions().get(1).getResponseText());
+	}
+
+	@Test
+	public void unknownUserFailsWithNameNotFound() throws Exception {
+		try {
+			asyncServer.getUserSecurityChallenge("nobody").get();
+			fail("unknown user should fail");
+		} catch(ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof NameNotFoundException);
+		}
+	}
+
+	@Test
+	public void findDnIsCached() throws Exception {
+		asyncServer.findDn("jdoe").get();
+		int searches = directory.getSearchCount();
+		assertEquals(ldapServer.findDn("jdoe"), asyncServer.findDn("jdoe").get());
+		assertEquals(searches, directory.getSearchCount());
+	}
+
+	@Test
+	public void concurrentLookupsShareConnections() throws Exception {
+		for(int i=0;i<20;i++) {
+			directory.addUser("user" + i, "Passw0rd", "employeeNumber: " + i, "postalCode: 12345");
+		}
+		directory.setLatencyMillis(20);
+		int binds = directory.getBindCount();
+
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for(int i=0;i<20;i++) {
+			futures.add(asyncServer.findDn("user" + i));
+		}
+		assertFalse("lookups should return before their results arrive", futures.get(19).isDone());
+		for(int i=0;i<20;i++) {
+			assertTrue(futures.get(i).get(5, TimeUnit.SECONDS).startsWith("uid=user" + i + ","));
+		}
+		// one bind per connection, not per lookup
+		assertEquals(binds + 2, directory.getBindCount());
+	}
+
+	@Test
+	public void cancelAbandonsSearch() throws Exception {
+		directory.setLatencyMillis(500);
+		Future<String> future = asyncServer.findDn("jdoe");
+		assertTrue(future.cancel(true));
+		assertTrue(future.isCancelled());
+		try {
+			future.get();
+			fail("cancelled lookup should not complete");
+		} catch(CancellationException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void searchIsLimitedByDeadline() throws Exception {
+		directory.setLatencyMillis(1000);
+		Deadline previous = Deadline.set(Deadline.after(100));
+		Future<String> future;
+		try {
+			future = asyncServer.findDn("jdoe");
+		} finally {
+			Deadline.restore(previous);
+		}
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("search should time out");
+		} catch(ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof TimeLimitExceededException);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.jasig.cas.pm.UserLockedOutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Runs JdbcPasswordManagerLockoutService against an in-memory H2
+ * database, with two services standing in for two CAS nodes. Flushes are
+ * driven by the tests rather than the timer.</p>
+ */
+public class JdbcPasswordManagerLockoutServiceTest {
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	private JdbcDataSource database;
+	private Connection keepAlive;
+
+	@Before
+	public void createTable() throws SQLException {
+		database = new JdbcDataSource();
+		database.setURL("jdbc:h2:mem:lockout" + DATABASES.incrementAndGet() + ";MVCC=TRUE");
+		keepAlive = database.getConnection();
+		Statement statement = keepAlive.createStatement();
+		statement.execute("CREATE TABLE PM_LOCKOUT (USERNAME VARCHAR(255) NOT NULL PRIMARY KEY,"
+				+ " INCORRECT_ATTEMPTS INTEGER NOT NULL, LAST_ATTEMPT BIGINT NOT NULL,"
+				+ " NEXT_ATTEMPT_ALLOWED BIGINT NOT NULL)");
+		statement.close();
+	}
+
+	@After
+	public void dropDatabase() throws SQLException {
+		keepAlive.close();
+	}
+
+	@Test
+	public void attemptsAreSharedBetweenNodes() throws Exception {
+		JdbcPasswordManagerLockoutService node1 = newService(database, 3);
+		JdbcPasswordManagerLockoutService node2 = newService(database, 3);
+
+		node1.registerIncorrectAttempt("alice");
+		node1.registerIncorrectAttempt("alice");
+		node1.flush();
+		assertEquals(2, storedAttempts("alice"));
+
+		// node 2 learns about alice once it has been asked and reloaded
+		node2.allowAttempt("alice");
+		node2.flush();
+		assertLockedOut(node2, "alice", true);
+		node2.flush();
+		assertEquals(3, storedAttempts("alice"));
+
+		node1.flush();
+		assertLockedOut(node1, "alice", false);
+	}
+
+	@Test
+	public void lockoutOnThisNodeSurvivesFlush() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 2);
+		node.registerIncorrectAttempt("bob");
+		assertLockedOut(node, "bob", true);
+		node.flush();
+		assertLockedOut(node, "bob", false);
+		node.flush();
+		assertLockedOut(node, "bob", false);
+	}
+
+	@Test
+	public void clearRemovesRowAndTracking() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 5);
+		node.registerIncorrectAttempt("carol");
+		node.flush();
+		assertEquals(1, storedAttempts("carol"));
+
+		node.clearIncorrectAttempts("carol");
+		node.registerIncorrectAttempt("carol");
+		node.flush();
+		assertEquals(1, storedAttempts("carol"));
+
+		node.clearIncorrectAttempts("carol");
+		node.flush();
+		assertEquals(0, storedAttempts("carol"));
+		node.flush();
+		assertEquals(0, node.getTrackedUserCount());
+	}
+
+	@Test
+	public void failedWriteIsRetried() throws Exception {
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		JdbcPasswordManagerLockoutService node = newService(dataSource.proxy(), 5);
+		node.registerIncorrectAttempt("dave");
+		node.registerIncorrectAttempt("dave");
+
+		dataSource.failConnections.set(1);
+		node.flush();
+		assertEquals(0, storedAttempts("dave"));
+		assertEquals(1, node.getPendingUpdateCount());
+
+		// still counted locally while unwritten
+		node.registerIncorrectAttempt("dave");
+		node.registerIncorrectAttempt("dave");
+		assertLockedOut(node, "dave", true);
+
+		node.flush();
+		assertEquals(5, storedAttempts("dave"));
+		assertEquals(0, node.getPendingUpdateCount());
+	}
+
+	@Test
+	public void failedReloadDoesNotRepeatWrite() throws Exception {
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		JdbcPasswordManagerLockoutService node = newService(dataSource.proxy(), 3);
+		node.registerIncorrectAttempt("erin");
+
+		// the write gets the first connection, the reload the second
+		dataSource.failAfterConnections.set(1);
+		node.flush();
+		dataSource.failAfterConnections.set(-1);
+		assertEquals(1, storedAttempts("erin"));
+		assertEquals(0, node.getPendingUpdateCount());
+
+		node.flush();
+		assertEquals(1, storedAttempts("erin"));
+
+		// the written attempt counts once, before and after the reload
+		node.registerIncorrectAttempt("erin");
+		assertLockedOut(node, "erin", true);
+		node.flush();
+		assertEquals(3, storedAttempts("erin"));
+	}
+
+	@Test
+	public void attemptsAfterFailedReloadCountOnce() throws Exception {
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		JdbcPasswordManagerLockoutService node = newService(dataSource.proxy(), 4);
+		node.registerIncorrectAttempt("frank");
+		dataSource.failAfterConnections.set(1);
+		node.flush();
+		dataSource.failAfterConnections.set(-1);
+
+		node.registerIncorrectAttempt("frank");
+		node.registerIncorrectAttempt("frank");
+		node.flush();
+		assertEquals(3, storedAttempts("frank"));
+		node.allowAttempt("frank");
+		assertLockedOut(node, "frank", true);
+	}
+
+	@Test
+	public void concurrentInsertOfSameUserIsRetried() throws Exception {
+		final JdbcPasswordManagerLockoutService node1 = newService(database, 10);
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		JdbcPasswordManagerLockoutService node2 = newService(dataSource.proxy(), 10);
+
+		node1.registerIncorrectAttempt("grace");
+		node2.registerIncorrectAttempt("grace");
+
+		// node 1 inserts grace's row after node 2 found none to update but
+		// before node 2 inserts it
+		dataSource.beforeInsert = new Runnable() {
+			@Override
+			public void run() {
+				node1.flush();
+			}
+		};
+		node2.flush();
+		dataSource.beforeInsert = null;
+		assertEquals(1, storedAttempts("grace"));
+		assertEquals(1, node2.getPendingUpdateCount());
+
+		node2.flush();
+		assertEquals(2, storedAttempts("grace"));
+	}
+
+	@Test
+	public void rowsAreFoundWhenDriverReportsNoCounts() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 10);
+		node.registerIncorrectAttempt("heidi");
+		node.flush();
+
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		dataSource.batchCountsUnknown = true;
+		node = newService(dataSource.proxy(), 10);
+		node.registerIncorrectAttempt("heidi");
+		node.registerIncorrectAttempt("ivan");
+		node.flush();
+		assertEquals(2, storedAttempts("heidi"));
+		assertEquals(1, storedAttempts("ivan"));
+	}
+
+	@Test
+	public void trackedUsersAreBounded() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 3);
+		node.setMaxTrackedUsers(10);
+		for(int i=0;i<100;i++) {
+			node.allowAttempt("user" + i);
+		}
+		assertEquals(10, node.getTrackedUserCount());
+
+		// users beyond the limit are still written
+		node.registerIncorrectAttempt("user50");
+		node.flush();
+		assertEquals(1, storedAttempts("user50"));
+
+		// users without rows are dropped on reload
+		assertEquals(0, node.getTrackedUserCount());
+	}
+
+	@Test
+	public void untrackedUsersAreCheckedInDatabase() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 3);
+		node.setMaxTrackedUsers(10);
+		for(int i=0;i<10;i++) {
+			node.allowAttempt("user" + i);
+		}
+
+		// mallory's attempts are written as they happen
+		node.registerIncorrectAttempt("mallory");
+		node.registerIncorrectAttempt("mallory");
+		assertEquals(2, storedAttempts("mallory"));
+		assertLockedOut(node, "mallory", true);
+		assertLockedOut(node, "mallory", false);
+		assertEquals(10, node.getTrackedUserCount());
+	}
+
+	@Test
+	public void untrackedUsersAreLockedOutWhileDatabaseIsDown() throws Exception {
+		FaultyDataSource dataSource = new FaultyDataSource(database);
+		JdbcPasswordManagerLockoutService node = newService(dataSource.proxy(), 3);
+		node.setMaxTrackedUsers(1);
+		node.allowAttempt("alice");
+
+		dataSource.failConnections.set(2);
+		assertLockedOut(node, "bob", true);
+		assertLockedOut(node, "bob", false);
+		assertEquals(1, node.getPendingUpdateCount());
+
+		node.flush();
+		assertEquals(1, storedAttempts("bob"));
+	}
+
+	@Test
+	public void idleUsersMakeRoomWhenFull() throws Exception {
+		JdbcPasswordManagerLockoutService node = newService(database, 3);
+		node.setMaxTrackedUsers(10);
+		for(int i=0;i<10;i++) {
+			node.registerIncorrectAttempt("user" + i);
+		}
+		node.flush();
+		assertEquals(10, node.getTrackedUserCount());
+
+		// only user0 is asked about again before the next reload
+		node.allowAttempt("user0");
+		node.flush();
+		assertEquals(1, node.getTrackedUserCount());
+
+		// an evicted user's row still counts once they're tracked again
+		node.registerIncorrectAttempt("user5");
+		node.flush();
+		assertLockedOut(node, "user5", true);
+	}
+
+	@Test
+	public void flushOnlyLocksOutFlushedUsers() throws Exception {
+		Statement statement = keepAlive.createStatement();
+		statement.execute("INSERT INTO PM_LOCKOUT VALUES ('judy', 5, " + System.currentTimeMillis() + ", 0)");
+		statement.close();
+
+		JdbcPasswordManagerLockoutService node = newService(database, 3);
+		node.registerIncorrectAttempt("ken");
+		node.flush();
+		assertEquals(0, storedNextAttemptAllowed("judy"));
+	}
+
+	private JdbcPasswordManagerLockoutService newService(DataSource dataSource, int allowedIncorrectAttempts) {
+		JdbcPasswordManagerLockoutService service = new JdbcPasswordManagerLockoutService();
+		service.setDataSource(dataSource);
+		service.setAllowedIncorrectAttempts(allowedIncorrectAttempts);
+		service.setSecondsUntilNextAllowedAttempt(60);
+		return service;
+	}
+
+	private int storedAttempts(String username) throws SQLException {
+		PreparedStatement select = keepAlive.prepareStatement(
+				"SELECT INCORRECT_ATTEMPTS FROM PM_LOCKOUT WHERE USERNAME = ?");
+		try {
+			select.setString(1, username);
+			ResultSet rs = select.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			select.close();
+		}
+	}
+
+	private long storedNextAttemptAllowed(String username) throws SQLException {
+		PreparedStatement select = keepAlive.prepareStatement(
+				"SELECT NEXT_ATTEMPT_ALLOWED FROM PM_LOCKOUT WHERE USERNAME = ?");
+		try {
+			select.setString(1, username);
+			ResultSet rs = select.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * <p>Registers an incorrect attempt if expectRegisterToLockOut, otherwise
+	 * just asks, and checks the user ends up locked out.</p>
+	 */
+	private static void assertLockedOut(JdbcPasswordManagerLockoutService service, String username,
+			boolean expectRegisterToLockOut) {
+		try {
+			if(expectRegisterToLockOut) {
+				service.registerIncorrectAttempt(username);
+			} else {
+				service.allowAttempt(username);
+			}
+			fail(username + " should be locked out");
+		} catch(UserLockedOutException ex) {
+			assertTrue(ex.getMessage().contains(username));
+		}
+	}
+
+	/**
+	 * <p>Wraps a data source to fail connections, run code before an
+	 * INSERT, or report batch counts as SUCCESS_NO_INFO like some
+	 * drivers.</p>
+	 */
+	private static class FaultyDataSource implements InvocationHandler {
+
+		private final DataSource target;
+		/** Number of connections to refuse. */
+		private final AtomicInteger failConnections = new AtomicInteger();
+		/** Number of connections to hand out before refusing the rest; -1 for no limit. */
+		private final AtomicInteger failAfterConnections = new AtomicInteger(-1);
+		private volatile Runnable beforeInsert;
+		private volatile boolean batchCountsUnknown;
+
+		private FaultyDataSource(DataSource target) {
+			this.target = target;
+		}
+
+		private DataSource proxy() {
+			return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { DataSource.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if(method.getName().equals("getConnection")) {
+				if(failConnections.get() > 0) {
+					failConnections.decrementAndGet();
+					throw new SQLException("Connection refused");
+				}
+				if(failAfterConnections.get() == 0) {
+					throw new SQLException("Connection refused");
+				}
+				if(failAfterConnections.get() > 0) {
+					failAfterConnections.decrementAndGet();
+				}
+				final Connection connection = (Connection) call(target, method, args);
+				return Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if(method.getName().equals("prepareStatement")) {
+							String sql = (String) args[0];
+							Runnable hook = beforeInsert;
+							if(hook != null && sql.startsWith("INSERT")) {
+								hook.run();
+							}
+							if(batchCountsUnknown && sql.startsWith("UPDATE")) {
+								return unknownBatchCounts((PreparedStatement) call(connection, method, args));
+							}
+						}
+						return call(connection, method, args);
+					}
+				});
+			}
+			return call(target, method, args);
+		}
+
+		private PreparedStatement unknownBatchCounts(final PreparedStatement statement) {
+			return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					Object result = call(statement, method, args);
+					if(method.getName().equals("executeBatch")) {
+						int[] counts = new int[((int[]) result).length];
+						Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+						return counts;
+					}
+					return result;
+				}
+			});
+		}
+
+		private static Object call(Object target, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch(InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jasig.cas.pm.UserLockedOutException;
+import org.jasig.cas.pm.ldap.EmbeddedLdapDirectory;
+import org.jasig.cas.pm.ldap.LdapServer;
+import org.jasig.cas.pm.metrics.NoOpMetricsRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.ServiceUnavailableException;
+
+/**
+ * <p>Runs LdapPasswordManagerService against two EmbeddedLdapDirectory
+ * servers, Active Directory first and OpenLDAP second. jdoe is only in AD,
+ * asmith only in OpenLDAP, and both is in both.</p>
+ */
+public class LdapPasswordManagerServiceTest {
+
+	private EmbeddedLdapDirectory activeDirectory;
+	private EmbeddedLdapDirectory openLdap;
+	private String asmithDn;
+	private String bothInActiveDirectoryDn;
+	private LdapPasswordManagerService service;
+
+	@Before
+	public void startDirectories() throws Exception {
+		activeDirectory = EmbeddedLdapDirectory.activeDirectory();
+		activeDirectory.start();
+		activeDirectory.addUser("jdoe", "Passw0rd-ad", "employeeID: E1", "postalCode: 11111");
+		bothInActiveDirectoryDn = activeDirectory.addUser("both", "Passw0rd-ad",
+				"employeeID: E2", "postalCode: 22222");
+
+		openLdap = EmbeddedLdapDirectory.openLdap();
+		openLdap.start();
+		asmithDn = openLdap.addUser("asmith", "Passw0rd-ol", "employeeNumber: 3", "postalCode: 33333");
+		openLdap.addUser("both", "Passw0rd-ol", "employeeNumber: 4", "postalCode: 44444");
+	}
+
+	@After
+	public void stopDirectories() throws Exception {
+		if(service != null) {
+			service.destroy();
+		}
+		activeDirectory.stop();
+		openLdap.stop();
+	}
+
+	@Test
+	public void changesPasswordOnServerHoldingUser() throws Exception {
+		service = newService(false, 5);
+		service.changeUserPassword("asmith", "Passw0rd-ol", "New-Passw0rd");
+		assertEquals("New-Passw0rd", openLdap.getPassword(asmithDn));
+		assertEquals(1, activeDirectory.getSearchCount());
+	}
+
+	@Test
+	public void firstServerWinsForUserInBoth() throws Exception {
+		service = newService(false, 5);
+		assertEquals("E2", service.getDefaultSecurityChallenge("both").getQuestions().get(0).getResponseText());
+		service.setUserPassword("both", "New-Passw0rd");
+		assertEquals("New-Passw0rd", activeDirectory.getPassword(bothInActiveDirectoryDn));
+	}
+
+	@Test
+	public void routedUserGoesStraightToTheirServer() throws Exception {
+		service = newService(false, 5);
+		service.getDefaultSecurityChallenge("asmith");
+		int searches = activeDirectory.getSearchCount();
+		service.getDefaultSecurityChallenge("asmith");
+		assertTrue(service.checkUserPassword("asmith", "Passw0rd-ol").isAuthenticated());
+		assertEquals(searches, activeDirectory.getSearchCount());
+		assertEquals(2, service.getRouteCacheHitCount());
+	}
+
+	@Test
+	public void wrongOldPasswordCountsTowardsLockout() throws Exception {
+		service = newService(false, 2);
+		try {
+			service.changeUserPassword("jdoe", "wrong", "New-Passw0rd");
+			fail("wrong old password should be rejected");
+		} catch(NameNotFoundException ex) {
+			// expected
+		}
+		try {
+			service.changeUserPassword("jdoe", "wrong", "New-Passw0rd");
+			fail("jdoe should be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+		try {
+			service.changeUserPassword("jdoe", "Passw0rd-ad", "New-Passw0rd");
+			fail("jdoe should still be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void unavailableServerIsNotSkipped() throws Exception {
+		service = newService(false, 5);
+		activeDirectory.failNextOperations(1);
+		try {
+			service.getDefaultSecurityChallenge("asmith");
+			fail("the failure in the first server should be reported");
+		} catch(ServiceUnavailableException ex) {
+			// expected
+		}
+		assertEquals(0, openLdap.getSearchCount());
+	}
+
+	@Test
+	public void parallelLookupWaitsForSlowestServerOnly() throws Exception {
+		service = newService(true, 5);
+		service.changeUserPassword("asmith", "Passw0rd-ol", "New-Passw0rd");
+		assertEquals("New-Passw0rd", openLdap.getPassword(asmithDn));
+		assertEquals("E2", service.getDefaultSecurityChallenge("both").getQuestions().get(0).getResponseText());
+
+		// each lookup is an administrator bind then a search, so 800ms in
+		// each server, where a serial scan would take 1600ms
+		openLdap.addUser("bsmith", "Passw0rd-ol", "employeeNumber: 5", "postalCode: 55555");
+		activeDirectory.setLatencyMillis(400);
+		openLdap.setLatencyMillis(400);
+		long start = System.currentTimeMillis();
+		assertEquals("5", service.getDefaultSecurityChallenge("bsmith").getQuestions().get(0).getResponseText());
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("took " + elapsed + "ms", elapsed < 1200);
+	}
+
+	@Test
+	public void parallelLookupDoesNotRetryRoutedServer() throws Exception {
+		service = newService(true, 5);
+		service.getDefaultSecurityChallenge("asmith");
+		openLdap.deleteUser(asmithDn);
+		activeDirectory.addUser("asmith", "Passw0rd-ad", "employeeID: E3", "postalCode: 33333");
+
+		int searches = openLdap.getSearchCount();
+		assertEquals("E3", service.getDefaultSecurityChallenge("asmith").getQuestions().get(0).getResponseText());
+		assertEquals(searches + 1, openLdap.getSearchCount());
+	}
+
+	@Test
+	public void parallelLookupIsNotHeldUpByBusyLaterServer() throws Exception {
+		service = createService(true, 5);
+		service.setBulkheadMaxConcurrent(1);
+		service.afterPropertiesSet();
+
+		// asmith's lookup holds the only OpenLDAP slot for 600ms
+		openLdap.setLatencyMillis(300);
+		Thread slowLookup = new Thread() {
+			@Override
+			public void run() {
+				service.getDefaultSecurityChallenge("asmith");
+			}
+		};
+		slowLookup.start();
+		Thread.sleep(100);
+
+		long start = System.currentTimeMillis();
+		assertEquals("E1", service.getDefaultSecurityChallenge("jdoe").getQuestions().get(0).getResponseText());
+		long elapsed = System.currentTimeMillis() - start;
+		slowLookup.join();
+		assertTrue("took " + elapsed + "ms", elapsed < 250);
+	}
+
+	@Test
+	public void parallelLookupWaitsBrieflyForDuplicates() throws Exception {
+		final List<String> duplicates = Collections.synchronizedList(new ArrayList<String>());
+		service = createService(true, 5);
+		service.setDuplicateCheckWaitMillis(1000);
+		service.setMetricsRegistry(new NoOpMetricsRegistry() {
+			@Override
+			public void increment(String name, String... tags) {
+				if(name.equals("pm.duplicate-user")) {
+					duplicates.add(tags[0]);
+				}
+			}
+		});
+		service.afterPropertiesSet();
+
+		openLdap.setLatencyMillis(50);
+		assertEquals("E2", service.getDefaultSecurityChallenge("both").getQuestions().get(0).getResponseText());
+		assertEquals(Arrays.asList("server=openldap"), duplicates);
+	}
+
+	private LdapPasswordManagerService newService(boolean parallel, int allowedIncorrectAttempts)
+			throws Exception {
+		LdapPasswordManagerService service = createService(parallel, allowedIncorrectAttempts);
+		service.afterPropertiesSet();
+		return service;
+	}
+
+	private LdapPasswordManagerService createService(boolean parallel, int allowedIncorrectAttempts)
+			throws Exception {
+		MemoryPasswordManagerLockoutService lockoutService = new MemoryPasswordManagerLockoutService();
+		lockoutService.setAllowedIncorrectAttempts(allowedIncorrectAttempts);
+		lockoutService.setSecondsUntilNextAllowedAttempt(600);
+
+		LdapPasswordManagerService service = new LdapPasswordManagerService();
+		service.setLdapServers(Arrays.<LdapServer>asList(activeDirectory.createLdapServer("ad"),
+				openLdap.createLdapServer("openldap")));
+		service.setLockoutService(lockoutService);
+		service.setParallel(parallel);
+		return service;
+	}
+}
@@ -0,0 +1,197 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.pm.ServerBusyException;
+import org.jasig.cas.pm.service.LdapServerBulkhead.Priority;
+import org.jasig.cas.pm.util.Deadline;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * <p>Queues callers on an LdapServerBulkhead in a known order, by waiting
+ * for each to be counted in the queue before starting the next.</p>
+ */
+public class LdapServerBulkheadTest {
+
+	private final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Caller> callers = new ArrayList<Caller>();
+
+	@After
+	public void stopCallers() throws Exception {
+		for(Caller caller : callers) {
+			caller.finish.countDown();
+			caller.join(5000);
+		}
+	}
+
+	@Test
+	public void admitsByPriorityThenArrival() throws Exception {
+		LdapServerBulkhead bulkhead = new LdapServerBulkhead("test", 1, 10, 5000);
+		bulkhead.acquire(Priority.NORMAL);
+
+		queue(bulkhead, "low", Priority.LOW, 0, false);
+		queue(bulkhead, "normal1", Priority.NORMAL, 0, false);
+		queue(bulkhead, "high", Priority.HIGH, 0, false);
+		queue(bulkhead, "normal2", Priority.NORMAL, 0, false);
+		assertEquals(4, bulkhead.getQueueDepth());
+
+		// nobody jumps the queue while callers are waiting
+		assertFalse(bulkhead.tryAcquire(Priority.HIGH));
+
+		bulkhead.release();
+		for(Caller caller : callers) {
+			caller.join(5000);
+			assertNull(caller.failure);
+		}
+		assertEquals(Arrays.asList("high", "normal1", "normal2", "low"), admitted);
+		assertEquals(0, bulkhead.getActiveCount());
+		assertEquals(0, bulkhead.getQueueDepth());
+	}
+
+	@Test
+	public void queuesLowPriorityOnlyWhileUnderHalfFull() throws Exception {
+		LdapServerBulkhead bulkhead = new LdapServerBulkhead("test", 1, 4, 5000);
+		bulkhead.acquire(Priority.NORMAL);
+
+		queue(bulkhead, "low1", Priority.LOW, 0, false);
+		queue(bulkhead, "low2", Priority.LOW, 0, false);
+		assertBusy(bulkhead, Priority.LOW);
+		queue(bulkhead, "normal", Priority.NORMAL, 0, false);
+		queue(bulkhead, "high", Priority.HIGH, 0, false);
+		assertBusy(bulkhead, Priority.HIGH);
+		assertBusy(bulkhead, Priority.LOW);
+		assertEquals(3, bulkhead.getRejectedCount());
+		assertEquals(4, bulkhead.getQueueDepth());
+
+		bulkhead.release();
+		for(Caller caller : callers) {
+			caller.join(5000);
+		}
+		assertEquals(Arrays.asList("high", "normal", "low1", "low2"), admitted);
+	}
+
+	@Test
+	public void timedOutCallerPassesOnItsTurn() throws Exception {
+		LdapServerBulkhead bulkhead = new LdapServerBulkhead("test", 1, 10, 5000);
+		bulkhead.acquire(Priority.NORMAL);
+
+		Caller low = queue(bulkhead, "low", Priority.LOW, 0, false);
+		Caller high = queue(bulkhead, "high", Priority.HIGH, 200, false);
+		high.join(5000);
+		assertTrue(high.failure instanceof ServerBusyException);
+		assertEquals(1, bulkhead.getTimedOutCount());
+		assertEquals(1, bulkhead.getQueueDepth());
+
+		// the low priority caller no longer waits behind the one that gave up
+		bulkhead.release();
+		low.join(1000);
+		assertEquals(Arrays.asList("low"), admitted);
+	}
+
+	@Test
+	public void freedSlotsWakeEveryCallerThatFits() throws Exception {
+		LdapServerBulkhead bulkhead = new LdapServerBulkhead("test", 2, 10, 5000);
+		bulkhead.acquire(Priority.NORMAL);
+		bulkhead.acquire(Priority.NORMAL);
+
+		Caller high = queue(bulkhead, "high", Priority.HIGH, 0, true);
+		Caller low = queue(bulkhead, "low", Priority.LOW, 0, true);
+
+		// both releases may signal the high priority caller before it runs;
+		// it has to pass the second slot on to the low priority one
+		bulkhead.release();
+		bulkhead.release();
+		assertTrue("high priority caller not admitted", high.admittedLatch.await(1, TimeUnit.SECONDS));
+		assertTrue("low priority caller left waiting for a free slot",
+				low.admittedLatch.await(1, TimeUnit.SECONDS));
+		assertEquals(2, bulkhead.getActiveCount());
+	}
+
+	private static void assertBusy(LdapServerBulkhead bulkhead, Priority priority) {
+		try {
+			bulkhead.acquire(priority);
+			fail(priority + " caller should be rejected");
+		} catch(ServerBusyException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * <p>Starts a caller and waits for it to join the queue.</p>
+	 * @param deadlineMillis the caller's Deadline, 0 for none
+	 * @param hold whether the caller keeps its slot until the test ends,
+	 * rather than releasing it straight away
+	 */
+	private Caller queue(LdapServerBulkhead bulkhead, String name, Priority priority,
+			long deadlineMillis, boolean hold) throws Exception {
+		int depth = bulkhead.getQueueDepth();
+		Caller caller = new Caller(bulkhead, name, priority, deadlineMillis, hold);
+		callers.add(caller);
+		caller.start();
+		long end = System.currentTimeMillis() + 5000;
+		while(bulkhead.getQueueDepth() == depth) {
+			if(System.currentTimeMillis() > end) {
+				fail(name + " never queued");
+			}
+			Thread.sleep(1);
+		}
+		return caller;
+	}
+
+	private class Caller extends Thread {
+
+		private final LdapServerBulkhead bulkhead;
+		private final String name;
+		private final Priority priority;
+		private final long deadlineMillis;
+		private final boolean hold;
+		private final CountDownLatch admittedLatch = new CountDownLatch(1);
+		private final CountDownLatch finish = new CountDownLatch(1);
+		private volatile RuntimeException failure;
+
+		Caller(LdapServerBulkhead bulkhead, String name, Priority priority, long deadlineMillis, boolean hold) {
+			this.bulkhead = bulkhead;
+			this.name = name;
+			this.priority = priority;
+			this.deadlineMillis = deadlineMillis;
+			this.hold = hold;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			if(deadlineMillis > 0) {
+				Deadline.set(Deadline.after(deadlineMillis));
+			}
+			try {
+				bulkhead.acquire(priority);
+			} catch(RuntimeException ex) {
+				failure = ex;
+				return;
+			}
+			admitted.add(name);
+			admittedLatch.countDown();
+			try {
+				if(hold) {
+					finish.await(5, TimeUnit.SECONDS);
+				}
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				bulkhead.release();
+			}
+		}
+	}
+}
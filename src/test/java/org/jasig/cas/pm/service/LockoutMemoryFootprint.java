@@ -0,0 +1,54 @@
+package org.jasig.cas.pm.service;
+
+/**
+ * <p>Measures the heap used by MemoryPasswordManagerLockoutService per
+ * tracked user, as a credential-stuffing run would fill it: one incorrect
+ * attempt each for keys distinct usernames, with maxEntries raised to fit
+ * them all. Run with enough heap for the keys, e.g. for 10M:</p>
+ *
+ * <pre>
+ * java -Xmx4g -cp target/classes:target/test-classes:... \
+ *     org.jasig.cas.pm.service.LockoutMemoryFootprint 10000000
+ * </pre>
+ *
+ * <p>Usernames are 8 to 11 characters, like typical NetIDs. On a 64-bit
+ * JVM with compressed oops (Java 17, default GC) it reports 172 bytes per
+ * user including the username, i.e. 1.6GB at 10M users, which is why
+ * maxEntries defaults to 100000 (about 17MB).</p>
+ */
+public final class LockoutMemoryFootprint {
+
+	private LockoutMemoryFootprint() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+		MemoryPasswordManagerLockoutService service = new MemoryPasswordManagerLockoutService();
+		service.setMaxEntries(keys);
+		long before = usedHeap();
+		long start = System.nanoTime();
+		for(int i=0;i<keys;i++) {
+			service.registerIncorrectAttempt("nid" + (10000 + i));
+		}
+		long elapsed = System.nanoTime() - start;
+		long after = usedHeap();
+
+		System.out.println("Tracked users:  " + service.getEntryCount());
+		System.out.println("Heap used:      " + (after - before) / (1024 * 1024) + "MB");
+		System.out.println("Bytes per user: " + (after - before) / keys);
+		System.out.println("Insert rate:    " + keys * 1000000000L / elapsed + "/s");
+		if(service.getEntryCount() != keys) {
+			throw new IllegalStateException("expected " + keys + " entries");
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0;i<3;i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
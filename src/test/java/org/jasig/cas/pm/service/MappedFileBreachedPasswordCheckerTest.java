@@ -0,0 +1,207 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jasig.cas.pm.PasswordManagerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Builds hash and Bloom filter files with BreachedPasswordFileBuilder
+ * and reads them back with MappedFileBreachedPasswordChecker.</p>
+ */
+public class MappedFileBreachedPasswordCheckerTest {
+
+	private static final int BREACHED = 5000;
+
+	private File dump;
+	private File hashFile;
+	private File bloomFile;
+	private MappedFileBreachedPasswordChecker checker;
+
+	@Before
+	public void writeDump() throws Exception {
+		dump = File.createTempFile("breached", ".txt");
+		hashFile = File.createTempFile("breached", ".dat");
+		bloomFile = File.createTempFile("breached", ".bloom");
+
+		// sorted as the Pwned Passwords download is, with a count after
+		// each hash and one password listed twice
+		List<String> lines = new ArrayList<String>();
+		for(int i=0;i<BREACHED;i++) {
+			lines.add(sha1Hex("breached" + i) + ":" + (i + 1));
+		}
+		lines.add(sha1Hex("breached0") + ":1");
+		Collections.sort(lines);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(dump), "US-ASCII");
+		try {
+			for(String line : lines) {
+				writer.write(line + "\r\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@After
+	public void deleteFiles() throws Exception {
+		if(checker != null) {
+			checker.destroy();
+		}
+		dump.delete();
+		hashFile.delete();
+		bloomFile.delete();
+	}
+
+	@Test
+	public void findsEveryBuiltHash() throws Exception {
+		assertEquals(BREACHED, BreachedPasswordFileBuilder.buildHashFile(dump, hashFile));
+		checker = newChecker(null);
+		assertEquals(BREACHED, checker.getHashCount());
+		assertBreached(checker);
+	}
+
+	@Test
+	public void bloomFilterKeepsAnswersExact() throws Exception {
+		BreachedPasswordFileBuilder.buildHashFile(dump, hashFile);
+		BreachedPasswordFileBuilder.buildBloomFilter(hashFile, bloomFile, 10);
+		checker = newChecker(bloomFile);
+		assertBreached(checker);
+	}
+
+	@Test
+	public void rejectsUnsortedDump() throws Exception {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(dump), "US-ASCII");
+		try {
+			writer.write(sha1Hex("b") + "\n" + "0000000000000000000000000000000000000000\n");
+		} finally {
+			writer.close();
+		}
+		try {
+			BreachedPasswordFileBuilder.buildHashFile(dump, hashFile);
+			fail("unsorted dump should be rejected");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsBloomFilterWithBadBitCount() throws Exception {
+		BreachedPasswordFileBuilder.buildHashFile(dump, hashFile);
+		BreachedPasswordFileBuilder.buildBloomFilter(hashFile, bloomFile, 10);
+		long bitCount = readBitCount(bloomFile);
+
+		// the same number of bytes as the real filter, but not whole bytes
+		writeBitCount(bloomFile, bitCount + 4);
+		try {
+			newChecker(bloomFile);
+			fail("a bit count that isn't a multiple of 8 should be rejected");
+		} catch(PasswordManagerException ex) {
+			// expected
+		}
+
+		writeBitCount(bloomFile, bitCount - 64);
+		try {
+			newChecker(bloomFile);
+			fail("a bit count not matching the file size should be rejected");
+		} catch(PasswordManagerException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsEmptyBloomFilter() throws Exception {
+		BreachedPasswordFileBuilder.buildHashFile(dump, hashFile);
+		BreachedPasswordFileBuilder.buildBloomFilter(hashFile, bloomFile, 10);
+		writeBitCount(bloomFile, 0);
+		RandomAccessFile file = new RandomAccessFile(bloomFile, "rw");
+		try {
+			file.setLength(MappedFileBreachedPasswordChecker.HEADER_SIZE);
+		} finally {
+			file.close();
+		}
+		try {
+			newChecker(bloomFile);
+			fail("a filter with no bits should be rejected");
+		} catch(PasswordManagerException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedHashFile() throws Exception {
+		BreachedPasswordFileBuilder.buildHashFile(dump, hashFile);
+		RandomAccessFile file = new RandomAccessFile(hashFile, "rw");
+		try {
+			file.setLength(file.length() - 8);
+		} finally {
+			file.close();
+		}
+		try {
+			newChecker(null);
+			fail("truncated hash file should be rejected");
+		} catch(PasswordManagerException ex) {
+			// expected
+		}
+	}
+
+	private void assertBreached(MappedFileBreachedPasswordChecker checker) {
+		for(int i=0;i<BREACHED;i++) {
+			assertTrue("breached" + i, checker.isBreached("breached" + i));
+		}
+		for(int i=0;i<BREACHED;i++) {
+			assertFalse("safe" + i, checker.isBreached("safe" + i));
+		}
+	}
+
+	private MappedFileBreachedPasswordChecker newChecker(File bloomFilterFile) throws Exception {
+		MappedFileBreachedPasswordChecker checker = new MappedFileBreachedPasswordChecker();
+		checker.setFile(hashFile);
+		checker.setBloomFilterFile(bloomFilterFile);
+		checker.afterPropertiesSet();
+		return checker;
+	}
+
+	private static long readBitCount(File bloomFile) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(bloomFile, "r");
+		try {
+			file.seek(8);
+			return file.readLong();
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void writeBitCount(File bloomFile, long bitCount) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(bloomFile, "rw");
+		try {
+			file.seek(8);
+			file.writeLong(bitCount);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static String sha1Hex(String password) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(password.getBytes("UTF-8"));
+		StringBuilder sb = new StringBuilder();
+		for(byte b : digest) {
+			sb.append(String.format("%02X", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
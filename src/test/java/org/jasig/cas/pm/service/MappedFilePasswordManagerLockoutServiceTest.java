@@ -0,0 +1,91 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.jasig.cas.pm.PasswordManagerException;
+import org.jasig.cas.pm.UserLockedOutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFilePasswordManagerLockoutServiceTest {
+
+	private File file;
+	private MappedFilePasswordManagerLockoutService service;
+
+	@Before
+	public void createFile() throws Exception {
+		file = File.createTempFile("lockout", ".dat");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() throws Exception {
+		if(service != null) {
+			service.destroy();
+		}
+		file.delete();
+	}
+
+	@Test
+	public void lockoutSurvivesRestart() throws Exception {
+		service = newService(1024, 2);
+		service.registerIncorrectAttempt("alice");
+		assertLockedOut(service, "alice");
+		service.destroy();
+
+		service = newService(1024, 2);
+		try {
+			service.allowAttempt("alice");
+			fail("alice should still be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+		service.allowAttempt("bob");
+	}
+
+	@Test
+	public void fullSegmentRefusesNewUsers() throws Exception {
+		// a single segment of 16 records
+		service = newService(16, 1);
+		for(int i=0;i<16;i++) {
+			assertLockedOut(service, "user" + i);
+		}
+		// bob has attempts left, but there's no record to count them in
+		assertLockedOut(service, "bob");
+	}
+
+	@Test
+	public void fileCanOnlyBeOpenedOnce() throws Exception {
+		service = newService(1024, 2);
+		try {
+			newService(1024, 2);
+			fail("the file is already open");
+		} catch(PasswordManagerException ex) {
+			// expected
+		}
+		service.registerIncorrectAttempt("alice");
+	}
+
+	private MappedFilePasswordManagerLockoutService newService(int maxEntries, int allowedIncorrectAttempts)
+			throws Exception {
+		MappedFilePasswordManagerLockoutService service = new MappedFilePasswordManagerLockoutService();
+		service.setFile(file);
+		service.setMaxEntries(maxEntries);
+		service.setAllowedIncorrectAttempts(allowedIncorrectAttempts);
+		service.setSecondsUntilNextAllowedAttempt(600);
+		service.afterPropertiesSet();
+		return service;
+	}
+
+	private static void assertLockedOut(PasswordManagerLockoutService service, String username) {
+		try {
+			service.registerIncorrectAttempt(username);
+			fail(username + " should be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jasig.cas.pm.UserLockedOutException;
+import org.junit.Test;
+
+public class MemoryPasswordManagerLockoutServiceTest {
+
+	@Test
+	public void locksOutAfterAllowedAttempts() throws Exception {
+		MemoryPasswordManagerLockoutService service = newService(100, 3);
+		service.registerIncorrectAttempt("alice");
+		service.registerIncorrectAttempt("alice");
+		service.allowAttempt("alice");
+		assertLockedOut(service, "alice");
+		try {
+			service.allowAttempt("alice");
+			fail("alice should be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+		service.clearIncorrectAttempts("alice");
+		service.allowAttempt("alice");
+		assertEquals(0, service.getEntryCount());
+	}
+
+	@Test
+	public void concurrentNewUsersAreNeverDropped() throws Exception {
+		final MemoryPasswordManagerLockoutService service = newService(1000, Integer.MAX_VALUE);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for(int t=0;t<8;t++) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					for(int i=0;i<20000;i++) {
+						// throws if a new user isn't tracked
+						service.registerIncorrectAttempt("user" + thread + "-" + i);
+					}
+					return 20000;
+				}
+			}));
+		}
+		int registered = 0;
+		for(Future<Integer> result : results) {
+			registered += result.get();
+		}
+		executor.shutdown();
+
+		assertTrue(service.getEntryCount() <= 1000);
+		assertEquals(registered, service.getEntryCount() + service.getEvictionCount());
+	}
+
+	@Test
+	public void lockedOutUsersAreNeverEvicted() throws Exception {
+		MemoryPasswordManagerLockoutService service = newService(64, 1);
+		for(int i=0;i<32;i++) {
+			assertLockedOut(service, "locked" + i);
+		}
+		service.setAllowedIncorrectAttempts(Integer.MAX_VALUE);
+		for(int i=0;i<1000;i++) {
+			service.registerIncorrectAttempt("flood" + i);
+		}
+		service.setAllowedIncorrectAttempts(1);
+		for(int i=0;i<32;i++) {
+			try {
+				service.allowAttempt("locked" + i);
+				fail("locked" + i + " should still be locked out");
+			} catch(UserLockedOutException ex) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void fullOfLockedOutUsersRefusesNewUsers() throws Exception {
+		MemoryPasswordManagerLockoutService service = newService(4, 1);
+		for(int i=0;i<4;i++) {
+			assertLockedOut(service, "locked" + i);
+		}
+		service.setAllowedIncorrectAttempts(10);
+		assertLockedOut(service, "newcomer");
+		assertEquals(4, service.getEntryCount());
+
+		// room again once a lockout is cleared
+		service.clearIncorrectAttempts("locked0");
+		service.registerIncorrectAttempt("newcomer");
+		assertEquals(4, service.getEntryCount());
+	}
+
+	private static MemoryPasswordManagerLockoutService newService(int maxEntries, int allowedIncorrectAttempts) {
+		MemoryPasswordManagerLockoutService service = new MemoryPasswordManagerLockoutService();
+		service.setMaxEntries(maxEntries);
+		service.setAllowedIncorrectAttempts(allowedIncorrectAttempts);
+		service.setSecondsUntilNextAllowedAttempt(600);
+		return service;
+	}
+
+	private static void assertLockedOut(MemoryPasswordManagerLockoutService service, String username) {
+		try {
+			service.registerIncorrectAttempt(username);
+			fail(username + " should be locked out");
+		} catch(UserLockedOutException ex) {
+			// expected
+		}
+	}
+}
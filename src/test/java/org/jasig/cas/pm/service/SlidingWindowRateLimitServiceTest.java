@@ -0,0 +1,70 @@
+package org.jasig.cas.pm.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.jasig.cas.pm.RateLimitExceededException;
+import org.junit.Test;
+
+/**
+ * <p>Runs SlidingWindowRateLimitService against the clock with a one second
+ * window.</p>
+ */
+public class SlidingWindowRateLimitServiceTest {
+
+	@Test
+	public void hammeredUserIsNotGivenFreshWindow() throws Exception {
+		SlidingWindowRateLimitService service = new SlidingWindowRateLimitService();
+		service.setWindowSeconds(1);
+		service.setMaxRequestsPerUsername(2);
+		service.afterPropertiesSet();
+
+		// 2 at the start. Then the previous window's 2 slide out, letting
+		// one through just after 1s, 1.5s and 2s. A counter dropped after
+		// two windows would let 2 through at once at 2s.
+		int allowed = 0;
+		long end = System.currentTimeMillis() + 2250;
+		while(System.currentTimeMillis() < end) {
+			try {
+				service.allowRequest("jdoe", null);
+				allowed++;
+			} catch(RateLimitExceededException ex) {
+				// expected most of the time
+			}
+			Thread.sleep(20);
+		}
+		assertEquals(5, allowed);
+	}
+
+	@Test
+	public void rejectedRequestCostsNothing() throws Exception {
+		SlidingWindowRateLimitService service = new SlidingWindowRateLimitService();
+		service.setWindowSeconds(60);
+		service.setMaxRequestsPerUsername(2);
+		service.setMaxRequestsPerAddress(1);
+		service.setMaxRequestsPerUsernameAndAddress(2);
+		service.afterPropertiesSet();
+
+		service.allowRequest("jdoe", "10.0.0.1");
+		// an attacker spraying jdoe from one address can't use up jdoe's
+		// allowance, or the pair's, past the address limit
+		for(int i=0;i<10;i++) {
+			assertLimited(service, "jdoe", "10.0.0.1");
+		}
+		service.allowRequest("jdoe", "10.0.0.2");
+		assertLimited(service, "jdoe", "10.0.0.3");
+		assertLimited(service, "jdoe", "10.0.0.1");
+		// the rejected jdoe requests didn't use up 10.0.0.3's allowance
+		service.allowRequest("jsmith", "10.0.0.3");
+	}
+
+	private static void assertLimited(SlidingWindowRateLimitService service, String username,
+			String remoteAddress) {
+		try {
+			service.allowRequest(username, remoteAddress);
+			fail(username + "@" + remoteAddress + " should be limited");
+		} catch(RateLimitExceededException ex) {
+			// expected
+		}
+	}
+}
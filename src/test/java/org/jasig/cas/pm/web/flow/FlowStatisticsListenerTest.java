@@ -0,0 +1,104 @@
+package org.jasig.cas.pm.web.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.jasig.cas.pm.util.DirectoryCalls;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.webflow.core.collection.LocalAttributeMap;
+import org.springframework.webflow.engine.Flow;
+import org.springframework.webflow.test.MockFlowExecutionContext;
+import org.springframework.webflow.test.MockFlowSession;
+import org.springframework.webflow.test.MockRequestContext;
+
+/**
+ * <p>Drives FlowStatisticsListener through the events of a login flow that
+ * calls the passwordManager subflow, the way login-webflow.xml does.</p>
+ */
+public class FlowStatisticsListenerTest {
+
+	private FlowStatisticsListener listener;
+	private MockFlowExecutionContext execution;
+	private MockRequestContext context;
+	private MockFlowSession login;
+	private MockFlowSession passwordManager;
+
+	@Before
+	public void startExecution() {
+		listener = new FlowStatisticsListener();
+		login = new MockFlowSession(new Flow("login"));
+		passwordManager = new MockFlowSession(new Flow("passwordManager"));
+		passwordManager.setParent(login);
+		execution = new MockFlowExecutionContext(login);
+		context = new MockRequestContext(execution);
+	}
+
+	@After
+	public void unregister() throws Exception {
+		listener.destroy();
+	}
+
+	@Test
+	public void subflowIsRecordedByItsOwnId() throws Exception {
+		// 1: login starts and authenticates
+		listener.requestSubmitted(context);
+		listener.sessionStarted(context, login);
+		DirectoryCalls.record();
+		listener.requestProcessed(context);
+
+		// 2: the password has expired, so passwordManager starts
+		Thread.sleep(200);
+		listener.requestSubmitted(context);
+		DirectoryCalls.record();
+		Thread.sleep(50);
+		execution.setActiveSession(passwordManager);
+		listener.sessionStarted(context, passwordManager);
+		DirectoryCalls.record();
+		DirectoryCalls.record();
+		listener.requestProcessed(context);
+
+		// 3: the password is changed and passwordManager ends
+		Thread.sleep(200);
+		listener.requestSubmitted(context);
+		DirectoryCalls.record();
+		Thread.sleep(50);
+		execution.setActiveSession(login);
+		listener.sessionEnded(context, passwordManager, "pmExit", new LocalAttributeMap());
+		DirectoryCalls.record();
+		listener.requestProcessed(context);
+
+		// 4: login ends
+		listener.requestSubmitted(context);
+		execution.setActiveSession(null);
+		listener.sessionEnded(context, login, "success", new LocalAttributeMap());
+		listener.requestProcessed(context);
+
+		FlowStatistics subflow = listener.getStatistics().get("passwordManager:pmExit");
+		assertEquals(1, subflow.getCompletedCount());
+		assertEquals(2, subflow.getMeanRequests(), 0);
+		assertEquals(3, subflow.getMeanDirectoryCalls(), 0);
+		long subflowMillis = subflow.getMeanServerMillis();
+		assertTrue("took " + subflowMillis + "ms", subflowMillis >= 50 && subflowMillis < 200);
+
+		FlowStatistics root = listener.getStatistics().get("login:success");
+		assertEquals(1, root.getCompletedCount());
+		assertEquals(4, root.getMeanRequests(), 0);
+		assertEquals(6, root.getMeanDirectoryCalls(), 0);
+		long rootMillis = root.getMeanServerMillis();
+		assertTrue("took " + rootMillis + "ms", rootMillis >= 100 && rootMillis < 400);
+		assertEquals(2, listener.getStatistics().size());
+
+		ObjectName objectName = new ObjectName(
+				"org.jasig.cas.pm:type=FlowStatistics,flow=\"passwordManager\",outcome=\"pmExit\"");
+		assertEquals(3.0, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName,
+				"MeanDirectoryCalls"));
+		assertEquals(2.0, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName,
+				"MeanRequests"));
+	}
+}
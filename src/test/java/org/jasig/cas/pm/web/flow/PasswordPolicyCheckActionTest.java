@@ -0,0 +1,100 @@
+package org.jasig.cas.pm.web.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.jasig.cas.pm.service.PasswordManagerService;
+import org.jasig.cas.pm.service.PasswordPolicyInfo;
+import org.jasig.cas.pm.service.PasswordPolicyInfo.PasswordPolicyError;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.webflow.test.MockRequestContext;
+
+/**
+ * <p>Checks the login events PasswordPolicyCheckAction turns the directory's
+ * password policy state into.</p>
+ */
+public class PasswordPolicyCheckActionTest {
+
+	private PasswordPolicyCheckAction action;
+	private MockRequestContext context;
+	/** What checkUserPassword returns, or null to not find the user. */
+	private PasswordPolicyInfo info;
+	private int checks;
+
+	@Before
+	public void createAction() {
+		action = new PasswordPolicyCheckAction();
+		action.setEnabled(true);
+		action.setPasswordManagerService((PasswordManagerService) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { PasswordManagerService.class },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(!method.getName().equals("checkUserPassword")) {
+					throw new UnsupportedOperationException(method.getName());
+				}
+				assertEquals("jdoe", args[0]);
+				assertEquals("Passw0rd", args[1]);
+				checks++;
+				if(info == null) {
+					throw new NameNotFoundException("jdoe");
+				}
+				return info;
+			}
+		}));
+
+		UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+		credentials.setUsername("jdoe");
+		credentials.setPassword("Passw0rd");
+		context = new MockRequestContext();
+		context.getFlowScope().put("credentials", credentials);
+	}
+
+	@Test
+	public void expiredOrResetPasswordMustBeChanged() throws Exception {
+		info = new PasswordPolicyInfo(false, -1, -1, PasswordPolicyError.PASSWORD_EXPIRED);
+		assertEquals("mustChangePassword", action.execute(context).getId());
+		info = new PasswordPolicyInfo(true, -1, -1, PasswordPolicyError.CHANGE_AFTER_RESET);
+		assertEquals("mustChangePassword", action.execute(context).getId());
+	}
+
+	@Test
+	public void expiringPasswordShowsWarning() throws Exception {
+		info = new PasswordPolicyInfo(true, 2 * 24 * 60 * 60 + 60, -1, null);
+		assertEquals("showWarning", action.execute(context).getId());
+		assertEquals(3, context.getFlowScope().get("expireDays"));
+	}
+
+	@Test
+	public void graceLoginShowsWarningForToday() throws Exception {
+		info = new PasswordPolicyInfo(true, -1, 2, null);
+		assertEquals("showWarning", action.execute(context).getId());
+		assertEquals(0, context.getFlowScope().get("expireDays"));
+	}
+
+	@Test
+	public void nothingToReportContinues() throws Exception {
+		info = new PasswordPolicyInfo(true);
+		assertEquals("success", action.execute(context).getId());
+		assertNull(context.getFlowScope().get("expireDays"));
+
+		// e.g. a user authenticated by another handler
+		info = null;
+		assertEquals("success", action.execute(context).getId());
+	}
+
+	@Test
+	public void disabledCheckMakesNoBind() throws Exception {
+		action.setEnabled(false);
+		info = new PasswordPolicyInfo(true, -1, -1, PasswordPolicyError.CHANGE_AFTER_RESET);
+		assertEquals("success", action.execute(context).getId());
+		assertEquals(0, checks);
+	}
+}
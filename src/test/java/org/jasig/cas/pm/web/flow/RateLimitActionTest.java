@@ -0,0 +1,73 @@
+package org.jasig.cas.pm.web.flow;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Checks which address RateLimitAction limits a request by, with and
+ * without trusted proxies in front of it.</p>
+ */
+public class RateLimitActionTest {
+
+	private RateLimitAction action;
+
+	@Before
+	public void createAction() {
+		action = new RateLimitAction();
+	}
+
+	@Test
+	public void usesRemoteAddressByDefault() {
+		assertEquals("10.0.0.1", action.getClientAddress(request("10.0.0.1", "192.0.2.7")));
+
+		action.setClientAddressHeader("");
+		action.setTrustedProxies(new String[] { "10.0.0.1" });
+		assertEquals("10.0.0.1", action.getClientAddress(request("10.0.0.1", "192.0.2.7")));
+	}
+
+	@Test
+	public void takesClientAddressFromTrustedProxies() {
+		action.setClientAddressHeader("X-Forwarded-For");
+		action.setTrustedProxies(new String[] { "10.0.0.1", " 10.0.0.2 ", "" });
+
+		assertEquals("192.0.2.7", action.getClientAddress(request("10.0.0.1", "192.0.2.7")));
+		assertEquals("192.0.2.7", action.getClientAddress(request("10.0.0.1", "192.0.2.7, 10.0.0.2")));
+		// whatever the client put in the header itself is skipped
+		assertEquals("192.0.2.7", action.getClientAddress(request("10.0.0.1", "1.2.3.4, 192.0.2.7,10.0.0.2")));
+		// a header listing only proxies leaves the first of them
+		assertEquals("10.0.0.2", action.getClientAddress(request("10.0.0.1", "10.0.0.2")));
+		assertEquals("10.0.0.1", action.getClientAddress(request("10.0.0.1", null)));
+		assertEquals("10.0.0.1", action.getClientAddress(request("10.0.0.1", " , ")));
+	}
+
+	@Test
+	public void ignoresHeaderFromUntrustedClients() {
+		action.setClientAddressHeader("X-Forwarded-For");
+		action.setTrustedProxies(new String[] { "10.0.0.1" });
+		assertEquals("192.0.2.7", action.getClientAddress(request("192.0.2.7", "1.2.3.4")));
+	}
+
+	private static HttpServletRequest request(final String remoteAddress, final String forwardedFor) {
+		return (HttpServletRequest) Proxy.newProxyInstance(RateLimitActionTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if(method.getName().equals("getRemoteAddr")) {
+					return remoteAddress;
+				}
+				if(method.getName().equals("getHeader")) {
+					return "X-Forwarded-For".equalsIgnoreCase((String) args[0]) ? forwardedFor : null;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
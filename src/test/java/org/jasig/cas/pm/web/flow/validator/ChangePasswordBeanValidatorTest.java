@@ -0,0 +1,162 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.jasig.cas.pm.service.BreachedPasswordChecker;
+import org.jasig.cas.pm.web.flow.model.ChangePasswordBean;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.binding.message.DefaultMessageContext;
+import org.springframework.binding.message.Message;
+import org.springframework.binding.message.MessageContext;
+import org.springframework.binding.validation.ValidationContext;
+import org.springframework.context.MessageSource;
+import org.springframework.context.MessageSourceResolvable;
+
+/**
+ * <p>Checks the messages ChangePasswordBeanValidator adds for a policy like
+ * the shipped one, and that a password the policy rejects goes no
+ * further.</p>
+ */
+public class ChangePasswordBeanValidatorTest {
+
+	private ChangePasswordBeanValidator validator;
+	private PasswordPolicy policy;
+	private DefaultMessageContext messageContext;
+	private ValidationContext validationContext;
+	private int breachChecks;
+
+	@Before
+	public void createValidator() throws Exception {
+		policy = new PasswordPolicy();
+		policy.setMinLength(8);
+		policy.setMinLowercase(1);
+		policy.setMinUppercase(1);
+		policy.setMinDigits(1);
+		policy.setMaxLength(64);
+		policy.afterPropertiesSet();
+
+		validator = new ChangePasswordBeanValidator();
+		validator.setPasswordPolicy(policy);
+		validator.setBreachedPasswordChecker(new BreachedPasswordChecker() {
+			@Override
+			public boolean isBreached(String password) {
+				breachChecks++;
+				return password.equals("Breached1");
+			}
+		});
+
+		// resolves each message to its code
+		messageContext = new DefaultMessageContext(new MessageSource() {
+			public String getMessage(String code, Object[] args, String defaultMessage, Locale locale) {
+				return code;
+			}
+
+			public String getMessage(String code, Object[] args, Locale locale) {
+				return code;
+			}
+
+			public String getMessage(MessageSourceResolvable resolvable, Locale locale) {
+				return resolvable.getCodes()[0];
+			}
+		});
+		validationContext = new ValidationContext() {
+			public MessageContext getMessageContext() {
+				return messageContext;
+			}
+
+			public String getUserEvent() {
+				return "submit";
+			}
+
+			public Principal getUserPrincipal() {
+				return null;
+			}
+
+			public Object getUserValue(String property) {
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void reportsEachBrokenRuleSeparately() {
+		validator.validateChangePasswordView(bean("jdoe", "Old-Passw0rd", "short", "other"), validationContext);
+		assertEquals(Arrays.asList("cas.pm.newpassword.too-short", "cas.pm.newpassword.uppercase",
+				"cas.pm.newpassword.digits"), messages("newPassword"));
+		// a rejected password isn't checked any further or against the confirmation
+		assertEquals(Arrays.<String>asList(), messages("confirmNewPassword"));
+		assertEquals(0, breachChecks);
+	}
+
+	@Test
+	public void tooLongPasswordIsOnlyReportedAsTooLong() {
+		String longPassword = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+		validator.validateSetPassword(bean("jdoe", null, longPassword, longPassword), validationContext);
+		assertEquals(Arrays.asList("cas.pm.newpassword.too-long"), messages("newPassword"));
+		assertEquals(0, breachChecks);
+	}
+
+	@Test
+	public void acceptedPasswordGoesOnToTheOtherChecks() {
+		validator.validateChangePasswordView(bean("jdoe", "Old-Passw0rd", "Breached1", "Breached1"),
+				validationContext);
+		assertEquals(Arrays.asList("cas.pm.newpassword.breached"), messages("newPassword"));
+
+		messageContext.clearMessages();
+		validator.validateChangePasswordView(bean("jdoe", "Old-Passw0rd", "New-Passw0rd", "Other-Passw0rd"),
+				validationContext);
+		assertEquals(Arrays.<String>asList(), messages("newPassword"));
+		assertEquals(Arrays.asList("cas.pm.newpassword.mismatch"), messages("confirmNewPassword"));
+		assertEquals(2, breachChecks);
+	}
+
+	@Test
+	public void checksUsernameAndOldPasswordWhenEnabled() {
+		validator.validateChangePasswordView(bean("jdoe", "Summer2023", "xJdoe2024", "xJdoe2024"),
+				validationContext);
+		validator.validateChangePasswordView(bean("jdoe", "Summer2023", "Summer2024", "Summer2024"),
+				validationContext);
+		assertEquals(Arrays.<String>asList(), messages("newPassword"));
+
+		policy.setRejectUsername(true);
+		policy.setRejectSimilarToOldPassword(true);
+		validator.validateChangePasswordView(bean("jdoe", "Summer2023", "xJdoe2024", "xJdoe2024"),
+				validationContext);
+		assertEquals(Arrays.asList("cas.pm.newpassword.username"), messages("newPassword"));
+
+		messageContext.clearMessages();
+		validator.validateChangePasswordView(bean("jdoe", "Summer2023", "Summer2024", "Summer2024"),
+				validationContext);
+		assertEquals(Arrays.asList("cas.pm.newpassword.old-password"), messages("newPassword"));
+
+		// setting a forgotten password has no old password to compare with
+		messageContext.clearMessages();
+		validator.validateSetPassword(bean("jdoe", null, "Summer2024", "Summer2024"), validationContext);
+		assertEquals(Arrays.<String>asList(), messages("newPassword"));
+	}
+
+	private static ChangePasswordBean bean(String username, String oldPassword, String newPassword,
+			String confirmNewPassword) {
+		ChangePasswordBean bean = new ChangePasswordBean();
+		bean.setUsername(username);
+		bean.setOldPassword(oldPassword);
+		bean.setNewPassword(newPassword);
+		bean.setConfirmNewPassword(confirmNewPassword);
+		return bean;
+	}
+
+	private List<String> messages(String source) {
+		List<String> texts = new ArrayList<String>();
+		for(Message message : messageContext.getMessagesBySource(source)) {
+			texts.add(message.getText());
+		}
+		return texts;
+	}
+}
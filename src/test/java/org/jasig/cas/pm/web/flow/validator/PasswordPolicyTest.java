@@ -0,0 +1,154 @@
+package org.jasig.cas.pm.web.flow.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.binding.message.MessageResolver;
+import org.springframework.context.MessageSourceResolvable;
+
+/**
+ * <p>Checks the message codes and limits PasswordPolicy reports for each
+ * rule.</p>
+ */
+public class PasswordPolicyTest {
+
+	@Test
+	public void defaultPolicyOnlyLimitsLength() throws Exception {
+		PasswordPolicy policy = newPolicy();
+		assertEquals(codes(), codes(policy.check("a", "jdoe", "a")));
+		assertEquals(codes(), codes(policy.check(repeat('a', 256), "jdoe", null)));
+		assertEquals(codes("too-long"), codes(policy.check(repeat('a', 257), "jdoe", null)));
+	}
+
+	@Test
+	public void eachBrokenRuleHasItsOwnCode() throws Exception {
+		PasswordPolicy policy = newPolicy();
+		policy.setMinLength(8);
+		policy.setMinLowercase(1);
+		policy.setMinUppercase(2);
+		policy.setMinDigits(3);
+		policy.setMinSpecial(1);
+		policy.setMinCharacterClasses(3);
+		policy.setMaxRepeats(2);
+
+		List<MessageResolver> errors = policy.check("aaab", "jdoe", null);
+		assertEquals(codes("too-short", "uppercase", "digits", "special", "character-classes", "repeats"),
+				codes(errors));
+		assertEquals(Arrays.<Object>asList(8, 2, 3, 1, 3, 2), args(errors));
+
+		assertEquals(codes("lowercase", "digits"), codes(policy.check("AB!CDEFG1", "jdoe", null)));
+		assertEquals(codes(), codes(policy.check("aB!C1d23", "jdoe", null)));
+	}
+
+	@Test
+	public void tooLongPasswordSkipsOtherRules() throws Exception {
+		PasswordPolicy policy = newPolicy();
+		policy.setMaxLength(10);
+		policy.setMinUppercase(1);
+		policy.setMinDigits(1);
+		policy.setMaxRepeats(1);
+		policy.setRejectUsername(true);
+
+		List<MessageResolver> errors = policy.check("jdoejdoejdoe", "jdoe", null);
+		assertEquals(codes("too-long"), codes(errors));
+		assertEquals(Arrays.<Object>asList(10), args(errors));
+		assertEquals(codes("uppercase", "digits", "repeats", "username"),
+				codes(policy.check("jdoeaajdoe", "jdoe", null)));
+	}
+
+	@Test
+	public void rejectsPasswordsContainingUsername() throws Exception {
+		PasswordPolicy policy = newPolicy();
+		assertEquals(codes(), codes(policy.check("xJDoe1!", "jdoe", null)));
+
+		policy.setRejectUsername(true);
+		assertEquals(codes("username"), codes(policy.check("xJDoe1!", "jdoe", null)));
+		assertEquals(codes("username"), codes(policy.check("jdoe", "JDOE", null)));
+		assertEquals(codes(), codes(policy.check("xjdo1!", "jdoe", null)));
+		assertEquals(codes(), codes(policy.check("jdo", "jdoe", null)));
+		assertEquals(codes(), codes(policy.check("xJDoe1!", null, null)));
+		// usernames under 3 characters are too common to reject
+		assertEquals(codes(), codes(policy.check("xjd1!", "jd", null)));
+		assertEquals(codes("username"), codes(policy.check("xjoe1!", "joe", null)));
+	}
+
+	@Test
+	public void rejectsPasswordsSimilarToOldPassword() throws Exception {
+		PasswordPolicy policy = newPolicy();
+		assertEquals(codes(), codes(policy.check("summer2024", "jdoe", "Summer2023")));
+
+		policy.setRejectSimilarToOldPassword(true);
+		assertEquals(codes("old-password"), codes(policy.check("summer2024", "jdoe", "Summer2023")));
+		assertEquals(codes("old-password"), codes(policy.check("1Summer", "jdoe", "Summer2023")));
+		assertEquals(codes("old-password"), codes(policy.check("s1u2m3m4e5r", "jdoe", "SUMMER")));
+		assertEquals(codes(), codes(policy.check("Summer2023!", "jdoe", "Summer2023")));
+		assertEquals(codes(), codes(policy.check("Summe2023", "jdoe", "Summer2023")));
+		assertEquals(codes(), codes(policy.check("Winter2023", "jdoe", "Summer2023")));
+		// all digits have nothing but digits in common
+		assertEquals(codes(), codes(policy.check("20242024", "jdoe", "20232023")));
+		assertEquals(codes(), codes(policy.check("summer2024", "jdoe", null)));
+	}
+
+	@Test
+	public void rejectsInconsistentLimits() throws Exception {
+		PasswordPolicy policy = new PasswordPolicy();
+		policy.setMinLength(20);
+		policy.setMaxLength(10);
+		try {
+			policy.afterPropertiesSet();
+			fail("minLength over maxLength should be rejected");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+
+		policy = new PasswordPolicy();
+		policy.setMinCharacterClasses(5);
+		try {
+			policy.afterPropertiesSet();
+			fail("more than 4 character classes should be rejected");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	private static PasswordPolicy newPolicy() throws Exception {
+		PasswordPolicy policy = new PasswordPolicy();
+		policy.afterPropertiesSet();
+		return policy;
+	}
+
+	private static List<String> codes(String... rules) {
+		List<String> codes = new ArrayList<String>();
+		for(String rule : rules) {
+			codes.add("cas.pm.newpassword." + rule);
+		}
+		return codes;
+	}
+
+	private static List<String> codes(List<MessageResolver> errors) {
+		List<String> codes = new ArrayList<String>();
+		for(MessageResolver error : errors) {
+			codes.addAll(Arrays.asList(((MessageSourceResolvable) error).getCodes()));
+		}
+		return codes;
+	}
+
+	private static List<Object> args(List<MessageResolver> errors) {
+		List<Object> args = new ArrayList<Object>();
+		for(MessageResolver error : errors) {
+			args.addAll(Arrays.asList(((MessageSourceResolvable) error).getArguments()));
+		}
+		return args;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}